@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.api;
+
+/**
+ * Load of one or more running instances, as reported by their periodic heartbeat. Values of an aggregated report
+ * are sums over the instances, except {@link #getCpuLoad()}, which is the average.
+ */
+public interface LoadReport {
+
+  /**
+   * @return Timestamp in milliseconds of the report. For aggregated report, it is the timestamp of the oldest
+   *         report aggregated.
+   */
+  long getTimestamp();
+
+  /**
+   * @return Number of instances covered by this report.
+   */
+  int getInstances();
+
+  /**
+   * @return System load average divided by the number of processors, or a negative value if not available.
+   */
+  double getCpuLoad();
+
+  /**
+   * @return Used heap memory in bytes.
+   */
+  long getHeapUsed();
+
+  /**
+   * @return Maximum heap memory in bytes.
+   */
+  long getHeapMax();
+
+  /**
+   * @return Accumulated garbage collection time in milliseconds.
+   */
+  long getGcTimeMillis();
+
+  /**
+   * @return Number of live threads.
+   */
+  int getThreadCount();
+
+  /**
+   * @return Number of messages pending to be processed.
+   */
+  int getPendingMessages();
+}
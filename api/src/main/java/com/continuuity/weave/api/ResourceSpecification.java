@@ -16,6 +16,12 @@
 package com.continuuity.weave.api;
 
 import com.continuuity.weave.internal.DefaultResourceSpecification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This interface provides specifications for resource requirements including set and get methods for number of cores, amount of memory, and number of instances.
@@ -38,6 +44,15 @@ public interface ResourceSpecification {
     }
   }
 
+  /**
+   * Policy for restarting instances that are completed without being stopped.
+   */
+  enum RestartPolicy {
+    NEVER,
+    ON_FAILURE,
+    ALWAYS
+  }
+
   /**
    * Returns the number of CPU cores.
    * @return Number of CPU cores.
@@ -68,6 +83,66 @@ public interface ResourceSpecification {
    */
   int getInstances();
 
+  /**
+   * Returns the hosts preferred for running instances.
+   * @return Set of host names, or an empty set if there is no host preference.
+   */
+  Set<String> getHosts();
+
+  /**
+   * Returns the racks preferred for running instances.
+   * @return Set of rack names, or an empty set if there is no rack preference.
+   */
+  Set<String> getRacks();
+
+  /**
+   * Returns the HDFS paths that instances read from. Hosts storing blocks of those paths are preferred.
+   * @return Set of paths, or an empty set if there is no data locality preference.
+   */
+  Set<String> getDataPaths();
+
+  /**
+   * Returns whether instances should be spread across different hosts.
+   * @return {@code true} to avoid running more than one instance on the same host while there are other hosts.
+   */
+  boolean isSpread();
+
+  /**
+   * Returns whether instances can run on hosts other than the preferred ones if those are not available.
+   * @return {@code true} if locality is relaxed, which is the default.
+   */
+  boolean isRelaxLocality();
+
+  /**
+   * Returns the number of standby containers kept warm for fast scale up of instances.
+   * @return Number of standby containers, or 0 if there is no warm pool.
+   */
+  int getWarmPoolSize();
+
+  /**
+   * Returns how long the warm pool is kept without any change in number of instances.
+   * @return Idle timeout in seconds, or 0 for keeping the warm pool as long as the application is running.
+   */
+  int getWarmPoolIdleSeconds();
+
+  /**
+   * Returns the policy for restarting instances that are completed without being stopped.
+   * @return The restart policy, which is {@link RestartPolicy#NEVER} by default.
+   */
+  RestartPolicy getRestartPolicy();
+
+  /**
+   * Returns the maximum number of restarts within the restart window. Instances are not restarted once it is reached.
+   * @return Maximum number of restarts, or 0 for unlimited.
+   */
+  int getMaxRestarts();
+
+  /**
+   * Returns the time window that the maximum number of restarts applies to.
+   * @return Window in seconds, or 0 for counting all restarts since the application started.
+   */
+  int getRestartWindowSeconds();
+
   /**
    * Builder for creating {@link ResourceSpecification}.
    */
@@ -78,6 +153,16 @@ public interface ResourceSpecification {
     private int uplink = -1;
     private int downlink = -1;
     private int instances = 1;
+    private final Set<String> hosts = new LinkedHashSet<String>();
+    private final Set<String> racks = new LinkedHashSet<String>();
+    private final Set<String> dataPaths = new LinkedHashSet<String>();
+    private boolean spread;
+    private boolean relaxLocality = true;
+    private int warmPoolSize;
+    private int warmPoolIdleSeconds;
+    private RestartPolicy restartPolicy = RestartPolicy.NEVER;
+    private int maxRestarts;
+    private int restartWindowSeconds;
 
     public static CoreSetter with() {
       return new Builder().new CoreSetter();
@@ -126,9 +211,74 @@ public interface ResourceSpecification {
       }
     }
 
+    /**
+     * Placement preferences can be set after the resource requirements.
+     */
     public abstract class Build {
+
+      public Build preferHosts(String host, String... moreHosts) {
+        hosts.addAll(Lists.asList(host, moreHosts));
+        return this;
+      }
+
+      public Build preferRacks(String rack, String... moreRacks) {
+        racks.addAll(Lists.asList(rack, moreRacks));
+        return this;
+      }
+
+      public Build preferDataLocal(String path, String... morePaths) {
+        dataPaths.addAll(Lists.asList(path, morePaths));
+        return this;
+      }
+
+      public Build spreadInstances() {
+        spread = true;
+        return this;
+      }
+
+      /**
+       * Only runs instances on the preferred hosts, or in the preferred racks. If the cluster keeps allocating
+       * containers elsewhere, placement is relaxed after a number of containers are rejected.
+       */
+      public Build strictLocality() {
+        relaxLocality = false;
+        return this;
+      }
+
+      /**
+       * Keeps standby containers that are started ahead and activated when the number of instances increases.
+       * @param size Number of standby containers.
+       * @param idleTimeout Time without change in number of instances before the standby containers are released,
+       *                    or 0 to keep them as long as the application is running.
+       * @param unit Unit of the idle timeout.
+       */
+      public Build warmPool(int size, long idleTimeout, TimeUnit unit) {
+        warmPoolSize = size;
+        warmPoolIdleSeconds = (int) unit.toSeconds(idleTimeout);
+        return this;
+      }
+
+      /**
+       * Restarts instances that are completed without being stopped, with exponential backoff between
+       * restarts of the same runnable. An instance restarted keeps its instance id.
+       * @param policy Restart policy.
+       * @param maxRestarts Maximum number of restarts within the window, or 0 for unlimited.
+       * @param window Time window for the maximum number of restarts, or 0 for no window.
+       * @param unit Unit of the window.
+       */
+      public Build restart(RestartPolicy policy, int maxRestarts, long window, TimeUnit unit) {
+        restartPolicy = policy;
+        Builder.this.maxRestarts = maxRestarts;
+        restartWindowSeconds = (int) unit.toSeconds(window);
+        return this;
+      }
+
       public ResourceSpecification build() {
-        return new DefaultResourceSpecification(cores, memory, instances, uplink, downlink);
+        return new DefaultResourceSpecification(cores, memory, instances, uplink, downlink,
+                                                ImmutableSet.copyOf(hosts), ImmutableSet.copyOf(racks),
+                                                ImmutableSet.copyOf(dataPaths), spread, relaxLocality,
+                                                warmPoolSize, warmPoolIdleSeconds,
+                                                restartPolicy, maxRestarts, restartWindowSeconds);
       }
     }
 
@@ -15,10 +15,16 @@
  */
 package com.continuuity.weave.api;
 
+import com.continuuity.weave.api.events.WeaveEvent;
+import com.continuuity.weave.api.events.WeaveEventHandler;
 import com.continuuity.weave.api.logging.LogHandler;
+import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.discovery.Discoverable;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 /**
  * For controlling a running application.
  */
@@ -30,6 +36,18 @@ public interface WeaveController extends ServiceController {
    */
   void addLogHandler(LogHandler handler);
 
+  /**
+   * Adds a {@link WeaveEventHandler} for receiving lifecycle events of the application. Events are delivered
+   * in the order they are recorded by the application master, starting from the oldest event retained. For the same
+   * container, {@link WeaveEvent.Type#CONTAINER_LAUNCHED} is always recorded before
+   * {@link WeaveEvent.Type#CONTAINER_RUNNING}, which is always recorded before
+   * {@link WeaveEvent.Type#CONTAINER_COMPLETED}.
+   * @param handler The handler to add.
+   * @param executor Executor for calling the handler.
+   * @return A {@link Cancellable} for removing the handler.
+   */
+  Cancellable addEventHandler(WeaveEventHandler handler, Executor executor);
+
   /**
    * Discovers the set of {@link Discoverable} endpoints that provides service for the given service name.
    * @param serviceName Name of the service to discovery.
@@ -49,4 +67,10 @@ public interface WeaveController extends ServiceController {
    *         while changing instances, it'll be reflected in the future.
    */
   ListenableFuture<Integer> changeInstances(String runnable, int newCount);
+
+  /**
+   * Returns the latest load of each runnable, aggregated from the heartbeats of its running instances.
+   * @return An immutable map from runnable name to {@link LoadReport}. Runnables that have no report yet are absent.
+   */
+  Map<String, LoadReport> getLoadReports();
 }
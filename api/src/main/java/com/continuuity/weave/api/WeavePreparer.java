@@ -117,6 +117,31 @@ public interface WeavePreparer {
    */
   WeavePreparer withClassPaths(Iterable<String> classPaths);
 
+  /**
+   * Ships each dependency jar of the runnables as a separate file instead of packaging them inside the
+   * application jar. Dependency jars that are not changed are then reused across launches and could be cached
+   * by the cluster, while only the changed application code is transferred.
+   * @return This {@link WeavePreparer}
+   */
+  WeavePreparer withSeparateDependencyJars();
+
+  /**
+   * Sets whether containers expand the whole application jar when they start. If it is {@code false}, only the
+   * dependency jars inside are expanded, and classes and resources are loaded from the application jar directly.
+   * Default is {@code true}.
+   * @param expandAll {@code true} to expand the whole jar.
+   * @return This {@link WeavePreparer}
+   */
+  WeavePreparer withJarExpansion(boolean expandAll);
+
+  /**
+   * Sets the directory for caching expanded application jars on the target machines, which is shared by
+   * containers running on the same machine. By default, the first local directory of the container is used.
+   * @param dir Path of the directory on the target machines.
+   * @return This {@link WeavePreparer}
+   */
+  WeavePreparer withJarCacheDir(String dir);
+
   /**
    * Starts the application.
    * @return A {@link WeaveController} for controlling the running application.
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.api.events;
+
+import com.continuuity.weave.api.RunId;
+
+import javax.annotation.Nullable;
+
+/**
+ * Represents a lifecycle event of a running application, such as a container started or completed.
+ */
+public interface WeaveEvent {
+
+  /**
+   * Type of the event.
+   */
+  enum Type {
+    /** A container is allocated for running an instance of a runnable. */
+    CONTAINER_ALLOCATED,
+    /** The runnable process is launched in a container. */
+    CONTAINER_LAUNCHED,
+    /** The runnable in a container is running. */
+    CONTAINER_RUNNING,
+    /** A container is completed. The exit status is given by {@link #getExitStatus()}. */
+    CONTAINER_COMPLETED,
+    /** The number of instances of a runnable is changed. The count is given by {@link #getInstanceCount()}. */
+    INSTANCES_CHANGED
+  }
+
+  /**
+   * Returns the {@link Type} of the event.
+   */
+  Type getType();
+
+  /**
+   * Returns the time in milliseconds when the event happened, as seen by the application master.
+   */
+  long getTimestamp();
+
+  /**
+   * Returns the name of the runnable that the event is about.
+   */
+  String getRunnableName();
+
+  /**
+   * Returns the {@link RunId} of the runnable instance or {@code null} if it is not an event of a particular instance.
+   */
+  @Nullable
+  RunId getRunId();
+
+  /**
+   * Returns the container id or {@code null} if it is not an event of a particular container.
+   */
+  @Nullable
+  String getContainerId();
+
+  /**
+   * Returns the exit status of the container for {@link Type#CONTAINER_COMPLETED} event.
+   */
+  int getExitStatus();
+
+  /**
+   * Returns the number of instances of the runnable for {@link Type#INSTANCES_CHANGED} event.
+   */
+  int getInstanceCount();
+}
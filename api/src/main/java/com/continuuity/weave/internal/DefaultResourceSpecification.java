@@ -16,6 +16,9 @@
 package com.continuuity.weave.internal;
 
 import com.continuuity.weave.api.ResourceSpecification;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Set;
 
 /**
  * Straightforward implementation of {@link ResourceSpecification}.
@@ -26,13 +29,42 @@ public final class DefaultResourceSpecification implements ResourceSpecification
   private final int instances;
   private final int uplink;
   private final int downlink;
+  private final Set<String> hosts;
+  private final Set<String> racks;
+  private final Set<String> dataPaths;
+  private final boolean spread;
+  private final boolean relaxLocality;
+  private final int warmPoolSize;
+  private final int warmPoolIdleSeconds;
+  private final RestartPolicy restartPolicy;
+  private final int maxRestarts;
+  private final int restartWindowSeconds;
 
   public DefaultResourceSpecification(int cores, int memorySize, int instances, int uplink, int downlink) {
+    this(cores, memorySize, instances, uplink, downlink, ImmutableSet.<String>of(), ImmutableSet.<String>of(),
+         ImmutableSet.<String>of(), false, true, 0, 0, RestartPolicy.NEVER, 0, 0);
+  }
+
+  public DefaultResourceSpecification(int cores, int memorySize, int instances, int uplink, int downlink,
+                                      Set<String> hosts, Set<String> racks, Set<String> dataPaths,
+                                      boolean spread, boolean relaxLocality,
+                                      int warmPoolSize, int warmPoolIdleSeconds,
+                                      RestartPolicy restartPolicy, int maxRestarts, int restartWindowSeconds) {
     this.cores = cores;
     this.memorySize = memorySize;
     this.instances = instances;
     this.uplink = uplink;
     this.downlink = downlink;
+    this.hosts = ImmutableSet.copyOf(hosts);
+    this.racks = ImmutableSet.copyOf(racks);
+    this.dataPaths = ImmutableSet.copyOf(dataPaths);
+    this.spread = spread;
+    this.relaxLocality = relaxLocality;
+    this.warmPoolSize = warmPoolSize;
+    this.warmPoolIdleSeconds = warmPoolIdleSeconds;
+    this.restartPolicy = restartPolicy;
+    this.maxRestarts = maxRestarts;
+    this.restartWindowSeconds = restartWindowSeconds;
   }
 
   @Override
@@ -59,4 +91,54 @@ public final class DefaultResourceSpecification implements ResourceSpecification
   public int getDownlink() {
     return downlink;
   }
+
+  @Override
+  public Set<String> getHosts() {
+    return hosts;
+  }
+
+  @Override
+  public Set<String> getRacks() {
+    return racks;
+  }
+
+  @Override
+  public Set<String> getDataPaths() {
+    return dataPaths;
+  }
+
+  @Override
+  public boolean isSpread() {
+    return spread;
+  }
+
+  @Override
+  public boolean isRelaxLocality() {
+    return relaxLocality;
+  }
+
+  @Override
+  public int getWarmPoolSize() {
+    return warmPoolSize;
+  }
+
+  @Override
+  public int getWarmPoolIdleSeconds() {
+    return warmPoolIdleSeconds;
+  }
+
+  @Override
+  public RestartPolicy getRestartPolicy() {
+    return restartPolicy;
+  }
+
+  @Override
+  public int getMaxRestarts() {
+    return maxRestarts;
+  }
+
+  @Override
+  public int getRestartWindowSeconds() {
+    return restartWindowSeconds;
+  }
 }
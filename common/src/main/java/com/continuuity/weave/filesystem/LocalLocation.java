@@ -15,6 +15,7 @@
  */
 package com.continuuity.weave.filesystem;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import java.io.File;
@@ -26,6 +27,7 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -192,4 +194,17 @@ final class LocalLocation implements Location {
   public long lastModified() {
     return file.lastModified();
   }
+
+  @Override
+  public List<Location> list() {
+    File[] files = file.listFiles();
+    if (files == null) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<Location> result = ImmutableList.builder();
+    for (File f : files) {
+      result.add(new LocalLocation(f));
+    }
+    return result.build();
+  }
 }
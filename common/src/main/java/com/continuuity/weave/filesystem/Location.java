@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.List;
 
 /**
  * This interface defines the location and operations of a resource on the filesystem.
@@ -139,4 +140,11 @@ public interface Location {
    * @return Last modified time of file.
    */
   long lastModified() throws IOException;
+
+  /**
+   * Lists the locations under the directory denoted by this abstract pathname.
+   *
+   * @return List of locations under this location, or an empty list if this location is not an existing directory.
+   */
+  List<Location> list() throws IOException;
 }
@@ -45,4 +45,22 @@ public class LocalLocationTest {
     Assert.assertTrue(base.delete(true));
     Assert.assertFalse(base.exists());
   }
+
+  @Test
+  public void testList() throws IOException {
+    LocationFactory factory = new LocalLocationFactory(new File(System.getProperty("java.io.tmpdir")));
+
+    Location base = factory.create("test").getTempFile(".tmp");
+    Assert.assertTrue(base.list().isEmpty());
+    Assert.assertTrue(base.mkdirs());
+
+    Location file = base.append("test1");
+    Assert.assertTrue(file.createNew());
+    Assert.assertTrue(base.append("test2").mkdirs());
+
+    Assert.assertEquals(2, base.list().size());
+    Assert.assertTrue(file.list().isEmpty());
+
+    Assert.assertTrue(base.delete(true));
+  }
 }
@@ -15,32 +15,42 @@
  */
 package com.continuuity.weave.internal;
 
+import com.continuuity.weave.api.LoadReport;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.WeaveController;
+import com.continuuity.weave.api.events.WeaveEventHandler;
 import com.continuuity.weave.api.logging.LogEntry;
 import com.continuuity.weave.api.logging.LogHandler;
+import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.discovery.Discoverable;
 import com.continuuity.weave.discovery.DiscoveryServiceClient;
 import com.continuuity.weave.discovery.ZKDiscoveryService;
 import com.continuuity.weave.internal.json.StackTraceElementCodec;
 import com.continuuity.weave.internal.kafka.client.SimpleKafkaClient;
 import com.continuuity.weave.internal.logging.LogEntryDecoder;
+import com.continuuity.weave.internal.state.LiveNodeCodec;
+import com.continuuity.weave.internal.state.LoadReports;
 import com.continuuity.weave.internal.state.SystemMessages;
 import com.continuuity.weave.kafka.client.FetchedMessage;
 import com.continuuity.weave.kafka.client.KafkaClient;
+import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKClients;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 /**
  * A abstract base class for {@link WeaveController} implementation that uses Zookeeper to controller a
@@ -55,6 +65,9 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
   private final KafkaClient kafkaClient;
   private final DiscoveryServiceClient discoveryServiceClient;
   private final Thread logPoller;
+  private final ZKEventLog eventLog;
+  private final Queue<Cancellable> eventSubscriptions;
+  private volatile Map<String, LoadReport> loadReports;
 
   public AbstractWeaveController(RunId runId, ZKClient zkClient, Iterable<LogHandler> logHandlers) {
     super(runId, zkClient);
@@ -62,6 +75,9 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
     this.kafkaClient = new SimpleKafkaClient(ZKClients.namespace(zkClient, "/" + runId.getId() + "/kafka"));
     this.discoveryServiceClient = new ZKDiscoveryService(zkClient);
     this.logPoller = createLogPoller();
+    this.eventLog = new ZKEventLog(zkClient, runId);
+    this.eventSubscriptions = new ConcurrentLinkedQueue<Cancellable>();
+    this.loadReports = ImmutableMap.of();
     Iterables.addAll(this.logHandlers, logHandlers);
   }
 
@@ -74,6 +90,11 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
 
   @Override
   protected void doShutDown() {
+    Cancellable subscription = eventSubscriptions.poll();
+    while (subscription != null) {
+      subscription.cancel();
+      subscription = eventSubscriptions.poll();
+    }
     logPoller.interrupt();
     try {
       // Wait for the poller thread to stop.
@@ -91,6 +112,19 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
     }
   }
 
+  @Override
+  public final Cancellable addEventHandler(WeaveEventHandler handler, Executor executor) {
+    final Cancellable subscription = eventLog.subscribe(handler, executor);
+    eventSubscriptions.add(subscription);
+    return new Cancellable() {
+      @Override
+      public void cancel() {
+        eventSubscriptions.remove(subscription);
+        subscription.cancel();
+      }
+    };
+  }
+
   @Override
   public final Iterable<Discoverable> discoverService(String serviceName) {
     return discoveryServiceClient.discover(serviceName);
@@ -101,6 +135,30 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
     return sendMessage(SystemMessages.setInstances(runnable, newCount), newCount);
   }
 
+  @Override
+  public final Map<String, LoadReport> getLoadReports() {
+    return loadReports;
+  }
+
+  /**
+   * Updates the load reports from the live node of the application master, which carries the load of runnables
+   * aggregated from the heartbeats of containers.
+   */
+  @Override
+  protected void instanceNodeUpdated(NodeData nodeData) {
+    if (nodeData == null) {
+      return;
+    }
+    JsonElement liveNode = LiveNodeCodec.decode(nodeData.getData());
+    if (liveNode == null || !liveNode.isJsonObject()) {
+      return;
+    }
+    JsonElement data = liveNode.getAsJsonObject().get("data");
+    if (data != null && data.isJsonObject()) {
+      loadReports = LoadReports.mapFromJson(data.getAsJsonObject().get("loadReports"));
+    }
+  }
+
   private Thread createLogPoller() {
     Thread poller = new Thread("weave-log-poller") {
       @Override
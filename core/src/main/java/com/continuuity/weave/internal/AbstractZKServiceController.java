@@ -19,20 +19,18 @@ import com.continuuity.weave.api.Command;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.ServiceController;
 import com.continuuity.weave.common.Threads;
-import com.continuuity.weave.internal.json.StackTraceElementCodec;
-import com.continuuity.weave.internal.json.StateNodeCodec;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.Messages;
+import com.continuuity.weave.internal.state.StateCodec;
 import com.continuuity.weave.internal.state.StateNode;
 import com.continuuity.weave.internal.state.SystemMessages;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.ZKClient;
-import com.google.common.base.Charsets;
+import com.continuuity.weave.zookeeper.ZKOperations;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.gson.GsonBuilder;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -41,6 +39,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -67,13 +66,14 @@ public abstract class AbstractZKServiceController extends AbstractExecutionServi
 
   @Override
   public final ListenableFuture<Command> sendCommand(Command command) {
-    return ZKMessages.sendMessage(zkClient, getMessagePrefix(), Messages.createForAll(command), command);
+    return ZKMessages.sendMessage(zkClient, getMessagePrefix(), Messages.createForAll(command), command,
+                                  Constants.MESSAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
   }
 
   @Override
   public final ListenableFuture<Command> sendCommand(String runnableName, Command command) {
-    return ZKMessages.sendMessage(zkClient, getMessagePrefix(),
-                                  Messages.createForRunnable(runnableName, command), command);
+    return ZKMessages.sendMessage(zkClient, getMessagePrefix(), Messages.createForRunnable(runnableName, command),
+                                  command, Constants.MESSAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
   }
 
   @Override
@@ -101,7 +101,8 @@ public abstract class AbstractZKServiceController extends AbstractExecutionServi
   protected final synchronized void shutDown() {
     if (stopMessageFuture == null) {
       stopMessageFuture = ZKMessages.sendMessage(zkClient, getMessagePrefix(),
-                                                 SystemMessages.stopApplication(), State.TERMINATED);
+                                                 SystemMessages.stopApplication(), State.TERMINATED,
+                                                 Constants.MESSAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     }
 
     // Cancel all pending message futures.
@@ -124,7 +125,9 @@ public abstract class AbstractZKServiceController extends AbstractExecutionServi
     if (!isRunning()) {
       return Futures.immediateFailedFuture(new IllegalStateException("Cannot send message to non-running application"));
     }
-    final ListenableFuture<V> messageFuture = ZKMessages.sendMessage(zkClient, getMessagePrefix(), message, result);
+    final ListenableFuture<V> messageFuture = ZKMessages.sendMessage(zkClient, getMessagePrefix(), message, result,
+                                                                     Constants.MESSAGE_TIMEOUT_SECONDS,
+                                                                     TimeUnit.SECONDS);
     messageFutures.add(messageFuture);
     messageFuture.addListener(new Runnable() {
       @Override
@@ -296,12 +299,23 @@ public abstract class AbstractZKServiceController extends AbstractExecutionServi
         stateNodeUpdated(null);
         return;
       }
-      StateNode stateNode = new GsonBuilder().registerTypeAdapter(StateNode.class, new StateNodeCodec())
-        .registerTypeAdapter(StackTraceElement.class, new StackTraceElementCodec())
-        .create()
-        .fromJson(new String(data, Charsets.UTF_8), StateNode.class);
+      Futures.addCallback(ZKOperations.loadLargeData(zkClient, data), new FutureCallback<byte[]>() {
+        @Override
+        public void onSuccess(byte[] result) {
+          stateNodeUpdated(StateCodec.decode(result));
+        }
 
-      stateNodeUpdated(stateNode);
+        @Override
+        public void onFailure(Throwable t) {
+          if (t instanceof KeeperException.NoNodeException) {
+            // Chunks are removed when the state is superseded. The watch on the state node delivers the new state.
+            LOG.debug("State node data superseded while loading.", t);
+            return;
+          }
+          LOG.error("Failed in loading state node data.", t);
+          stateNodeUpdated(null);
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
     }
 
     @Override
@@ -15,8 +15,10 @@
  */
 package com.continuuity.weave.internal;
 
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.filesystem.Location;
 import com.continuuity.weave.internal.utils.Dependencies;
+import com.continuuity.weave.internal.utils.DependencyCache;
 import com.google.common.base.Function;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
@@ -24,14 +26,16 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -40,21 +44,30 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedOutputStream;
+import javax.annotation.Nullable;
 
 /**
  * This class builds jar files based on class dependencies.
  */
 public final class ApplicationBundler {
 
+  private static final Logger LOG = LoggerFactory.getLogger(ApplicationBundler.class);
+  // 2013-01-01 00:00:00 UTC, as zip entries cannot carry time before 1980.
+  private static final long ENTRY_TIME = 1356998400000L;
+
   private final List<String> excludePackages;
   private final Set<String> bootstrapClassPaths;
   private final CRC32 crc32;
+  private final DependencyCache dependencyCache;
 
   /**
    * Constructs a ApplicationBundler.
@@ -62,7 +75,18 @@ public final class ApplicationBundler {
    * @param excludePackages Class packages to exclude
    */
   public ApplicationBundler(Iterable<String> excludePackages) {
+    this(excludePackages, null);
+  }
+
+  /**
+   * Constructs a ApplicationBundler that caches class dependencies in the given file across runs.
+   *
+   * @param excludePackages Class packages to exclude
+   * @param dependencyCacheFile Local file for caching class dependencies, or {@code null} for no caching.
+   */
+  public ApplicationBundler(Iterable<String> excludePackages, @Nullable File dependencyCacheFile) {
     this.excludePackages = ImmutableList.copyOf(excludePackages);
+    this.dependencyCache = dependencyCacheFile == null ? null : DependencyCache.load(dependencyCacheFile);
 
     ImmutableSet.Builder<String> builder = ImmutableSet.builder();
     for (String classpath : Splitter.on(File.pathSeparatorChar).split(System.getProperty("sun.boot.class.path"))) {
@@ -101,36 +125,59 @@ public final class ApplicationBundler {
    * @throws IOException
    */
   public void createBundle(Location target, Iterable<Class<?>> classes, Iterable<URI> resources) throws IOException {
-    // Write the jar to local tmp file first
-    File tmpJar = File.createTempFile(target.getName(), ".tmp");
+    createBundle(target, classes, resources, null);
+  }
+
+  /**
+   * Same as {@link #createBundle(Location, Iterable, Iterable)}, except that dependency jars are not put under
+   * the lib/ entry, but are returned for shipping separately.
+   *
+   * @return Map from file name to URL of the dependency jars, in the order they are found.
+   * @throws IOException
+   */
+  public Map<String, URL> createBundleWithoutJars(Location target, Iterable<Class<?>> classes,
+                                                  Iterable<URI> resources) throws IOException {
+    Map<String, URL> jars = Maps.newLinkedHashMap();
+    createBundle(target, classes, resources, jars);
+    return jars;
+  }
+
+  private void createBundle(Location target, Iterable<Class<?>> classes, Iterable<URI> resources,
+                            @Nullable Map<String, URL> jars) throws IOException {
+    // Write the jar directly to the target.
+    boolean completed = false;
     try {
       Set<String> entries = Sets.newHashSet();
-      JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(tmpJar));
+      JarOutputStream jarOut = new JarOutputStream(new BufferedOutputStream(target.getOutputStream()));
       try {
         // Find class dependencies
-        findDependencies(classes, entries, jarOut);
+        findDependencies(classes, entries, jarOut, jars);
 
         // Add extra resources
         for (URI resource : resources) {
-          copyResource(resource, entries, jarOut);
+          copyResource(resource, entries, jarOut, jars);
         }
       } finally {
         jarOut.close();
       }
-      // Copy the tmp jar into destination.
-      OutputStream os = new BufferedOutputStream(target.getOutputStream());
+      completed = true;
+    } finally {
+      if (!completed) {
+        target.delete();
+      }
+    }
+
+    if (dependencyCache != null) {
       try {
-        Files.copy(tmpJar, os);
-      } finally {
-        os.close();
+        dependencyCache.save();
+      } catch (IOException e) {
+        LOG.warn("Failed to save class dependency cache.", e);
       }
-    } finally {
-      tmpJar.delete();
     }
   }
 
   private void findDependencies(Iterable<Class<?>> classes, final Set<String> entries,
-                                final JarOutputStream jarOut) throws IOException {
+                                final JarOutputStream jarOut, @Nullable Map<String, URL> jars) throws IOException {
 
     Iterable<String> classNames = Iterables.transform(classes, new Function<Class<?>, String>() {
       @Override
@@ -143,6 +190,19 @@ public final class ApplicationBundler {
     if (classLoader == null) {
       classLoader = getClass().getClassLoader();
     }
+    // Reads class bytecode concurrently, while jar entries are written from this thread only.
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                             Threads.createDaemonThreadFactory("bundler-%d"));
+    try {
+      findDependencies(classLoader, classNames, entries, jarOut, jars, executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void findDependencies(ClassLoader classLoader, Iterable<String> classNames, final Set<String> entries,
+                                final JarOutputStream jarOut, @Nullable final Map<String, URL> jars,
+                                ExecutorService executor) throws IOException {
     Dependencies.findClassDependencies(classLoader, new Dependencies.ClassAcceptor() {
       @Override
       public boolean accept(String className, URL classUrl, URL classPathUrl) {
@@ -155,17 +215,23 @@ public final class ApplicationBundler {
             return false;
           }
         }
-        putEntry(className, classUrl, classPathUrl, entries, jarOut);
+        putEntry(className, classUrl, classPathUrl, entries, jarOut, jars);
         return true;
       }
-    }, classNames);
+    }, classNames, dependencyCache, executor);
   }
 
-  private void putEntry(String className, URL classUrl, URL classPathUrl, Set<String> entries, JarOutputStream jarOut) {
+  private void putEntry(String className, URL classUrl, URL classPathUrl, Set<String> entries,
+                        JarOutputStream jarOut, @Nullable Map<String, URL> jars) {
     String classPath = classPathUrl.getFile();
     if (classPath.endsWith(".jar")) {
+      String jarName = classPath.substring(classPath.lastIndexOf('/') + 1);
+      if (jars != null) {
+        addJar(jarName, classPathUrl, jars);
+        return;
+      }
       saveDirEntry("lib/", entries, jarOut);
-      saveEntry("lib/" + classPath.substring(classPath.lastIndexOf('/') + 1), classPathUrl, entries, jarOut, false);
+      saveEntry("lib/" + jarName, classPathUrl, entries, jarOut, false);
     } else {
       // Class file, put it under the classes directory
       saveDirEntry("classes/", entries, jarOut);
@@ -184,6 +250,15 @@ public final class ApplicationBundler {
     }
   }
 
+  /**
+   * Creates a jar entry with a fixed modification time, so that bundles of the same content are byte identical.
+   */
+  public static JarEntry createEntry(String name) {
+    JarEntry jarEntry = new JarEntry(name);
+    jarEntry.setTime(ENTRY_TIME);
+    return jarEntry;
+  }
+
   /**
    * Saves a directory entry to the jar output.
    */
@@ -197,7 +272,7 @@ public final class ApplicationBundler {
       for (String dir : Splitter.on('/').omitEmptyStrings().split(path)) {
         entry += dir + '/';
         if (entries.add(entry)) {
-          JarEntry jarEntry = new JarEntry(entry);
+          JarEntry jarEntry = createEntry(entry);
           jarEntry.setMethod(JarOutputStream.STORED);
           jarEntry.setSize(0L);
           jarEntry.setCrc(0L);
@@ -218,7 +293,7 @@ public final class ApplicationBundler {
       return;
     }
     try {
-      JarEntry jarEntry = new JarEntry(entry);
+      JarEntry jarEntry = createEntry(entry);
       InputStream is = url.openStream();
 
       try {
@@ -262,7 +337,7 @@ public final class ApplicationBundler {
 
       String entry = entryPrefix + baseUri.relativize(file.toURI()).getPath();
       if (entries.add(entry)) {
-        jarOut.putNextEntry(new JarEntry(entry));
+        jarOut.putNextEntry(createEntry(entry));
         if (file.isFile()) {
           Files.copy(file, jarOut);
         }
@@ -278,7 +353,8 @@ public final class ApplicationBundler {
     }
   }
 
-  private void copyResource(URI resource, Set<String> entries, JarOutputStream jarOut) throws IOException {
+  private void copyResource(URI resource, Set<String> entries, JarOutputStream jarOut,
+                            @Nullable Map<String, URL> jars) throws IOException {
     if ("file".equals(resource.getScheme())) {
       File file = new File(resource);
       if (file.isDirectory()) {
@@ -290,11 +366,15 @@ public final class ApplicationBundler {
 
     URL url = resource.toURL();
     String path = url.getFile();
+    if (jars != null && path.endsWith(".jar")) {
+      addJar(path.substring(path.lastIndexOf('/') + 1), url, jars);
+      return;
+    }
     String prefix = path.endsWith(".jar") ? "lib/" : "resources/";
     path = prefix + path.substring(path.lastIndexOf('/') + 1);
 
     saveDirEntry(prefix, entries, jarOut);
-    jarOut.putNextEntry(new JarEntry(path));
+    jarOut.putNextEntry(createEntry(path));
     InputStream is = url.openStream();
     try {
       ByteStreams.copy(is, jarOut);
@@ -303,6 +383,15 @@ public final class ApplicationBundler {
     }
   }
 
+  /**
+   * Adds a jar to be shipped separately. Same as jars under lib/, the first one wins for the same file name.
+   */
+  private static void addJar(String jarName, URL url, Map<String, URL> jars) {
+    if (!jars.containsKey(jarName)) {
+      jars.put(jarName, url);
+    }
+  }
+
   private static final class TransferByteOutputStream extends ByteArrayOutputStream {
 
     public void transfer(OutputStream os) throws IOException {
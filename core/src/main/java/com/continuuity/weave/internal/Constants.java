@@ -27,6 +27,33 @@ public final class Constants {
   /** Maximum number of seconds for AM to stop. */
   public static final int APPLICATION_MAX_STOP_SECONDS = 30;
 
+  /** ZK path, relative to the runnable namespace, for messages broadcasted to all instances of a runnable. */
+  public static final String BROADCAST_PATH = "/broadcasts";
+
+  /** Maximum number of seconds for a message sent through ZooKeeper to be processed before it expires. */
+  public static final int MESSAGE_TIMEOUT_SECONDS = 600;
+  /** Number of seconds between sweeps of expired messages. */
+  public static final int MESSAGE_SWEEP_INTERVAL_SECONDS = 60;
+  /**
+   * Number of seconds allowed for the clocks of ZooKeeper servers to differ, when a message expiry is checked
+   * across a change of the ZooKeeper leader.
+   */
+  public static final int MESSAGE_CLOCK_SKEW_SECONDS = 5;
+
+  /** Number of seconds between heartbeats written to the live node of a running service. */
+  public static final int HEARTBEAT_INTERVAL_SECONDS = 10;
+
+  /** Maximum number of containers of a runnable being stopped at the same time when reducing instances. */
+  public static final int MAX_CONCURRENT_INSTANCE_STOPS = 10;
+  /** Maximum number of seconds for containers of a runnable to stop before they are killed. */
+  public static final int CONTAINER_STOP_TIMEOUT_SECONDS = 10;
+  /** Maximum number of containers being launched by the application master at the same time. */
+  public static final int MAX_CONCURRENT_LAUNCHES = 10;
+  /** Number of containers rejected for placement of a request before placement preferences are relaxed. */
+  public static final int MAX_PLACEMENT_REJECTIONS = 10;
+  /** Number of seconds before hosts storing the data paths of a runnable are looked up again. */
+  public static final int DATA_HOSTS_REFRESH_SECONDS = 300;
+
   private Constants() {
   }
 }
@@ -26,6 +26,11 @@ public final class EnvKeys {
   public static final String WEAVE_INSTANCE_ID = "WEAVE_INSTANCE_ID";
   public static final String WEAVE_INSTANCE_COUNT = "WEAVE_INSTANCE_COUNT";
 
+  /**
+   * Set to true for a standby container, which gets its run id and instance id on activation.
+   */
+  public static final String WEAVE_STANDBY = "WEAVE_STANDBY";
+
   public static final String WEAVE_APP_ID = "WEAVE_APP_ID";
   public static final String WEAVE_APP_ID_CLUSTER_TIME = "WEAVE_APP_ID_CLUSTER_TIME";
 
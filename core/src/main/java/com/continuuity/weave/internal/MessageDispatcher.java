@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.SystemMessages;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches messages for processing in the order they are submitted, while messages of different runnables are
+ * processed concurrently. A message that is not scoped to a single runnable acts as a barrier. It waits for all
+ * messages submitted before it, and messages submitted after it wait for it to complete.
+ *
+ * <p>
+ * A request for changing the number of instances of a runnable doesn't wait for earlier messages of the same
+ * runnable, so that a newer instance count can supersede the change still in progress. Later messages of the
+ * runnable still wait for it to complete.
+ * </p>
+ */
+final class MessageDispatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageDispatcher.class);
+
+  /**
+   * A message to be processed.
+   */
+  interface Task {
+
+    Message getMessage();
+
+    /**
+     * Processes the message.
+     * @return A {@link ListenableFuture} that completes when processing is completed, regardless of the result.
+     */
+    ListenableFuture<?> process();
+  }
+
+  private final Executor executor;
+  private final Map<String, ListenableFuture<?>> runnableTails;
+  private final AtomicInteger pending;
+  private ListenableFuture<?> lastDispatch;
+  private ListenableFuture<?> barrier;
+
+  /**
+   * @param executor Executor for dispatching tasks in submission order. It should be a single thread executor.
+   */
+  MessageDispatcher(Executor executor) {
+    this.executor = executor;
+    this.runnableTails = Maps.newHashMap();
+    this.pending = new AtomicInteger();
+    this.lastDispatch = Futures.immediateFuture(null);
+    this.barrier = Futures.immediateFuture(null);
+  }
+
+  /**
+   * Submits a task for processing. Tasks are fetched concurrently, but dispatched in the order of submission.
+   * @param taskFuture A future of the task. The task is skipped if the future failed or has {@code null} result.
+   */
+  synchronized void submit(final ListenableFuture<? extends Task> taskFuture) {
+    pending.incrementAndGet();
+    final ListenableFuture<?> previous = lastDispatch;
+    final SettableFuture<Object> dispatched = SettableFuture.create();
+    lastDispatch = dispatched;
+
+    previous.addListener(new Runnable() {
+      @Override
+      public void run() {
+        taskFuture.addListener(new Runnable() {
+          @Override
+          public void run() {
+            ListenableFuture<?> completion = Futures.immediateFuture(null);
+            try {
+              Task task = taskFuture.get();
+              if (task != null) {
+                completion = dispatch(task);
+              }
+            } catch (Exception e) {
+              LOG.debug("Message skipped as it is not available.", e);
+            } finally {
+              completion.addListener(new Runnable() {
+                @Override
+                public void run() {
+                  pending.decrementAndGet();
+                }
+              }, Threads.SAME_THREAD_EXECUTOR);
+              dispatched.set(null);
+            }
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, executor);
+  }
+
+  /**
+   * Returns the number of tasks submitted that are not yet completed.
+   */
+  int getPending() {
+    return pending.get();
+  }
+
+  private synchronized ListenableFuture<?> dispatch(final Task task) {
+    Message message = task.getMessage();
+    List<ListenableFuture<?>> prerequisites = Lists.newArrayList();
+    prerequisites.add(barrier);
+
+    SettableFuture<Object> completion = SettableFuture.create();
+    if (message.getScope() == Message.Scope.RUNNABLE && message.getRunnableName() != null) {
+      ListenableFuture<?> tail = runnableTails.get(message.getRunnableName());
+      if (tail == null) {
+        runnableTails.put(message.getRunnableName(), completion);
+      } else if (SystemMessages.isSetInstances(message)) {
+        runnableTails.put(message.getRunnableName(), Futures.successfulAsList(tail, completion));
+      } else {
+        runnableTails.put(message.getRunnableName(), completion);
+        prerequisites.add(tail);
+      }
+    } else {
+      prerequisites.addAll(runnableTails.values());
+      runnableTails.clear();
+      barrier = completion;
+    }
+
+    final SettableFuture<Object> taskCompletion = completion;
+    Futures.successfulAsList(prerequisites).addListener(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.process().addListener(new Runnable() {
+            @Override
+            public void run() {
+              taskCompletion.set(null);
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+        } catch (Throwable t) {
+          LOG.error("Failed to process message {}", task.getMessage(), t);
+          taskCompletion.set(null);
+        }
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return completion;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.base.Charsets;
+import com.google.common.base.Functions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.zookeeper.CreateMode;
+
+/**
+ * Activation of a standby container, which is started ahead without run id and instance id. The standby container
+ * registers itself with an ephemeral node {@code /<appRunId>/standby/<runnableName>/<containerId>} and is activated
+ * when the application master sets the node data. Activation is done with node version check, hence a standby
+ * container is activated at most once.
+ */
+public final class StandbyActivation {
+
+  private final RunId runId;
+  private final int instanceId;
+  private final int instanceCount;
+
+  public StandbyActivation(RunId runId, int instanceId, int instanceCount) {
+    this.runId = runId;
+    this.instanceId = instanceId;
+    this.instanceCount = instanceCount;
+  }
+
+  public RunId getRunId() {
+    return runId;
+  }
+
+  public int getInstanceId() {
+    return instanceId;
+  }
+
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  public static String getPath(RunId appRunId, String runnableName, String containerId) {
+    return String.format("/%s/standby/%s/%s", appRunId.getId(), runnableName, containerId);
+  }
+
+  /**
+   * Registers a standby container and waits for its activation.
+   * @return A {@link ListenableFuture} that completes with the activation, or fails if the registration node is
+   *         removed before activation.
+   */
+  public static ListenableFuture<StandbyActivation> await(final ZKClient zkClient, final String path) {
+    final SettableFuture<StandbyActivation> result = SettableFuture.create();
+    Futures.addCallback(zkClient.create(path, null, CreateMode.EPHEMERAL, true), new FutureCallback<String>() {
+      @Override
+      public void onSuccess(String createdPath) {
+        final Cancellable watch = ZKOperations.watchData(zkClient, path, new ZKOperations.DataCallback() {
+          @Override
+          public void updated(NodeData nodeData) {
+            byte[] data = nodeData.getData();
+            if (data != null && data.length > 0) {
+              try {
+                result.set(decode(data));
+              } catch (Exception e) {
+                result.setException(e);
+              }
+            }
+          }
+        });
+        result.addListener(new Runnable() {
+          @Override
+          public void run() {
+            watch.cancel();
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+
+        // The data watch waits for the node to be created again if it is deleted, hence deletion is watched
+        // separately. Failing the result has no effect once it is activated.
+        Futures.addCallback(ZKOperations.watchDeleted(zkClient, path), new FutureCallback<String>() {
+          @Override
+          public void onSuccess(String deletedPath) {
+            result.setException(new IllegalStateException("Standby container removed before activation: " + path));
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return result;
+  }
+
+  /**
+   * Activates a standby container.
+   * @return A {@link ListenableFuture} that completes with the activation, or fails if the standby container is
+   *         gone or already activated.
+   */
+  public static ListenableFuture<StandbyActivation> activate(ZKClient zkClient, String path,
+                                                             StandbyActivation activation) {
+    return Futures.transform(zkClient.setData(path, encode(activation), 0),
+                             Functions.constant(activation));
+  }
+
+  private static byte[] encode(StandbyActivation activation) {
+    JsonObject json = new JsonObject();
+    json.addProperty("runId", activation.getRunId().getId());
+    json.addProperty("instanceId", activation.getInstanceId());
+    json.addProperty("instanceCount", activation.getInstanceCount());
+    return json.toString().getBytes(Charsets.UTF_8);
+  }
+
+  private static StandbyActivation decode(byte[] data) {
+    JsonObject json = new JsonParser().parse(new String(data, Charsets.UTF_8)).getAsJsonObject();
+    return new StandbyActivation(RunIds.fromString(json.get("runId").getAsString()),
+                                 json.get("instanceId").getAsInt(),
+                                 json.get("instanceCount").getAsInt());
+  }
+}
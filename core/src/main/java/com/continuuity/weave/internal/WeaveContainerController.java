@@ -15,10 +15,13 @@
  */
 package com.continuuity.weave.internal;
 
+import com.continuuity.weave.api.LoadReport;
 import com.continuuity.weave.api.ServiceController;
 import com.continuuity.weave.internal.state.Message;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.net.InetSocketAddress;
+
 /**
  * A {@link ServiceController} that allows sending a message directly. Internal use only.
  */
@@ -26,6 +29,23 @@ public interface WeaveContainerController extends ServiceController {
 
   ListenableFuture<Message> sendMessage(Message message);
 
+  /**
+   * Returns the address of the control channel of the container for sending messages without going through
+   * ZooKeeper, or {@code null} if it is not available.
+   */
+  InetSocketAddress getControlAddress();
+
+  /**
+   * Returns the secret for sending messages through the control channel, or {@code null} if the control channel
+   * is not available.
+   */
+  String getControlSecret();
+
+  /**
+   * Returns the load reported by the latest heartbeat of the container, or {@code null} if it is not available.
+   */
+  LoadReport getLoadReport();
+
   /**
    * Calls to indicated that the container that this controller is associated with is completed.
    * Any resources it hold will be releases and all pending futures will be cancelled.
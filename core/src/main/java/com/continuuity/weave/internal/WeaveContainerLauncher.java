@@ -15,19 +15,30 @@
  */
 package com.continuuity.weave.internal;
 
+import com.continuuity.weave.api.LoadReport;
 import com.continuuity.weave.api.LocalFile;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.RuntimeSpecification;
+import com.continuuity.weave.internal.state.LiveNodeCodec;
+import com.continuuity.weave.internal.state.LoadReports;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.StateNode;
+import com.continuuity.weave.internal.state.WeaveEvents;
 import com.continuuity.weave.launcher.WeaveLauncher;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class helps launching a container.
+ * This class helps launching a container. Containers of instances are started with {@link #start}, while standby
+ * containers are started with {@link #startStandby} and get their controllers with {@link #activateStandby}.
  */
 public final class WeaveContainerLauncher {
 
@@ -38,9 +49,11 @@ public final class WeaveContainerLauncher {
   private final Iterable<String> args;
   private final int instanceId;
   private final int instanceCount;
+  private final ZKEventLog eventLog;
 
   public WeaveContainerLauncher(RuntimeSpecification runtimeSpec, RunId runId, ProcessLauncher processLauncher,
-                                ZKClient zkClient, Iterable<String> args, int instanceId, int instanceCount) {
+                                ZKClient zkClient, Iterable<String> args, int instanceId, int instanceCount,
+                                ZKEventLog eventLog) {
     this.runtimeSpec = runtimeSpec;
     this.runId = runId;
     this.processLauncher = processLauncher;
@@ -48,9 +61,63 @@ public final class WeaveContainerLauncher {
     this.args = args;
     this.instanceId = instanceId;
     this.instanceCount = instanceCount;
+    this.eventLog = eventLog;
+  }
+
+  public WeaveContainerController start(String containerId, String stdout, String stderr) {
+    ProcessLauncher.PrepareLaunchContext.EnvironmentAdder environment = prepareLaunch(runtimeSpec, processLauncher)
+      .withEnvironment();
+    environment.add(EnvKeys.WEAVE_RUN_ID, runId.getId())
+      .add(EnvKeys.WEAVE_INSTANCE_ID, Integer.toString(instanceId))
+      .add(EnvKeys.WEAVE_INSTANCE_COUNT, Integer.toString(instanceCount));
+    return createController(runtimeSpec, runId, zkClient, eventLog, containerId,
+                            launch(runtimeSpec, args, environment, stdout, stderr));
+  }
+
+  /**
+   * Starts a standby container, which warms up without run id and instance id, and waits for activation through
+   * {@link StandbyActivation}.
+   * @return The {@link ProcessLauncher.ProcessController} of the standby container.
+   */
+  public static ProcessLauncher.ProcessController startStandby(RuntimeSpecification runtimeSpec,
+                                                               ProcessLauncher processLauncher, Iterable<String> args,
+                                                               String stdout, String stderr) {
+    ProcessLauncher.PrepareLaunchContext.EnvironmentAdder environment = prepareLaunch(runtimeSpec, processLauncher)
+      .withEnvironment();
+    environment.add(EnvKeys.WEAVE_STANDBY, Boolean.TRUE.toString());
+    return launch(runtimeSpec, args, environment, stdout, stderr);
+  }
+
+  /**
+   * Creates the controller for a standby container that is activated with the given run id.
+   * @param processController The {@link ProcessLauncher.ProcessController} returned when the standby container
+   *                          was started.
+   */
+  public static WeaveContainerController activateStandby(RuntimeSpecification runtimeSpec, RunId runId,
+                                                         ZKClient zkClient, ZKEventLog eventLog, String containerId,
+                                                         ProcessLauncher.ProcessController processController) {
+    return createController(runtimeSpec, runId, zkClient, eventLog, containerId, processController);
+  }
+
+  /**
+   * Creates and starts the controller for a container running with the given run id.
+   * The {@link com.continuuity.weave.api.events.WeaveEvent.Type#CONTAINER_LAUNCHED} event is published before
+   * the controller starts watching the container state, hence it always precedes the events published by
+   * the controller.
+   */
+  private static WeaveContainerController createController(RuntimeSpecification runtimeSpec, RunId runId,
+                                                           ZKClient zkClient, ZKEventLog eventLog, String containerId,
+                                                           ProcessLauncher.ProcessController processController) {
+    WeaveContainerControllerImpl controller = new WeaveContainerControllerImpl(zkClient, runId, processController,
+                                                                               runtimeSpec.getName(), containerId,
+                                                                               eventLog);
+    eventLog.publish(WeaveEvents.containerLaunched(runtimeSpec.getName(), runId, containerId));
+    controller.start();
+    return controller;
   }
 
-  public WeaveContainerController start(String stdout, String stderr) {
+  private static ProcessLauncher.PrepareLaunchContext.AfterResources prepareLaunch(RuntimeSpecification runtimeSpec,
+                                                                                   ProcessLauncher processLauncher) {
     ProcessLauncher.PrepareLaunchContext.AfterUser afterUser = processLauncher.prepareLaunch()
       .setUser(System.getProperty("user.name"));
 
@@ -64,20 +131,25 @@ public final class WeaveContainerLauncher {
     for (LocalFile localFile : runtimeSpec.getLocalFiles()) {
       afterResources = resourcesAdder.add(localFile);
     }
+    return afterResources;
+  }
 
+  private static ProcessLauncher.ProcessController launch(RuntimeSpecification runtimeSpec, Iterable<String> args,
+                                                          ProcessLauncher.PrepareLaunchContext.EnvironmentAdder
+                                                            environment,
+                                                          String stdout, String stderr) {
     int memory = runtimeSpec.getResourceSpecification().getMemorySize();
 
-    final ProcessLauncher.ProcessController processController = afterResources
-      .withEnvironment()
-        .add(EnvKeys.WEAVE_RUN_ID, runId.getId())
+    return environment
         .add(EnvKeys.WEAVE_RUNNABLE_NAME, runtimeSpec.getName())
-        .add(EnvKeys.WEAVE_INSTANCE_ID, Integer.toString(instanceId))
-        .add(EnvKeys.WEAVE_INSTANCE_COUNT, Integer.toString(instanceCount))
       .withCommands()
         .add("java",
              ImmutableList.<String>builder()
                .add("-cp").add("launcher.jar")
                .add("-Xmx" + memory + "m")
+               // Uses the class data sharing archive of the JVM if there is one.
+               .add("-Xshare:auto")
+               .addAll(getLauncherOptions())
                .add(WeaveLauncher.class.getName())
                .add("container.jar")
                .add(WeaveContainerMain.class.getName())
@@ -85,21 +157,46 @@ public final class WeaveContainerLauncher {
                .addAll(args).build().toArray(new String[0]))
       .redirectOutput(stdout).redirectError(stderr)
       .launch();
+  }
 
-    WeaveContainerControllerImpl controller = new WeaveContainerControllerImpl(zkClient, runId, processController);
-    controller.start();
-    return controller;
+  /**
+   * Returns the {@link WeaveLauncher} system properties of the current process as java options, so that containers
+   * expand and cache jars the same way as the application master.
+   */
+  private static List<String> getLauncherOptions() {
+    ImmutableList.Builder<String> options = ImmutableList.builder();
+    for (String property : ImmutableList.of(WeaveLauncher.EXPAND_PROPERTY, WeaveLauncher.CACHE_DIR_PROPERTY)) {
+      String value = System.getProperty(property);
+      if (value != null) {
+        options.add("-D" + property + "=" + value);
+      }
+    }
+    return options.build();
   }
 
   private static final class WeaveContainerControllerImpl extends AbstractZKServiceController
                                                           implements WeaveContainerController {
 
     private final ProcessLauncher.ProcessController processController;
+    private final String runnableName;
+    private final ZKEventLog eventLog;
+    private final AtomicBoolean runningPublished;
+    private final AtomicBoolean completedPublished;
+    private volatile InetSocketAddress controlAddress;
+    private volatile String controlSecret;
+    private volatile LoadReport loadReport;
+    private final String containerId;
 
     protected WeaveContainerControllerImpl(ZKClient zkClient, RunId runId,
-                                           ProcessLauncher.ProcessController processController) {
+                                           ProcessLauncher.ProcessController processController,
+                                           String runnableName, String containerId, ZKEventLog eventLog) {
       super(runId, zkClient);
       this.processController = processController;
+      this.runnableName = runnableName;
+      this.containerId = containerId;
+      this.eventLog = eventLog;
+      this.runningPublished = new AtomicBoolean();
+      this.completedPublished = new AtomicBoolean();
     }
 
     @Override
@@ -114,12 +211,36 @@ public final class WeaveContainerLauncher {
 
     @Override
     protected void instanceNodeUpdated(NodeData nodeData) {
-      // No-op
+      if (nodeData == null) {
+        return;
+      }
+      JsonElement liveNode = LiveNodeCodec.decode(nodeData.getData());
+      if (liveNode == null || !liveNode.isJsonObject() || !liveNode.getAsJsonObject().has("data")) {
+        return;
+      }
+      LoadReport heartbeat = LoadReports.fromJson(liveNode.getAsJsonObject().get("heartbeat"));
+      if (heartbeat != null) {
+        loadReport = heartbeat;
+      }
+      JsonObject data = liveNode.getAsJsonObject().getAsJsonObject("data");
+      if (data.has("host") && data.has("controlPort") && data.has("controlSecret")) {
+        controlSecret = data.get("controlSecret").getAsString();
+        controlAddress = new InetSocketAddress(data.get("host").getAsString(), data.get("controlPort").getAsInt());
+      }
     }
 
     @Override
-    protected void stateNodeUpdated(StateNode stateNode) {
-      // No-op
+    protected synchronized void stateNodeUpdated(StateNode stateNode) {
+      if (stateNode == null || completedPublished.get()) {
+        return;
+      }
+      // State updates are coalesced, hence RUNNING may be skipped if the container stops quickly. Any state after
+      // RUNNING implies the container was running.
+      State state = stateNode.getState();
+      if ((state == State.RUNNING || state == State.STOPPING || state == State.TERMINATED)
+        && runningPublished.compareAndSet(false, true)) {
+        eventLog.publish(WeaveEvents.containerRunning(runnableName, getRunId(), containerId));
+      }
     }
 
     @Override
@@ -127,8 +248,26 @@ public final class WeaveContainerLauncher {
       return sendMessage(message, message);
     }
 
+    @Override
+    public InetSocketAddress getControlAddress() {
+      return controlAddress;
+    }
+
+    @Override
+    public String getControlSecret() {
+      return controlSecret;
+    }
+
+    @Override
+    public LoadReport getLoadReport() {
+      return loadReport;
+    }
+
     @Override
     public synchronized void completed(int exitStatus) {
+      if (completedPublished.compareAndSet(false, true)) {
+        eventLog.publish(WeaveEvents.containerCompleted(runnableName, getRunId(), containerId, exitStatus));
+      }
       if (exitStatus != 0) {  // If a container terminated with exit code != 0, treat it as error
 //        fireStateChange(new StateNode(State.FAILED, new StackTraceElement[0]));
       }
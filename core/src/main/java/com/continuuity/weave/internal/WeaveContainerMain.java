@@ -55,15 +55,13 @@ public final class WeaveContainerMain extends ServiceMain {
     String zkConnectStr = System.getenv(EnvKeys.WEAVE_ZK_CONNECT);
     File weaveSpecFile = new File("weaveSpec.json");
     RunId appRunId = RunIds.fromString(System.getenv(EnvKeys.WEAVE_APP_RUN_ID));
-    RunId runId = RunIds.fromString(System.getenv(EnvKeys.WEAVE_RUN_ID));
     String runnableName = System.getenv(EnvKeys.WEAVE_RUNNABLE_NAME);
-    int instanceId = Integer.parseInt(System.getenv(EnvKeys.WEAVE_INSTANCE_ID));
-    int instanceCount = Integer.parseInt(System.getenv(EnvKeys.WEAVE_INSTANCE_COUNT));
 
     ZKClientService zkClientService = ZKClientServices.delegate(
-      ZKClients.reWatchOnExpire(
-        ZKClients.retryOnFailure(ZKClientService.Builder.of(zkConnectStr).build(),
-                                 RetryStrategies.fixDelay(1, TimeUnit.SECONDS))));
+      ZKClients.coalesceReads(
+        ZKClients.reWatchOnExpire(
+          ZKClients.retryOnFailure(ZKClientService.Builder.of(zkConnectStr).build(),
+                                   RetryStrategies.fixDelay(1, TimeUnit.SECONDS)))));
 
     DiscoveryService discoveryService = new ZKDiscoveryService(zkClientService);
 
@@ -72,6 +70,21 @@ public final class WeaveContainerMain extends ServiceMain {
     
     WeaveRunnableSpecification runnableSpec = weaveSpec.getRunnables().get(runnableName).getRunnableSpecification();
     ContainerInfo containerInfo = new ContainerInfo();
+
+    RunId runId;
+    int instanceId;
+    int instanceCount;
+    if (Boolean.parseBoolean(System.getenv(EnvKeys.WEAVE_STANDBY))) {
+      StandbyActivation activation = awaitActivation(zkConnectStr, appRunId, runnableName,
+                                                     containerInfo.getId(), runnableSpec);
+      runId = activation.getRunId();
+      instanceId = activation.getInstanceId();
+      instanceCount = activation.getInstanceCount();
+    } else {
+      runId = RunIds.fromString(System.getenv(EnvKeys.WEAVE_RUN_ID));
+      instanceId = Integer.parseInt(System.getenv(EnvKeys.WEAVE_INSTANCE_ID));
+      instanceCount = Integer.parseInt(System.getenv(EnvKeys.WEAVE_INSTANCE_COUNT));
+    }
     BasicWeaveContext context = new BasicWeaveContext(runId, appRunId, containerInfo.getHost(), args,
                                                   decodeArgs(),
                                                   runnableSpec, instanceId, discoveryService, instanceCount);
@@ -97,6 +110,25 @@ public final class WeaveContainerMain extends ServiceMain {
     }
   }
 
+  /**
+   * Warms up a standby container by loading the runnable class, then blocks until the container is activated
+   * by the application master.
+   */
+  private static StandbyActivation awaitActivation(String zkConnectStr, RunId appRunId, String runnableName,
+                                                   String containerId,
+                                                   WeaveRunnableSpecification runnableSpec) throws Exception {
+    getClassLoader().loadClass(runnableSpec.getClassName());
+
+    ZKClientService zkClientService = ZKClientService.Builder.of(zkConnectStr).build();
+    zkClientService.startAndWait();
+    try {
+      return StandbyActivation.await(zkClientService,
+                                     StandbyActivation.getPath(appRunId, runnableName, containerId)).get();
+    } finally {
+      zkClientService.stopAndWait();
+    }
+  }
+
   private static ZKClient getContainerZKClient(ZKClient zkClient, RunId appRunId, String runnableName) {
     return ZKClients.namespace(zkClient, String.format("/%s/runnables/%s", appRunId, runnableName));
   }
@@ -20,6 +20,7 @@ import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.WeaveRunnable;
 import com.continuuity.weave.api.WeaveRunnableSpecification;
 import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.control.ControlChannelServer;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCallback;
 import com.continuuity.weave.internal.utils.Instances;
@@ -36,6 +37,7 @@ import com.google.gson.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -52,6 +54,7 @@ public final class WeaveContainerService implements Service {
   private final ContainerInfo containerInfo;
   private final BasicWeaveContext context;
   private final ZKServiceDecorator serviceDelegate;
+  private final ControlChannelServer controlServer;
   private ExecutorService commandExecutor;
   private WeaveRunnable runnable;
 
@@ -59,7 +62,18 @@ public final class WeaveContainerService implements Service {
                                RunId runId, WeaveRunnableSpecification specification, ClassLoader classLoader) {
     this.specification = specification;
     this.classLoader = classLoader;
-    this.serviceDelegate = new ZKServiceDecorator(zkClient, runId, createLiveNodeSupplier(), new ServiceDelegate());
+    this.serviceDelegate = new ZKServiceDecorator(zkClient, runId, createLiveNodeSupplier(), new ServiceDelegate(),
+                                                  Constants.BROADCAST_PATH);
+    this.controlServer = new ControlChannelServer(new MessageCallback() {
+      @Override
+      public ListenableFuture<String> onReceived(String messageId, Message message) {
+        // Only accepts messages when the runnable is running. Otherwise the sender would fallback to ZK.
+        // Stop message always goes through ZK, as it involves state changes that are reflected in ZK.
+        Preconditions.checkState(serviceDelegate.isRunning(), "Runnable is not running.");
+        Preconditions.checkArgument(!isStopMessage(message), "Stop message is not supported in control channel.");
+        return processMessage(messageId, message);
+      }
+    }, containerInfo.getHost());
     this.context = context;
     this.containerInfo = containerInfo;
   }
@@ -88,6 +102,10 @@ public final class WeaveContainerService implements Service {
     return result;
   }
 
+  private boolean isStopMessage(Message message) {
+    return message.getType() == Message.Type.SYSTEM && "stop".equalsIgnoreCase(message.getCommand().getCommand());
+  }
+
   private Supplier<? extends JsonElement> createLiveNodeSupplier() {
     return new Supplier<JsonElement>() {
       @Override
@@ -95,6 +113,11 @@ public final class WeaveContainerService implements Service {
         JsonObject jsonObj = new JsonObject();
         jsonObj.addProperty("containerId", containerInfo.getId());
         jsonObj.addProperty("host", containerInfo.getHost().getCanonicalHostName());
+        InetSocketAddress controlAddress = controlServer.getBindAddress();
+        if (controlAddress != null) {
+          jsonObj.addProperty("controlPort", controlAddress.getPort());
+          jsonObj.addProperty("controlSecret", controlServer.getSecret());
+        }
         return jsonObj;
       }
     };
@@ -103,6 +126,12 @@ public final class WeaveContainerService implements Service {
   @Override
   public ListenableFuture<State> start() {
     commandExecutor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("runnable-command-executor"));
+    // The control channel is optional, as messages can always be delivered through ZK.
+    try {
+      controlServer.startAndWait();
+    } catch (Exception e) {
+      LOG.warn("Failed to start control channel server. Messages will be delivered through ZooKeeper only.", e);
+    }
     return serviceDelegate.start();
   }
 
@@ -124,6 +153,7 @@ public final class WeaveContainerService implements Service {
   @Override
   public ListenableFuture<State> stop() {
     commandExecutor.shutdownNow();
+    controlServer.stop();
     return serviceDelegate.stop();
   }
 
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.api.events.WeaveEvent;
+import com.continuuity.weave.api.events.WeaveEventHandler;
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.WeaveEventCodec;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An append only log of {@link WeaveEvent} of an application stored in ZooKeeper. Each event is a sequential
+ * node under {@code /<runId>/events}. Only the latest {@link #MAX_EVENTS} events are retained.
+ */
+public final class ZKEventLog {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ZKEventLog.class);
+
+  static final int MAX_EVENTS = 1000;
+  private static final String EVENT_PREFIX = "event";
+
+  private final ZKClient zkClient;
+  private final String eventsPath;
+  private final int maxEvents;
+
+  // Guarded by this.
+  private ListenableFuture<?> lastPublish;
+  // All events with sequence less than or equal to this are removed. Guarded by this.
+  private long trimmedSequence;
+  // True if the log has been listed for events not known to this instance. Guarded by this.
+  private boolean listed;
+
+  public ZKEventLog(ZKClient zkClient, RunId appRunId) {
+    this(zkClient, appRunId, MAX_EVENTS);
+  }
+
+  ZKEventLog(ZKClient zkClient, RunId appRunId, int maxEvents) {
+    this.zkClient = zkClient;
+    this.eventsPath = "/" + appRunId.getId() + "/events";
+    this.maxEvents = maxEvents;
+    this.lastPublish = Futures.immediateFuture(null);
+    this.trimmedSequence = -1L;
+  }
+
+  /**
+   * Appends an event to the log. Events are appended in the order this method is called, hence events published
+   * through the same {@link ZKEventLog} are delivered to subscribers in the same order. Failure is only logged,
+   * as events are informational.
+   */
+  public synchronized void publish(final WeaveEvent event) {
+    final SettableFuture<Object> published = SettableFuture.create();
+    lastPublish.addListener(new Runnable() {
+      @Override
+      public void run() {
+        Futures.addCallback(zkClient.create(eventsPath + "/" + EVENT_PREFIX, WeaveEventCodec.encode(event),
+                                            CreateMode.PERSISTENT_SEQUENTIAL), new FutureCallback<String>() {
+          @Override
+          public void onSuccess(String path) {
+            published.set(null);
+            trim(getSequence(path.substring(path.lastIndexOf('/') + 1)));
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            published.set(null);
+            LOG.warn("Failed to publish event {}", event, t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    lastPublish = published;
+  }
+
+  /**
+   * Subscribes to the event log. Events are delivered to the handler in the order they are appended, starting
+   * from the oldest event retained.
+   *
+   * @param handler The handler to receive events.
+   * @param executor Executor for calling the handler.
+   * @return A {@link Cancellable} to stop the subscription.
+   */
+  public Cancellable subscribe(final WeaveEventHandler handler, final Executor executor) {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final Cancellable watch = ZKOperations.watchChildren(zkClient, eventsPath, new ZKOperations.ChildrenCallback() {
+
+      private long lastSequence = -1L;
+      private ListenableFuture<?> lastDelivery = Futures.immediateFuture(null);
+
+      @Override
+      public synchronized void updated(NodeChildren nodeChildren) {
+        List<String> events = Lists.newArrayList(nodeChildren.getChildren());
+        Collections.sort(events);
+        for (String event : events) {
+          long sequence = getSequence(event);
+          if (sequence <= lastSequence) {
+            continue;
+          }
+          lastSequence = sequence;
+          lastDelivery = deliver(eventsPath + "/" + event, lastDelivery, handler, executor, cancelled);
+        }
+      }
+    });
+
+    return new Cancellable() {
+      @Override
+      public void cancel() {
+        cancelled.set(true);
+        watch.cancel();
+      }
+    };
+  }
+
+  /**
+   * Fetches an event and delivers it to the handler after the previous delivery is completed.
+   * @return A future that completes when the delivery is completed.
+   */
+  private ListenableFuture<?> deliver(String path, final ListenableFuture<?> previous,
+                                      final WeaveEventHandler handler, final Executor executor,
+                                      final AtomicBoolean cancelled) {
+    final ListenableFuture<NodeData> fetch = zkClient.getData(path);
+    final SettableFuture<Object> delivered = SettableFuture.create();
+
+    previous.addListener(new Runnable() {
+      @Override
+      public void run() {
+        fetch.addListener(new Runnable() {
+          @Override
+          public void run() {
+            WeaveEvent event = null;
+            try {
+              event = WeaveEventCodec.decode(fetch.get().getData());
+            } catch (Exception e) {
+              // Event could be removed as it falls out of the retention window.
+              LOG.debug("Failed to fetch event.", e);
+            }
+            if (event == null || cancelled.get()) {
+              delivered.set(null);
+              return;
+            }
+            final WeaveEvent weaveEvent = event;
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  if (!cancelled.get()) {
+                    handler.onEvent(weaveEvent);
+                  }
+                } catch (Throwable t) {
+                  LOG.error("Exception raised from event handler {} for event {}", handler, weaveEvent, t);
+                } finally {
+                  delivered.set(null);
+                }
+              }
+            });
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+
+    return delivered;
+  }
+
+  /**
+   * Removes all events that fall out of the retention window after the event of the given sequence is appended.
+   * The log is listed once to remove events left by earlier publishers; afterwards, expired events are
+   * removed by their sequence.
+   */
+  private synchronized void trim(long sequence) {
+    final long expiredSequence = sequence - maxEvents;
+    if (expiredSequence <= trimmedSequence) {
+      return;
+    }
+    if (listed) {
+      for (long expired = trimmedSequence + 1; expired <= expiredSequence; expired++) {
+        delete(String.format("%s%010d", EVENT_PREFIX, expired));
+      }
+    } else {
+      listed = true;
+      Futures.addCallback(zkClient.getChildren(eventsPath), new FutureCallback<NodeChildren>() {
+        @Override
+        public void onSuccess(NodeChildren result) {
+          for (String event : result.getChildren()) {
+            if (getSequence(event) <= expiredSequence) {
+              delete(event);
+            }
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("Failed to list events in {}", eventsPath, t);
+          synchronized (ZKEventLog.this) {
+            // List again on next trim.
+            listed = false;
+            trimmedSequence = -1L;
+          }
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+    trimmedSequence = expiredSequence;
+  }
+
+  private void delete(String event) {
+    String path = eventsPath + "/" + event;
+    ZKOperations.ignoreError(zkClient.delete(path), KeeperException.NoNodeException.class, path);
+  }
+
+  private static long getSequence(String name) {
+    try {
+      return Long.parseLong(name.substring(EVENT_PREFIX.length()));
+    } catch (Exception e) {
+      return -1L;
+    }
+  }
+}
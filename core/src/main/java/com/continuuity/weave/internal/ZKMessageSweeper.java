@@ -0,0 +1,372 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.MessageCodec;
+import com.continuuity.weave.internal.state.MessageEnvelope;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes expired message nodes under messages paths. Message nodes are inspected in batches of
+ * {@link #BATCH_SIZE}, with one batch in flight at a time, to limit the load on ZooKeeper. A message expires after
+ * the timeout carried by it, counted from the creation time of the message node. Both the creation time and the
+ * current time are taken from ZooKeeper, so the clock of the sweeping host does not matter.
+ *
+ * <p>
+ * Messages paths are given as patterns, in which a path segment {@code *} matches any child node. This allows one
+ * sweeper to cover the messages of all services of an application, including the ones that are gone.
+ * </p>
+ *
+ * <p>
+ * Chunks of large messages, which live under the sibling {@code <messages path>-chunks} node, are removed together
+ * with expired messages. Chunks left behind by messages removed without processing are removed when no message
+ * references them in two consecutive sweeps. The second sweep gives senders time to create the message node after
+ * the chunks are stored.
+ * </p>
+ */
+final class ZKMessageSweeper implements Cancellable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ZKMessageSweeper.class);
+
+  static final int BATCH_SIZE = 100;
+  private static final String WILDCARD = "*";
+
+  private final ZKClient zkClient;
+  private final List<String> patterns;
+  private final ScheduledExecutorService scheduler;
+  private final long intervalMillis;
+  // Chunk nodes that were not referenced by any message in the last sweep, keyed by the messages path.
+  // Only accessed by one sweep at a time.
+  private final Map<String, Set<String>> unreferencedChunks;
+  private volatile boolean cancelled;
+
+  ZKMessageSweeper(ZKClient zkClient, Iterable<String> patterns,
+                   ScheduledExecutorService scheduler, long intervalMillis) {
+    this.zkClient = zkClient;
+    this.patterns = ImmutableList.copyOf(patterns);
+    this.scheduler = scheduler;
+    this.intervalMillis = intervalMillis;
+    this.unreferencedChunks = Maps.newConcurrentMap();
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Schedules the next sweep, which reschedules itself when it is completed.
+   */
+  void schedule() {
+    if (cancelled) {
+      return;
+    }
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (cancelled) {
+          return;
+        }
+        sweep().addListener(new Runnable() {
+          @Override
+          public void run() {
+            schedule();
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Removes all expired message nodes and orphaned chunks under all messages paths that match the patterns.
+   * @return A {@link ListenableFuture} that completes when the sweep is done. It never fails.
+   */
+  ListenableFuture<?> sweep() {
+    List<ListenableFuture<List<String>>> resolved = Lists.newArrayListWithCapacity(patterns.size());
+    for (String pattern : patterns) {
+      resolved.add(resolve("", Lists.newLinkedList(Splitter.on('/').omitEmptyStrings().split(pattern))));
+    }
+    final ListenableFuture<Object> result = Futures.transform(Futures.allAsList(resolved),
+                                                              new AsyncFunction<List<List<String>>, Object>() {
+      @Override
+      public ListenableFuture<Object> apply(List<List<String>> input) throws Exception {
+        List<String> messagesPaths = Lists.newArrayList(Iterables.concat(input));
+        // Forgets about messages paths that are gone.
+        unreferencedChunks.keySet().retainAll(messagesPaths);
+        return sweepPaths(messagesPaths, 0);
+      }
+    });
+    final SettableFuture<Object> completion = SettableFuture.create();
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result.get();
+        } catch (Exception e) {
+          // ZK is unavailable, in which case it is retried on next sweep.
+          LOG.debug("Failed to sweep messages in {}", patterns, e);
+        } finally {
+          completion.set(null);
+        }
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return completion;
+  }
+
+  /**
+   * Resolves the remaining path segments under the given path into existing paths, by listing children for
+   * wildcard segments. The last segment is not checked for existence.
+   */
+  private ListenableFuture<List<String>> resolve(final String path, final List<String> segments) {
+    if (segments.isEmpty()) {
+      return Futures.<List<String>>immediateFuture(ImmutableList.of(path));
+    }
+    final String segment = segments.remove(0);
+    if (!WILDCARD.equals(segment)) {
+      return resolve(path + "/" + segment, segments);
+    }
+    String parent = path.isEmpty() ? "/" : path;
+    ListenableFuture<NodeChildren> children = ZKOperations.ignoreError(zkClient.getChildren(parent),
+                                                                       KeeperException.NoNodeException.class, null);
+    return Futures.transform(children, new AsyncFunction<NodeChildren, List<String>>() {
+      @Override
+      public ListenableFuture<List<String>> apply(NodeChildren nodeChildren) throws Exception {
+        if (nodeChildren == null) {
+          return Futures.<List<String>>immediateFuture(ImmutableList.<String>of());
+        }
+        List<ListenableFuture<List<String>>> futures = Lists.newArrayList();
+        for (String child : nodeChildren.getChildren()) {
+          futures.add(resolve(path + "/" + child, Lists.newLinkedList(segments)));
+        }
+        return Futures.transform(Futures.allAsList(futures), new Function<List<List<String>>, List<String>>() {
+          @Override
+          public List<String> apply(List<List<String>> input) {
+            return Lists.newArrayList(Iterables.concat(input));
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Sweeps the messages paths one after another.
+   */
+  private ListenableFuture<Object> sweepPaths(final List<String> messagesPaths, final int idx) {
+    if (idx >= messagesPaths.size() || cancelled) {
+      return Futures.immediateFuture(null);
+    }
+    final SettableFuture<Object> result = SettableFuture.create();
+    final String messagesPath = messagesPaths.get(idx);
+    final ListenableFuture<?> sweep = sweepPath(messagesPath);
+    sweep.addListener(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep.get();
+        } catch (Exception e) {
+          // The messages path could be gone. Other paths are still swept.
+          if (!(e.getCause() instanceof KeeperException.NoNodeException)) {
+            LOG.debug("Failed to sweep messages in {}", messagesPath, e);
+          }
+        }
+        Futures.addCallback(sweepPaths(messagesPaths, idx + 1), new FutureCallback<Object>() {
+          @Override
+          public void onSuccess(Object value) {
+            result.set(value);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return result;
+  }
+
+  /**
+   * Removes expired message nodes and orphaned chunks of one messages path.
+   */
+  private ListenableFuture<List<String>> sweepPath(final String messagesPath) {
+    final Set<String> referencedChunks = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    // Expiry is checked against the time of ZooKeeper, which also sets the creation time of message nodes.
+    ListenableFuture<Object> result = Futures.transform(ZKMessages.readClock(zkClient, messagesPath),
+                                                        new AsyncFunction<Stat, Object>() {
+      @Override
+      public ListenableFuture<Object> apply(final Stat clock) throws Exception {
+        return Futures.transform(zkClient.getChildren(messagesPath), new AsyncFunction<NodeChildren, Object>() {
+          @Override
+          public ListenableFuture<Object> apply(NodeChildren nodeChildren) throws Exception {
+            List<String> children = Lists.newArrayList(nodeChildren.getChildren());
+            Collections.sort(children);
+            return sweepBatches(messagesPath, Lists.partition(children, BATCH_SIZE), 0, clock, referencedChunks);
+          }
+        });
+      }
+    });
+    return Futures.transform(result, new AsyncFunction<Object, List<String>>() {
+      @Override
+      public ListenableFuture<List<String>> apply(Object input) throws Exception {
+        return sweepChunks(messagesPath, referencedChunks);
+      }
+    });
+  }
+
+  private ListenableFuture<Object> sweepBatches(final String messagesPath, final List<List<String>> batches,
+                                                final int idx, final Stat clock, final Set<String> referencedChunks) {
+    if (idx >= batches.size() || cancelled) {
+      return Futures.immediateFuture(null);
+    }
+    List<ListenableFuture<String>> futures = Lists.newArrayListWithCapacity(batches.get(idx).size());
+    for (String child : batches.get(idx)) {
+      futures.add(sweepMessage(messagesPath + "/" + child, clock, referencedChunks));
+    }
+    // Fails the sweep if any message cannot be inspected, as its chunks are not known to be referenced.
+    return Futures.transform(Futures.allAsList(futures), new AsyncFunction<List<String>, Object>() {
+      @Override
+      public ListenableFuture<Object> apply(List<String> input) throws Exception {
+        return sweepBatches(messagesPath, batches, idx + 1, clock, referencedChunks);
+      }
+    });
+  }
+
+  /**
+   * Removes chunk nodes that are not referenced by any message in this sweep and the last one.
+   */
+  private ListenableFuture<List<String>> sweepChunks(final String messagesPath, final Set<String> referencedChunks) {
+    if (cancelled) {
+      return Futures.immediateFuture(Collections.<String>emptyList());
+    }
+    final String chunksPath = messagesPath + "-chunks";
+    ListenableFuture<NodeChildren> children = ZKOperations.ignoreError(zkClient.getChildren(chunksPath),
+                                                                       KeeperException.NoNodeException.class, null);
+    return Futures.transform(children, new AsyncFunction<NodeChildren, List<String>>() {
+      @Override
+      public ListenableFuture<List<String>> apply(NodeChildren nodeChildren) throws Exception {
+        Set<String> lastUnreferenced = unreferencedChunks.remove(messagesPath);
+        if (nodeChildren == null) {
+          return Futures.immediateFuture(Collections.<String>emptyList());
+        }
+        Set<String> unreferenced = Sets.newHashSet();
+        List<ListenableFuture<String>> futures = Lists.newArrayList();
+        for (String child : nodeChildren.getChildren()) {
+          String path = chunksPath + "/" + child;
+          if (referencedChunks.contains(path)) {
+            continue;
+          }
+          if (lastUnreferenced != null && lastUnreferenced.contains(path)) {
+            LOG.info("Removing orphaned message chunks {}", path);
+            futures.add(ZKOperations.ignoreError(ZKOperations.recursiveDelete(zkClient, path),
+                                                 KeeperException.NoNodeException.class, path));
+          } else {
+            unreferenced.add(path);
+          }
+        }
+        unreferencedChunks.put(messagesPath, unreferenced);
+        return Futures.successfulAsList(futures);
+      }
+    });
+  }
+
+  /**
+   * Removes the given message node if it is expired. Chunks referenced by the message are recorded.
+   * @return A {@link ListenableFuture} with the path removed, or {@code null} if the message is not removed. It only
+   *         fails if the message node cannot be read.
+   */
+  private ListenableFuture<String> sweepMessage(final String path, final Stat clock,
+                                                final Set<String> referencedChunks) {
+    // Message removed after the children listing is not an error.
+    ListenableFuture<NodeData> dataFuture = ZKOperations.ignoreError(zkClient.getData(path),
+                                                                     KeeperException.NoNodeException.class, null);
+    return Futures.transform(dataFuture, new AsyncFunction<NodeData, String>() {
+      @Override
+      public ListenableFuture<String> apply(NodeData nodeData) throws Exception {
+        if (nodeData == null) {
+          return Futures.immediateFuture(null);
+        }
+        String chunkPath = ZKOperations.getLargeDataChunkPath(nodeData.getData());
+        if (chunkPath != null) {
+          referencedChunks.add(chunkPath);
+        }
+        final SettableFuture<String> result = SettableFuture.create();
+        Futures.addCallback(removeIfExpired(path, nodeData, clock), new FutureCallback<String>() {
+          @Override
+          public void onSuccess(String removed) {
+            result.set(removed);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LOG.debug("Failed to remove expired message {}", path, t);
+            result.set(null);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+        return result;
+      }
+    });
+  }
+
+  private ListenableFuture<String> removeIfExpired(final String path, final NodeData nodeData, final Stat clock) {
+    final byte[] data = nodeData.getData();
+    return Futures.transform(ZKOperations.loadLargeData(zkClient, data), new AsyncFunction<byte[], String>() {
+      @Override
+      public ListenableFuture<String> apply(byte[] messageData) throws Exception {
+        MessageEnvelope envelope = MessageCodec.decodeEnvelope(messageData);
+        if (envelope == null || !ZKMessages.isExpired(envelope, nodeData.getStat(), clock)) {
+          return Futures.immediateFuture(null);
+        }
+        LOG.info("Removing expired message {}", path);
+        // Only removes if the node is not modified since it is read.
+        return Futures.transform(zkClient.delete(path, nodeData.getStat().getVersion()),
+                                 new AsyncFunction<String, String>() {
+          @Override
+          public ListenableFuture<String> apply(String input) throws Exception {
+            return ZKOperations.deleteLargeData(zkClient, data);
+          }
+        });
+      }
+    });
+  }
+}
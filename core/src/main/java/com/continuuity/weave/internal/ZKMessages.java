@@ -15,21 +15,42 @@
  */
 package com.continuuity.weave.internal;
 
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCodec;
+import com.continuuity.weave.internal.state.MessageEnvelope;
+import com.continuuity.weave.zookeeper.OperationFuture;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  *
  */
 public final class ZKMessages {
 
+  private static final Logger LOG = LoggerFactory.getLogger(ZKMessages.class);
+
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+                                                          Threads.createDaemonThreadFactory("zk-messages-timer"));
+
   /**
    * Creates a message node in zookeeper. The message node created is a PERSISTENT_SEQUENTIAL node.
    *
@@ -49,6 +70,27 @@ public final class ZKMessages {
     return result;
   }
 
+  /**
+   * Creates a message node in zookeeper that expires after the given timeout. If the message is not consumed
+   * before it expires, the receiver discards it and the returned future fails with {@link TimeoutException}.
+   *
+   * @param zkClient The ZooKeeper client for interacting with ZooKeeper.
+   * @param messagePathPrefix ZooKeeper path prefix for the message node.
+   * @param message The {@link Message} object for the content of the message node.
+   * @param completionResult Object to set to the result future when the message is processed.
+   * @param timeout Maximum time to wait for the message to be consumed.
+   * @param unit Unit for the timeout.
+   * @param <V> Type of the completion result.
+   * @return A {@link ListenableFuture} that will be completed when the message is consumed.
+   */
+  public static <V> ListenableFuture<V> sendMessage(ZKClient zkClient, String messagePathPrefix, Message message,
+                                                    V completionResult, long timeout, TimeUnit unit) {
+    SettableFuture<V> result = SettableFuture.create();
+    MessageEnvelope envelope = new MessageEnvelope(message, unit.toMillis(timeout), UUID.randomUUID().toString());
+    send(zkClient, messagePathPrefix, envelope, result, completionResult);
+    return result;
+  }
+
   /**
    * Creates a message node in zookeeper. The message node created is a PERSISTENT_SEQUENTIAL node.
    *
@@ -59,18 +101,95 @@ public final class ZKMessages {
    * @param completionResult Object to set to the result future when the message is processed.
    * @param <V> Type of the completion result.
    */
-  public static <V> void sendMessage(final ZKClient zkClient, String messagePathPrefix, Message message,
+  public static <V> void sendMessage(final ZKClient zkClient, final String messagePathPrefix, Message message,
                                      final SettableFuture<V> completion, final V completionResult) {
+    // The idempotency key guards against duplicated nodes created by retry of the create call.
+    send(zkClient, messagePathPrefix, new MessageEnvelope(message, 0L, UUID.randomUUID().toString()),
+         completion, completionResult);
+  }
+
+  /**
+   * Schedules periodic removal of expired message nodes under the given paths. Removal is done in batches, so that
+   * messages left behind by dead or slow receivers do not accumulate. Only one sweep should be scheduled for
+   * an application, usually by the application master.
+   *
+   * @param zkClient The ZooKeeper client for interacting with ZooKeeper.
+   * @param messagesPaths ZooKeeper paths that message nodes are created under. A path segment {@code *} matches
+   *                      any child node.
+   * @param interval Time between the end of a sweep and the start of the next one.
+   * @param unit Unit for the interval.
+   * @return A {@link Cancellable} to stop the sweeping.
+   */
+  public static Cancellable scheduleSweep(ZKClient zkClient, Iterable<String> messagesPaths,
+                                         long interval, TimeUnit unit) {
+    ZKMessageSweeper sweeper = new ZKMessageSweeper(zkClient, messagesPaths, TIMER, unit.toMillis(interval));
+    sweeper.schedule();
+    return sweeper;
+  }
+
+  /**
+   * Reads the current time of ZooKeeper, which is the clock that sets the creation time of message nodes, by
+   * updating the given node. The node data is cleared, so it should be a node that carries no data, such as
+   * a messages path.
+   *
+   * @return A {@link ListenableFuture} with the {@link Stat} of the node, which modification time is the current
+   *         time of ZooKeeper.
+   */
+  static ListenableFuture<Stat> readClock(ZKClient zkClient, String path) {
+    return zkClient.setData(path, null);
+  }
+
+  /**
+   * Tells if a message is expired, by comparing the creation time of the message node with the time read by
+   * {@link #readClock(ZKClient, String)}. Both times are from the clock of the ZooKeeper leader. If the leader
+   * changed in between, which is told by the epoch in the zxids, the clocks are allowed to differ by
+   * {@link Constants#MESSAGE_CLOCK_SKEW_SECONDS}.
+   */
+  static boolean isExpired(MessageEnvelope envelope, Stat messageStat, Stat clockStat) {
+    long now = clockStat.getMtime();
+    if (getEpoch(messageStat.getCzxid()) != getEpoch(clockStat.getMzxid())) {
+      now -= TimeUnit.SECONDS.toMillis(Constants.MESSAGE_CLOCK_SKEW_SECONDS);
+    }
+    return envelope.isExpired(messageStat.getCtime(), now);
+  }
+
+  private static long getEpoch(long zxid) {
+    return zxid >>> 32;
+  }
+
+  private static <V> void send(final ZKClient zkClient, final String messagePathPrefix,
+                               final MessageEnvelope envelope, final SettableFuture<V> completion,
+                               final V completionResult) {
+
+    // Large message content are stored in chunks, which will be removed by the receiver.
+    final ListenableFuture<byte[]> data = ZKOperations.storeLargeData(zkClient, getChunkPath(messagePathPrefix),
+                                                                      MessageCodec.encode(envelope));
 
     // Creates a message and watch for its deletion for completion.
-    Futures.addCallback(zkClient.create(messagePathPrefix, MessageCodec.encode(message),
-                                        CreateMode.PERSISTENT_SEQUENTIAL), new FutureCallback<String>() {
+    Futures.addCallback(Futures.transform(data, new AsyncFunction<byte[], String>() {
       @Override
-      public void onSuccess(String path) {
+      public ListenableFuture<String> apply(byte[] input) throws Exception {
+        return zkClient.create(messagePathPrefix, input, CreateMode.PERSISTENT_SEQUENTIAL);
+      }
+    }), new FutureCallback<String>() {
+      @Override
+      public void onSuccess(final String path) {
+        // The sender measures the timeout with its own clock, starting from when the node is created.
+        final long createTime = System.currentTimeMillis();
+        final ScheduledFuture<?> timeout = scheduleTimeout(zkClient, path, envelope, Futures.getUnchecked(data),
+                                                           completion);
         Futures.addCallback(ZKOperations.watchDeleted(zkClient, path), new FutureCallback<String>() {
           @Override
           public void onSuccess(String result) {
-            completion.set(completionResult);
+            if (timeout != null) {
+              timeout.cancel(false);
+            }
+            if (envelope.isExpired(createTime, System.currentTimeMillis())) {
+              // Expired message is removed without being processed.
+              completion.setException(new TimeoutException("Message expired before processed: " + path));
+            } else {
+              completion.set(completionResult);
+            }
           }
 
           @Override
@@ -87,6 +206,47 @@ public final class ZKMessages {
     });
   }
 
+  /**
+   * Schedules to fail the completion future and to remove the message node when the message expires.
+   * @return The {@link ScheduledFuture} of the timeout task or {@code null} if the message never expires.
+   */
+  private static ScheduledFuture<?> scheduleTimeout(final ZKClient zkClient, final String path,
+                                                    MessageEnvelope envelope, final byte[] data,
+                                                    final SettableFuture<?> completion) {
+    if (envelope.getTimeout() <= 0) {
+      return null;
+    }
+    return TIMER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!completion.setException(new TimeoutException("Timeout in waiting for message processed: " + path))) {
+          return;
+        }
+        LOG.warn("Message not processed before expired. Removing message {}", path);
+        OperationFuture<String> deleteFuture = zkClient.delete(path);
+        Futures.addCallback(ZKOperations.ignoreError(deleteFuture, KeeperException.NoNodeException.class, path),
+                            new FutureCallback<String>() {
+          @Override
+          public void onSuccess(String result) {
+            ZKOperations.deleteLargeData(zkClient, data);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LOG.warn("Failed to remove expired message {}", path, t);
+          }
+        });
+      }
+    }, envelope.getTimeout(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns a unique path for storing chunks of a large message, which is under a sibling of the messages node.
+   */
+  private static String getChunkPath(String messagePathPrefix) {
+    return messagePathPrefix.substring(0, messagePathPrefix.lastIndexOf('/')) + "-chunks/" + UUID.randomUUID();
+  }
+
   private ZKMessages() {
   }
 }
@@ -17,21 +17,26 @@ package com.continuuity.weave.internal;
 
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.ServiceController;
+import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.common.Threads;
-import com.continuuity.weave.internal.json.StackTraceElementCodec;
-import com.continuuity.weave.internal.json.StateNodeCodec;
+import com.continuuity.weave.internal.state.LiveNodeCodec;
+import com.continuuity.weave.internal.state.LoadReports;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCallback;
 import com.continuuity.weave.internal.state.MessageCodec;
+import com.continuuity.weave.internal.state.MessageEnvelope;
+import com.continuuity.weave.internal.state.StateCodec;
 import com.continuuity.weave.internal.state.StateNode;
 import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.OperationFuture;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKOperations;
-import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
@@ -39,8 +44,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.zookeeper.CreateMode;
@@ -52,10 +56,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * A {@link Service} decorator that wrap another {@link Service} with the service states reflected
@@ -65,15 +77,51 @@ public final class ZKServiceDecorator extends AbstractService {
 
   private static final Logger LOG = LoggerFactory.getLogger(ZKServiceDecorator.class);
 
+  /** Number of idempotency keys of processed messages to remember for discarding duplicates. */
+  private static final int MAX_PROCESSED_KEYS = 1000;
+  /** Time window for coalescing non-final state transitions into one write. */
+  private static final long STATE_COALESCE_MILLIS = 100;
+  /** Delay before fetching a message again after failure. */
+  private static final long FETCH_RETRY_MILLIS = 1000;
+  /** Number of state transitions retained in the state node. */
+  private static final int MAX_STATE_HISTORY = 16;
+  /** Number of times to retry writing the state node if it is modified externally. */
+  private static final int MAX_STATE_WRITE_ATTEMPTS = 3;
+
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+    Threads.createDaemonThreadFactory("zk-service-decorator"));
+
   private final ZKClient zkClient;
   private final RunId id;
   private final Supplier<? extends JsonElement> liveNodeData;
   private final Service decoratedService;
   private final MessageCallbackCaller messageCallback;
+  private final String broadcastPath;
+  private final Set<String> receivedBroadcasts;
+  private final Set<String> processedKeys;
   private ExecutorService callbackExecutor;
+  private StateWriter stateWriter;
+  private MessageDispatcher messageDispatcher;
+  private Cancellable broadcastWatch;
+  private ScheduledFuture<?> heartbeat;
+  private String lastMessageId;
+  // Zxid of the live node creation. Broadcasts created before it are not for this instance.
+  private volatile long registrationZxid;
 
   public ZKServiceDecorator(ZKClient zkClient, RunId id,
                             Supplier<? extends JsonElement> liveNodeData, Service decoratedService) {
+    this(zkClient, id, liveNodeData, decoratedService, null);
+  }
+
+  /**
+   * Creates a decorator that also receives messages broadcasted to the given path. A broadcast message is
+   * acknowledged by creating a child node named by the run id under the message node after it is processed.
+   * Broadcasts created before this service registered its live node are acknowledged without being processed.
+   *
+   * @param broadcastPath ZK path to watch for broadcast messages or {@code null} to not receive broadcast.
+   */
+  public ZKServiceDecorator(ZKClient zkClient, RunId id, Supplier<? extends JsonElement> liveNodeData,
+                            Service decoratedService, @Nullable String broadcastPath) {
     this.zkClient = zkClient;
     this.id = id;
     this.liveNodeData = liveNodeData;
@@ -83,6 +131,14 @@ public final class ZKServiceDecorator extends AbstractService {
     } else {
       this.messageCallback = new MessageCallbackCaller(zkClient);
     }
+    this.broadcastPath = broadcastPath;
+    this.receivedBroadcasts = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    this.processedKeys = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > MAX_PROCESSED_KEYS;
+      }
+    });
   }
 
   /**
@@ -102,11 +158,21 @@ public final class ZKServiceDecorator extends AbstractService {
   @Override
   protected void doStart() {
     callbackExecutor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("message-callback"));
-    Futures.addCallback(createLiveNode(), new FutureCallback<String>() {
+    messageDispatcher = new MessageDispatcher(callbackExecutor);
+    ListenableFuture<Stat> liveNodeStat = Futures.transform(createLiveNode(), new AsyncFunction<String, Stat>() {
       @Override
-      public void onSuccess(String result) {
+      public ListenableFuture<Stat> apply(String liveNodePath) throws Exception {
+        return zkClient.exists(liveNodePath);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    Futures.addCallback(liveNodeStat, new FutureCallback<Stat>() {
+      @Override
+      public void onSuccess(Stat result) {
+        registrationZxid = result == null ? 0L : result.getCzxid();
+
         // Create nodes for states and messaging
-        StateNode stateNode = new StateNode(ServiceController.State.STARTING);
+        stateWriter = new StateWriter(ServiceController.State.STARTING);
+        StateNode stateNode = stateWriter.getLastWritten();
 
         final ListenableFuture<List<String>> createFuture = Futures.allAsList(
           deleteAndCreate(getZKPath("messages"), null, CreateMode.PERSISTENT),
@@ -137,6 +203,10 @@ public final class ZKServiceDecorator extends AbstractService {
 
   @Override
   protected void doStop() {
+    if (broadcastWatch != null) {
+      broadcastWatch.cancel();
+    }
+    stopHeartbeat();
     // Stops the decorated service
     decoratedService.stop();
     callbackExecutor.shutdownNow();
@@ -146,10 +216,53 @@ public final class ZKServiceDecorator extends AbstractService {
     String liveNode = getLiveNodePath();
     LOG.info("Create live node " + liveNode);
 
+    return ZKOperations.ignoreError(zkClient.create(liveNode, encodeLiveNode(), CreateMode.EPHEMERAL),
+                                    KeeperException.NodeExistsException.class, liveNode);
+  }
+
+  /**
+   * Encodes the live node content, which contains the live node data and a heartbeat with the load of this process.
+   */
+  private byte[] encodeLiveNode() {
     JsonObject content = new JsonObject();
     content.add("data", liveNodeData.get());
-    return ZKOperations.ignoreError(zkClient.create(liveNode, encodeJson(content), CreateMode.EPHEMERAL),
-                                    KeeperException.NodeExistsException.class, liveNode);
+    content.add("heartbeat", LoadReports.toJson(LoadReports.collect(messageDispatcher.getPending())));
+    return LiveNodeCodec.encode(content);
+  }
+
+  /**
+   * Starts updating the live node periodically. The live node data is also refreshed on every heartbeat.
+   */
+  private synchronized void startHeartbeat() {
+    if (heartbeat != null) {
+      return;
+    }
+    heartbeat = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (!decoratedService.isRunning()) {
+          return;
+        }
+        Futures.addCallback(zkClient.setData(getLiveNodePath(), encodeLiveNode()), new FutureCallback<Stat>() {
+          @Override
+          public void onSuccess(Stat result) {
+            // No-op
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Heartbeat is best effort. The live node could be gone when the service is stopping.
+            LOG.debug("Failed to update live node {}", getLiveNodePath(), t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Constants.HEARTBEAT_INTERVAL_SECONDS, Constants.HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private synchronized void stopHeartbeat() {
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+    }
   }
 
   private OperationFuture<String> removeLiveNode() {
@@ -171,12 +284,7 @@ public final class ZKServiceDecorator extends AbstractService {
     }), new FutureCallback<NodeChildren>() {
       @Override
       public void onSuccess(NodeChildren result) {
-        // Sort by the name, which is the messageId. Assumption is that message ids is ordered by time.
-        List<String> messages = Lists.newArrayList(result.getChildren());
-        Collections.sort(messages);
-        for (String messageId : messages) {
-          processMessage(messagesPath + "/" + messageId, messageId);
-        }
+        submitNewMessages(messagesPath, result.getChildren());
       }
 
       @Override
@@ -187,30 +295,238 @@ public final class ZKServiceDecorator extends AbstractService {
     });
   }
 
-  private void processMessage(final String path, final String messageId) {
+  /**
+   * Submits messages that are newer than the last submitted one for processing. Messages at or below the high-water
+   * mark are either completed or still being processed, hence are not fetched again. A message failed to be fetched
+   * is retried by {@link #fetchMessage(String, String, boolean)} until it is fetched or removed.
+   */
+  private synchronized void submitNewMessages(String messagesPath, List<String> children) {
+    // Sort by the name, which is the messageId. Sequential node names are ordered by creation.
+    List<String> messages = Lists.newArrayList(children);
+    Collections.sort(messages);
+    for (String messageId : messages) {
+      if (lastMessageId != null && messageId.compareTo(lastMessageId) <= 0) {
+        continue;
+      }
+      lastMessageId = messageId;
+      messageDispatcher.submit(fetchMessage(messagesPath + "/" + messageId, messageId, false));
+    }
+  }
+
+  private void watchBroadcasts() {
+    broadcastWatch = ZKOperations.watchChildren(zkClient, broadcastPath, new ZKOperations.ChildrenCallback() {
+      @Override
+      public void updated(NodeChildren nodeChildren) {
+        submitNewBroadcasts(nodeChildren.getChildren());
+      }
+    });
+  }
+
+  private synchronized void submitNewBroadcasts(List<String> children) {
+    List<String> messages = Lists.newArrayList(children);
+    // Forget about messages that are removed, which happens after all instances acknowledged.
+    receivedBroadcasts.retainAll(messages);
+    Collections.sort(messages);
+    for (String messageId : messages) {
+      if (receivedBroadcasts.add(messageId)) {
+        messageDispatcher.submit(fetchMessage(broadcastPath + "/" + messageId, messageId, true));
+      }
+    }
+  }
+
+  /**
+   * Fetches and decodes a message. Fetching is retried on failure, unless the message is gone, as the message
+   * won't be listed again once it is submitted.
+   *
+   * @param broadcast {@code true} if it is a broadcast message, which is acknowledged instead of deleted
+   *                  after processed.
+   * @return A future of the {@link MessageDispatcher.Task} for processing the message, or {@code null} if the message
+   *         is removed or cannot be decoded.
+   */
+  private ListenableFuture<MessageDispatcher.Task> fetchMessage(String path, String messageId, boolean broadcast) {
+    SettableFuture<MessageDispatcher.Task> result = SettableFuture.create();
+    fetchMessage(path, messageId, broadcast, result);
+    return result;
+  }
+
+  private void fetchMessage(final String path, final String messageId, final boolean broadcast,
+                            final SettableFuture<MessageDispatcher.Task> result) {
     Futures.addCallback(zkClient.getData(path), new FutureCallback<NodeData>() {
       @Override
-      public void onSuccess(NodeData result) {
-        Message message = MessageCodec.decode(result.getData());
-        if (message == null) {
-          LOG.error("Failed to decode message for " + messageId + " in " + path);
-          listenFailure(zkClient.delete(path, result.getStat().getVersion()));
+      public void onSuccess(final NodeData nodeData) {
+        final byte[] data = nodeData.getData();
+        final Supplier<OperationFuture<String>> postProcess = broadcast
+          ? getAckSupplier(path) : getDeleteSupplier(path, nodeData.getStat().getVersion());
+
+        if (broadcast && nodeData.getStat().getCzxid() < registrationZxid) {
+          // Broadcast sent before this instance registered. It is acknowledged without processing, as messages
+          // sent to an instance before it registers are not delivered.
+          LOG.debug("Skip broadcast message {} in {} created before registration.", messageId, path);
+          listenFailure(postProcess.get());
+          result.set(null);
           return;
         }
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Message received from " + path + ": " + new String(MessageCodec.encode(message), Charsets.UTF_8));
-        }
-        if (handleStopMessage(message, getDeleteSupplier(path, result.getStat().getVersion()))) {
+
+        Futures.addCallback(ZKOperations.loadLargeData(zkClient, data), new FutureCallback<byte[]>() {
+          @Override
+          public void onSuccess(byte[] messageData) {
+            if (!broadcast && messageData != data) {
+              // Message stored as large data. Remove the chunks when the message node is removed.
+              deleteLargeDataOnDeleted(path, data);
+            }
+            MessageEnvelope envelope = MessageCodec.decodeEnvelope(messageData);
+            if (envelope == null) {
+              LOG.error("Failed to decode message for " + messageId + " in " + path);
+              listenFailure(postProcess.get());
+              result.set(null);
+              return;
+            }
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Message received from " + path + ": " + envelope);
+            }
+            result.set(createTask(path, messageId, envelope, nodeData.getStat(), postProcess));
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (t instanceof KeeperException.NoNodeException) {
+              // Chunks are gone, which the message can never be loaded.
+              LOG.error("Message content is missing for " + messageId + " in " + path, t);
+              listenFailure(postProcess.get());
+              result.set(null);
+              return;
+            }
+            retryFetchMessage(path, messageId, broadcast, result, t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof KeeperException.NoNodeException) {
+          // Message removed by the sender or the sweeper, or broadcast completed already.
+          LOG.debug("Message {} in {} is removed before fetched.", messageId, path);
+          result.set(null);
           return;
         }
-        messageCallback.onReceived(callbackExecutor, path, result.getStat().getVersion(), messageId, message);
+        retryFetchMessage(path, messageId, broadcast, result, t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+  }
+
+  private void retryFetchMessage(final String path, final String messageId, final boolean broadcast,
+                                 final SettableFuture<MessageDispatcher.Task> result, Throwable cause) {
+    State state = state();
+    if (state == State.TERMINATED || state == State.FAILED) {
+      result.set(null);
+      return;
+    }
+    LOG.warn("Failed to fetch message {} in {}. Retry in {} ms.", messageId, path, FETCH_RETRY_MILLIS, cause);
+    SCHEDULER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        fetchMessage(path, messageId, broadcast, result);
+      }
+    }, FETCH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private MessageDispatcher.Task createTask(final String path, final String messageId,
+                                            final MessageEnvelope envelope, final Stat messageStat,
+                                            final Supplier<OperationFuture<String>> postProcess) {
+    final Message message = envelope.getMessage();
+    return new MessageDispatcher.Task() {
+      @Override
+      public Message getMessage() {
+        return message;
+      }
+
+      @Override
+      public ListenableFuture<?> process() {
+        if (envelope.getTimeout() <= 0) {
+          return processMessage();
+        }
+        // Checks when the message is about to be processed, as it could be waiting behind other messages.
+        // The time of ZooKeeper is used, as it is the clock that sets the creation time of the message node.
+        final SettableFuture<Object> result = SettableFuture.create();
+        Futures.addCallback(ZKMessages.readClock(zkClient, getZKPath("messages")), new FutureCallback<Stat>() {
+          @Override
+          public void onSuccess(Stat clock) {
+            if (ZKMessages.isExpired(envelope, messageStat, clock)) {
+              LOG.warn("Discard expired message {} in {}: {}", messageId, path, message);
+              listenFailure(postProcess.get());
+              result.set(null);
+            } else {
+              process(result);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Expired messages left behind are removed by the sweeper.
+            LOG.warn("Failed to check expiry of message {} in {}. Processing it.", messageId, path, t);
+            process(result);
+          }
+
+        }, Threads.SAME_THREAD_EXECUTOR);
+        return result;
+      }
+
+      /**
+       * Processes the message and completes the given future when it is done.
+       */
+      private void process(final SettableFuture<Object> completion) {
+        try {
+          processMessage().addListener(new Runnable() {
+            @Override
+            public void run() {
+              completion.set(null);
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+        } catch (Throwable t) {
+          LOG.error("Failed to process message {} in {}", messageId, path, t);
+          completion.set(null);
+        }
+      }
+
+      private ListenableFuture<?> processMessage() {
+        if (!markProcessed(envelope.getKey())) {
+          LOG.info("Discard duplicate message {} in {}: {}", messageId, path, message);
+          listenFailure(postProcess.get());
+          return Futures.immediateFuture(null);
+        }
+        if (handleStopMessage(message, postProcess)) {
+          return Futures.immediateFuture(null);
+        }
+        return messageCallback.onReceived(callbackExecutor, path, messageId, message, postProcess);
+      }
+    };
+  }
+
+  /**
+   * Records the idempotency key of a message that is going to be processed.
+   * @return {@code true} if the message should be processed, {@code false} if it is a duplicate.
+   */
+  private boolean markProcessed(@Nullable String key) {
+    if (key == null) {
+      return true;
+    }
+    synchronized (processedKeys) {
+      return processedKeys.add(key);
+    }
+  }
+
+  private void deleteLargeDataOnDeleted(String path, final byte[] data) {
+    Futures.addCallback(ZKOperations.watchDeleted(zkClient, path), new FutureCallback<String>() {
+      @Override
+      public void onSuccess(String result) {
+        ZKOperations.deleteLargeData(zkClient, data);
       }
 
       @Override
       public void onFailure(Throwable t) {
-        LOG.error("Failed to fetch message content.", t);
+        LOG.warn("Failed to watch for message deletion: " + t, t);
       }
-    });
+    }, Threads.SAME_THREAD_EXECUTOR);
   }
 
   private <V> boolean handleStopMessage(Message message, final Supplier<OperationFuture<V>> postHandleSupplier) {
@@ -237,28 +553,31 @@ public final class ZKServiceDecorator extends AbstractService {
     return new Supplier<OperationFuture<String>>() {
       @Override
       public OperationFuture<String> get() {
-        return zkClient.delete(path, version);
+        // The message node could be removed by the sender or the sweeper after it expired.
+        return ZKOperations.ignoreError(zkClient.delete(path, version),
+                                        KeeperException.NoNodeException.class, path);
       }
     };
   }
 
-  private Listener createListener() {
-    return new DecoratedServiceListener();
+  private Supplier<OperationFuture<String>> getAckSupplier(final String path) {
+    return new Supplier<OperationFuture<String>>() {
+      @Override
+      public OperationFuture<String> get() {
+        // The message node could be gone already if the broadcaster stopped tracking it.
+        OperationFuture<String> ack = zkClient.create(path + "/" + id.getId(), null, CreateMode.PERSISTENT, false);
+        return ZKOperations.ignoreError(ZKOperations.ignoreError(ack, KeeperException.NodeExistsException.class, path),
+                                        KeeperException.NoNodeException.class, path);
+      }
+    };
   }
 
-  private <V> byte[] encode(V data, Class<? extends V> clz) {
-    return new GsonBuilder().registerTypeAdapter(StateNode.class, new StateNodeCodec())
-                            .registerTypeAdapter(StackTraceElement.class, new StackTraceElementCodec())
-                            .create()
-      .toJson(data, clz).getBytes(Charsets.UTF_8);
+  private Listener createListener() {
+    return new DecoratedServiceListener();
   }
 
   private byte[] encodeStateNode(StateNode stateNode) {
-    return encode(stateNode, StateNode.class);
-  }
-
-  private <V extends JsonElement> byte[] encodeJson(V json) {
-    return new Gson().toJson(json).getBytes(Charsets.UTF_8);
+    return StateCodec.encode(stateNode);
   }
 
   private String getZKPath(String path) {
@@ -300,31 +619,253 @@ public final class ZKServiceDecorator extends AbstractService {
       this.zkClient = zkClient;
     }
 
-    public void onReceived(Executor executor, final String path,
-                           final int version, final String id, final Message message) {
+    /**
+     * Invokes the callback with the given message.
+     * @param postProcess Supplier to provide the operation to perform after the message is processed, which
+     *                    could be deleting or acknowledging the message node.
+     */
+    public ListenableFuture<?> onReceived(Executor executor, final String path, final String id,
+                                          final Message message, final Supplier<OperationFuture<String>> postProcess) {
       if (callback == null) {
-        // Simply delete the message
+        // Simply finish the message
         if (LOG.isDebugEnabled()) {
           LOG.debug("Ignoring incoming message from " + path + ": " + message);
         }
-        listenFailure(zkClient.delete(path, version));
-        return;
+        listenFailure(postProcess.get());
+        return Futures.immediateFuture(null);
       }
 
+      final SettableFuture<Object> completion = SettableFuture.create();
       executor.execute(new Runnable() {
         @Override
         public void run() {
+          // The callback is invoked on the callbackExecutor, but the processing is asynchronous.
+          // Ordering between messages is maintained by the MessageDispatcher.
+          final ListenableFuture<String> result;
           try {
-            // Message process is synchronous for now. Making it async needs more thoughts about race conditions.
-            // The executor is the callbackExecutor which is a single thread executor.
-            callback.onReceived(id, message).get();
+            result = callback.onReceived(id, message);
           } catch (Throwable t) {
             LOG.error("Exception when processing message: {}, {}, {}", id, message, path, t);
-          } finally {
-            listenFailure(zkClient.delete(path, version));
+            complete();
+            return;
           }
+          result.addListener(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                result.get();
+              } catch (Throwable t) {
+                LOG.error("Exception when processing message: {}, {}, {}", id, message, path, t);
+              } finally {
+                complete();
+              }
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+        }
+
+        private void complete() {
+          listenFailure(postProcess.get());
+          completion.set(null);
         }
       });
+      return completion;
+    }
+  }
+
+  /**
+   * Writes the state node. Transitions saved within a short window, or while a write is in flight, are coalesced
+   * into one versioned write of the latest state, while the transitions are retained in the state history.
+   */
+  private final class StateWriter {
+    private final List<StateNode.Transition> history;
+    private final List<SettableFuture<Stat>> pendingFutures;
+    private StateNode lastWritten;
+    private byte[] lastWrittenData;
+    private StateNode pending;
+    private boolean scheduled;
+    private boolean writing;
+    private int version;
+
+    StateWriter(ServiceController.State initialState) {
+      this.history = Lists.newLinkedList();
+      this.pendingFutures = Lists.newArrayList();
+      this.history.add(new StateNode.Transition(initialState, System.currentTimeMillis()));
+      this.lastWritten = new StateNode(initialState).withHistory(history);
+      // The initial state is written by the creation of the state node, which has version 0.
+      this.version = 0;
+    }
+
+    synchronized StateNode getLastWritten() {
+      return lastWritten;
+    }
+
+    /**
+     * Saves the given state.
+     *
+     * @param stateNode The state to save.
+     * @param delayMillis Time to wait for further transitions before writing.
+     * @return A future that completes when the given state, or a later one superseding it, is written.
+     */
+    synchronized ListenableFuture<Stat> save(StateNode stateNode, long delayMillis) {
+      StateNode last = pending == null ? lastWritten : pending;
+      if (last.getState() == stateNode.getState() && stateNode.getErrorMessage() == null) {
+        // No change. It happens for the STARTING state, which is written when the state node is created.
+        return Futures.immediateFuture(null);
+      }
+      history.add(new StateNode.Transition(stateNode.getState(), System.currentTimeMillis()));
+      while (history.size() > MAX_STATE_HISTORY) {
+        history.remove(0);
+      }
+      pending = stateNode.withHistory(history);
+      SettableFuture<Stat> result = SettableFuture.create();
+      pendingFutures.add(result);
+
+      if (delayMillis <= 0) {
+        flush();
+      } else if (!scheduled) {
+        scheduled = true;
+        SCHEDULER.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (StateWriter.this) {
+              scheduled = false;
+              flush();
+            }
+          }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+      }
+      return result;
+    }
+
+    /**
+     * Writes the pending state, unless there is already a write in flight, which would write it on completion.
+     */
+    private void flush() {
+      if (writing || pending == null) {
+        return;
+      }
+      writing = true;
+      final StateNode stateNode = pending;
+      final List<SettableFuture<Stat>> futures = ImmutableList.copyOf(pendingFutures);
+      pending = null;
+      pendingFutures.clear();
+      write(stateNode, version, futures, 0);
+    }
+
+    /**
+     * Writes the given state if the state node is at the expected version. If the node is modified externally,
+     * the node is read again and the state is written with the state histories merged.
+     */
+    private void write(final StateNode stateNode, final int expectedVersion,
+                       final List<SettableFuture<Stat>> futures, final int attempt) {
+      final String path = getZKPath("state");
+
+      // Failure state could be large because of the stack traces. Each write has its own chunks node, so that
+      // the chunks of the current state stay intact until the node is updated.
+      final ListenableFuture<byte[]> stateData = ZKOperations.storeLargeData(
+        zkClient, getZKPath("state-chunks/" + UUID.randomUUID()), encodeStateNode(stateNode));
+      Futures.addCallback(Futures.transform(stateData, new AsyncFunction<byte[], Stat>() {
+        @Override
+        public ListenableFuture<Stat> apply(byte[] data) throws Exception {
+          return zkClient.setData(path, data, expectedVersion);
+        }
+      }), new FutureCallback<Stat>() {
+        @Override
+        public void onSuccess(Stat stat) {
+          byte[] superseded;
+          synchronized (StateWriter.this) {
+            version = stat.getVersion();
+            lastWritten = stateNode;
+            superseded = lastWrittenData;
+            lastWrittenData = Futures.getUnchecked(stateData);
+            completed();
+          }
+          ZKOperations.deleteLargeData(zkClient, superseded);
+          for (SettableFuture<Stat> future : futures) {
+            future.set(stat);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          boolean badVersion = t instanceof KeeperException.BadVersionException;
+          if (badVersion || t instanceof KeeperException.NoNodeException) {
+            // The node is not updated, hence the chunks just stored are not referenced. For other failures, the
+            // write could have been applied, so the chunks are kept.
+            ZKOperations.deleteLargeData(zkClient, Futures.getUnchecked(stateData));
+          }
+          if (badVersion && attempt < MAX_STATE_WRITE_ATTEMPTS) {
+            LOG.warn("State node {} modified externally. Expected version {}. Merging and retrying.",
+                     path, expectedVersion);
+            retryWrite(stateNode, futures, attempt + 1);
+            return;
+          }
+          failed(futures, t);
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Reads the state node and writes the given state, with the history merged with the one in the node.
+     */
+    private void retryWrite(final StateNode stateNode, final List<SettableFuture<Stat>> futures, final int attempt) {
+      final ListenableFuture<NodeData> nodeData = zkClient.getData(getZKPath("state"));
+      final ListenableFuture<byte[]> data = Futures.transform(nodeData, new AsyncFunction<NodeData, byte[]>() {
+        @Override
+        public ListenableFuture<byte[]> apply(NodeData input) throws Exception {
+          return ZKOperations.loadLargeData(zkClient, input.getData());
+        }
+      });
+      Futures.addCallback(data, new FutureCallback<byte[]>() {
+        @Override
+        public void onSuccess(byte[] result) {
+          StateNode current = StateCodec.decode(result);
+          StateNode merged = stateNode;
+          if (current != null) {
+            synchronized (StateWriter.this) {
+              mergeHistory(current.getHistory());
+              merged = stateNode.withHistory(history);
+            }
+          }
+          write(merged, Futures.getUnchecked(nodeData).getStat().getVersion(), futures, attempt);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          failed(futures, t);
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Merges the given transitions into the history, ordered by time and without duplicates.
+     */
+    private void mergeHistory(List<StateNode.Transition> transitions) {
+      Map<String, StateNode.Transition> merged = Maps.newTreeMap();
+      for (StateNode.Transition transition : Iterables.concat(transitions, history)) {
+        merged.put(String.format("%020d%s", transition.getTimestamp(), transition.getState()), transition);
+      }
+      history.clear();
+      history.addAll(merged.values());
+      while (history.size() > MAX_STATE_HISTORY) {
+        history.remove(0);
+      }
+    }
+
+    private void failed(List<SettableFuture<Stat>> futures, Throwable t) {
+      synchronized (this) {
+        completed();
+      }
+      for (SettableFuture<Stat> future : futures) {
+        future.setException(t);
+      }
+    }
+
+    private void completed() {
+      writing = false;
+      if (!scheduled) {
+        flush();
+      }
     }
   }
 
@@ -334,31 +875,38 @@ public final class ZKServiceDecorator extends AbstractService {
     @Override
     public void starting() {
       LOG.info("Starting: " + id);
-      saveState(ServiceController.State.STARTING);
+      saveState(new StateNode(ServiceController.State.STARTING), STATE_COALESCE_MILLIS);
     }
 
     @Override
     public void running() {
       LOG.info("Running: " + id);
       notifyStarted();
+      startHeartbeat();
       watchMessages();
-      saveState(ServiceController.State.RUNNING);
+      if (broadcastPath != null) {
+        watchBroadcasts();
+      }
+      saveState(new StateNode(ServiceController.State.RUNNING), STATE_COALESCE_MILLIS);
     }
 
     @Override
     public void stopping(State from) {
       LOG.info("Stopping: " + id);
-      saveState(ServiceController.State.STOPPING);
+      stopHeartbeat();
+      saveState(new StateNode(ServiceController.State.STOPPING), STATE_COALESCE_MILLIS);
     }
 
     @Override
     public void terminated(State from) {
       LOG.info("Terminated: " + from + " " + id);
+      stopHeartbeat();
       if (zkFailure) {
         return;
       }
+      // Final state is written without delay, superseding any pending transitions.
       StateNode stateNode = new StateNode(ServiceController.State.TERMINATED);
-      final OperationFuture<Stat> stateFuture = zkClient.setData(getZKPath("state"), encodeStateNode(stateNode));
+      final ListenableFuture<Stat> stateFuture = stateWriter.save(stateNode, 0L);
       stateFuture.addListener(new Runnable() {
         @Override
         public void run() {
@@ -382,12 +930,12 @@ public final class ZKServiceDecorator extends AbstractService {
     @Override
     public void failed(State from, final Throwable failure) {
       LOG.info("Failed: " + from + " " + id + ". Reason: " + failure, failure);
+      stopHeartbeat();
       if (zkFailure) {
         return;
       }
 
-      StateNode stateNode = new StateNode(failure);
-      zkClient.setData(getZKPath("state"), encodeStateNode(stateNode)).addListener(new Runnable() {
+      stateWriter.save(new StateNode(failure), 0L).addListener(new Runnable() {
         @Override
         public void run() {
           removeLiveNode().addListener(new Runnable() {
@@ -401,15 +949,14 @@ public final class ZKServiceDecorator extends AbstractService {
       }, Threads.SAME_THREAD_EXECUTOR);
     }
 
-    private void saveState(ServiceController.State state) {
+    private void saveState(StateNode stateNode, long delayMillis) {
       if (zkFailure) {
         return;
       }
-      StateNode stateNode = new StateNode(state);
-      stopOnFailure(zkClient.setData(getZKPath("state"), encodeStateNode(stateNode)));
+      stopOnFailure(stateWriter.save(stateNode, delayMillis));
     }
 
-    private <V> void stopOnFailure(final OperationFuture<V> future) {
+    private <V> void stopOnFailure(final ListenableFuture<V> future) {
       future.addListener(new Runnable() {
         @Override
         public void run() {
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.control;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.MessageCodec;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of the control channel, which runs inside the application master. It keeps one persistent
+ * connection per container and multiplexes requests on it.
+ *
+ * <p>
+ * A request fails with {@link MessageNotDeliveredException} if it is known to be not processed by the server.
+ * If the connection is closed or the request times out after the request is written, the request fails with
+ * other exception, as the message could have been processed.
+ * </p>
+ */
+public final class ControlChannelClient extends AbstractIdleService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ControlChannelClient.class);
+
+  private static final long DEFAULT_TIMEOUT_SECONDS = 60;
+
+  private final ConcurrentMap<InetSocketAddress, ChannelFuture> connections;
+  private final AtomicInteger nextRequestId;
+  private final long timeoutMillis;
+  private ClientBootstrap bootstrap;
+  private Timer timer;
+
+  public ControlChannelClient() {
+    this(DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates a client with the given request timeout.
+   *
+   * @param timeout Maximum time to wait for the response of a request.
+   * @param unit Unit for the timeout.
+   */
+  public ControlChannelClient(long timeout, TimeUnit unit) {
+    this.connections = Maps.newConcurrentMap();
+    this.nextRequestId = new AtomicInteger();
+    this.timeoutMillis = unit.toMillis(timeout);
+  }
+
+  /**
+   * Sends a message to the control channel server at the given address.
+   *
+   * @param address Address of the server.
+   * @param secret Secret of the server.
+   * @param message The message to send.
+   * @return A {@link ListenableFuture} that will be completed with the message when the server acknowledged
+   *         that the message is processed. It fails if the message cannot be delivered, is rejected by the server,
+   *         or no response is received within the request timeout.
+   */
+  public ListenableFuture<Message> send(InetSocketAddress address, String secret, final Message message) {
+    if (!isRunning()) {
+      return Futures.immediateFailedFuture(new MessageNotDeliveredException("Control channel client is not running."));
+    }
+
+    final SettableFuture<Message> result = SettableFuture.create();
+    final int requestId = nextRequestId.incrementAndGet();
+    final ChannelBuffer request = ControlFrames.encodeRequest(requestId, secret, MessageCodec.encode(message));
+
+    getConnection(address).addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          result.setException(new MessageNotDeliveredException("Failed to connect.", future.getCause()));
+          return;
+        }
+        Channel channel = future.getChannel();
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+        if (!handler.addPending(requestId, message, result)) {
+          result.setException(new MessageNotDeliveredException("Control channel closed: " + channel));
+          return;
+        }
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+          @Override
+          public void run(Timeout timeout) throws Exception {
+            PendingRequest pending = handler.removePending(requestId);
+            if (pending != null) {
+              pending.result.setException(new TimeoutException("No response for request " + requestId));
+            }
+          }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        result.addListener(new Runnable() {
+          @Override
+          public void run() {
+            timeout.cancel();
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+
+        channel.write(request).addListener(new ChannelFutureListener() {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess() && handler.removePending(requestId) != null) {
+              result.setException(new MessageNotDeliveredException("Failed to write request.", future.getCause()));
+            }
+          }
+        });
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Closes the connection to the given address, if there is one.
+   */
+  public void close(InetSocketAddress address) {
+    ChannelFuture connection = connections.remove(address);
+    if (connection != null) {
+      connection.getChannel().close();
+    }
+  }
+
+  @Override
+  protected void startUp() throws Exception {
+    ThreadFactory threadFactory = Threads.createDaemonThreadFactory("control-client-netty-%d");
+    bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newSingleThreadExecutor(threadFactory),
+                                                                      Executors.newFixedThreadPool(1, threadFactory)));
+    bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        return ControlFrames.createPipeline(new ResponseHandler());
+      }
+    });
+    bootstrap.setOption("tcpNoDelay", true);
+    bootstrap.setOption("keepAlive", true);
+    timer = new HashedWheelTimer(Threads.createDaemonThreadFactory("control-client-timer"));
+  }
+
+  @Override
+  protected void shutDown() throws Exception {
+    Iterator<ChannelFuture> iterator = connections.values().iterator();
+    while (iterator.hasNext()) {
+      iterator.next().getChannel().close().awaitUninterruptibly();
+      iterator.remove();
+    }
+    bootstrap.releaseExternalResources();
+    timer.stop();
+  }
+
+  private ChannelFuture getConnection(final InetSocketAddress address) {
+    ChannelFuture connection = connections.get(address);
+    if (connection != null && (!connection.isDone() || connection.getChannel().isConnected())) {
+      return connection;
+    }
+    if (connection != null) {
+      connections.remove(address, connection);
+    }
+
+    ChannelFuture newConnection = bootstrap.connect(address);
+    ChannelFuture existing = connections.putIfAbsent(address, newConnection);
+    if (existing != null) {
+      newConnection.getChannel().close();
+      return existing;
+    }
+    final ChannelFuture registered = newConnection;
+    newConnection.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        connections.remove(address, registered);
+      }
+    });
+    return newConnection;
+  }
+
+  /**
+   * Completes pending requests of a connection when responses arrive or when the connection is closed.
+   */
+  private static final class ResponseHandler extends SimpleChannelUpstreamHandler {
+
+    private final Map<Integer, PendingRequest> pending = Maps.newHashMap();
+    private boolean closed;
+
+    /**
+     * Adds a pending request.
+     * @return {@code true} if added, {@code false} if the connection is already closed.
+     */
+    synchronized boolean addPending(int requestId, Message message, SettableFuture<Message> result) {
+      if (closed) {
+        return false;
+      }
+      pending.put(requestId, new PendingRequest(message, result));
+      return true;
+    }
+
+    synchronized PendingRequest removePending(int requestId) {
+      return pending.remove(requestId);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+      ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+      byte type = buffer.readByte();
+      int requestId = buffer.readInt();
+      PendingRequest request = removePending(requestId);
+      if (request == null) {
+        LOG.warn("Ignore response for unknown request {} from {}", requestId, e.getChannel().getRemoteAddress());
+        return;
+      }
+      if (type == ControlFrames.ACK) {
+        request.result.set(request.message);
+      } else {
+        String error = new String(ControlFrames.readPayload(buffer), Charsets.UTF_8);
+        request.result.setException(new MessageNotDeliveredException("Message rejected by "
+                                                                       + e.getChannel().getRemoteAddress()
+                                                                       + ": " + error));
+      }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+      List<PendingRequest> requests;
+      synchronized (this) {
+        closed = true;
+        requests = ImmutableList.copyOf(pending.values());
+        pending.clear();
+      }
+      for (PendingRequest request : requests) {
+        request.result.setException(new IOException("Control channel closed: " + e.getChannel()));
+      }
+      super.channelClosed(ctx, e);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+      LOG.warn("Exception in control channel to {}", e.getChannel().getRemoteAddress(), e.getCause());
+      e.getChannel().close();
+    }
+  }
+
+  private static final class PendingRequest {
+    private final Message message;
+    private final SettableFuture<Message> result;
+
+    PendingRequest(Message message, SettableFuture<Message> result) {
+      this.message = message;
+      this.result = result;
+    }
+  }
+}
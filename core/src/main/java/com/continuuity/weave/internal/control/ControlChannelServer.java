@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.control;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.MessageCallback;
+import com.continuuity.weave.internal.state.MessageCodec;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Server side of the control channel, which runs inside a container. Messages received are handed to the
+ * {@link MessageCallback} and acknowledged once the callback completes. Messages that cannot be decoded, or that
+ * the callback rejects by throwing exception, are rejected so that the sender could fallback to ZooKeeper.
+ *
+ * <p>
+ * The server only listens on the container host address. Every request has to carry the secret of the server,
+ * which is published to the application master through the live node of the container. Requests with a wrong
+ * secret are rejected and the connection is closed.
+ * </p>
+ */
+public final class ControlChannelServer extends AbstractIdleService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ControlChannelServer.class);
+
+  private static final int SECRET_BYTES = 16;
+
+  private final MessageCallback callback;
+  private final InetAddress bindHost;
+  private final String secret;
+  private final ChannelGroup channelGroup;
+  private ServerBootstrap bootstrap;
+  private InetSocketAddress bindAddress;
+
+  /**
+   * Creates a server with a randomly generated secret.
+   *
+   * @param callback The {@link MessageCallback} for processing messages received.
+   * @param bindHost The address to listen on.
+   */
+  public ControlChannelServer(MessageCallback callback, InetAddress bindHost) {
+    this.callback = callback;
+    this.bindHost = bindHost;
+    this.secret = generateSecret();
+    this.channelGroup = new DefaultChannelGroup("control-channel-server");
+  }
+
+  /**
+   * Returns the secret that clients need to send with every request.
+   */
+  public String getSecret() {
+    return secret;
+  }
+
+  /**
+   * Returns the address that the server is bound to, or {@code null} if the server is not running.
+   */
+  public InetSocketAddress getBindAddress() {
+    return bindAddress;
+  }
+
+  @Override
+  protected void startUp() throws Exception {
+    ThreadFactory threadFactory = Threads.createDaemonThreadFactory("control-server-netty-%d");
+    bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newSingleThreadExecutor(threadFactory),
+                                                                      Executors.newFixedThreadPool(1, threadFactory)));
+    bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        return ControlFrames.createPipeline(new RequestHandler());
+      }
+    });
+    bootstrap.setOption("child.tcpNoDelay", true);
+    bootstrap.setOption("child.keepAlive", true);
+
+    Channel serverChannel = bootstrap.bind(new InetSocketAddress(bindHost, 0));
+    channelGroup.add(serverChannel);
+    bindAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+    LOG.info("Control channel server started at {}", bindAddress);
+  }
+
+  @Override
+  protected void shutDown() throws Exception {
+    bindAddress = null;
+    channelGroup.close().awaitUninterruptibly();
+    bootstrap.releaseExternalResources();
+    LOG.info("Control channel server stopped.");
+  }
+
+  /**
+   * Handles requests from a connected client.
+   */
+  private final class RequestHandler extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+      channelGroup.add(e.getChannel());
+      super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+      ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+      final Channel channel = e.getChannel();
+      byte type = buffer.readByte();
+      final int requestId = buffer.readInt();
+      if (type != ControlFrames.REQUEST) {
+        LOG.warn("Ignore unexpected frame type {} from {}", type, channel.getRemoteAddress());
+        return;
+      }
+      if (!MessageDigest.isEqual(secret.getBytes(Charsets.UTF_8), ControlFrames.readSecret(buffer))) {
+        LOG.warn("Reject request with invalid secret from {}", channel.getRemoteAddress());
+        channel.write(ControlFrames.encodeNack(requestId, new SecurityException("Invalid secret.")))
+               .addListener(ChannelFutureListener.CLOSE);
+        return;
+      }
+
+      Message message = MessageCodec.decode(ControlFrames.readPayload(buffer));
+      if (message == null || !isRunning()) {
+        String reason = message == null ? "Failed to decode message." : "Control channel server is not running.";
+        channel.write(ControlFrames.encodeNack(requestId, new IllegalStateException(reason)));
+        return;
+      }
+
+      ListenableFuture<String> processFuture;
+      try {
+        processFuture = callback.onReceived("control-" + requestId, message);
+      } catch (Exception ex) {
+        // Callback rejects the message by throwing exception.
+        channel.write(ControlFrames.encodeNack(requestId, ex));
+        return;
+      }
+
+      Futures.addCallback(processFuture, new FutureCallback<String>() {
+        @Override
+        public void onSuccess(String result) {
+          channel.write(ControlFrames.encode(ControlFrames.ACK, requestId, new byte[0]));
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          // Same as messages through ZK, the message is consumed even if the processing failed.
+          LOG.error("Failed to process message received from control channel: {}", requestId, t);
+          channel.write(ControlFrames.encode(ControlFrames.ACK, requestId, new byte[0]));
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+      LOG.warn("Exception in control channel from {}", e.getChannel().getRemoteAddress(), e.getCause());
+      e.getChannel().close();
+    }
+  }
+
+  private static String generateSecret() {
+    byte[] bytes = new byte[SECRET_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(String.format("%02x", b & 0xff));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.control;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+
+/**
+ * Helper methods for the wire format of the control channel. Each frame is length prefixed, followed by
+ * a type byte, a request id and the payload. A request carries the shared secret of the server followed by
+ * an encoded message, while a response carries either nothing on success or the error message on failure.
+ */
+final class ControlFrames {
+
+  static final byte REQUEST = 1;
+  static final byte ACK = 2;
+  static final byte NACK = 3;
+
+  private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Creates a {@link ChannelPipeline} with framing handlers, followed by the given handler.
+   */
+  static ChannelPipeline createPipeline(ChannelHandler handler) {
+    ChannelPipeline pipeline = Channels.pipeline();
+    pipeline.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_SIZE, 0, 4, 0, 4));
+    pipeline.addLast("frameEncoder", new LengthFieldPrepender(4));
+    pipeline.addLast("handler", handler);
+    return pipeline;
+  }
+
+  static ChannelBuffer encode(byte type, int requestId, byte[] payload) {
+    ChannelBuffer buffer = ChannelBuffers.buffer(5 + payload.length);
+    buffer.writeByte(type);
+    buffer.writeInt(requestId);
+    buffer.writeBytes(payload);
+    return buffer;
+  }
+
+  static ChannelBuffer encodeRequest(int requestId, String secret, byte[] message) {
+    byte[] secretBytes = secret.getBytes(Charsets.UTF_8);
+    ChannelBuffer buffer = ChannelBuffers.buffer(7 + secretBytes.length + message.length);
+    buffer.writeByte(REQUEST);
+    buffer.writeInt(requestId);
+    buffer.writeShort(secretBytes.length);
+    buffer.writeBytes(secretBytes);
+    buffer.writeBytes(message);
+    return buffer;
+  }
+
+  /**
+   * Reads the secret of a request frame, after the type and request id have been read.
+   */
+  static byte[] readSecret(ChannelBuffer buffer) {
+    byte[] secret = new byte[buffer.readUnsignedShort()];
+    buffer.readBytes(secret);
+    return secret;
+  }
+
+  static ChannelBuffer encodeNack(int requestId, Throwable cause) {
+    String error = cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage();
+    return encode(NACK, requestId, error.getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * Reads the payload of a frame, after the type and request id have been read.
+   */
+  static byte[] readPayload(ChannelBuffer buffer) {
+    byte[] payload = new byte[buffer.readableBytes()];
+    buffer.readBytes(payload);
+    return payload;
+  }
+
+  private ControlFrames() {
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.control;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message sent through the control channel is known to be not processed by the server, either
+ * because it never reached the server or because the server rejected it. It is safe to send such message
+ * through another channel.
+ */
+public final class MessageNotDeliveredException extends IOException {
+
+  public MessageNotDeliveredException(String message) {
+    super(message);
+  }
+
+  public MessageNotDeliveredException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -17,6 +17,7 @@ package com.continuuity.weave.internal.json;
 
 import com.continuuity.weave.api.ResourceSpecification;
 import com.continuuity.weave.internal.DefaultResourceSpecification;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
@@ -24,8 +25,10 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.Type;
+import java.util.Set;
 
 /**
  *
@@ -33,6 +36,8 @@ import java.lang.reflect.Type;
 final class ResourceSpecificationCodec implements JsonSerializer<ResourceSpecification>,
                                                   JsonDeserializer<ResourceSpecification> {
 
+  private static final Type STRING_SET_TYPE = new TypeToken<Set<String>>() {}.getType();
+
   @Override
   public JsonElement serialize(ResourceSpecification src, Type typeOfSrc, JsonSerializationContext context) {
     JsonObject json = new JsonObject();
@@ -42,6 +47,16 @@ final class ResourceSpecificationCodec implements JsonSerializer<ResourceSpecifi
     json.addProperty("instances", src.getInstances());
     json.addProperty("uplink", src.getUplink());
     json.addProperty("downlink", src.getDownlink());
+    json.add("hosts", context.serialize(src.getHosts(), STRING_SET_TYPE));
+    json.add("racks", context.serialize(src.getRacks(), STRING_SET_TYPE));
+    json.add("dataPaths", context.serialize(src.getDataPaths(), STRING_SET_TYPE));
+    json.addProperty("spread", src.isSpread());
+    json.addProperty("relaxLocality", src.isRelaxLocality());
+    json.addProperty("warmPoolSize", src.getWarmPoolSize());
+    json.addProperty("warmPoolIdleSeconds", src.getWarmPoolIdleSeconds());
+    json.addProperty("restartPolicy", src.getRestartPolicy().name());
+    json.addProperty("maxRestarts", src.getMaxRestarts());
+    json.addProperty("restartWindowSeconds", src.getRestartWindowSeconds());
 
     return json;
   }
@@ -50,10 +65,43 @@ final class ResourceSpecificationCodec implements JsonSerializer<ResourceSpecifi
   public ResourceSpecification deserialize(JsonElement json, Type typeOfT,
                                            JsonDeserializationContext context) throws JsonParseException {
     JsonObject jsonObj = json.getAsJsonObject();
+    // Placement, warm pool and restart fields are optional for specifications written without them.
     return new DefaultResourceSpecification(jsonObj.get("cores").getAsInt(),
                                             jsonObj.get("memorySize").getAsInt(),
                                             jsonObj.get("instances").getAsInt(),
                                             jsonObj.get("uplink").getAsInt(),
-                                            jsonObj.get("downlink").getAsInt());
+                                            jsonObj.get("downlink").getAsInt(),
+                                            decodeSet(jsonObj, "hosts", context),
+                                            decodeSet(jsonObj, "racks", context),
+                                            decodeSet(jsonObj, "dataPaths", context),
+                                            decodeBoolean(jsonObj, "spread", false),
+                                            decodeBoolean(jsonObj, "relaxLocality", true),
+                                            decodeInt(jsonObj, "warmPoolSize", 0),
+                                            decodeInt(jsonObj, "warmPoolIdleSeconds", 0),
+                                            decodeRestartPolicy(jsonObj),
+                                            decodeInt(jsonObj, "maxRestarts", 0),
+                                            decodeInt(jsonObj, "restartWindowSeconds", 0));
+  }
+
+  private ResourceSpecification.RestartPolicy decodeRestartPolicy(JsonObject jsonObj) {
+    if (!jsonObj.has("restartPolicy")) {
+      return ResourceSpecification.RestartPolicy.NEVER;
+    }
+    return ResourceSpecification.RestartPolicy.valueOf(jsonObj.get("restartPolicy").getAsString());
+  }
+
+  private int decodeInt(JsonObject jsonObj, String name, int defaultValue) {
+    return jsonObj.has(name) ? jsonObj.get(name).getAsInt() : defaultValue;
+  }
+
+  private boolean decodeBoolean(JsonObject jsonObj, String name, boolean defaultValue) {
+    return jsonObj.has(name) ? jsonObj.get(name).getAsBoolean() : defaultValue;
+  }
+
+  private Set<String> decodeSet(JsonObject jsonObj, String name, JsonDeserializationContext context) {
+    if (!jsonObj.has(name)) {
+      return ImmutableSet.of();
+    }
+    return context.deserialize(jsonObj.get(name), STRING_SET_TYPE);
   }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper methods shared by the binary codecs of ZooKeeper payloads.
+ *
+ * <p>
+ * Every binary payload starts with a {@link #MAGIC} byte followed by a format version byte. The magic byte is
+ * never a valid first byte of an UTF-8 encoded JSON document, hence decoders can tell binary payloads apart from
+ * the JSON payloads written by older versions and fallback to JSON decoding. It only works in that direction,
+ * readers of older versions cannot decode binary payloads, hence all parties sharing the same ZooKeeper
+ * namespace have to be upgraded together.
+ * </p>
+ */
+final class BinaryCodecs {
+
+  static final byte MAGIC = (byte) 0xCE;
+  static final byte VERSION = 1;
+
+  /**
+   * Tells if the given payload is encoded with the binary format.
+   */
+  static boolean isBinary(byte[] bytes) {
+    return bytes != null && bytes.length >= 2 && bytes[0] == MAGIC;
+  }
+
+  /**
+   * Creates a {@link DataInputStream} for reading the body of a binary payload, after validating the header.
+   * @throws IOException if the payload version is not supported.
+   */
+  static DataInputStream newInput(byte[] bytes) throws IOException {
+    if (bytes[1] > VERSION) {
+      throw new IOException("Unsupported payload version " + bytes[1]);
+    }
+    return new DataInputStream(new ByteArrayInputStream(bytes, 2, bytes.length - 2));
+  }
+
+  /**
+   * Writes the payload header to the given output.
+   */
+  static void writeHeader(DataOutput output) throws IOException {
+    output.writeByte(MAGIC);
+    output.writeByte(VERSION);
+  }
+
+  /**
+   * Writes a non-negative int using variable length encoding.
+   */
+  static void writeVarInt(DataOutput output, int value) throws IOException {
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      output.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    output.writeByte(v);
+  }
+
+  static int readVarInt(DataInput input) throws IOException {
+    int result = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 28) {
+        throw new IOException("Malformed variable length int.");
+      }
+      b = input.readUnsignedByte();
+      result |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return result;
+  }
+
+  /**
+   * Writes a string that could be {@code null}. Unlike {@link DataOutput#writeUTF(String)}, there is no limit
+   * on the string length.
+   */
+  static void writeString(DataOutput output, String str) throws IOException {
+    if (str == null) {
+      writeVarInt(output, 0);
+      return;
+    }
+    byte[] bytes = str.getBytes(Charsets.UTF_8);
+    writeVarInt(output, bytes.length + 1);
+    output.write(bytes);
+  }
+
+  static String readString(DataInput input) throws IOException {
+    int len = readVarInt(input);
+    if (len == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[len - 1];
+    input.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  /**
+   * Writes a string that is likely to be repeated within the same payload. The first occurrence is written in
+   * full and appended to the string table, while later occurrences are written as index to the table.
+   */
+  static void writeStringRef(DataOutput output, String str, Map<String, Integer> table) throws IOException {
+    if (str == null) {
+      writeVarInt(output, 0);
+      return;
+    }
+    Integer idx = table.get(str);
+    if (idx != null) {
+      writeVarInt(output, idx + 2);
+      return;
+    }
+    table.put(str, table.size());
+    writeVarInt(output, 1);
+    writeString(output, str);
+  }
+
+  static String readStringRef(DataInput input, List<String> table) throws IOException {
+    int ref = readVarInt(input);
+    if (ref == 0) {
+      return null;
+    }
+    if (ref == 1) {
+      String str = readString(input);
+      table.add(str);
+      return str;
+    }
+    if (ref - 2 >= table.size()) {
+      throw new IOException("Invalid string reference " + ref);
+    }
+    return table.get(ref - 2);
+  }
+
+  static void writeStringMap(DataOutput output, Map<String, String> map) throws IOException {
+    writeVarInt(output, map.size());
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      writeString(output, entry.getKey());
+      writeString(output, entry.getValue());
+    }
+  }
+
+  static Map<String, String> readStringMap(DataInput input) throws IOException {
+    int size = readVarInt(input);
+    Map<String, String> map = Maps.newLinkedHashMap();
+    for (int i = 0; i < size; i++) {
+      map.put(readString(input), readString(input));
+    }
+    return map;
+  }
+
+  /**
+   * A {@link ByteArrayOutputStream} with a {@link DataOutputStream} on top of it, with the payload header written.
+   */
+  static final class Output extends DataOutputStream {
+
+    private final ByteArrayOutputStream bytes;
+
+    static Output create() throws IOException {
+      Output output = new Output(new ByteArrayOutputStream(128));
+      writeHeader(output);
+      return output;
+    }
+
+    private Output(ByteArrayOutputStream bytes) {
+      super(bytes);
+      this.bytes = bytes;
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+  }
+
+  private BinaryCodecs() {
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codec for encoding and decoding the data of the ephemeral live node. The live node data is a free form
+ * {@link JsonElement} tree, which is encoded in binary with object keys stored in a string table.
+ */
+public final class LiveNodeCodec {
+
+  private static final int TAG_NULL = 0;
+  private static final int TAG_TRUE = 1;
+  private static final int TAG_FALSE = 2;
+  private static final int TAG_NUMBER = 3;
+  private static final int TAG_STRING = 4;
+  private static final int TAG_ARRAY = 5;
+  private static final int TAG_OBJECT = 6;
+
+  /**
+   * Decodes the live node data. Both the binary format and the JSON format written by older versions are supported.
+   * @param bytes byte array to be decoded
+   * @return The decoded {@link JsonElement} or {@code null} if fails to decode.
+   */
+  public static JsonElement decode(byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    if (BinaryCodecs.isBinary(bytes)) {
+      try {
+        return read(BinaryCodecs.newInput(bytes), Lists.<String>newArrayList());
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    try {
+      return new JsonParser().parse(new String(bytes, Charsets.UTF_8));
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Encodes the live node data into byte array. Reverse of {@link #decode(byte[])} method.
+   * @param element The live node data
+   * @return byte array representing the encoded data.
+   */
+  public static byte[] encode(JsonElement element) {
+    try {
+      BinaryCodecs.Output output = BinaryCodecs.Output.create();
+      write(output, element, Maps.<String, Integer>newHashMap());
+      output.close();
+      return output.toByteArray();
+    } catch (IOException e) {
+      // Never happen as it is writing to memory.
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static void write(DataOutput output, JsonElement element,
+                            Map<String, Integer> stringTable) throws IOException {
+    if (element == null || element.isJsonNull()) {
+      output.writeByte(TAG_NULL);
+    } else if (element.isJsonPrimitive()) {
+      JsonPrimitive primitive = element.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        output.writeByte(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+      } else if (primitive.isNumber()) {
+        output.writeByte(TAG_NUMBER);
+        BinaryCodecs.writeString(output, primitive.getAsString());
+      } else {
+        output.writeByte(TAG_STRING);
+        BinaryCodecs.writeString(output, primitive.getAsString());
+      }
+    } else if (element.isJsonArray()) {
+      JsonArray array = element.getAsJsonArray();
+      output.writeByte(TAG_ARRAY);
+      BinaryCodecs.writeVarInt(output, array.size());
+      for (JsonElement child : array) {
+        write(output, child, stringTable);
+      }
+    } else {
+      JsonObject object = element.getAsJsonObject();
+      output.writeByte(TAG_OBJECT);
+      BinaryCodecs.writeVarInt(output, object.entrySet().size());
+      for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+        BinaryCodecs.writeStringRef(output, entry.getKey(), stringTable);
+        write(output, entry.getValue(), stringTable);
+      }
+    }
+  }
+
+  private static JsonElement read(DataInput input, List<String> stringTable) throws IOException {
+    int tag = input.readUnsignedByte();
+    switch (tag) {
+      case TAG_NULL:
+        return JsonNull.INSTANCE;
+      case TAG_TRUE:
+        return new JsonPrimitive(true);
+      case TAG_FALSE:
+        return new JsonPrimitive(false);
+      case TAG_NUMBER:
+        try {
+          return new JsonPrimitive(new BigDecimal(BinaryCodecs.readString(input)));
+        } catch (NumberFormatException e) {
+          throw new IOException(e);
+        }
+      case TAG_STRING:
+        return new JsonPrimitive(BinaryCodecs.readString(input));
+      case TAG_ARRAY: {
+        int size = BinaryCodecs.readVarInt(input);
+        JsonArray array = new JsonArray();
+        for (int i = 0; i < size; i++) {
+          array.add(read(input, stringTable));
+        }
+        return array;
+      }
+      case TAG_OBJECT: {
+        int size = BinaryCodecs.readVarInt(input);
+        JsonObject object = new JsonObject();
+        for (int i = 0; i < size; i++) {
+          String key = BinaryCodecs.readStringRef(input, stringTable);
+          object.add(key, read(input, stringTable));
+        }
+        return object;
+      }
+      default:
+        throw new IOException("Unknown element tag " + tag);
+    }
+  }
+
+  private LiveNodeCodec() {
+  }
+}
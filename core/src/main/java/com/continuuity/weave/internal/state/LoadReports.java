@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.LoadReport;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+
+/**
+ * Factory methods for creating {@link LoadReport} and converting them to and from the compact JSON carried
+ * by live nodes.
+ */
+public final class LoadReports {
+
+  /**
+   * Collects a {@link LoadReport} of the current JVM.
+   * @param pendingMessages Number of messages pending to be processed.
+   */
+  public static LoadReport collect(int pendingMessages) {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    double loadAverage = os.getSystemLoadAverage();
+    double cpuLoad = loadAverage < 0 ? -1d : loadAverage / os.getAvailableProcessors();
+
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long gcTime = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      // Collection time is -1 if not supported by the collector.
+      gcTime += Math.max(0L, gc.getCollectionTime());
+    }
+    return new SimpleLoadReport(System.currentTimeMillis(), 1, cpuLoad, heap.getUsed(), heap.getMax(), gcTime,
+                                ManagementFactory.getThreadMXBean().getThreadCount(), pendingMessages);
+  }
+
+  /**
+   * Aggregates the given reports into one.
+   * @return The aggregated report or {@code null} if there is no report to aggregate.
+   */
+  public static LoadReport aggregate(Iterable<? extends LoadReport> reports) {
+    long timestamp = Long.MAX_VALUE;
+    int instances = 0;
+    double cpuLoadSum = 0;
+    int cpuLoadCount = 0;
+    long heapUsed = 0;
+    long heapMax = 0;
+    long gcTime = 0;
+    int threadCount = 0;
+    int pendingMessages = 0;
+
+    for (LoadReport report : reports) {
+      timestamp = Math.min(timestamp, report.getTimestamp());
+      instances += report.getInstances();
+      if (report.getCpuLoad() >= 0) {
+        cpuLoadSum += report.getCpuLoad() * report.getInstances();
+        cpuLoadCount += report.getInstances();
+      }
+      heapUsed += report.getHeapUsed();
+      heapMax += report.getHeapMax();
+      gcTime += report.getGcTimeMillis();
+      threadCount += report.getThreadCount();
+      pendingMessages += report.getPendingMessages();
+    }
+    if (instances == 0) {
+      return null;
+    }
+    return new SimpleLoadReport(timestamp, instances, cpuLoadCount == 0 ? -1d : cpuLoadSum / cpuLoadCount,
+                                heapUsed, heapMax, gcTime, threadCount, pendingMessages);
+  }
+
+  public static JsonElement toJson(LoadReport report) {
+    JsonObject json = new JsonObject();
+    json.addProperty("ts", report.getTimestamp());
+    json.addProperty("n", report.getInstances());
+    json.addProperty("cpu", report.getCpuLoad());
+    json.addProperty("heap", report.getHeapUsed());
+    json.addProperty("heapMax", report.getHeapMax());
+    json.addProperty("gc", report.getGcTimeMillis());
+    json.addProperty("threads", report.getThreadCount());
+    json.addProperty("pending", report.getPendingMessages());
+    return json;
+  }
+
+  /**
+   * Converts a JSON created by {@link #toJson(LoadReport)} back to {@link LoadReport}.
+   * @return The report or {@code null} if the given JSON is not a valid report.
+   */
+  public static LoadReport fromJson(JsonElement json) {
+    if (json == null || !json.isJsonObject()) {
+      return null;
+    }
+    JsonObject obj = json.getAsJsonObject();
+    try {
+      return new SimpleLoadReport(obj.get("ts").getAsLong(), obj.get("n").getAsInt(), obj.get("cpu").getAsDouble(),
+                                  obj.get("heap").getAsLong(), obj.get("heapMax").getAsLong(),
+                                  obj.get("gc").getAsLong(), obj.get("threads").getAsInt(),
+                                  obj.get("pending").getAsInt());
+    } catch (RuntimeException e) {
+      // Missing or malformed field.
+      return null;
+    }
+  }
+
+  public static JsonElement toJson(Map<String, LoadReport> reports) {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, LoadReport> entry : reports.entrySet()) {
+      json.add(entry.getKey(), toJson(entry.getValue()));
+    }
+    return json;
+  }
+
+  /**
+   * Converts a JSON created by {@link #toJson(Map)} back to a map of {@link LoadReport}. Invalid entries are skipped.
+   */
+  public static Map<String, LoadReport> mapFromJson(JsonElement json) {
+    if (json == null || !json.isJsonObject()) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<String, LoadReport> builder = ImmutableMap.builder();
+    for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+      LoadReport report = fromJson(entry.getValue());
+      if (report != null) {
+        builder.put(entry.getKey(), report);
+      }
+    }
+    return builder.build();
+  }
+
+  private LoadReports() {
+  }
+}
@@ -17,6 +17,7 @@ package com.continuuity.weave.internal.state;
 
 import com.continuuity.weave.api.Command;
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -28,6 +29,8 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.Map;
 
@@ -48,16 +51,36 @@ public final class MessageCodec {
   };
 
   /**
-   * Decodes a {@link Message} from the given byte array.
+   * Decodes a {@link Message} from the given byte array. Both the binary format and the JSON format written by
+   * older versions are supported.
    * @param bytes byte array to be decoded
    * @return Message decoded or {@code null} if fails to decode.
    */
   public static Message decode(byte[] bytes) {
+    MessageEnvelope envelope = decodeEnvelope(bytes);
+    return envelope == null ? null : envelope.getMessage();
+  }
+
+  /**
+   * Decodes a {@link MessageEnvelope} from the given byte array. Messages encoded without envelope are decoded
+   * as never expire and without idempotency key.
+   * @param bytes byte array to be decoded
+   * @return MessageEnvelope decoded or {@code null} if fails to decode.
+   */
+  public static MessageEnvelope decodeEnvelope(byte[] bytes) {
     if (bytes == null) {
       return null;
     }
+    if (BinaryCodecs.isBinary(bytes)) {
+      try {
+        return decodeBinary(BinaryCodecs.newInput(bytes));
+      } catch (IOException e) {
+        return null;
+      }
+    }
     String content = new String(bytes, Charsets.UTF_8);
-    return GSON.get().fromJson(content, Message.class);
+    Message message = GSON.get().fromJson(content, Message.class);
+    return message == null ? null : new MessageEnvelope(message, 0L, null);
   }
 
   /**
@@ -66,7 +89,54 @@ public final class MessageCodec {
    * @return byte array representing the encoded message.
    */
   public static byte[] encode(Message message) {
-    return GSON.get().toJson(message, Message.class).getBytes(Charsets.UTF_8);
+    return encode(new MessageEnvelope(message, 0L, null));
+  }
+
+  /**
+   * Encodes a {@link MessageEnvelope} into byte array. Revserse of {@link #decodeEnvelope(byte[])} method.
+   * @param envelope MessageEnvelope to be encoded
+   * @return byte array representing the encoded message.
+   */
+  public static byte[] encode(MessageEnvelope envelope) {
+    Message message = envelope.getMessage();
+    try {
+      BinaryCodecs.Output output = BinaryCodecs.Output.create();
+      // Enum ordinals are part of the binary format. New enum values should only be appended.
+      output.writeByte(message.getType().ordinal());
+      output.writeByte(message.getScope().ordinal());
+      BinaryCodecs.writeString(output, message.getRunnableName());
+      BinaryCodecs.writeString(output, message.getCommand().getCommand());
+      BinaryCodecs.writeStringMap(output, message.getCommand().getOptions());
+      // The envelope is written as trailer only when present. Older versions ignore the trailing bytes.
+      if (envelope.getTimeout() != 0L || envelope.getKey() != null) {
+        output.writeLong(envelope.getTimeout());
+        BinaryCodecs.writeString(output, envelope.getKey());
+      }
+      output.close();
+      return output.toByteArray();
+    } catch (IOException e) {
+      // Never happen as it is writing to memory.
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static MessageEnvelope decodeBinary(DataInputStream input) throws IOException {
+    try {
+      Message.Type type = Message.Type.values()[input.readUnsignedByte()];
+      Message.Scope scope = Message.Scope.values()[input.readUnsignedByte()];
+      String runnableName = BinaryCodecs.readString(input);
+      Command command = Command.Builder.of(BinaryCodecs.readString(input))
+                                       .addOptions(BinaryCodecs.readStringMap(input))
+                                       .build();
+      Message message = new SimpleMessage(type, scope, runnableName, command);
+      if (input.available() == 0) {
+        return new MessageEnvelope(message, 0L, null);
+      }
+      long timeout = input.readLong();
+      return new MessageEnvelope(message, timeout, BinaryCodecs.readString(input));
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Unknown enum value in message.", e);
+    }
   }
 
   /**
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Message} together with the delivery metadata carried by a message node.
+ */
+public final class MessageEnvelope {
+
+  private final Message message;
+  private final long timeout;
+  private final String key;
+
+  /**
+   * @param message The message.
+   * @param timeout Time in milliseconds, counted from the creation of the message node, after which the message
+   *                should be discarded, or {@code 0} if the message never expires. The creation time is set by
+   *                the ZooKeeper server, so the expiry is checked against the time of ZooKeeper rather than the
+   *                clock of the receiver.
+   * @param key Idempotency key of the message or {@code null} if there is none. Messages with the same key are
+   *            processed at most once by a receiver.
+   */
+  public MessageEnvelope(Message message, long timeout, @Nullable String key) {
+    this.message = message;
+    this.timeout = timeout;
+    this.key = key;
+  }
+
+  public Message getMessage() {
+    return message;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  @Nullable
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Tells if the message is expired at the given time.
+   * @param createTime Time in milliseconds when the message node was created, usually the ctime of the node.
+   * @param now Current time in milliseconds, from the same clock as the {@code createTime}.
+   */
+  public boolean isExpired(long createTime, long now) {
+    return timeout > 0 && createTime + timeout <= now;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(MessageEnvelope.class)
+      .add("message", message)
+      .add("timeout", timeout)
+      .add("key", key)
+      .toString();
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.LoadReport;
+import com.google.common.base.Objects;
+
+/**
+ *
+ */
+final class SimpleLoadReport implements LoadReport {
+
+  private final long timestamp;
+  private final int instances;
+  private final double cpuLoad;
+  private final long heapUsed;
+  private final long heapMax;
+  private final long gcTimeMillis;
+  private final int threadCount;
+  private final int pendingMessages;
+
+  SimpleLoadReport(long timestamp, int instances, double cpuLoad, long heapUsed, long heapMax,
+                   long gcTimeMillis, int threadCount, int pendingMessages) {
+    this.timestamp = timestamp;
+    this.instances = instances;
+    this.cpuLoad = cpuLoad;
+    this.heapUsed = heapUsed;
+    this.heapMax = heapMax;
+    this.gcTimeMillis = gcTimeMillis;
+    this.threadCount = threadCount;
+    this.pendingMessages = pendingMessages;
+  }
+
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public int getInstances() {
+    return instances;
+  }
+
+  @Override
+  public double getCpuLoad() {
+    return cpuLoad;
+  }
+
+  @Override
+  public long getHeapUsed() {
+    return heapUsed;
+  }
+
+  @Override
+  public long getHeapMax() {
+    return heapMax;
+  }
+
+  @Override
+  public long getGcTimeMillis() {
+    return gcTimeMillis;
+  }
+
+  @Override
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  @Override
+  public int getPendingMessages() {
+    return pendingMessages;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(LoadReport.class)
+      .add("timestamp", timestamp)
+      .add("instances", instances)
+      .add("cpuLoad", cpuLoad)
+      .add("heapUsed", heapUsed)
+      .add("heapMax", heapMax)
+      .add("gcTimeMillis", gcTimeMillis)
+      .add("threadCount", threadCount)
+      .add("pendingMessages", pendingMessages)
+      .toString();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.api.events.WeaveEvent;
+import com.google.common.base.Objects;
+
+/**
+ *
+ */
+final class SimpleWeaveEvent implements WeaveEvent {
+
+  private final Type type;
+  private final long timestamp;
+  private final String runnableName;
+  private final RunId runId;
+  private final String containerId;
+  private final int exitStatus;
+  private final int instanceCount;
+
+  SimpleWeaveEvent(Type type, long timestamp, String runnableName, RunId runId,
+                   String containerId, int exitStatus, int instanceCount) {
+    this.type = type;
+    this.timestamp = timestamp;
+    this.runnableName = runnableName;
+    this.runId = runId;
+    this.containerId = containerId;
+    this.exitStatus = exitStatus;
+    this.instanceCount = instanceCount;
+  }
+
+  @Override
+  public Type getType() {
+    return type;
+  }
+
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public String getRunnableName() {
+    return runnableName;
+  }
+
+  @Override
+  public RunId getRunId() {
+    return runId;
+  }
+
+  @Override
+  public String getContainerId() {
+    return containerId;
+  }
+
+  @Override
+  public int getExitStatus() {
+    return exitStatus;
+  }
+
+  @Override
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(WeaveEvent.class)
+      .add("type", type)
+      .add("timestamp", timestamp)
+      .add("runnable", runnableName)
+      .add("runId", runId == null ? null : runId.getId())
+      .add("containerId", containerId)
+      .add("exitStatus", exitStatus)
+      .add("instanceCount", instanceCount)
+      .toString();
+  }
+}
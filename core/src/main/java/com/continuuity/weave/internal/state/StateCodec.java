@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.ServiceController;
+import com.continuuity.weave.internal.json.StackTraceElementCodec;
+import com.continuuity.weave.internal.json.StateNodeCodec;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codec for encoding and decoding {@link StateNode} stored in ZooKeeper. Stack traces are encoded with a string
+ * table, so that class and file names repeated across frames are only stored once.
+ */
+public final class StateCodec {
+
+  private static final ThreadLocal<Gson> GSON = new ThreadLocal<Gson>() {
+    @Override
+    protected Gson initialValue() {
+      return new GsonBuilder()
+        .registerTypeAdapter(StateNode.class, new StateNodeCodec())
+        .registerTypeAdapter(StackTraceElement.class, new StackTraceElementCodec())
+        .create();
+    }
+  };
+
+  /**
+   * Decodes a {@link StateNode} from the given byte array. Both the binary format and the JSON format written by
+   * older versions are supported.
+   * @param bytes byte array to be decoded
+   * @return StateNode decoded or {@code null} if fails to decode.
+   */
+  public static StateNode decode(byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    if (BinaryCodecs.isBinary(bytes)) {
+      try {
+        return decodeBinary(BinaryCodecs.newInput(bytes));
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    try {
+      return GSON.get().fromJson(new String(bytes, Charsets.UTF_8), StateNode.class);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Encodes a {@link StateNode} into byte array. Reverse of {@link #decode(byte[])} method.
+   * @param stateNode StateNode to be encoded
+   * @return byte array representing the encoded state node.
+   */
+  public static byte[] encode(StateNode stateNode) {
+    try {
+      BinaryCodecs.Output output = BinaryCodecs.Output.create();
+      output.writeByte(stateNode.getState().ordinal());
+      BinaryCodecs.writeString(output, stateNode.getErrorMessage());
+
+      StackTraceElement[] stackTraces = stateNode.getStackTraces();
+      if (stackTraces == null) {
+        BinaryCodecs.writeVarInt(output, 0);
+      } else {
+        BinaryCodecs.writeVarInt(output, stackTraces.length + 1);
+        Map<String, Integer> stringTable = Maps.newHashMap();
+        for (StackTraceElement element : stackTraces) {
+          BinaryCodecs.writeStringRef(output, element.getClassName(), stringTable);
+          BinaryCodecs.writeStringRef(output, element.getMethodName(), stringTable);
+          BinaryCodecs.writeStringRef(output, element.getFileName(), stringTable);
+          // Line number could be negative (-1 for unknown, -2 for native method).
+          output.writeInt(element.getLineNumber());
+        }
+      }
+
+      // History is written as trailer, with timestamps delta encoded. Older versions ignore the trailing bytes.
+      List<StateNode.Transition> history = stateNode.getHistory();
+      if (!history.isEmpty()) {
+        BinaryCodecs.writeVarInt(output, history.size());
+        long lastTimestamp = history.get(0).getTimestamp();
+        output.writeLong(lastTimestamp);
+        for (StateNode.Transition transition : history) {
+          output.writeByte(transition.getState().ordinal());
+          long delta = Math.max(0L, transition.getTimestamp() - lastTimestamp);
+          BinaryCodecs.writeVarInt(output, (int) Math.min(delta, Integer.MAX_VALUE));
+          lastTimestamp = transition.getTimestamp();
+        }
+      }
+      output.close();
+      return output.toByteArray();
+    } catch (IOException e) {
+      // Never happen as it is writing to memory.
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static StateNode decodeBinary(DataInputStream input) throws IOException {
+    ServiceController.State[] states = ServiceController.State.values();
+    int stateOrdinal = input.readUnsignedByte();
+    if (stateOrdinal >= states.length) {
+      throw new IOException("Unknown state " + stateOrdinal);
+    }
+    String errorMessage = BinaryCodecs.readString(input);
+
+    StackTraceElement[] stackTraces = null;
+    int frames = BinaryCodecs.readVarInt(input);
+    if (frames > 0) {
+      stackTraces = new StackTraceElement[frames - 1];
+      List<String> stringTable = Lists.newArrayList();
+      for (int i = 0; i < stackTraces.length; i++) {
+        String className = BinaryCodecs.readStringRef(input, stringTable);
+        String methodName = BinaryCodecs.readStringRef(input, stringTable);
+        String fileName = BinaryCodecs.readStringRef(input, stringTable);
+        stackTraces[i] = new StackTraceElement(className, methodName, fileName, input.readInt());
+      }
+    }
+
+    List<StateNode.Transition> history = Lists.newArrayList();
+    if (input.available() > 0) {
+      int size = BinaryCodecs.readVarInt(input);
+      long timestamp = input.readLong();
+      for (int i = 0; i < size; i++) {
+        int ordinal = input.readUnsignedByte();
+        timestamp += BinaryCodecs.readVarInt(input);
+        if (ordinal < states.length) {
+          history.add(new StateNode.Transition(states[ordinal], timestamp));
+        }
+      }
+    }
+    return new StateNode(states[stateOrdinal], errorMessage, stackTraces, history);
+  }
+
+  private StateCodec() {
+  }
+}
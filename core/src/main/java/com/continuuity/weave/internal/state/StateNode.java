@@ -16,8 +16,11 @@
 package com.continuuity.weave.internal.state;
 
 import com.continuuity.weave.api.ServiceController;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Service;
 
+import java.util.List;
+
 /**
  *
  */
@@ -26,6 +29,7 @@ public final class StateNode {
   private final ServiceController.State state;
   private final String errorMessage;
   private final StackTraceElement[] stackTraces;
+  private final List<Transition> history;
 
   /**
    * Constructs a StateNode with the given state.
@@ -46,9 +50,26 @@ public final class StateNode {
    * This constructor should only be used by the StateNodeCodec.
    */
   public StateNode(ServiceController.State state, String errorMessage, StackTraceElement[] stackTraces) {
+    this(state, errorMessage, stackTraces, ImmutableList.<Transition>of());
+  }
+
+  /**
+   * Constructs a StateNode with the given state, error, stacktraces and state transition history.
+   * This constructor should only be used by the StateNodeCodec.
+   */
+  public StateNode(ServiceController.State state, String errorMessage,
+                   StackTraceElement[] stackTraces, List<Transition> history) {
     this.state = state;
     this.errorMessage = errorMessage;
     this.stackTraces = stackTraces;
+    this.history = ImmutableList.copyOf(history);
+  }
+
+  /**
+   * Returns a copy of this StateNode with the given state transition history.
+   */
+  public StateNode withHistory(List<Transition> history) {
+    return new StateNode(state, errorMessage, stackTraces, history);
   }
 
   public ServiceController.State getState() {
@@ -63,10 +84,21 @@ public final class StateNode {
     return stackTraces;
   }
 
+  /**
+   * Returns the recent state transitions, oldest first. It is for debugging purpose only.
+   */
+  public List<Transition> getHistory() {
+    return history;
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("state=").append(state);
 
+    if (!history.isEmpty()) {
+      builder.append(", history=").append(history);
+    }
+
     if (errorMessage != null) {
       builder.append("\n").append("error=").append(errorMessage);
     }
@@ -79,4 +111,29 @@ public final class StateNode {
     return builder.toString();
   }
 
+  /**
+   * A state transition happened at a given time.
+   */
+  public static final class Transition {
+    private final ServiceController.State state;
+    private final long timestamp;
+
+    public Transition(ServiceController.State state, long timestamp) {
+      this.state = state;
+      this.timestamp = timestamp;
+    }
+
+    public ServiceController.State getState() {
+      return state;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    @Override
+    public String toString() {
+      return state + "@" + timestamp;
+    }
+  }
 }
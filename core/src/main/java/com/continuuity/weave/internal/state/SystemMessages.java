@@ -39,6 +39,15 @@ public final class SystemMessages {
                              Command.Builder.of("instances").addOption("count", Integer.toString(instances)).build());
   }
 
+  /**
+   * Tells if the given message is a request for changing the number of instances of a runnable.
+   */
+  public static boolean isSetInstances(Message message) {
+    return message.getType() == Message.Type.SYSTEM && message.getScope() == Message.Scope.RUNNABLE
+      && "instances".equals(message.getCommand().getCommand())
+      && message.getCommand().getOptions().containsKey("count");
+  }
+
   private SystemMessages() {
   }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.api.events.WeaveEvent;
+import com.continuuity.weave.internal.RunIds;
+import com.google.common.base.Throwables;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Codec for encoding and decoding {@link WeaveEvent} stored in the ZooKeeper event log.
+ */
+public final class WeaveEventCodec {
+
+  /**
+   * Decodes a {@link WeaveEvent} from the given byte array.
+   * @param bytes byte array to be decoded
+   * @return The decoded event or {@code null} if fails to decode.
+   */
+  public static WeaveEvent decode(byte[] bytes) {
+    if (!BinaryCodecs.isBinary(bytes)) {
+      return null;
+    }
+    try {
+      DataInputStream input = BinaryCodecs.newInput(bytes);
+      WeaveEvent.Type[] types = WeaveEvent.Type.values();
+      int typeOrdinal = input.readUnsignedByte();
+      if (typeOrdinal >= types.length) {
+        // Event type from a newer version.
+        return null;
+      }
+      long timestamp = input.readLong();
+      String runnableName = BinaryCodecs.readString(input);
+      String runId = BinaryCodecs.readString(input);
+      String containerId = BinaryCodecs.readString(input);
+      int exitStatus = input.readInt();
+      int instanceCount = BinaryCodecs.readVarInt(input);
+      return new SimpleWeaveEvent(types[typeOrdinal], timestamp, runnableName,
+                                  runId == null ? null : RunIds.fromString(runId),
+                                  containerId, exitStatus, instanceCount);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Encodes a {@link WeaveEvent} into byte array. Reverse of {@link #decode(byte[])} method.
+   * @param event The event to be encoded
+   * @return byte array representing the encoded event.
+   */
+  public static byte[] encode(WeaveEvent event) {
+    try {
+      BinaryCodecs.Output output = BinaryCodecs.Output.create();
+      output.writeByte(event.getType().ordinal());
+      output.writeLong(event.getTimestamp());
+      BinaryCodecs.writeString(output, event.getRunnableName());
+      RunId runId = event.getRunId();
+      BinaryCodecs.writeString(output, runId == null ? null : runId.getId());
+      BinaryCodecs.writeString(output, event.getContainerId());
+      // Exit status could be negative.
+      output.writeInt(event.getExitStatus());
+      BinaryCodecs.writeVarInt(output, event.getInstanceCount());
+      output.close();
+      return output.toByteArray();
+    } catch (IOException e) {
+      // Never happen as it is writing to memory.
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private WeaveEventCodec() {
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.api.events.WeaveEvent;
+
+/**
+ * Factory methods for creating {@link WeaveEvent}.
+ */
+public final class WeaveEvents {
+
+  public static WeaveEvent containerAllocated(String runnableName, String containerId) {
+    return create(WeaveEvent.Type.CONTAINER_ALLOCATED, runnableName, null, containerId, 0, 0);
+  }
+
+  public static WeaveEvent containerLaunched(String runnableName, RunId runId, String containerId) {
+    return create(WeaveEvent.Type.CONTAINER_LAUNCHED, runnableName, runId, containerId, 0, 0);
+  }
+
+  public static WeaveEvent containerRunning(String runnableName, RunId runId, String containerId) {
+    return create(WeaveEvent.Type.CONTAINER_RUNNING, runnableName, runId, containerId, 0, 0);
+  }
+
+  public static WeaveEvent containerCompleted(String runnableName, RunId runId, String containerId, int exitStatus) {
+    return create(WeaveEvent.Type.CONTAINER_COMPLETED, runnableName, runId, containerId, exitStatus, 0);
+  }
+
+  public static WeaveEvent instancesChanged(String runnableName, int instanceCount) {
+    return create(WeaveEvent.Type.INSTANCES_CHANGED, runnableName, null, null, 0, instanceCount);
+  }
+
+  private static WeaveEvent create(WeaveEvent.Type type, String runnableName, RunId runId,
+                                   String containerId, int exitStatus, int instanceCount) {
+    return new SimpleWeaveEvent(type, System.currentTimeMillis(), runnableName,
+                                runId, containerId, exitStatus, instanceCount);
+  }
+
+  private WeaveEvents() {
+  }
+}
@@ -15,11 +15,15 @@
  */
 package com.continuuity.weave.internal.utils;
 
+import com.continuuity.weave.common.Threads;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -36,8 +40,11 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.util.Queue;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
 
 /**
  * Utility class to help find out class dependencies.
@@ -77,39 +84,93 @@ public final class Dependencies {
   public static void findClassDependencies(ClassLoader classLoader,
                                            ClassAcceptor acceptor,
                                            Iterable<String> classesToResolve) throws IOException {
+    findClassDependencies(classLoader, acceptor, classesToResolve, null, Threads.SAME_THREAD_EXECUTOR);
+  }
 
-    final Set<String> seenClasses = Sets.newHashSet(classesToResolve);
-    final Queue<String> classes = Lists.newLinkedList(classesToResolve);
+  /**
+   * Finds the class dependencies of the given class. Classes are traversed in breadth-first order, with bytecode
+   * of classes at the same depth read concurrently. The acceptor is always called from the calling thread.
+   * @param classLoader ClassLoader for finding class bytecode.
+   * @param acceptor Predicate to accept a found class and its bytecode.
+   * @param classesToResolve Classes for looking for dependencies.
+   * @param cache Cache of dependencies of classes, or {@code null} for no caching.
+   * @param executor Executor for reading class bytecode.
+   * @throws IOException Thrown where there is error when loading in class bytecode.
+   */
+  public static void findClassDependencies(ClassLoader classLoader,
+                                           ClassAcceptor acceptor,
+                                           Iterable<String> classesToResolve,
+                                           @Nullable final DependencyCache cache,
+                                           Executor executor) throws IOException {
+
+    Set<String> seenClasses = Sets.newHashSet(classesToResolve);
+    List<String> classes = ImmutableList.copyOf(classesToResolve);
 
-    // Breadth-first-search classes dependencies.
+    // Breadth-first-search classes dependencies, one depth at a time.
     while (!classes.isEmpty()) {
-      String className = classes.remove();
-      URL classUrl = getClassURL(className, classLoader);
-      if (classUrl == null) {
-        continue;
-      }
+      List<ListenableFuture<Set<String>>> visits = Lists.newArrayListWithCapacity(classes.size());
+      for (final String className : classes) {
+        final URL classUrl = getClassURL(className, classLoader);
+        if (classUrl == null) {
+          continue;
+        }
 
-      // Call the accept to see if it accept the current class.
-      if (!acceptor.accept(className, classUrl, getClassPathURL(className, classUrl))) {
-        continue;
-      }
+        // Call the accept to see if it accept the current class.
+        final URL classPathUrl = getClassPathURL(className, classUrl);
+        if (!acceptor.accept(className, classUrl, classPathUrl)) {
+          continue;
+        }
 
-      InputStream is = classUrl.openStream();
-      try {
-        // Visit the bytecode to lookup classes that the visiting class is depended on.
-        new ClassReader(ByteStreams.toByteArray(is)).accept(new DependencyClassVisitor(new DependencyAcceptor() {
+        ListenableFutureTask<Set<String>> visit = ListenableFutureTask.create(new Callable<Set<String>>() {
           @Override
-          public void accept(String className) {
-            // See if the class is accepted
-            if (seenClasses.add(className)) {
-              classes.add(className);
-            }
+          public Set<String> call() throws Exception {
+            return getDependencies(className, classUrl, classPathUrl, cache);
+          }
+        });
+        executor.execute(visit);
+        visits.add(visit);
+      }
+
+      List<String> nextClasses = Lists.newArrayList();
+      for (ListenableFuture<Set<String>> visit : visits) {
+        for (String dependency : Futures.get(visit, IOException.class)) {
+          if (seenClasses.add(dependency)) {
+            nextClasses.add(dependency);
           }
-        }), ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES);
-      } finally {
-        is.close();
+        }
       }
+      classes = nextClasses;
+    }
+  }
+
+  /**
+   * Returns the classes that the given class depends on, either from the cache or by visiting the bytecode.
+   */
+  private static Set<String> getDependencies(String className, URL classUrl, URL classPathUrl,
+                                             @Nullable DependencyCache cache) throws IOException {
+    Set<String> dependencies = cache == null ? null : cache.get(className, classUrl, classPathUrl);
+    if (dependencies != null) {
+      return dependencies;
+    }
+
+    final Set<String> result = Sets.newLinkedHashSet();
+    InputStream is = classUrl.openStream();
+    try {
+      // Visit the bytecode to lookup classes that the visiting class is depended on.
+      new ClassReader(ByteStreams.toByteArray(is)).accept(new DependencyClassVisitor(new DependencyAcceptor() {
+        @Override
+        public void accept(String className) {
+          result.add(className);
+        }
+      }), ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES);
+    } finally {
+      is.close();
+    }
+
+    if (cache != null) {
+      cache.put(className, classUrl, classPathUrl, result);
     }
+    return result;
   }
 
   /**
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.utils;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of class dependencies found by {@link Dependencies}, which can be saved to a local file and reused across
+ * runs. Dependencies of classes in a jar are keyed by the jar path and invalidated when the jar is modified, while
+ * dependencies of a class file in a directory are keyed by the class file. This class is thread safe.
+ */
+public final class DependencyCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DependencyCache.class);
+  private static final int VERSION = 1;
+
+  private final File file;
+  private final ConcurrentMap<String, Source> sources;
+  private volatile boolean modified;
+
+  /**
+   * Loads the cache from the given file. If the file does not exist or cannot be read, the cache starts empty.
+   */
+  public static DependencyCache load(File file) {
+    DependencyCache cache = new DependencyCache(file);
+    if (!file.isFile()) {
+      return cache;
+    }
+    try {
+      DataInputStream input = new DataInputStream(new GZIPInputStream(new BufferedInputStream(
+                                                                        new FileInputStream(file))));
+      try {
+        if (input.readInt() != VERSION) {
+          return cache;
+        }
+        int sourceCount = input.readInt();
+        for (int i = 0; i < sourceCount; i++) {
+          String path = input.readUTF();
+          Source source = new Source(input.readLong(), false);
+          int classCount = input.readInt();
+          for (int j = 0; j < classCount; j++) {
+            String className = input.readUTF();
+            ImmutableSet.Builder<String> dependencies = ImmutableSet.builder();
+            int dependencyCount = input.readInt();
+            for (int k = 0; k < dependencyCount; k++) {
+              dependencies.add(input.readUTF());
+            }
+            source.classes.put(className, dependencies.build());
+          }
+          cache.sources.put(path, source);
+        }
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to load dependency cache from {}. Starting with empty cache.", file, e);
+      cache.sources.clear();
+    }
+    return cache;
+  }
+
+  private DependencyCache(File file) {
+    this.file = file;
+    this.sources = Maps.newConcurrentMap();
+  }
+
+  /**
+   * Saves the cache to the file it is loaded from, if it is modified. Entries of jars or class files that no
+   * longer exist are removed.
+   */
+  public void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+    modified = false;
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      DataOutputStream output = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+                                                                            new FileOutputStream(tmpFile))));
+      try {
+        Map<String, Source> existing = Maps.newHashMap();
+        for (Map.Entry<String, Source> entry : sources.entrySet()) {
+          if (new File(entry.getKey()).lastModified() == entry.getValue().lastModified) {
+            existing.put(entry.getKey(), entry.getValue());
+          }
+        }
+
+        output.writeInt(VERSION);
+        output.writeInt(existing.size());
+        for (Map.Entry<String, Source> entry : existing.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeLong(entry.getValue().lastModified);
+          Map<String, Set<String>> classes = ImmutableMap.copyOf(entry.getValue().classes);
+          output.writeInt(classes.size());
+          for (Map.Entry<String, Set<String>> classEntry : classes.entrySet()) {
+            output.writeUTF(classEntry.getKey());
+            output.writeInt(classEntry.getValue().size());
+            for (String dependency : classEntry.getValue()) {
+              output.writeUTF(dependency);
+            }
+          }
+        }
+      } finally {
+        output.close();
+      }
+      if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+        throw new IOException("Failed to rename " + tmpFile + " to " + file);
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Returns the cached dependencies of the given class, or {@code null} if not cached or the cached entry
+   * is outdated.
+   */
+  Set<String> get(String className, URL classUrl, URL classPathUrl) {
+    String path = getSourcePath(classUrl, classPathUrl);
+    Source source = sources.get(path);
+    if (source == null) {
+      return null;
+    }
+    if (!source.validated) {
+      // Checks the modification time once per run of the source.
+      if (new File(path).lastModified() != source.lastModified) {
+        sources.remove(path, source);
+        return null;
+      }
+      source.validated = true;
+    }
+    return source.classes.get(className);
+  }
+
+  /**
+   * Caches the dependencies of the given class.
+   */
+  void put(String className, URL classUrl, URL classPathUrl, Set<String> dependencies) {
+    String path = getSourcePath(classUrl, classPathUrl);
+    long lastModified = new File(path).lastModified();
+    Source source = sources.get(path);
+    if (source == null || source.lastModified != lastModified) {
+      Source newSource = new Source(lastModified, true);
+      if (source == null) {
+        source = sources.putIfAbsent(path, newSource);
+      } else {
+        source = sources.replace(path, source, newSource) ? null : sources.get(path);
+      }
+      if (source == null) {
+        source = newSource;
+      }
+    }
+    source.classes.put(className, ImmutableSet.copyOf(dependencies));
+    modified = true;
+  }
+
+  /**
+   * Returns the path of the jar file if the class is in a jar, otherwise the path of the class file.
+   */
+  private String getSourcePath(URL classUrl, URL classPathUrl) {
+    URL url = "jar".equals(classUrl.getProtocol()) ? classPathUrl : classUrl;
+    try {
+      // Decodes escaped characters, such as spaces, so that the path refers to the actual file.
+      return new File(url.toURI()).getPath();
+    } catch (URISyntaxException e) {
+      // URL with characters that are not escaped.
+      return new File(url.getPath()).getPath();
+    }
+  }
+
+  /**
+   * Dependencies of classes in a jar or a class file.
+   */
+  private static final class Source {
+    private final long lastModified;
+    private final ConcurrentMap<String, Set<String>> classes;
+    private volatile boolean validated;
+
+    Source(long lastModified, boolean validated) {
+      this.lastModified = lastModified;
+      this.classes = Maps.newConcurrentMap();
+      this.validated = validated;
+    }
+  }
+}
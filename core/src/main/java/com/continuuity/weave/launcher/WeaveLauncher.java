@@ -15,7 +15,7 @@
  */
 package com.continuuity.weave.launcher;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,6 +29,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -44,7 +46,26 @@ import java.util.jar.JarInputStream;
  */
 public final class WeaveLauncher {
 
+  /**
+   * System property for the node local directory for caching expanded jars. If it is not set, the first
+   * directory in the {@code LOCAL_DIRS} environment is used, which is shared by containers of the same application.
+   */
+  public static final String CACHE_DIR_PROPERTY = "weave.launcher.cache.dir";
+
+  /**
+   * System property to tell whether to expand the whole jar. If it is {@code false}, classes and resources
+   * are loaded from the jar directly and only the library jars inside are expanded. Default is {@code true}.
+   */
+  public static final String EXPAND_PROPERTY = "weave.launcher.expand";
+
+  /**
+   * File name prefix of dependency jars that are localized separately from the jar into the working directory
+   * of runnable containers.
+   */
+  public static final String DEPENDENCY_JAR_PREFIX = "lib.";
+
   private static final int TEMP_DIR_ATTEMPTS = 20;
+  private static final int BUFFER_SIZE = 65536;
 
   /**
    * Main method to unpackage a jar and run the mainClass.main() method.
@@ -58,21 +79,27 @@ public final class WeaveLauncher {
     }
 
     File file = new File(args[0]);
-    final File targetDir = createTempDir("weave.launcher");
-
-    Runtime.getRuntime().addShutdownHook(new Thread() {
-      @Override
-      public void run() {
-        System.out.println("Cleanup directory " + targetDir);
-        deleteDir(targetDir);
-      }
-    });
+    boolean expandAll = Boolean.parseBoolean(System.getProperty(EXPAND_PROPERTY, "true"));
+    File cacheDir = getCacheDir();
 
-    System.out.println("UnJar " + file + " to " + targetDir);
-    unJar(file, targetDir);
+    final File targetDir;
+    if (cacheDir == null) {
+      targetDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), "weave.launcher");
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          System.out.println("Cleanup directory " + targetDir);
+          deleteDir(targetDir);
+        }
+      });
+      System.out.println("UnJar " + file + " to " + targetDir);
+      unJar(file, targetDir, expandAll);
+    } else {
+      targetDir = unJarCached(file, cacheDir, expandAll);
+    }
 
     // Create ClassLoader
-    URLClassLoader classLoader = createClassLoader(targetDir, Boolean.parseBoolean(args[2]));
+    URLClassLoader classLoader = createClassLoader(targetDir, expandAll ? null : file, Boolean.parseBoolean(args[2]));
     Thread.currentThread().setContextClassLoader(classLoader);
 
     System.out.println("Launch class with classpath: " + Arrays.toString(classLoader.getURLs()));
@@ -87,11 +114,85 @@ public final class WeaveLauncher {
     System.out.println("Launcher completed");
   }
 
+  /**
+   * Returns the directory for caching expanded jars, or {@code null} if there is none.
+   */
+  private static File getCacheDir() {
+    String dir = System.getProperty(CACHE_DIR_PROPERTY);
+    if (dir == null) {
+      String localDirs = System.getenv("LOCAL_DIRS");
+      if (localDirs == null || localDirs.isEmpty()) {
+        return null;
+      }
+      dir = localDirs.split(",")[0];
+    }
+    return new File(dir, "weave.launcher");
+  }
+
+  /**
+   * Expands the jar into a cache directory keyed by the content hash of the jar, unless it is already expanded
+   * by another container. Expansion is done in a temp directory and then renamed, so that a partially expanded
+   * directory is never used.
+   */
+  static File unJarCached(File jarFile, File cacheDir, boolean expandAll) throws IOException {
+    File targetDir = new File(cacheDir, hash(jarFile) + (expandAll ? "" : ".lib"));
+    if (targetDir.isDirectory()) {
+      System.out.println("Use cached " + targetDir + " for " + jarFile);
+      return targetDir;
+    }
+
+    cacheDir.mkdirs();
+    File tempDir = createTempDir(cacheDir, targetDir.getName());
+    System.out.println("UnJar " + jarFile + " to " + tempDir);
+    unJar(jarFile, tempDir, expandAll);
+    moveToCache(tempDir, targetDir);
+    System.out.println("Cached " + jarFile + " in " + targetDir);
+    return targetDir;
+  }
+
+  /**
+   * Renames the expanded directory to the cache directory. If it fails because another container has expanded
+   * the same jar concurrently, the expanded directory is deleted and the one of the other container is used.
+   */
+  static void moveToCache(File tempDir, File targetDir) throws IOException {
+    if (!tempDir.renameTo(targetDir)) {
+      deleteDir(tempDir);
+      if (!targetDir.isDirectory()) {
+        throw new IOException("Failed to rename " + tempDir + " to " + targetDir);
+      }
+    }
+  }
+
+  private static String hash(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int len = is.read(buf);
+      while (len != -1) {
+        digest.update(buf, 0, len);
+        len = is.read(buf);
+      }
+    } finally {
+      is.close();
+    }
+
+    StringBuilder builder = new StringBuilder();
+    for (byte b : digest.digest()) {
+      builder.append(String.format("%02x", b));
+    }
+    return builder.toString();
+  }
+
   /**
    * This method is copied from Guava Files.createTempDir().
    */
-  private static File createTempDir(String prefix) throws IOException {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+  private static File createTempDir(File baseDir, String prefix) throws IOException {
     String baseName = prefix + "-" + System.currentTimeMillis() + "-";
 
     for (int counter = 0; counter < TEMP_DIR_ATTEMPTS; counter++) {
@@ -105,11 +206,19 @@ public final class WeaveLauncher {
                             + baseName + "0 to " + baseName + (TEMP_DIR_ATTEMPTS - 1) + ')');
   }
 
-  private static void unJar(File jarFile, File targetDir) throws IOException {
-    JarInputStream jarInput = new JarInputStream(new FileInputStream(jarFile));
+  /**
+   * Expands the jar into the given directory.
+   * @param expandAll {@code true} to expand all entries, {@code false} to expand only the library jars.
+   */
+  private static void unJar(File jarFile, File targetDir, boolean expandAll) throws IOException {
+    JarInputStream jarInput = new JarInputStream(new BufferedInputStream(new FileInputStream(jarFile), BUFFER_SIZE));
     try {
       JarEntry jarEntry = jarInput.getNextJarEntry();
       while (jarEntry != null) {
+        if (!expandAll && !jarEntry.getName().startsWith("lib/")) {
+          jarEntry = jarInput.getNextJarEntry();
+          continue;
+        }
         File target = new File(targetDir, jarEntry.getName());
         if (jarEntry.isDirectory()) {
           target.mkdirs();
@@ -125,8 +234,8 @@ public final class WeaveLauncher {
   }
 
   private static void copy(InputStream is, File file) throws IOException {
-    byte[] buf = new byte[8192];
-    OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+    byte[] buf = new byte[BUFFER_SIZE];
+    OutputStream os = new FileOutputStream(file);
     try {
       int len = is.read(buf);
       while (len != -1) {
@@ -138,12 +247,23 @@ public final class WeaveLauncher {
     }
   }
 
-  private static URLClassLoader createClassLoader(File dir, boolean useClassPath) {
+  /**
+   * Creates the ClassLoader for the expanded jar.
+   * @param jarFile The jar for loading classes and resources directly, or {@code null} if the jar is fully expanded.
+   */
+  static URLClassLoader createClassLoader(File dir, File jarFile, boolean useClassPath) {
     try {
       List<URL> urls = new ArrayList<URL>();
-      urls.add(dir.toURI().toURL());
-      urls.add(new File(dir, "classes").toURI().toURL());
-      urls.add(new File(dir, "resources").toURI().toURL());
+      if (jarFile == null) {
+        urls.add(dir.toURI().toURL());
+        urls.add(new File(dir, "classes").toURI().toURL());
+        urls.add(new File(dir, "resources").toURI().toURL());
+      } else {
+        String jarURL = "jar:" + jarFile.toURI().toURL() + "!/";
+        urls.add(new URL(jarURL));
+        urls.add(new URL(jarURL + "classes/"));
+        urls.add(new URL(jarURL + "resources/"));
+      }
 
       File libDir = new File(dir, "lib");
       File[] files = libDir.listFiles();
@@ -155,6 +275,15 @@ public final class WeaveLauncher {
         }
       }
 
+      files = new File(System.getProperty("user.dir")).listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().startsWith(DEPENDENCY_JAR_PREFIX) && file.getName().endsWith(".jar")) {
+            urls.add(file.toURI().toURL());
+          }
+        }
+      }
+
       if (useClassPath) {
         InputStream is = ClassLoader.getSystemResourceAsStream("classpath");
         if (is != null) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.api.Command;
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.Messages;
+import com.continuuity.weave.internal.state.SystemMessages;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test ordering guarantees of {@link MessageDispatcher}.
+ */
+public class MessageDispatcherTest {
+
+  @Test
+  public void testOrdering() {
+    MessageDispatcher dispatcher = new MessageDispatcher(Threads.SAME_THREAD_EXECUTOR);
+    List<String> started = Collections.synchronizedList(Lists.<String>newArrayList());
+    Map<String, SettableFuture<Object>> completions = Maps.newHashMap();
+
+    // Submits in order: r1-a, r2-a, r1-b, all, r2-b
+    SettableFuture<MessageDispatcher.Task> fetchR1a = SettableFuture.create();
+    dispatcher.submit(fetchR1a);
+    for (String name : ImmutableList.of("r2-a", "r1-b", "all", "r2-b")) {
+      dispatcher.submit(Futures.immediateFuture(createTask(name, started, completions)));
+    }
+
+    // Nothing is dispatched until the first message is fetched.
+    Assert.assertTrue(started.isEmpty());
+    fetchR1a.set(createTask("r1-a", started, completions));
+    // Messages of different runnables run concurrently.
+    Assert.assertEquals(ImmutableList.of("r1-a", "r2-a"), started);
+
+    // r1-b waits for r1-a.
+    completions.get("r2-a").set(null);
+    Assert.assertEquals(ImmutableList.of("r1-a", "r2-a"), started);
+    completions.get("r1-a").set(null);
+    Assert.assertEquals(ImmutableList.of("r1-a", "r2-a", "r1-b"), started);
+
+    // Message for all runnables is a barrier.
+    completions.get("r1-b").set(null);
+    Assert.assertEquals(ImmutableList.of("r1-a", "r2-a", "r1-b", "all"), started);
+    completions.get("all").set(null);
+    Assert.assertEquals(ImmutableList.of("r1-a", "r2-a", "r1-b", "all", "r2-b"), started);
+  }
+
+  @Test
+  public void testInstanceChanges() {
+    MessageDispatcher dispatcher = new MessageDispatcher(Threads.SAME_THREAD_EXECUTOR);
+    List<String> started = Collections.synchronizedList(Lists.<String>newArrayList());
+    Map<String, SettableFuture<Object>> completions = Maps.newHashMap();
+
+    // Submits in order: r1-a, two instance changes of r1 back to back, r1-b
+    dispatcher.submit(Futures.immediateFuture(createTask("r1-a", started, completions)));
+    dispatcher.submit(Futures.immediateFuture(createTask("r1-3", SystemMessages.setInstances("r1", 3),
+                                                         started, completions)));
+    dispatcher.submit(Futures.immediateFuture(createTask("r1-5", SystemMessages.setInstances("r1", 5),
+                                                         started, completions)));
+    dispatcher.submit(Futures.immediateFuture(createTask("r1-b", started, completions)));
+
+    // Instance changes don't wait for earlier messages, hence the later change is processed while the earlier
+    // one is still in progress.
+    Assert.assertEquals(ImmutableList.of("r1-a", "r1-3", "r1-5"), started);
+
+    // Later message waits for all of them.
+    completions.get("r1-a").set(null);
+    completions.get("r1-5").set(null);
+    Assert.assertEquals(ImmutableList.of("r1-a", "r1-3", "r1-5"), started);
+    completions.get("r1-3").set(null);
+    Assert.assertEquals(ImmutableList.of("r1-a", "r1-3", "r1-5", "r1-b"), started);
+    completions.get("r1-b").set(null);
+    Assert.assertEquals(0, dispatcher.getPending());
+  }
+
+  private MessageDispatcher.Task createTask(String name, List<String> started,
+                                            Map<String, SettableFuture<Object>> completions) {
+    Message message = "all".equals(name)
+      ? Messages.createForAll(Command.Builder.of(name).build())
+      : Messages.createForRunnable(name.substring(0, name.indexOf('-')), Command.Builder.of(name).build());
+    return createTask(name, message, started, completions);
+  }
+
+  private MessageDispatcher.Task createTask(final String name, final Message message, final List<String> started,
+                                            final Map<String, SettableFuture<Object>> completions) {
+    final SettableFuture<Object> completion = SettableFuture.create();
+    completions.put(name, completion);
+
+    return new MessageDispatcher.Task() {
+      @Override
+      public Message getMessage() {
+        return message;
+      }
+
+      @Override
+      public ListenableFuture<?> process() {
+        started.add(name);
+        return completion;
+      }
+    };
+  }
+}
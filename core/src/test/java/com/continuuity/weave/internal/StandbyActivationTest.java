@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.zookeeper.KeeperException;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class StandbyActivationTest {
+
+  private static InMemoryZKServer zkServer;
+
+  @Test
+  public void testActivateOnce() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      String path = StandbyActivation.getPath(RunIds.generate(), "runnable", "container1");
+      ListenableFuture<StandbyActivation> activated = StandbyActivation.await(zkClient, path);
+      waitForNode(zkClient, path);
+
+      RunId runId = RunIds.generate();
+      StandbyActivation.activate(zkClient, path, new StandbyActivation(runId, 2, 3)).get(10, TimeUnit.SECONDS);
+
+      StandbyActivation activation = activated.get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(runId, activation.getRunId());
+      Assert.assertEquals(2, activation.getInstanceId());
+      Assert.assertEquals(3, activation.getInstanceCount());
+
+      // A standby container already activated cannot be activated again.
+      try {
+        StandbyActivation.activate(zkClient, path, new StandbyActivation(RunIds.generate(), 4, 5))
+          .get(10, TimeUnit.SECONDS);
+        Assert.fail("Expected the second activation to fail.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof KeeperException.BadVersionException);
+      }
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testActivateUnregistered() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      String path = StandbyActivation.getPath(RunIds.generate(), "runnable", "container1");
+      try {
+        StandbyActivation.activate(zkClient, path, new StandbyActivation(RunIds.generate(), 0, 1))
+          .get(10, TimeUnit.SECONDS);
+        Assert.fail("Expected activation of an unregistered standby container to fail.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof KeeperException.NoNodeException);
+      }
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testRemovedBeforeActivation() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      String path = StandbyActivation.getPath(RunIds.generate(), "runnable", "container1");
+      ListenableFuture<StandbyActivation> activated = StandbyActivation.await(zkClient, path);
+      waitForNode(zkClient, path);
+
+      zkClient.delete(path).get(10, TimeUnit.SECONDS);
+      try {
+        activated.get(10, TimeUnit.SECONDS);
+        Assert.fail("Expected the wait for activation to fail.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  private void waitForNode(ZKClientService zkClient, String path) throws Exception {
+    int count = 0;
+    while (zkClient.exists(path).get(10, TimeUnit.SECONDS) == null && count++ < 100) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+  }
+
+  @BeforeClass
+  public static void init() {
+    zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+  }
+
+  @AfterClass
+  public static void finish() {
+    zkServer.stopAndWait();
+  }
+}
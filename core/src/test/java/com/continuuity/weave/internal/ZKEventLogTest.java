@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.api.events.WeaveEvent;
+import com.continuuity.weave.api.events.WeaveEventHandler;
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.state.WeaveEvents;
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.google.common.collect.Lists;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ZKEventLogTest {
+
+  private static InMemoryZKServer zkServer;
+
+  @Test
+  public void testSubscribe() throws InterruptedException {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      ZKEventLog eventLog = new ZKEventLog(zkClient, RunIds.generate());
+      BlockingQueue<WeaveEvent> events = new LinkedBlockingQueue<WeaveEvent>();
+      Cancellable subscription = eventLog.subscribe(new QueueEventHandler(events), Threads.SAME_THREAD_EXECUTOR);
+
+      RunId runId = RunIds.generate();
+      eventLog.publish(WeaveEvents.containerLaunched("runnable", runId, "container1"));
+      eventLog.publish(WeaveEvents.containerRunning("runnable", runId, "container1"));
+
+      WeaveEvent event = events.poll(10, TimeUnit.SECONDS);
+      Assert.assertNotNull(event);
+      Assert.assertEquals(WeaveEvent.Type.CONTAINER_LAUNCHED, event.getType());
+      Assert.assertEquals("runnable", event.getRunnableName());
+      Assert.assertEquals(runId, event.getRunId());
+      Assert.assertEquals("container1", event.getContainerId());
+
+      event = events.poll(10, TimeUnit.SECONDS);
+      Assert.assertNotNull(event);
+      Assert.assertEquals(WeaveEvent.Type.CONTAINER_RUNNING, event.getType());
+
+      // No more event is delivered after cancel.
+      subscription.cancel();
+      eventLog.publish(WeaveEvents.containerCompleted("runnable", runId, "container1", 0));
+      Assert.assertNull(events.poll(2, TimeUnit.SECONDS));
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testOrdering() throws InterruptedException {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      ZKEventLog eventLog = new ZKEventLog(zkClient, RunIds.generate());
+      BlockingQueue<WeaveEvent> events = new LinkedBlockingQueue<WeaveEvent>();
+      eventLog.subscribe(new QueueEventHandler(events), Threads.SAME_THREAD_EXECUTOR);
+
+      // Publish without waiting, events should be appended and delivered in the publish order.
+      int count = 100;
+      for (int i = 0; i < count; i++) {
+        eventLog.publish(WeaveEvents.instancesChanged("runnable", i));
+      }
+      for (int i = 0; i < count; i++) {
+        WeaveEvent event = events.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(i, event.getInstanceCount());
+      }
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testRetention() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      RunId appRunId = RunIds.generate();
+      String eventsPath = "/" + appRunId.getId() + "/events";
+      int maxEvents = 10;
+
+      // Events left by an earlier publisher are removed as well.
+      ZKEventLog eventLog = new ZKEventLog(zkClient, appRunId, maxEvents * 10);
+      for (int i = 0; i < maxEvents * 2; i++) {
+        eventLog.publish(WeaveEvents.instancesChanged("runnable", i));
+      }
+      waitForEvents(zkClient, eventsPath, maxEvents * 2);
+
+      eventLog = new ZKEventLog(zkClient, appRunId, maxEvents);
+      for (int i = maxEvents * 2; i < maxEvents * 4; i++) {
+        eventLog.publish(WeaveEvents.instancesChanged("runnable", i));
+      }
+      waitForEvents(zkClient, eventsPath, maxEvents);
+
+      // Only the latest events are delivered to new subscriber.
+      BlockingQueue<WeaveEvent> events = new LinkedBlockingQueue<WeaveEvent>();
+      eventLog.subscribe(new QueueEventHandler(events), Threads.SAME_THREAD_EXECUTOR);
+      List<Integer> counts = Lists.newArrayList();
+      for (int i = 0; i < maxEvents; i++) {
+        WeaveEvent event = events.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+        counts.add(event.getInstanceCount());
+      }
+      List<Integer> expected = Lists.newArrayList();
+      for (int i = maxEvents * 3; i < maxEvents * 4; i++) {
+        expected.add(i);
+      }
+      Assert.assertEquals(expected, counts);
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  private void waitForEvents(ZKClientService zkClient, String eventsPath, int count) throws Exception {
+    int size = -1;
+    for (int i = 0; i < 100 && size != count; i++) {
+      if (i > 0) {
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+      if (zkClient.exists(eventsPath).get() != null) {
+        size = zkClient.getChildren(eventsPath).get().getChildren().size();
+      }
+    }
+    Assert.assertEquals(count, size);
+  }
+
+  private static final class QueueEventHandler implements WeaveEventHandler {
+
+    private final BlockingQueue<WeaveEvent> events;
+
+    QueueEventHandler(BlockingQueue<WeaveEvent> events) {
+      this.events = events;
+    }
+
+    @Override
+    public void onEvent(WeaveEvent event) {
+      events.add(event);
+    }
+  }
+
+  @BeforeClass
+  public static void init() {
+    zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+  }
+
+  @AfterClass
+  public static void finish() {
+    zkServer.stopAndWait();
+  }
+}
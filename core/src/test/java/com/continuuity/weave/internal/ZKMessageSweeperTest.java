@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.api.Command;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.MessageCodec;
+import com.continuuity.weave.internal.state.MessageEnvelope;
+import com.continuuity.weave.internal.state.Messages;
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ZKMessageSweeperTest {
+
+  private static InMemoryZKServer zkServer;
+  private static ScheduledExecutorService scheduler;
+
+  @Test
+  public void testSweepExpired() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      String appPath = "/" + RunIds.generate().getId();
+      String appMessages = appPath + "/messages";
+      String containerMessages = appPath + "/runnables/runnable/" + RunIds.generate().getId() + "/messages";
+
+      String expired1 = createMessage(zkClient, appMessages, "expired", 1L);
+      String expired2 = createMessage(zkClient, containerMessages, "expired", 1L);
+      String live1 = createMessage(zkClient, appMessages, "live", TimeUnit.MINUTES.toMillis(1));
+      String live2 = createMessage(zkClient, containerMessages, "live", TimeUnit.MINUTES.toMillis(1));
+      String never = createMessage(zkClient, containerMessages, "never", 0L);
+      TimeUnit.MILLISECONDS.sleep(10);
+
+      ZKMessageSweeper sweeper = new ZKMessageSweeper(zkClient,
+                                                      ImmutableList.of(appMessages, appPath + "/runnables/*/*/messages",
+                                                                       appPath + "/missing/*/messages"),
+                                                      scheduler, 1000L);
+      sweeper.sweep().get(5, TimeUnit.SECONDS);
+
+      Assert.assertNull(zkClient.exists(expired1).get());
+      Assert.assertNull(zkClient.exists(expired2).get());
+      Assert.assertNotNull(zkClient.exists(live1).get());
+      Assert.assertNotNull(zkClient.exists(live2).get());
+      Assert.assertNotNull(zkClient.exists(never).get());
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testSweepChunks() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      String messagesPath = "/" + RunIds.generate().getId() + "/messages";
+      String chunksPath = messagesPath + "-chunks";
+
+      // Chunks of an expired message are removed together with the message.
+      byte[] expiredData = storeLargeMessage(zkClient, chunksPath + "/expired", 1L);
+      String expired = zkClient.create(messagesPath + "/msg", expiredData, CreateMode.PERSISTENT_SEQUENTIAL).get();
+
+      // Chunks of a message that is not expired are kept.
+      byte[] liveData = storeLargeMessage(zkClient, chunksPath + "/live", TimeUnit.MINUTES.toMillis(1));
+      String live = zkClient.create(messagesPath + "/msg", liveData, CreateMode.PERSISTENT_SEQUENTIAL).get();
+
+      // Chunks that no message refers to.
+      storeLargeMessage(zkClient, chunksPath + "/orphan", 0L);
+      TimeUnit.MILLISECONDS.sleep(10);
+
+      ZKMessageSweeper sweeper = new ZKMessageSweeper(zkClient, ImmutableList.of(messagesPath), scheduler, 1000L);
+
+      // Orphaned chunks are kept in the first sweep, as the message node could be created after the chunks.
+      sweeper.sweep().get(5, TimeUnit.SECONDS);
+      Assert.assertNull(zkClient.exists(expired).get());
+      Assert.assertNotNull(zkClient.exists(live).get());
+      Assert.assertEquals(ImmutableSet.of("live", "orphan"), getChildren(zkClient, chunksPath));
+
+      sweeper.sweep().get(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(zkClient.exists(live).get());
+      Assert.assertEquals(ImmutableSet.of("live"), getChildren(zkClient, chunksPath));
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testScheduleAndCancel() throws Exception {
+    ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    try {
+      String messagesPath = "/" + RunIds.generate().getId() + "/messages";
+      ZKMessageSweeper sweeper = new ZKMessageSweeper(zkClient, ImmutableList.of(messagesPath), scheduler, 100L);
+      sweeper.schedule();
+
+      String expired = createMessage(zkClient, messagesPath, "expired", 1L);
+      int retries = 0;
+      while (zkClient.exists(expired).get() != null && retries++ < 50) {
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+      Assert.assertNull(zkClient.exists(expired).get());
+
+      // No more sweeping after cancel.
+      sweeper.cancel();
+      TimeUnit.MILLISECONDS.sleep(200);
+      expired = createMessage(zkClient, messagesPath, "expired", 1L);
+      TimeUnit.MILLISECONDS.sleep(500);
+      Assert.assertNotNull(zkClient.exists(expired).get());
+    } finally {
+      zkClient.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testClockSkew() {
+    MessageEnvelope envelope = createEnvelope("skew", 1000L);
+    long skew = TimeUnit.SECONDS.toMillis(Constants.MESSAGE_CLOCK_SKEW_SECONDS);
+    Stat message = createStat((1L << 32) + 1, 10000L);
+
+    // Times from the same leader are compared as they are.
+    Assert.assertFalse(ZKMessages.isExpired(envelope, message, createStat((1L << 32) + 2, 10999L)));
+    Assert.assertTrue(ZKMessages.isExpired(envelope, message, createStat((1L << 32) + 2, 11000L)));
+
+    // Clocks of different leaders are allowed to differ.
+    Assert.assertFalse(ZKMessages.isExpired(envelope, message, createStat(2L << 32, 10999L + skew)));
+    Assert.assertTrue(ZKMessages.isExpired(envelope, message, createStat(2L << 32, 11000L + skew)));
+  }
+
+  private Stat createStat(long zxid, long time) {
+    Stat stat = new Stat();
+    stat.setCzxid(zxid);
+    stat.setMzxid(zxid);
+    stat.setCtime(time);
+    stat.setMtime(time);
+    return stat;
+  }
+
+  private String createMessage(ZKClientService zkClient, String messagesPath,
+                               String command, long timeout) throws Exception {
+    return zkClient.create(messagesPath + "/msg", MessageCodec.encode(createEnvelope(command, timeout)),
+                           CreateMode.PERSISTENT_SEQUENTIAL).get();
+  }
+
+  private byte[] storeLargeMessage(ZKClientService zkClient, String chunkPath, long timeout) throws Exception {
+    return ZKOperations.storeLargeData(zkClient, chunkPath,
+                                       MessageCodec.encode(createEnvelope("large", timeout)), 10).get();
+  }
+
+  private MessageEnvelope createEnvelope(String command, long timeout) {
+    Message message = Messages.createForRunnable("runnable", Command.Builder.of(command).build());
+    return new MessageEnvelope(message, timeout, null);
+  }
+
+  private Set<String> getChildren(ZKClientService zkClient, String path) throws Exception {
+    return Sets.newHashSet(zkClient.getChildren(path).get().getChildren());
+  }
+
+  @BeforeClass
+  public static void init() {
+    zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @AfterClass
+  public static void finish() {
+    scheduler.shutdownNow();
+    zkServer.stopAndWait();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.control;
+
+import com.continuuity.weave.api.Command;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.MessageCallback;
+import com.continuuity.weave.internal.state.Messages;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Test for sending messages through {@link ControlChannelClient} and {@link ControlChannelServer}.
+ */
+public class ControlChannelTest {
+
+  @Test
+  public void testSend() throws Exception {
+    final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+    ControlChannelServer server = new ControlChannelServer(new MessageCallback() {
+      @Override
+      public ListenableFuture<String> onReceived(String messageId, Message message) {
+        if ("reject".equals(message.getCommand().getCommand())) {
+          throw new IllegalArgumentException("Rejected");
+        }
+        received.add(message);
+        return Futures.immediateFuture(messageId);
+      }
+    }, InetAddress.getByName("localhost"));
+    server.startAndWait();
+
+    ControlChannelClient client = new ControlChannelClient();
+    client.startAndWait();
+    try {
+      InetSocketAddress address = new InetSocketAddress("localhost", server.getBindAddress().getPort());
+
+      for (int i = 0; i < 10; i++) {
+        Message message = Messages.createForRunnable("runnable", Command.Builder.of("cmd" + i).build());
+        Assert.assertSame(message, client.send(address, server.getSecret(), message).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("cmd" + i, received.poll(5, TimeUnit.SECONDS).getCommand().getCommand());
+      }
+
+      // Rejected message should fail the future.
+      try {
+        client.send(address, server.getSecret(),
+                    Messages.createForRunnable("runnable", Command.Builder.of("reject").build()))
+              .get(5, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof MessageNotDeliveredException);
+      }
+
+      // Request with wrong secret is rejected.
+      try {
+        client.send(address, "wrong", Messages.createForRunnable("runnable", Command.Builder.of("cmd").build()))
+              .get(5, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof MessageNotDeliveredException);
+      }
+      Assert.assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+      // After the server stopped, sending should fail.
+      server.stopAndWait();
+      try {
+        client.send(address, server.getSecret(),
+                    Messages.createForRunnable("runnable", Command.Builder.of("cmd").build()))
+              .get(5, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof MessageNotDeliveredException);
+      }
+    } finally {
+      client.stopAndWait();
+      server.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testPendingRequests() throws Exception {
+    // Server that never completes processing.
+    final Semaphore received = new Semaphore(0);
+    ControlChannelServer server = new ControlChannelServer(new MessageCallback() {
+      @Override
+      public ListenableFuture<String> onReceived(String messageId, Message message) {
+        received.release();
+        return SettableFuture.create();
+      }
+    }, InetAddress.getByName("localhost"));
+    server.startAndWait();
+
+    ControlChannelClient client = new ControlChannelClient(200, TimeUnit.MILLISECONDS);
+    client.startAndWait();
+    try {
+      InetSocketAddress address = new InetSocketAddress("localhost", server.getBindAddress().getPort());
+      Message message = Messages.createForRunnable("runnable", Command.Builder.of("cmd").build());
+
+      // Request without response times out.
+      try {
+        client.send(address, server.getSecret(), message).get(5, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof TimeoutException);
+      }
+
+      // Pending request fails when the connection is closed. The message could have been processed.
+      ListenableFuture<Message> pending = client.send(address, server.getSecret(), message);
+      Assert.assertTrue(received.tryAcquire(2, 5, TimeUnit.SECONDS));
+      client.close(address);
+      try {
+        pending.get(5, TimeUnit.SECONDS);
+        Assert.fail();
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof IOException);
+        Assert.assertFalse(e.getCause() instanceof MessageNotDeliveredException);
+      }
+    } finally {
+      client.stopAndWait();
+      server.stopAndWait();
+    }
+  }
+}
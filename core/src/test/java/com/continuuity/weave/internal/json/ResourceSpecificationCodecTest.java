@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.json;
+
+import com.continuuity.weave.api.ResourceSpecification;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ResourceSpecificationCodecTest {
+
+  private final Gson gson = new GsonBuilder()
+    .registerTypeAdapter(ResourceSpecification.class, new ResourceSpecificationCodec())
+    .create();
+
+  @Test
+  public void testDecodeWithoutPlacement() {
+    // Specification written before placement, warm pool and restart fields were added.
+    String json = "{\"cores\":2,\"memorySize\":1024,\"instances\":3,\"uplink\":-1,\"downlink\":-1}";
+    ResourceSpecification spec = gson.fromJson(json, ResourceSpecification.class);
+
+    Assert.assertEquals(2, spec.getCores());
+    Assert.assertEquals(1024, spec.getMemorySize());
+    Assert.assertEquals(3, spec.getInstances());
+    Assert.assertTrue(spec.getHosts().isEmpty());
+    Assert.assertTrue(spec.getRacks().isEmpty());
+    Assert.assertTrue(spec.getDataPaths().isEmpty());
+    Assert.assertFalse(spec.isSpread());
+    Assert.assertTrue(spec.isRelaxLocality());
+    Assert.assertEquals(0, spec.getWarmPoolSize());
+    Assert.assertEquals(ResourceSpecification.RestartPolicy.NEVER, spec.getRestartPolicy());
+  }
+
+  @Test
+  public void testRoundTrip() {
+    ResourceSpecification spec = ResourceSpecification.Builder.with()
+      .setCores(1)
+      .setMemory(2, ResourceSpecification.SizeUnit.GIGA)
+      .setInstances(4)
+      .preferHosts("host1", "host2")
+      .preferRacks("/rack1")
+      .preferDataLocal("/data/input")
+      .spreadInstances()
+      .strictLocality()
+      .warmPool(2, 5, TimeUnit.MINUTES)
+      .restart(ResourceSpecification.RestartPolicy.ON_FAILURE, 3, 1, TimeUnit.HOURS)
+      .build();
+
+    ResourceSpecification decoded = gson.fromJson(gson.toJson(spec, ResourceSpecification.class),
+                                                  ResourceSpecification.class);
+
+    Assert.assertEquals(spec.getCores(), decoded.getCores());
+    Assert.assertEquals(2048, decoded.getMemorySize());
+    Assert.assertEquals(4, decoded.getInstances());
+    Assert.assertEquals(ImmutableSet.of("host1", "host2"), decoded.getHosts());
+    Assert.assertEquals(ImmutableSet.of("/rack1"), decoded.getRacks());
+    Assert.assertEquals(ImmutableSet.of("/data/input"), decoded.getDataPaths());
+    Assert.assertTrue(decoded.isSpread());
+    Assert.assertFalse(decoded.isRelaxLocality());
+    Assert.assertEquals(2, decoded.getWarmPoolSize());
+    Assert.assertEquals(300, decoded.getWarmPoolIdleSeconds());
+    Assert.assertEquals(ResourceSpecification.RestartPolicy.ON_FAILURE, decoded.getRestartPolicy());
+    Assert.assertEquals(3, decoded.getMaxRestarts());
+    Assert.assertEquals(3600, decoded.getRestartWindowSeconds());
+  }
+}
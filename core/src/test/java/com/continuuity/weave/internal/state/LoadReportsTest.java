@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.LoadReport;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class LoadReportsTest {
+
+  @Test
+  public void testAggregate() {
+    LoadReport first = new SimpleLoadReport(2000L, 1, 0.5d, 100L, 1000L, 10L, 20, 1);
+    LoadReport second = new SimpleLoadReport(1000L, 1, 0.25d, 200L, 1000L, 30L, 10, 0);
+    LoadReport unknownCpu = new SimpleLoadReport(3000L, 1, -1d, 300L, 1000L, 0L, 5, 2);
+
+    LoadReport report = LoadReports.aggregate(ImmutableList.of(first, second, unknownCpu));
+    Assert.assertEquals(1000L, report.getTimestamp());
+    Assert.assertEquals(3, report.getInstances());
+    Assert.assertEquals(0.375d, report.getCpuLoad(), 0.0001d);
+    Assert.assertEquals(600L, report.getHeapUsed());
+    Assert.assertEquals(3000L, report.getHeapMax());
+    Assert.assertEquals(40L, report.getGcTimeMillis());
+    Assert.assertEquals(35, report.getThreadCount());
+    Assert.assertEquals(3, report.getPendingMessages());
+
+    Assert.assertNull(LoadReports.aggregate(ImmutableList.<LoadReport>of()));
+  }
+
+  @Test
+  public void testJson() {
+    LoadReport report = LoadReports.collect(5);
+    Map<String, LoadReport> decoded = LoadReports.mapFromJson(LoadReports.toJson(ImmutableMap.of("r1", report)));
+
+    Assert.assertEquals(1, decoded.size());
+    LoadReport decodedReport = decoded.get("r1");
+    Assert.assertEquals(report.getTimestamp(), decodedReport.getTimestamp());
+    Assert.assertEquals(1, decodedReport.getInstances());
+    Assert.assertEquals(report.getCpuLoad(), decodedReport.getCpuLoad(), 0.0001d);
+    Assert.assertEquals(report.getHeapUsed(), decodedReport.getHeapUsed());
+    Assert.assertEquals(report.getHeapMax(), decodedReport.getHeapMax());
+    Assert.assertEquals(report.getGcTimeMillis(), decodedReport.getGcTimeMillis());
+    Assert.assertEquals(report.getThreadCount(), decodedReport.getThreadCount());
+    Assert.assertEquals(5, decodedReport.getPendingMessages());
+  }
+}
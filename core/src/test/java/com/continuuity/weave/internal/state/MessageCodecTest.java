@@ -16,6 +16,7 @@
 package com.continuuity.weave.internal.state;
 
 import com.continuuity.weave.api.Command;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import org.junit.Assert;
 import org.junit.Test;
@@ -69,6 +70,20 @@ public class MessageCodecTest {
     Assert.assertEquals(ImmutableMap.of("timeout", "1", "timeoutUnit", "SECONDS"), message.getCommand().getOptions());
   }
 
+  @Test
+  public void testJsonDecode() {
+    // Messages written by older versions are in JSON.
+    String json = "{\"type\":\"USER\",\"scope\":\"RUNNABLE\",\"runnableName\":\"echo\","
+                + "\"command\":{\"command\":\"ping\",\"options\":{\"key\":\"value\"}}}";
+    Message message = MessageCodec.decode(json.getBytes(Charsets.UTF_8));
+
+    Assert.assertEquals(Message.Type.USER, message.getType());
+    Assert.assertEquals(Message.Scope.RUNNABLE, message.getScope());
+    Assert.assertEquals("echo", message.getRunnableName());
+    Assert.assertEquals("ping", message.getCommand().getCommand());
+    Assert.assertEquals(ImmutableMap.of("key", "value"), message.getCommand().getOptions());
+  }
+
   @Test
   public void testFailureDecode() {
     Assert.assertNull(MessageCodec.decode("".getBytes()));
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.ServiceController;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ *
+ */
+public class StateCodecTest {
+
+  @Test
+  public void testStateCodec() {
+    StateNode stateNode = StateCodec.decode(StateCodec.encode(new StateNode(ServiceController.State.RUNNING)));
+    Assert.assertEquals(ServiceController.State.RUNNING, stateNode.getState());
+    Assert.assertNull(stateNode.getErrorMessage());
+    Assert.assertNull(stateNode.getStackTraces());
+
+    Exception failure = new IllegalStateException("Failure");
+    stateNode = StateCodec.decode(StateCodec.encode(new StateNode(failure)));
+    Assert.assertEquals(ServiceController.State.FAILED, stateNode.getState());
+    Assert.assertEquals(failure.getMessage(), stateNode.getErrorMessage());
+    Assert.assertArrayEquals(failure.getStackTrace(), stateNode.getStackTraces());
+  }
+
+  @Test
+  public void testStateHistory() {
+    List<StateNode.Transition> history = ImmutableList.of(
+      new StateNode.Transition(ServiceController.State.STARTING, 1370000000000L),
+      new StateNode.Transition(ServiceController.State.RUNNING, 1370000000150L),
+      new StateNode.Transition(ServiceController.State.STOPPING, 1370000360000L));
+    StateNode stateNode = StateCodec.decode(StateCodec.encode(
+      new StateNode(ServiceController.State.STOPPING).withHistory(history)));
+
+    Assert.assertEquals(ServiceController.State.STOPPING, stateNode.getState());
+    Assert.assertEquals(history.size(), stateNode.getHistory().size());
+    for (int i = 0; i < history.size(); i++) {
+      Assert.assertEquals(history.get(i).getState(), stateNode.getHistory().get(i).getState());
+      Assert.assertEquals(history.get(i).getTimestamp(), stateNode.getHistory().get(i).getTimestamp());
+    }
+  }
+
+  @Test
+  public void testStateJsonDecode() {
+    // State nodes written by older versions are in JSON.
+    String json = "{\"state\":\"STOPPING\"}";
+    StateNode stateNode = StateCodec.decode(json.getBytes(Charsets.UTF_8));
+    Assert.assertEquals(ServiceController.State.STOPPING, stateNode.getState());
+  }
+
+  @Test
+  public void testLiveNodeCodec() {
+    JsonObject data = new JsonObject();
+    data.addProperty("appId", 12);
+    data.addProperty("appIdClusterTime", 1370000000000L);
+    data.addProperty("host", "localhost");
+    data.addProperty("debug", true);
+    data.add("none", JsonNull.INSTANCE);
+    JsonArray ports = new JsonArray();
+    JsonObject port = new JsonObject();
+    port.addProperty("host", "localhost");
+    ports.add(port);
+    data.add("ports", ports);
+
+    JsonObject content = new JsonObject();
+    content.add("data", data);
+
+    JsonElement decoded = LiveNodeCodec.decode(LiveNodeCodec.encode(content));
+    Assert.assertEquals(content, decoded);
+
+    JsonObject decodedData = decoded.getAsJsonObject().get("data").getAsJsonObject();
+    Assert.assertEquals(12, decodedData.get("appId").getAsInt());
+    Assert.assertEquals(1370000000000L, decodedData.get("appIdClusterTime").getAsLong());
+
+    // Live node data written by older versions is in JSON.
+    Assert.assertEquals(content, LiveNodeCodec.decode(content.toString().getBytes(Charsets.UTF_8)));
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.state;
+
+import com.continuuity.weave.api.events.WeaveEvent;
+import com.continuuity.weave.internal.RunIds;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class WeaveEventCodecTest {
+
+  @Test
+  public void testCodec() {
+    WeaveEvent event = WeaveEvents.containerCompleted("runnable", RunIds.generate(), "container_1", 143);
+    WeaveEvent decoded = WeaveEventCodec.decode(WeaveEventCodec.encode(event));
+
+    Assert.assertNotNull(decoded);
+    Assert.assertEquals(WeaveEvent.Type.CONTAINER_COMPLETED, decoded.getType());
+    Assert.assertEquals(event.getTimestamp(), decoded.getTimestamp());
+    Assert.assertEquals("runnable", decoded.getRunnableName());
+    Assert.assertEquals(event.getRunId().getId(), decoded.getRunId().getId());
+    Assert.assertEquals("container_1", decoded.getContainerId());
+    Assert.assertEquals(143, decoded.getExitStatus());
+
+    decoded = WeaveEventCodec.decode(WeaveEventCodec.encode(WeaveEvents.instancesChanged("runnable", 3)));
+    Assert.assertNotNull(decoded);
+    Assert.assertEquals(WeaveEvent.Type.INSTANCES_CHANGED, decoded.getType());
+    Assert.assertNull(decoded.getRunId());
+    Assert.assertNull(decoded.getContainerId());
+    Assert.assertEquals(3, decoded.getInstanceCount());
+  }
+}
@@ -15,25 +15,38 @@
  */
 package com.continuuity.weave.internal.state;
 
+import com.continuuity.weave.api.Command;
 import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.api.ServiceController;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.RunIds;
 import com.continuuity.weave.internal.ZKServiceDecorator;
 import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.internal.zookeeper.SettableOperationFuture;
+import com.continuuity.weave.zookeeper.ForwardingZKClient;
 import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKClientService;
 import com.continuuity.weave.zookeeper.ZKClients;
-import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gson.JsonObject;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
@@ -42,6 +55,10 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -104,6 +121,326 @@ public class ZKServiceDecoratorTest {
     }
   }
 
+  @Test
+  public void testBroadcast() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+
+    try {
+      final String namespace = Joiner.on('/').join("/weave", RunIds.generate(), "runnables", "Runner1");
+
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      try {
+        CountDownLatch receiveLatch = new CountDownLatch(2);
+        List<ZKServiceDecorator> services = Lists.newArrayList();
+        Set<String> expected = Sets.newHashSet();
+        for (int i = 0; i < 2; i++) {
+          RunId runId = RunIds.generate();
+          expected.add(runId.getId());
+          ZKServiceDecorator service = new ZKServiceDecorator(ZKClients.namespace(zkClient, namespace), runId,
+                                                              Suppliers.ofInstance(new JsonObject()),
+                                                              new BroadcastReceiver(receiveLatch), "/broadcasts");
+          service.start().get(5, TimeUnit.SECONDS);
+          services.add(service);
+        }
+
+        Message message = Messages.createForRunnable("Runner1", Command.Builder.of("test").build());
+        String messagePath = zkClient.create(namespace + "/broadcasts/msg", MessageCodec.encode(message),
+                                             CreateMode.PERSISTENT_SEQUENTIAL).get();
+        Assert.assertTrue(receiveLatch.await(5, TimeUnit.SECONDS));
+
+        // Each instance acknowledges the message with a child node named by its run id.
+        Stopwatch stopwatch = new Stopwatch().start();
+        Set<String> acks = ImmutableSet.of();
+        while (!acks.equals(expected) && stopwatch.elapsedTime(TimeUnit.SECONDS) < 5) {
+          acks = ImmutableSet.copyOf(zkClient.getChildren(messagePath).get().getChildren());
+          TimeUnit.MILLISECONDS.sleep(50);
+        }
+        Assert.assertEquals(expected, acks);
+
+        for (ZKServiceDecorator service : services) {
+          service.stop().get(5, TimeUnit.SECONDS);
+        }
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testBroadcastBeforeRegistration() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+
+    try {
+      final String namespace = Joiner.on('/').join("/weave", RunIds.generate(), "runnables", "Runner1");
+
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      try {
+        // Broadcast that is still pending acknowledgement from other instances.
+        Message oldMessage = Messages.createForRunnable("Runner1", Command.Builder.of("old").build());
+        String oldPath = zkClient.create(namespace + "/broadcasts/msg", MessageCodec.encode(oldMessage),
+                                         CreateMode.PERSISTENT_SEQUENTIAL).get();
+
+        RunId runId = RunIds.generate();
+        BroadcastReceiver receiver = new BroadcastReceiver(new CountDownLatch(1));
+        ZKServiceDecorator service = new ZKServiceDecorator(ZKClients.namespace(zkClient, namespace), runId,
+                                                            Suppliers.ofInstance(new JsonObject()),
+                                                            receiver, "/broadcasts");
+        service.start().get(5, TimeUnit.SECONDS);
+
+        Message newMessage = Messages.createForRunnable("Runner1", Command.Builder.of("new").build());
+        zkClient.create(namespace + "/broadcasts/msg", MessageCodec.encode(newMessage),
+                        CreateMode.PERSISTENT_SEQUENTIAL).get();
+        Assert.assertTrue(receiver.latch.await(5, TimeUnit.SECONDS));
+
+        // The old broadcast is acknowledged without being processed.
+        Stopwatch stopwatch = new Stopwatch().start();
+        while (zkClient.exists(oldPath + "/" + runId.getId()).get() == null
+          && stopwatch.elapsedTime(TimeUnit.SECONDS) < 5) {
+          TimeUnit.MILLISECONDS.sleep(50);
+        }
+        Assert.assertNotNull(zkClient.exists(oldPath + "/" + runId.getId()).get());
+        Assert.assertEquals(ImmutableList.of("new"), receiver.getCommands());
+
+        service.stop().get(5, TimeUnit.SECONDS);
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testMessageFetchRetry() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+
+    try {
+      final String namespace = Joiner.on('/').join("/weave", RunIds.generate(), "runnables", "Runner1");
+
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      try {
+        // Fails the first read of every message node.
+        final Set<String> failed = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+        ZKClient failingClient = new ForwardingZKClient(ZKClients.namespace(zkClient, namespace)) {
+          @Override
+          public OperationFuture<NodeData> getData(String path, Watcher watcher) {
+            if (path.contains("/messages/") && failed.add(path)) {
+              SettableOperationFuture<NodeData> future = SettableOperationFuture.create(path,
+                                                                                       Threads.SAME_THREAD_EXECUTOR);
+              future.setException(KeeperException.create(KeeperException.Code.CONNECTIONLOSS, path));
+              return future;
+            }
+            return super.getData(path, watcher);
+          }
+        };
+
+        RunId runId = RunIds.generate();
+        CountDownLatch receiveLatch = new CountDownLatch(2);
+        BroadcastReceiver receiver = new BroadcastReceiver(receiveLatch);
+        ZKServiceDecorator service = new ZKServiceDecorator(failingClient, runId,
+                                                            Suppliers.ofInstance(new JsonObject()), receiver);
+        service.start().get(5, TimeUnit.SECONDS);
+
+        String messagesPath = namespace + "/" + runId.getId() + "/messages";
+        sendMessage(zkClient, messagesPath, "first", 0L, null);
+        sendMessage(zkClient, messagesPath, "second", 0L, null);
+
+        // Messages failed to be fetched are fetched again and processed in order.
+        Assert.assertTrue(receiveLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(ImmutableList.of("first", "second"), receiver.getCommands());
+        Assert.assertEquals(2, failed.size());
+
+        service.stop().get(5, TimeUnit.SECONDS);
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testExpiredAndDuplicateMessages() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+
+    try {
+      final String namespace = Joiner.on('/').join("/weave", RunIds.generate(), "runnables", "Runner1");
+
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      try {
+        // Delays fetching of messages, so that a message with a short timeout is expired when it is processed.
+        ZKClient slowClient = new ForwardingZKClient(ZKClients.namespace(zkClient, namespace)) {
+          @Override
+          public OperationFuture<NodeData> getData(String path, Watcher watcher) {
+            if (path.contains("/messages/")) {
+              Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            }
+            return super.getData(path, watcher);
+          }
+        };
+
+        RunId runId = RunIds.generate();
+        CountDownLatch receiveLatch = new CountDownLatch(2);
+        BroadcastReceiver receiver = new BroadcastReceiver(receiveLatch);
+        ZKServiceDecorator service = new ZKServiceDecorator(slowClient, runId,
+                                                            Suppliers.ofInstance(new JsonObject()), receiver);
+        service.start().get(5, TimeUnit.SECONDS);
+
+        String messagesPath = namespace + "/" + runId.getId() + "/messages";
+        long timeout = TimeUnit.MINUTES.toMillis(1);
+        sendMessage(zkClient, messagesPath, "expired", 1L, null);
+        sendMessage(zkClient, messagesPath, "first", timeout, "key");
+        sendMessage(zkClient, messagesPath, "duplicate", timeout, "key");
+        sendMessage(zkClient, messagesPath, "last", 0L, null);
+        Assert.assertTrue(receiveLatch.await(5, TimeUnit.SECONDS));
+
+        // All messages are removed, but only the unexpired and unique ones are processed.
+        Stopwatch stopwatch = new Stopwatch().start();
+        List<String> children = zkClient.getChildren(messagesPath).get().getChildren();
+        while (!children.isEmpty() && stopwatch.elapsedTime(TimeUnit.SECONDS) < 5) {
+          TimeUnit.MILLISECONDS.sleep(50);
+          children = zkClient.getChildren(messagesPath).get().getChildren();
+        }
+        Assert.assertTrue(children.isEmpty());
+        Assert.assertEquals(ImmutableList.of("first", "last"), receiver.getCommands());
+
+        service.stop().get(5, TimeUnit.SECONDS);
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testStateCoalescing() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+
+    try {
+      final String namespace = Joiner.on('/').join("/weave", RunIds.generate(), "runnables", "Runner1");
+
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      try {
+        // Records the states written to the state node.
+        final List<ServiceController.State> written = Collections.synchronizedList(
+          Lists.<ServiceController.State>newArrayList());
+        ZKClient recordingClient = new ForwardingZKClient(ZKClients.namespace(zkClient, namespace)) {
+          @Override
+          public OperationFuture<Stat> setData(String path, byte[] data, int version) {
+            if (path.endsWith("/state")) {
+              written.add(StateCodec.decode(data).getState());
+            }
+            return super.setData(path, data, version);
+          }
+        };
+
+        RunId runId = RunIds.generate();
+        ZKServiceDecorator service = new ZKServiceDecorator(recordingClient, runId,
+                                                            Suppliers.ofInstance(new JsonObject()),
+                                                            new BroadcastReceiver(new CountDownLatch(0)));
+        Assert.assertEquals(Service.State.RUNNING, service.start().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Service.State.TERMINATED, service.stop().get(5, TimeUnit.SECONDS));
+
+        // RUNNING and STOPPING happen within the coalescing window, hence superseded by the final state.
+        Assert.assertTrue("Too many writes " + written, written.size() < 3);
+        Assert.assertEquals(ServiceController.State.TERMINATED, written.get(written.size() - 1));
+
+        // All transitions are still recorded in the history.
+        StateNode stateNode = StateCodec.decode(zkClient.getData(namespace + "/" + runId.getId() + "/state")
+                                                  .get().getData());
+        Assert.assertEquals(ServiceController.State.TERMINATED, stateNode.getState());
+        Assert.assertEquals(ImmutableList.of(ServiceController.State.STARTING, ServiceController.State.RUNNING,
+                                             ServiceController.State.STOPPING, ServiceController.State.TERMINATED),
+                            getHistoryStates(stateNode));
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testStateModifiedExternally() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+
+    try {
+      final String namespace = Joiner.on('/').join("/weave", RunIds.generate(), "runnables", "Runner1");
+
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      try {
+        RunId runId = RunIds.generate();
+        String statePath = namespace + "/" + runId.getId() + "/state";
+        ZKServiceDecorator service = new ZKServiceDecorator(ZKClients.namespace(zkClient, namespace), runId,
+                                                            Suppliers.ofInstance(new JsonObject()),
+                                                            new BroadcastReceiver(new CountDownLatch(0)));
+        Assert.assertEquals(Service.State.RUNNING, service.start().get(5, TimeUnit.SECONDS));
+
+        // Wait for the RUNNING state written, then modify the node, which bumps the node version.
+        Stopwatch stopwatch = new Stopwatch().start();
+        StateNode stateNode = StateCodec.decode(zkClient.getData(statePath).get().getData());
+        while (stateNode.getState() != ServiceController.State.RUNNING
+          && stopwatch.elapsedTime(TimeUnit.SECONDS) < 5) {
+          TimeUnit.MILLISECONDS.sleep(50);
+          stateNode = StateCodec.decode(zkClient.getData(statePath).get().getData());
+        }
+        Assert.assertEquals(ServiceController.State.RUNNING, stateNode.getState());
+        StateNode.Transition external = new StateNode.Transition(ServiceController.State.NEW, 1L);
+        zkClient.setData(statePath, StateCodec.encode(new StateNode(ServiceController.State.RUNNING, null, null,
+                                                                    ImmutableList.of(external)))).get();
+
+        // The final state is still written, with the history merged.
+        Assert.assertEquals(Service.State.TERMINATED, service.stop().get(5, TimeUnit.SECONDS));
+        stateNode = StateCodec.decode(zkClient.getData(statePath).get().getData());
+        Assert.assertEquals(ServiceController.State.TERMINATED, stateNode.getState());
+        Assert.assertEquals(ImmutableList.of(ServiceController.State.NEW, ServiceController.State.STARTING,
+                                             ServiceController.State.RUNNING, ServiceController.State.STOPPING,
+                                             ServiceController.State.TERMINATED),
+                            getHistoryStates(stateNode));
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  private List<ServiceController.State> getHistoryStates(StateNode stateNode) {
+    List<ServiceController.State> states = Lists.newArrayList();
+    for (StateNode.Transition transition : stateNode.getHistory()) {
+      states.add(transition.getState());
+    }
+    return states;
+  }
+
+  private void sendMessage(ZKClientService zkClient, String messagesPath, String command,
+                           long timeout, String key) throws Exception {
+    Message message = Messages.createForRunnable("Runner1", Command.Builder.of(command).build());
+    zkClient.create(messagesPath + "/msg", MessageCodec.encode(new MessageEnvelope(message, timeout, key)),
+                    CreateMode.PERSISTENT_SEQUENTIAL).get();
+  }
+
   private void watchDataChange(final ZKClientService zkClient, final String path,
                                final Semaphore semaphore, final AtomicReference<String> stateMatch) {
     Futures.addCallback(zkClient.getData(path, new Watcher() {
@@ -116,9 +453,8 @@ public class ZKServiceDecoratorTest {
     }), new FutureCallback<NodeData>() {
       @Override
       public void onSuccess(NodeData result) {
-        String content = new String(result.getData(), Charsets.UTF_8);
-        JsonObject json = new Gson().fromJson(content, JsonElement.class).getAsJsonObject();
-        if (stateMatch.get().equals(json.get("state").getAsString())) {
+        StateNode stateNode = StateCodec.decode(result.getData());
+        if (stateNode != null && stateMatch.get().equals(stateNode.getState().name())) {
           semaphore.release();
         }
       }
@@ -152,4 +488,39 @@ public class ZKServiceDecoratorTest {
       }
     });
   }
+
+  /**
+   * Service that records and counts down a latch on every message received.
+   */
+  private static final class BroadcastReceiver extends AbstractIdleService implements MessageCallback {
+
+    private final CountDownLatch latch;
+    private final List<String> commands;
+
+    BroadcastReceiver(CountDownLatch latch) {
+      this.latch = latch;
+      this.commands = Collections.synchronizedList(Lists.<String>newArrayList());
+    }
+
+    List<String> getCommands() {
+      return ImmutableList.copyOf(commands);
+    }
+
+    @Override
+    public ListenableFuture<String> onReceived(String messageId, Message message) {
+      commands.add(message.getCommand().getCommand());
+      latch.countDown();
+      return Futures.immediateFuture(messageId);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+      // No-op
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+      // No-op
+    }
+  }
 }
@@ -32,9 +32,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
@@ -67,6 +70,27 @@ public class ApplicationBundlerTest {
     Assert.assertNotSame(classLoader, clz.getClassLoader());
   }
 
+  @Test
+  public void testSeparateJars() throws IOException, ClassNotFoundException {
+    Location location = new LocalLocationFactory(tmpDir.newFolder()).create("test.jar");
+
+    ApplicationBundler bundler = new ApplicationBundler(ImmutableList.<String>of());
+    Map<String, URL> jars = bundler.createBundleWithoutJars(location, ImmutableList.<Class<?>>of(
+      WeaveContainerMain.class), ImmutableList.<URI>of());
+    Assert.assertFalse(jars.isEmpty());
+
+    File targetDir = tmpDir.newFolder();
+    unjar(new File(location.toURI()), targetDir);
+    Assert.assertFalse(new File(targetDir, "lib").exists());
+
+    // Classes should be loadable with the dependency jars added to the classpath.
+    ClassLoader classLoader = createClassLoader(targetDir, jars.values());
+    Class<?> clz = classLoader.loadClass(WeaveContainerMain.class.getName());
+    Assert.assertSame(classLoader, clz.getClassLoader());
+    clz = classLoader.loadClass(ImmutableList.class.getName());
+    Assert.assertSame(classLoader, clz.getClassLoader());
+  }
+
   private void unjar(File jarFile, File targetDir) throws IOException {
     JarInputStream jarInput = new JarInputStream(new FileInputStream(jarFile));
     try {
@@ -88,8 +112,13 @@ public class ApplicationBundlerTest {
   }
 
   private ClassLoader createClassLoader(File dir) throws MalformedURLException {
+    return createClassLoader(dir, ImmutableList.<URL>of());
+  }
+
+  private ClassLoader createClassLoader(File dir, Collection<URL> jars) throws MalformedURLException {
     List<URL> urls = Lists.newArrayList();
     urls.add(new File(dir, "classes").toURI().toURL());
+    urls.addAll(jars);
     File[] libFiles = new File(dir, "lib").listFiles();
     if (libFiles != null) {
       for (File file : libFiles) {
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.utils;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.WeaveContainerMain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ */
+public class DependenciesTest {
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testParallelTraversal() throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Set<String> expected = findDependencies(classLoader, null, Threads.SAME_THREAD_EXECUTOR);
+    Assert.assertTrue(expected.contains(WeaveContainerMain.class.getName()));
+    Assert.assertTrue(expected.contains(ImmutableList.class.getName()));
+
+    // Concurrent reading of bytecode finds the same classes, with the acceptor called from the calling thread only.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Assert.assertEquals(expected, findDependencies(classLoader, null, executor));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCachedTraversal() throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Set<String> expected = findDependencies(classLoader, null, Threads.SAME_THREAD_EXECUTOR);
+
+    File cacheFile = new File(tmpDir.newFolder(), "dependency.cache");
+    DependencyCache cache = DependencyCache.load(cacheFile);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Assert.assertEquals(expected, findDependencies(classLoader, cache, executor));
+      cache.save();
+
+      // Traversal with the loaded cache finds the same classes.
+      cache = DependencyCache.load(cacheFile);
+      Assert.assertEquals(expected, findDependencies(classLoader, cache, executor));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Dependencies of the classes visited are cached.
+    URL classUrl = classLoader.getResource(WeaveContainerMain.class.getName().replace('.', '/') + ".class");
+    URL classPathUrl = new URL(classUrl.toString().substring(
+      0, classUrl.toString().length() - (WeaveContainerMain.class.getName() + ".class").length()));
+    Assert.assertNotNull(cache.get(WeaveContainerMain.class.getName(), classUrl, classPathUrl));
+  }
+
+  private Set<String> findDependencies(ClassLoader classLoader, DependencyCache cache,
+                                       Executor executor) throws IOException {
+    final Thread callerThread = Thread.currentThread();
+    final Set<String> accepted = Sets.newHashSet();
+    Dependencies.findClassDependencies(classLoader, new Dependencies.ClassAcceptor() {
+      @Override
+      public boolean accept(String className, URL classUrl, URL classPathUrl) {
+        Assert.assertSame(callerThread, Thread.currentThread());
+        // Only follows classes of weave and guava, to keep the traversal small.
+        if (!className.startsWith("com.continuuity.weave.") && !className.startsWith("com.google.common.")) {
+          return false;
+        }
+        accepted.add(className);
+        return true;
+      }
+    }, ImmutableList.of(WeaveContainerMain.class.getName()), cache, executor);
+    return accepted;
+  }
+}
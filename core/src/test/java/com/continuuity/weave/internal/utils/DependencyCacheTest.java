@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Set;
+
+/**
+ *
+ */
+public class DependencyCacheTest {
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testSaveLoad() throws IOException {
+    // Directory with space in the name, which is escaped in URLs.
+    File dir = new File(tmpDir.newFolder(), "dir with space");
+    File jarFile = new File(dir, "test.jar");
+    File classDir = new File(dir, "classes");
+    File classFile = new File(classDir, "a/C.class");
+    Files.createParentDirs(jarFile);
+    Files.createParentDirs(classFile);
+    Files.write("jar", jarFile, Charsets.UTF_8);
+    Files.write("class", classFile, Charsets.UTF_8);
+
+    File cacheFile = new File(tmpDir.newFolder(), "cache/dependency.cache");
+    DependencyCache cache = DependencyCache.load(cacheFile);
+
+    // Nothing is written if nothing is cached.
+    cache.save();
+    Assert.assertFalse(cacheFile.exists());
+
+    Set<String> jarDependencies = ImmutableSet.of("a.A", "java.lang.Object");
+    Set<String> classDependencies = ImmutableSet.of("a.B");
+    cache.put("a.B", getJarClassURL(jarFile, "a/B.class"), jarFile.toURI().toURL(), jarDependencies);
+    cache.put("a.C", classFile.toURI().toURL(), classDir.toURI().toURL(), classDependencies);
+    cache.save();
+    Assert.assertTrue(cacheFile.isFile());
+
+    cache = DependencyCache.load(cacheFile);
+    Assert.assertEquals(jarDependencies,
+                        cache.get("a.B", getJarClassURL(jarFile, "a/B.class"), jarFile.toURI().toURL()));
+    Assert.assertEquals(classDependencies, cache.get("a.C", classFile.toURI().toURL(), classDir.toURI().toURL()));
+    Assert.assertNull(cache.get("a.D", getJarClassURL(jarFile, "a/D.class"), jarFile.toURI().toURL()));
+  }
+
+  @Test
+  public void testInvalidation() throws IOException {
+    File dir = new File(tmpDir.newFolder(), "dir with space");
+    File jarFile = new File(dir, "test.jar");
+    Files.createParentDirs(jarFile);
+    Files.write("jar", jarFile, Charsets.UTF_8);
+    Assert.assertTrue(jarFile.setLastModified(1000000L));
+
+    File cacheFile = new File(tmpDir.newFolder(), "dependency.cache");
+    DependencyCache cache = DependencyCache.load(cacheFile);
+    URL classUrl = getJarClassURL(jarFile, "a/B.class");
+    cache.put("a.B", classUrl, jarFile.toURI().toURL(), ImmutableSet.of("a.A"));
+    cache.save();
+
+    // Modified jar invalidates the cached dependencies of its classes.
+    Assert.assertTrue(jarFile.setLastModified(2000000L));
+    cache = DependencyCache.load(cacheFile);
+    Assert.assertNull(cache.get("a.B", classUrl, jarFile.toURI().toURL()));
+
+    // Entries of jars that no longer exist are removed on save.
+    cache.put("a.B", classUrl, jarFile.toURI().toURL(), ImmutableSet.of("a.A"));
+    Assert.assertTrue(jarFile.delete());
+    cache.save();
+    Files.write("jar", jarFile, Charsets.UTF_8);
+    Assert.assertNull(DependencyCache.load(cacheFile).get("a.B", classUrl, jarFile.toURI().toURL()));
+  }
+
+  @Test
+  public void testCorruptedFile() throws IOException {
+    File cacheFile = tmpDir.newFile("dependency.cache");
+    Files.write("not a cache", cacheFile, Charsets.UTF_8);
+
+    // Cache starts empty if the file cannot be read.
+    File jarFile = tmpDir.newFile("test.jar");
+    DependencyCache cache = DependencyCache.load(cacheFile);
+    Assert.assertNull(cache.get("a.B", getJarClassURL(jarFile, "a/B.class"), jarFile.toURI().toURL()));
+  }
+
+  private URL getJarClassURL(File jarFile, String path) throws IOException {
+    return new URL("jar:" + jarFile.toURI().toURL() + "!/" + path);
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.launcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ *
+ */
+public class WeaveLauncherTest {
+
+  @Test
+  public void testCacheHit() throws Exception {
+    File jarFile = createJar(Files.createTempDir());
+    File cacheDir = new File(Files.createTempDir(), "cache");
+
+    File expanded = WeaveLauncher.unJarCached(jarFile, cacheDir, true);
+    Assert.assertTrue(new File(expanded, "resources/test.txt").isFile());
+    Assert.assertTrue(new File(expanded, "lib/dep.jar").isFile());
+
+    // Second expansion of the same jar uses the cached directory, even if the jar is in another location.
+    File marker = new File(expanded, "marker");
+    Assert.assertTrue(marker.createNewFile());
+    File copy = new File(Files.createTempDir(), "copy.jar");
+    Files.copy(jarFile, copy);
+    Assert.assertEquals(expanded, WeaveLauncher.unJarCached(copy, cacheDir, true));
+    Assert.assertTrue(marker.exists());
+
+    // Expansion of library jars only is cached separately.
+    File libExpanded = WeaveLauncher.unJarCached(jarFile, cacheDir, false);
+    Assert.assertFalse(expanded.equals(libExpanded));
+    Assert.assertTrue(new File(libExpanded, "lib/dep.jar").isFile());
+    Assert.assertFalse(new File(libExpanded, "resources").exists());
+  }
+
+  @Test
+  public void testConcurrentExpansion() throws Exception {
+    final File jarFile = createJar(Files.createTempDir());
+    final File cacheDir = new File(Files.createTempDir(), "cache");
+
+    // Containers on the same node expanding the same jar at the same time all get the same directory.
+    int threads = 5;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<File>> futures = Lists.newArrayList();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws Exception {
+            return WeaveLauncher.unJarCached(jarFile, cacheDir, true);
+          }
+        }));
+      }
+      File expanded = futures.get(0).get();
+      for (Future<File> future : futures) {
+        Assert.assertEquals(expanded, future.get());
+      }
+      // No temporary directory is left behind.
+      Assert.assertArrayEquals(new File[] { expanded }, cacheDir.listFiles());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMoveToCacheTaken() throws Exception {
+    File cacheDir = Files.createTempDir();
+    File targetDir = new File(cacheDir, "target");
+    Assert.assertTrue(targetDir.mkdir());
+    Files.write("existing", new File(targetDir, "file"), Charsets.UTF_8);
+
+    // The directory expanded by another container is used, and the own one is deleted.
+    File tempDir = new File(cacheDir, "temp");
+    Assert.assertTrue(tempDir.mkdir());
+    Files.write("new", new File(tempDir, "file"), Charsets.UTF_8);
+    WeaveLauncher.moveToCache(tempDir, targetDir);
+    Assert.assertFalse(tempDir.exists());
+    Assert.assertEquals("existing", Files.toString(new File(targetDir, "file"), Charsets.UTF_8));
+
+    // Failure to rename without other expansion is an error.
+    try {
+      WeaveLauncher.moveToCache(new File(cacheDir, "missing"), new File(cacheDir, "other"));
+      Assert.fail("Expected IOException.");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testJarClassLoader() throws Exception {
+    File jarFile = createJar(Files.createTempDir());
+    File expanded = WeaveLauncher.unJarCached(jarFile, new File(Files.createTempDir(), "cache"), false);
+
+    // Resources are loaded from the jar directly, and dependency jars from the expanded directory.
+    URLClassLoader classLoader = WeaveLauncher.createClassLoader(expanded, jarFile, false);
+    Assert.assertEquals("resource", read(classLoader.getResource("test.txt")));
+    Assert.assertEquals("class", read(classLoader.getResource("Test.class")));
+    Assert.assertEquals("dependency", read(classLoader.getResource("dep.txt")));
+    Assert.assertEquals(1, Collections.list(classLoader.getResources("test.txt")).size());
+  }
+
+  private String read(URL url) throws IOException {
+    Assert.assertNotNull(url);
+    InputStream is = url.openStream();
+    try {
+      return new String(ByteStreams.toByteArray(is), Charsets.UTF_8);
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Creates a jar in the layout of the application jar, with a class, a resource and a dependency jar.
+   */
+  private File createJar(File dir) throws IOException {
+    ByteArrayOutputStream depBytes = new ByteArrayOutputStream();
+    JarOutputStream depJar = new JarOutputStream(depBytes);
+    try {
+      addEntry(depJar, "dep.txt", "dependency".getBytes(Charsets.UTF_8));
+    } finally {
+      depJar.close();
+    }
+
+    File jarFile = new File(dir, "app.jar");
+    JarOutputStream jarOutput = new JarOutputStream(new FileOutputStream(jarFile));
+    try {
+      jarOutput.putNextEntry(new JarEntry("classes/"));
+      addEntry(jarOutput, "classes/Test.class", "class".getBytes(Charsets.UTF_8));
+      jarOutput.putNextEntry(new JarEntry("resources/"));
+      addEntry(jarOutput, "resources/test.txt", "resource".getBytes(Charsets.UTF_8));
+      jarOutput.putNextEntry(new JarEntry("lib/"));
+      addEntry(jarOutput, "lib/dep.jar", depBytes.toByteArray());
+    } finally {
+      jarOutput.close();
+    }
+    return jarFile;
+  }
+
+  private void addEntry(JarOutputStream jarOutput, String name, byte[] content) throws IOException {
+    jarOutput.putNextEntry(new JarEntry(name));
+    jarOutput.write(content);
+    jarOutput.closeEntry();
+  }
+}
@@ -15,6 +15,8 @@
  */
 package com.continuuity.weave.filesystem;
 
+import com.google.common.collect.ImmutableList;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
@@ -24,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -172,4 +175,16 @@ final class HDFSLocation implements Location {
   public long lastModified() throws IOException {
     return fs.getFileStatus(path).getModificationTime();
   }
+
+  @Override
+  public List<Location> list() throws IOException {
+    if (!fs.exists(path) || !fs.getFileStatus(path).isDirectory()) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<Location> result = ImmutableList.builder();
+    for (FileStatus status : fs.listStatus(path)) {
+      result.add(new HDFSLocation(fs, status.getPath()));
+    }
+    return result.build();
+  }
 }
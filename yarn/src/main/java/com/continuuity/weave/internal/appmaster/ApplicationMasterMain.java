@@ -52,10 +52,11 @@ public final class ApplicationMasterMain extends ServiceMain {
 
     ZKClientService zkClientService =
       ZKClientServices.delegate(
-        ZKClients.reWatchOnExpire(
-          ZKClients.retryOnFailure(
-            ZKClientService.Builder.of(zkConnect).build(),
-            RetryStrategies.fixDelay(1, TimeUnit.SECONDS))));
+        ZKClients.coalesceReads(
+          ZKClients.reWatchOnExpire(
+            ZKClients.retryOnFailure(
+              ZKClientService.Builder.of(zkConnect).build(),
+              RetryStrategies.fixDelay(1, TimeUnit.SECONDS)))));
 
     Service service = new ZKServiceWrapper(zkClientService,
                                            new ApplicationMasterService(runId, zkClientService, weaveSpec));
@@ -15,27 +15,36 @@
  */
 package com.continuuity.weave.internal.appmaster;
 
-import com.continuuity.weave.api.Command;
 import com.continuuity.weave.api.LocalFile;
 import com.continuuity.weave.api.ResourceSpecification;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.RuntimeSpecification;
 import com.continuuity.weave.api.WeaveSpecification;
+import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.filesystem.HDFSLocationFactory;
 import com.continuuity.weave.filesystem.LocalLocationFactory;
 import com.continuuity.weave.filesystem.Location;
 import com.continuuity.weave.internal.Arguments;
+import com.continuuity.weave.internal.Constants;
 import com.continuuity.weave.internal.EnvKeys;
 import com.continuuity.weave.internal.ProcessLauncher;
 import com.continuuity.weave.internal.RunIds;
+import com.continuuity.weave.internal.StandbyActivation;
+import com.continuuity.weave.internal.WeaveContainerController;
 import com.continuuity.weave.internal.WeaveContainerLauncher;
+import com.continuuity.weave.internal.ZKEventLog;
+import com.continuuity.weave.internal.ZKMessages;
+import com.continuuity.weave.internal.control.ControlChannelClient;
 import com.continuuity.weave.internal.json.ArgumentsCodec;
 import com.continuuity.weave.internal.json.LocalFileCodec;
 import com.continuuity.weave.internal.json.WeaveSpecificationAdapter;
 import com.continuuity.weave.internal.kafka.EmbeddedKafkaServer;
+import com.continuuity.weave.internal.state.LoadReports;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCallback;
+import com.continuuity.weave.internal.state.SystemMessages;
+import com.continuuity.weave.internal.state.WeaveEvents;
 import com.continuuity.weave.internal.ZKServiceDecorator;
 import com.continuuity.weave.internal.utils.Networks;
 import com.continuuity.weave.internal.yarn.ports.AMRMClient;
@@ -46,13 +55,10 @@ import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.LoggerContextListener;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
@@ -60,6 +66,7 @@ import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.reflect.TypeToken;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
@@ -80,6 +87,7 @@ import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.ipc.YarnRPC;
 import org.apache.hadoop.yarn.util.ConverterUtils;
+import org.apache.hadoop.yarn.util.RackResolver;
 import org.apache.hadoop.yarn.util.Records;
 import org.apache.zookeeper.CreateMode;
 import org.slf4j.ILoggerFactory;
@@ -92,16 +100,17 @@ import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Method;
 import java.net.URI;
-import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -110,6 +119,11 @@ public final class ApplicationMasterService implements Service {
 
   private static final Logger LOG = LoggerFactory.getLogger(ApplicationMasterService.class);
 
+  // Interval between allocate calls while containers are being provisioned.
+  private static final long MIN_ALLOCATE_INTERVAL_MILLIS = 100;
+  // Interval between allocate calls when there is no outstanding request.
+  private static final long MAX_ALLOCATE_INTERVAL_MILLIS = 5000;
+
   private final RunId runId;
   private final ZKClient zkClient;
   private final WeaveSpecification weaveSpec;
@@ -119,14 +133,36 @@ public final class ApplicationMasterService implements Service {
   private final AMRMClient amrmClient;
   private final ZKServiceDecorator serviceDelegate;
   private final RunningContainers runningContainers;
+  private final ControlChannelClient controlClient;
+  private final ZKEventLog eventLog;
   private final Map<String, Integer> instanceCounts;
-
-  private YarnRPC yarnRPC;
+  // Orders, priorities and requests in progress of container provisioning.
+  private final ProvisionPlanner planner;
+  // Runnables that need more containers due to instance changes.
+  private final Set<String> pendingInstanceChanges;
+  // Released to wake up the main loop for new container requests.
+  private final Semaphore allocateWakeup;
+  // Standby containers for runnables having warm pool.
+  private final WarmPool warmPool;
+  // Restart decisions for completed instances. Only accessed from the main loop.
+  private final RestartTracker restartTracker;
+  // Instances waiting for restart, with their instance ids reserved. Only accessed from the main loop.
+  private final List<PendingRestart> pendingRestarts;
+  // Statistics of the time from container allocation to container started.
+  private final AtomicLong launchCount;
+  private final AtomicLong launchTotalMillis;
+  private final AtomicLong launchMaxMillis;
+
+  private ContainerManagers containerManagers;
+  // Hosts storing the data paths of each runnable.
+  private DataHosts dataHosts;
+  private ExecutorService launchExecutor;
+  private List<LocalFile> localFiles;
+  private Map<String, String> containerEnv;
   private Resource maxCapability;
   private Resource minCapability;
   private EmbeddedKafkaServer kafkaServer;
-  private Queue<RunnableContainerRequest> runnableContainerRequests;
-  private ExecutorService instanceChangeExecutor;
+  private Cancellable messageSweeper;
 
 
   public ApplicationMasterService(RunId runId, ZKClient zkClient, File weaveSpecFile) throws IOException {
@@ -142,10 +178,21 @@ public final class ApplicationMasterService implements Service {
                                 "Missing %s from environment", ApplicationConstants.AM_CONTAINER_ID_ENV);
     amrmClient = new AMRMClientImpl(ConverterUtils.toContainerId(masterContainerId).getApplicationAttemptId());
 
-    runningContainers = new RunningContainers();
+    controlClient = new ControlChannelClient();
+    eventLog = new ZKEventLog(zkClient, runId);
+    runningContainers = new RunningContainers(new MessageBroadcaster(zkClient, runId), controlClient);
 
     serviceDelegate = new ZKServiceDecorator(zkClient, runId, createLiveNodeDataSupplier(), new ServiceDelegate());
     instanceCounts = initInstanceCounts(weaveSpec, Maps.<String, Integer>newConcurrentMap());
+    planner = new ProvisionPlanner(weaveSpec, instanceCounts, runningContainers);
+    pendingInstanceChanges = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    allocateWakeup = new Semaphore(0);
+    warmPool = new WarmPool(zkClient, runId);
+    restartTracker = new RestartTracker();
+    pendingRestarts = Lists.newLinkedList();
+    launchCount = new AtomicLong();
+    launchTotalMillis = new AtomicLong();
+    launchMaxMillis = new AtomicLong();
   }
 
   private Multimap<String, String> decodeRunnableArgs() throws IOException {
@@ -166,6 +213,9 @@ public final class ApplicationMasterService implements Service {
         jsonObj.addProperty("appId", Integer.parseInt(System.getenv(EnvKeys.WEAVE_APP_ID)));
         jsonObj.addProperty("appIdClusterTime", Long.parseLong(System.getenv(EnvKeys.WEAVE_APP_ID_CLUSTER_TIME)));
         jsonObj.addProperty("containerId", masterContainerId);
+        // Load of runnables, which is refreshed on every heartbeat of the application master.
+        jsonObj.add("loadReports", LoadReports.toJson(runningContainers.getLoadReports()));
+        jsonObj.add("launchLatency", getLaunchLatency());
         return jsonObj;
       }
     };
@@ -181,8 +231,16 @@ public final class ApplicationMasterService implements Service {
   private void doStart() throws Exception {
     LOG.info("Start application master with spec: " + WeaveSpecificationAdapter.create().toJson(weaveSpec));
 
-    instanceChangeExecutor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("instanceChanger"));
-    yarnRPC = YarnRPC.create(yarnConf);
+    containerManagers = new ContainerManagers(YarnRPC.create(yarnConf), yarnConf);
+    dataHosts = new DataHosts(yarnConf, TimeUnit.SECONDS.toMillis(Constants.DATA_HOSTS_REFRESH_SECONDS));
+    launchExecutor = Executors.newFixedThreadPool(Constants.MAX_CONCURRENT_LAUNCHES,
+                                                  Threads.createDaemonThreadFactory("container-launcher-%d"));
+    localFiles = ImmutableList.copyOf(loadLocalFiles());
+    containerEnv = ImmutableMap.<String, String>builder()
+      .put(EnvKeys.WEAVE_APP_RUN_ID, runId.getId())
+      .put(EnvKeys.WEAVE_ZK_CONNECT, zkClient.getConnectString())
+      .put(EnvKeys.WEAVE_LOG_KAFKA_ZK, getKafkaZKConnect())
+      .build();
 
     amrmClient.init(yarnConf);
     amrmClient.start();
@@ -206,7 +264,22 @@ public final class ApplicationMasterService implements Service {
     kafkaServer.startAndWait();
     LOG.info("Kafka server started");
 
-    runnableContainerRequests = initContainerRequests();
+    controlClient.startAndWait();
+
+    // Removes messages that are expired, which could be left behind if the receiver is gone or is slow.
+    // The application master is the only one sweeping, for both its own messages and the containers' messages.
+    messageSweeper = ZKMessages.scheduleSweep(zkClient,
+                                              ImmutableList.of("/" + runId.getId() + "/messages",
+                                                               "/" + runId.getId() + "/runnables/*/*/messages"),
+                                              Constants.MESSAGE_SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+    for (RuntimeSpecification runtimeSpec : weaveSpec.getRunnables().values()) {
+      if (runtimeSpec.getResourceSpecification().getWarmPoolSize() > 0) {
+        warmPool.watch(runtimeSpec.getName());
+      }
+      // Starts looking up data hosts ahead, so that they are likely known by the time containers are requested.
+      dataHosts.get(runtimeSpec.getName(), runtimeSpec.getResourceSpecification().getDataPaths());
+    }
   }
 
   private void doStop() throws Exception {
@@ -214,20 +287,42 @@ public final class ApplicationMasterService implements Service {
 
     LOG.info("Stop application master with spec: " + WeaveSpecificationAdapter.create().toJson(weaveSpec));
 
-    instanceChangeExecutor.shutdownNow();
+    if (messageSweeper != null) {
+      messageSweeper.cancel();
+    }
+    for (WarmPool.Standby standby : warmPool.close()) {
+      stopStandby(standby);
+    }
+    // Finishes launches in progress, so that no container is started after stopping all containers.
+    launchExecutor.shutdown();
+    launchExecutor.awaitTermination(Constants.CONTAINER_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
 
     Set<ContainerId> ids = Sets.newHashSet(runningContainers.getContainerIds());
-    runningContainers.stopAll();
+    Set<RunId> killed = runningContainers.stopAll(Constants.CONTAINER_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    if (!killed.isEmpty()) {
+      LOG.warn("Containers killed as they are not stopped in {} seconds: {}",
+               Constants.CONTAINER_STOP_TIMEOUT_SECONDS, killed);
+    }
+    controlClient.stopAndWait();
 
-    int count = 0;
-    while (!ids.isEmpty() && count++ < 5) {
+    // Waits for completion of containers, so that they are not abandoned.
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Constants.CONTAINER_STOP_TIMEOUT_SECONDS);
+    while (!ids.isEmpty() && System.currentTimeMillis() < deadline) {
       AllocateResponse allocateResponse = amrmClient.allocate(0.0f);
       for (ContainerStatus status : allocateResponse.getAMResponse().getCompletedContainersStatuses()) {
         ids.remove(status.getContainerId());
+        runningContainers.handleCompleted(status.getContainerId(), status.getExitStatus());
+      }
+      if (!ids.isEmpty()) {
+        TimeUnit.SECONDS.sleep(1);
       }
-      TimeUnit.SECONDS.sleep(1);
+    }
+    if (!ids.isEmpty()) {
+      LOG.warn("Containers not completed when application master stops: {}", ids);
     }
 
+    containerManagers.close();
+    dataHosts.close();
     amrmClient.unregisterApplicationMaster(FinalApplicationStatus.SUCCEEDED, null, null);
     amrmClient.stop();
 
@@ -290,23 +385,37 @@ public final class ApplicationMasterService implements Service {
 
   private void doRun() throws Exception {
     // The main loop
-    Map.Entry<Resource, ? extends Collection<RuntimeSpecification>> currentRequest = null;
-    Queue<ProvisionRequest> provisioning = Lists.newLinkedList();
+    long allocateInterval = MIN_ALLOCATE_INTERVAL_MILLIS;
     while (isRunning()) {
-      // If nothing is in provisioning, and no pending request, move to next one
-      while (provisioning.isEmpty() && currentRequest == null && !runnableContainerRequests.isEmpty()) {
-        currentRequest = runnableContainerRequests.peek().takeRequest();
-        if (currentRequest == null) {
-          // All different types of resource request from current order is done, move to next one
-          // TODO: Need to handle order type as well
-          runnableContainerRequests.poll();
+      // Requests for containers of all runnables in orders that are ready to start.
+      for (List<String> runnableNames = planner.nextOrder(); !runnableNames.isEmpty();
+           runnableNames = planner.nextOrder()) {
+        for (String runnableName : runnableNames) {
+          warmPool.touch(runnableName, System.currentTimeMillis());
+          addContainerRequest(runnableName);
         }
       }
-      // Nothing in provision, makes the next batch of provision request
-      if (provisioning.isEmpty() && currentRequest != null) {
-        provisioning.addAll(addContainerRequests(currentRequest.getKey(), currentRequest.getValue()));
-        currentRequest = null;
+      // Restarts instances of which the backoff is over.
+      Iterator<PendingRestart> restarts = pendingRestarts.iterator();
+      while (restarts.hasNext()) {
+        PendingRestart restart = restarts.next();
+        if (restart.restartTime <= System.currentTimeMillis()) {
+          restarts.remove();
+          // The instance id stays reserved, so that the instance is restarted with the same id.
+          runningContainers.readyForRestart(restart.runnableName, restart.instanceId);
+          reconcileInstances(restart.runnableName);
+        }
       }
+      // Requests for containers for instance changes. Deferred if the runnable is still being provisioned.
+      Iterator<String> iterator = pendingInstanceChanges.iterator();
+      while (iterator.hasNext()) {
+        String runnableName = iterator.next();
+        if (!planner.isProvisioning(runnableName)) {
+          iterator.remove();
+          addContainerRequest(runnableName);
+        }
+      }
+      maintainWarmPools();
 
       // Now call allocate
       AllocateResponse allocateResponse = amrmClient.allocate(0.0f);
@@ -314,14 +423,30 @@ public final class ApplicationMasterService implements Service {
       AMResponse amResponse = allocateResponse.getAMResponse();
 
       // Assign runnable to container
-      launchRunnable(amResponse.getAllocatedContainers(), provisioning);
+      launchRunnable(amResponse.getAllocatedContainers());
       handleCompleted(amResponse.getCompletedContainersStatuses());
 
-      if (provisioning.isEmpty() && runnableContainerRequests.isEmpty() && runningContainers.isEmpty()) {
+      if (!planner.isProvisioning() && !planner.hasPendingOrders()
+        && pendingInstanceChanges.isEmpty() && runningContainers.isEmpty()) {
         LOG.info("All containers completed. Shutting down application master.");
         break;
       }
-      TimeUnit.SECONDS.sleep(1);
+
+      // Heartbeats fast while provisioning or containers are changing, otherwise backs off exponentially.
+      if (planner.isProvisioning() || planner.hasPendingOrders() || !pendingInstanceChanges.isEmpty()
+        || !amResponse.getAllocatedContainers().isEmpty() || !amResponse.getCompletedContainersStatuses().isEmpty()) {
+        allocateInterval = MIN_ALLOCATE_INTERVAL_MILLIS;
+      } else {
+        allocateInterval = Math.min(allocateInterval * 2, MAX_ALLOCATE_INTERVAL_MILLIS);
+      }
+      for (PendingRestart restart : pendingRestarts) {
+        allocateInterval = Math.max(MIN_ALLOCATE_INTERVAL_MILLIS,
+                                    Math.min(allocateInterval, restart.restartTime - System.currentTimeMillis()));
+      }
+      if (allocateWakeup.tryAcquire(allocateInterval, TimeUnit.MILLISECONDS)) {
+        allocateInterval = MIN_ALLOCATE_INTERVAL_MILLIS;
+        allocateWakeup.drainPermits();
+      }
     }
   }
 
@@ -330,98 +455,370 @@ public final class ApplicationMasterService implements Service {
    */
   private void handleCompleted(List<ContainerStatus> completedContainersStatuses) {
     for (ContainerStatus status : completedContainersStatuses) {
-      runningContainers.handleCompleted(status.getContainerId(), status.getExitStatus());
+      ContainerId containerId = status.getContainerId();
+      if (warmPool.remove(containerId)) {
+        continue;
+      }
+      String runnableName = runningContainers.getRunnableName(containerId);
+      ResourceSpecification resourceSpec = runnableName == null
+        ? null : weaveSpec.getRunnables().get(runnableName).getResourceSpecification();
+      long now = System.currentTimeMillis();
+      boolean restart = resourceSpec != null
+        && restartTracker.isRestartAllowed(runnableName, resourceSpec, status.getExitStatus(), now);
+      int instanceId = runningContainers.handleCompleted(containerId, status.getExitStatus(), restart);
+      if (instanceId >= 0) {
+        long backoff = restartTracker.recordRestart(runnableName, resourceSpec, now);
+        LOG.info("Container {} of runnable {} completed with exit status {}. Restarting instance {} in {} ms.",
+                 containerId, runnableName, status.getExitStatus(), instanceId, backoff);
+        pendingRestarts.add(new PendingRestart(runnableName, instanceId, now + backoff));
+      }
     }
   }
 
-  private Queue<RunnableContainerRequest> initContainerRequests() {
-    // Orderly stores container requests.
-    Queue<RunnableContainerRequest> requests = Lists.newLinkedList();
-    // For each order in the weaveSpec, create container request for each runnable.
-    for (WeaveSpecification.Order order : weaveSpec.getOrders()) {
-      // Group container requests based on resource requirement.
-      ImmutableMultimap.Builder<Resource, RuntimeSpecification> builder = ImmutableMultimap.builder();
-      for (String runnableName : order.getNames()) {
-        RuntimeSpecification runtimeSpec = weaveSpec.getRunnables().get(runnableName);
-        Resource capability = createCapability(runtimeSpec.getResourceSpecification());
-        builder.put(capability, runtimeSpec);
-      }
-      requests.add(new RunnableContainerRequest(order.getType(), builder.build()));
+  /**
+   * Adds {@link AMRMClient.ContainerRequest} for the containers that the given runnable is short of.
+   */
+  private void addContainerRequest(String runnableName) {
+    int containerCount = instanceCounts.get(runnableName) - runningContainers.count(runnableName);
+    runningContainers.trimRestarts(runnableName, Math.max(containerCount, 0));
+    if (containerCount <= 0) {
+      // The desired count has been lowered since the request was made.
+      return;
     }
-    return requests;
+
+    ProvisionRequest request = createProvisionRequest(runnableName, planner.getPriority(runnableName),
+                                                      false, containerCount);
+    LOG.info("Request for container: " + request.getRequest());
+    planner.add(request);
+    amrmClient.addContainerRequest(request.getRequest());
   }
 
   /**
-   * Adds {@link AMRMClient.ContainerRequest}s with the given resource capability for each runtime.
+   * Keeps the warm pools of started runnables filled. Pools that are idle, or of runnables that have completed,
+   * are deactivated and their standby containers are stopped.
    */
-  private Queue<ProvisionRequest> addContainerRequests(Resource capability,
-                                                       Collection<RuntimeSpecification> runtimeSpecs) {
-    Queue<ProvisionRequest> requests = Lists.newLinkedList();
-    for (RuntimeSpecification runtimeSpec : runtimeSpecs) {
-      // TODO: Allow user to set priority?
-      Priority priority = Records.newRecord(Priority.class);
-      priority.setPriority(0);
+  private void maintainWarmPools() {
+    long now = System.currentTimeMillis();
+    for (String runnableName : planner.getStartedRunnables()) {
+      ResourceSpecification resourceSpec = weaveSpec.getRunnables().get(runnableName).getResourceSpecification();
+      if (resourceSpec.getWarmPoolSize() <= 0) {
+        continue;
+      }
+      int priority = planner.getStandbyPriority(runnableName);
+      boolean completed = runningContainers.count(runnableName) == 0
+        && !planner.isProvisioning(runnableName)
+        && !pendingInstanceChanges.contains(runnableName);
+      long idleMillis = TimeUnit.SECONDS.toMillis(resourceSpec.getWarmPoolIdleSeconds());
+
+      if (completed || !warmPool.isActive(runnableName, idleMillis, now)) {
+        ProvisionRequest request = planner.remove(priority);
+        if (request != null) {
+          amrmClient.removeContainerRequest(request.cancel());
+        }
+        for (WarmPool.Standby standby : warmPool.deactivate(runnableName)) {
+          LOG.info("Stopping idle standby container {} of runnable {}", standby.getContainerId(), runnableName);
+          stopStandby(standby);
+        }
+        continue;
+      }
+
+      int containerCount = resourceSpec.getWarmPoolSize() - warmPool.size(runnableName);
+      if (containerCount > 0 && planner.get(priority) == null) {
+        ProvisionRequest request = createProvisionRequest(runnableName, priority, true, containerCount);
+        LOG.info("Request for standby container: " + request.getRequest());
+        planner.add(request);
+        amrmClient.addContainerRequest(request.getRequest());
+      }
+    }
+  }
 
-      String name = runtimeSpec.getName();
-      int containerCount = instanceCounts.get(name) - runningContainers.count(name);
-      AMRMClient.ContainerRequest request = new AMRMClient.ContainerRequest(capability, null, null,
-                                                                            priority, containerCount);
-      LOG.info("Request for container: " + request);
-      requests.add(new ProvisionRequest(request, runtimeSpec, runningContainers.getBaseRunId(name)));
-      amrmClient.addContainerRequest(request);
+  private ProvisionRequest createProvisionRequest(String runnableName, int priorityValue,
+                                                  boolean standby, int containerCount) {
+    RuntimeSpecification runtimeSpec = weaveSpec.getRunnables().get(runnableName);
+    ResourceSpecification resourceSpec = runtimeSpec.getResourceSpecification();
+    Priority priority = Records.newRecord(Priority.class);
+    priority.setPriority(priorityValue);
+
+    // Placement preferences. Racks of the preferred hosts are included as YARN needs them for host locality.
+    Set<String> hosts = Sets.newLinkedHashSet(resourceSpec.getHosts());
+    hosts.addAll(dataHosts.get(runnableName, resourceSpec.getDataPaths()));
+    if (resourceSpec.isSpread() && hosts.size() > containerCount) {
+      hosts.removeAll(runningContainers.getHosts(runnableName));
     }
-    return requests;
+    Set<String> racks = Sets.newLinkedHashSet(resourceSpec.getRacks());
+    for (String host : hosts) {
+      racks.add(RackResolver.resolve(yarnConf, host).getNetworkLocation());
+    }
+
+    return new ProvisionRequest(runtimeSpec, runningContainers.getBaseRunId(runnableName),
+                                createCapability(resourceSpec), priority,
+                                hosts.isEmpty() ? null : hosts.toArray(new String[hosts.size()]),
+                                racks.isEmpty() ? null : racks.toArray(new String[racks.size()]),
+                                standby, containerCount);
   }
 
   /**
-   * Launches runnables in the provisioned containers.
+   * Launches runnables in the provisioned containers. Containers are matched to requests by priority and capability.
    */
-  private void launchRunnable(List<Container> containers, Queue<ProvisionRequest> provisioning) {
+  private void launchRunnable(List<Container> containers) {
     for (Container container : containers) {
-      ProvisionRequest provisionRequest = provisioning.peek();
+      ProvisionRequest provisionRequest = planner.match(container);
       if (provisionRequest == null) {
         LOG.info("Nothing to run in container, releasing it: " + container);
         amrmClient.releaseAssignedContainer(container.getId());
         continue;
       }
-
       String runnableName = provisionRequest.getRuntimeSpec().getName();
-      int containerCount = instanceCounts.get(provisionRequest.getRuntimeSpec().getName());
-      int instanceId = runningContainers.count(runnableName);
+      if (!isPlacementAccepted(provisionRequest, container)) {
+        if (provisionRequest.rejected() < Constants.MAX_PLACEMENT_REJECTIONS) {
+          LOG.info("Container does not satisfy placement of runnable " + runnableName
+                     + ", releasing it: " + container);
+          amrmClient.releaseAssignedContainer(container.getId());
+          // Resend the outstanding request, as the resource manager has counted the released container as allocated.
+          amrmClient.removeContainerRequest(provisionRequest.single());
+          amrmClient.addContainerRequest(provisionRequest.single());
+          continue;
+        }
+        // Placement preferences cannot be satisfied by the cluster, takes containers where they are given.
+        LOG.warn("Relaxing placement of runnable {} after {} containers rejected, accepting {}",
+                 runnableName, Constants.MAX_PLACEMENT_REJECTIONS, container);
+        provisionRequest.relax();
+      }
+      amrmClient.removeContainerRequest(provisionRequest.received());
+
+      if (provisionRequest.isStandby()) {
+        LOG.info("Starting standby container of runnable " + runnableName + " in container " + container);
+        warmPool.launching(runnableName);
+        launchStandby(container, runnableName);
+      } else if (!planner.isInstanceNeeded(runnableName)) {
+        // The desired count has been lowered while provisioning.
+        LOG.info("Runnable " + runnableName + " already has " + runningContainers.count(runnableName)
+                   + " instances, releasing " + container);
+        amrmClient.releaseAssignedContainer(container.getId());
+        if (!provisionRequest.isCompleted()) {
+          amrmClient.removeContainerRequest(provisionRequest.cancel());
+        }
+      } else {
+        // Instances waiting for restart take the containers first, so that they keep their instance ids.
+        String host = container.getNodeId().getHost();
+        int instanceId = runningContainers.takeRestartInstanceId(runnableName, host);
+        boolean restart = instanceId >= 0;
+        if (!restart) {
+          instanceId = runningContainers.reserveInstanceId(runnableName, host);
+        }
+        LOG.info("Starting runnable " + runnableName + " in container " + container);
+        eventLog.publish(WeaveEvents.containerAllocated(runnableName, container.getId().toString()));
+        launchContainer(container, provisionRequest.getBaseRunId(), runnableName, instanceId, restart);
+      }
 
-      RunId containerRunId = RunIds.fromString(provisionRequest.getBaseRunId().getId() + "-" + instanceId);
-      ProcessLauncher processLauncher = new DefaultProcessLauncher(
-        container, yarnRPC, yarnConf, getLocalFiles(),
-        ImmutableMap.<String, String>builder()
-         .put(EnvKeys.WEAVE_APP_RUN_ID, runId.getId())
-         .put(EnvKeys.WEAVE_ZK_CONNECT, zkClient.getConnectString())
-         .put(EnvKeys.WEAVE_LOG_KAFKA_ZK, getKafkaZKConnect())
-         .build()
-        );
+      if (provisionRequest.isCompleted()) {
+        LOG.info("Runnable " + runnableName + " provisioned with " + runningContainers.count(runnableName)
+                   + " instances and " + warmPool.size(runnableName) + " standby containers.");
+        planner.remove(container.getPriority().getPriority());
+      }
+    }
+  }
 
-      LOG.info("Starting runnable " + runnableName + " in container " + container);
+  /**
+   * Checks if the given container satisfies the placement preferences of the runnable. With strict locality,
+   * the container must be on one of the preferred hosts or racks. With spreading, the container must not be on
+   * a host that already runs an instance, unless all hosts in the cluster are used. Containers are always accepted
+   * once the placement of the request is relaxed.
+   */
+  private boolean isPlacementAccepted(ProvisionRequest provisionRequest, Container container) {
+    if (provisionRequest.isRelaxed()) {
+      return true;
+    }
+    ResourceSpecification resourceSpec = provisionRequest.getRuntimeSpec().getResourceSpecification();
+    String host = container.getNodeId().getHost();
+    if (!resourceSpec.isRelaxLocality() && !isPreferredLocation(provisionRequest, resourceSpec.getRacks(), host)) {
+      return false;
+    }
+    if (resourceSpec.isSpread()) {
+      Set<String> usedHosts = runningContainers.getHosts(provisionRequest.getRuntimeSpec().getName());
+      return !usedHosts.contains(host) || usedHosts.size() >= amrmClient.getClusterNodeCount();
+    }
+    return true;
+  }
 
-      WeaveContainerLauncher launcher = new WeaveContainerLauncher(weaveSpec.getRunnables().get(runnableName),
-                                                                   containerRunId, processLauncher,
-                                                                   ZKClients.namespace(zkClient,
-                                                                                       getZKNamespace(runnableName)),
-                                                                   runnableArgs.get(runnableName),
-                                                                   instanceId, instanceCounts.get(runnableName));
-      runningContainers.add(runnableName, container.getId(),
-                            launcher.start(ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout",
-                                           ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr"));
+  /**
+   * Checks if the given host is one of the preferred hosts of the request or is in one of the preferred racks.
+   * Racks added to the request for the preferred hosts don't count, as they are only there for YARN.
+   * @return {@code true} if it is, or if there is neither host nor rack preference.
+   */
+  private boolean isPreferredLocation(ProvisionRequest provisionRequest, Set<String> racks, String host) {
+    if (!provisionRequest.hasHosts() && racks.isEmpty()) {
+      return true;
+    }
+    return provisionRequest.isPreferredHost(host)
+      || (!racks.isEmpty() && racks.contains(RackResolver.resolve(yarnConf, host).getNetworkLocation()));
+  }
+
+  /**
+   * Starts a runnable in the given container in the background, as starting a container involves blocking RPC
+   * to the node manager.
+   * @param restart {@code true} if the instance id is taken from an instance waiting for restart.
+   */
+  private void launchContainer(final Container container, RunId baseRunId,
+                               final String runnableName, final int instanceId, final boolean restart) {
+    final long allocatedTime = System.currentTimeMillis();
+    final RunId containerRunId = RunIds.fromString(baseRunId.getId() + "-" + instanceId);
+    final int instanceCount = instanceCounts.get(runnableName);
 
-      // Seems like a bug in amrm causing manual removal is needed.
-      amrmClient.removeContainerRequest(provisionRequest.getRequest());
+    launchExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ProcessLauncher processLauncher = new DefaultProcessLauncher(container, containerManagers,
+                                                                       localFiles, containerEnv);
+          WeaveContainerLauncher launcher = new WeaveContainerLauncher(weaveSpec.getRunnables().get(runnableName),
+                                                                       containerRunId, processLauncher,
+                                                                       ZKClients.namespace(zkClient,
+                                                                                  getZKNamespace(runnableName)),
+                                                                       runnableArgs.get(runnableName),
+                                                                       instanceId, instanceCount, eventLog);
+          runningContainers.add(runnableName, instanceId, container.getId(),
+                                launcher.start(container.getId().toString(),
+                                               ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout",
+                                               ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr"));
+
+          planner.launched(runnableName);
+
+          long latency = System.currentTimeMillis() - allocatedTime;
+          long count = launchCount.incrementAndGet();
+          long total = launchTotalMillis.addAndGet(latency);
+          long max = launchMaxMillis.get();
+          while (latency > max && !launchMaxMillis.compareAndSet(max, latency)) {
+            max = launchMaxMillis.get();
+          }
+          LOG.info("Runnable {} started in container {} in {} ms. Average launch time is {} ms over {} launches.",
+                   runnableName, container.getId(), latency, total / count, count);
+        } catch (Throwable t) {
+          LOG.error("Failed to start runnable {} in container {}", runnableName, container.getId(), t);
+          releaseInstanceId(runnableName, instanceId, restart);
+          amrmClient.releaseAssignedContainer(container.getId());
+          // Asks the main loop to request a replacement container.
+          pendingInstanceChanges.add(runnableName);
+          allocateWakeup.release();
+        }
+      }
+    });
+  }
 
-      if (runningContainers.count(runnableName) == containerCount) {
-        LOG.info("Runnable " + runnableName + " fully provisioned with " + containerCount + " instances.");
-        provisioning.poll();
+  /**
+   * Starts a standby container for the given runnable in the background.
+   */
+  private void launchStandby(final Container container, final String runnableName) {
+    launchExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        WarmPool.Standby standby;
+        try {
+          ProcessLauncher processLauncher = new DefaultProcessLauncher(container, containerManagers,
+                                                                       localFiles, containerEnv);
+          // Run id and instance id are given when the standby container is activated.
+          ProcessLauncher.ProcessController processController = WeaveContainerLauncher.startStandby(
+            weaveSpec.getRunnables().get(runnableName), processLauncher, runnableArgs.get(runnableName),
+            ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout",
+            ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr");
+          standby = new WarmPool.Standby(container.getId(), container.getNodeId().getHost(), processController);
+        } catch (Throwable t) {
+          LOG.error("Failed to start standby container {} of runnable {}", container.getId(), runnableName, t);
+          warmPool.launchFailed(runnableName);
+          amrmClient.releaseAssignedContainer(container.getId());
+          return;
+        }
+        if (!warmPool.launched(runnableName, standby)) {
+          LOG.info("Warm pool of runnable {} deactivated, stopping standby container {}",
+                   runnableName, container.getId());
+          standby.getProcessController().kill();
+        }
       }
+    });
+  }
+
+  /**
+   * Activates a standby container of the given runnable as a new instance.
+   * @return {@code false} if there is no standby container ready for activation.
+   */
+  private boolean activateStandby(final String runnableName, RunId baseRunId) {
+    final WarmPool.Standby standby = warmPool.take(runnableName);
+    if (standby == null) {
+      return false;
     }
+    int restartInstanceId = runningContainers.takeRestartInstanceId(runnableName, standby.getHost());
+    final boolean restart = restartInstanceId >= 0;
+    final int instanceId = restart
+      ? restartInstanceId : runningContainers.reserveInstanceId(runnableName, standby.getHost());
+    final int instanceCount = instanceCounts.get(runnableName);
+    final RunId containerRunId = RunIds.fromString(baseRunId.getId() + "-" + instanceId);
+    final String containerId = standby.getContainerId().toString();
+    LOG.info("Activating standby container {} as instance {} of runnable {}", containerId, instanceId, runnableName);
+
+    Futures.addCallback(
+      StandbyActivation.activate(zkClient, StandbyActivation.getPath(runId, runnableName, containerId),
+                                 new StandbyActivation(containerRunId, instanceId, instanceCount)),
+      new FutureCallback<StandbyActivation>() {
+        @Override
+        public void onSuccess(StandbyActivation result) {
+          WeaveContainerController controller = WeaveContainerLauncher.activateStandby(
+            weaveSpec.getRunnables().get(runnableName), containerRunId,
+            ZKClients.namespace(zkClient, getZKNamespace(runnableName)), eventLog,
+            containerId, standby.getProcessController());
+          runningContainers.add(runnableName, instanceId, standby.getContainerId(), controller);
+          planner.launched(runnableName);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("Failed to activate standby container {} of runnable {}", containerId, runnableName, t);
+          releaseInstanceId(runnableName, instanceId, restart);
+          stopStandby(standby);
+          pendingInstanceChanges.add(runnableName);
+          allocateWakeup.release();
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    return true;
+  }
+
+  /**
+   * Releases the instance id reserved for a launch that failed. The instance id of an instance being restarted is
+   * kept for the replacement container.
+   */
+  private void releaseInstanceId(String runnableName, int instanceId, boolean restart) {
+    if (restart) {
+      runningContainers.readyForRestart(runnableName, instanceId);
+    } else {
+      runningContainers.releaseInstanceId(runnableName, instanceId);
+    }
+  }
+
+  /**
+   * Stops a standby container in the background.
+   */
+  private void stopStandby(final WarmPool.Standby standby) {
+    launchExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          standby.getProcessController().kill();
+        } catch (Throwable t) {
+          LOG.warn("Failed to stop standby container {}", standby.getContainerId(), t);
+        }
+      }
+    });
   }
 
-  private List<LocalFile> getLocalFiles() {
+  private JsonElement getLaunchLatency() {
+    long count = launchCount.get();
+    JsonObject json = new JsonObject();
+    json.addProperty("count", count);
+    json.addProperty("averageMillis", count == 0 ? 0 : launchTotalMillis.get() / count);
+    json.addProperty("maxMillis", launchMaxMillis.get());
+    return json;
+  }
+
+  private List<LocalFile> loadLocalFiles() {
     try {
       Reader reader = Files.newReader(new File("localFiles.json"), Charsets.UTF_8);
       try {
@@ -496,18 +893,15 @@ public final class ApplicationMasterService implements Service {
   }
 
   /**
-   * Attempts to change the number of running instances.
+   * Attempts to change the number of running instances. The new count is recorded right away and containers are
+   * reconciled with it asynchronously, hence changes of other runnables are not blocked. The message dispatcher
+   * doesn't hold back instance changes behind earlier messages of the same runnable, so a newer count supersedes
+   * stops and provisioning still in flight for an older one.
    * @return {@code true} if the message does requests for changes in number of running instances of a runnable,
    *         {@code false} otherwise.
    */
   private boolean handleSetInstances(final Message message, final Runnable completion) {
-    if (message.getType() != Message.Type.SYSTEM || message.getScope() != Message.Scope.RUNNABLE) {
-      return false;
-    }
-
-    Command command = message.getCommand();
-    Map<String, String> options = command.getOptions();
-    if (!"instances".equals(command.getCommand()) || !options.containsKey("count")) {
+    if (!SystemMessages.isSetInstances(message)) {
       return false;
     }
 
@@ -517,56 +911,62 @@ public final class ApplicationMasterService implements Service {
       return false;
     }
 
-    final int newCount = Integer.parseInt(options.get("count"));
-    final int oldCount = instanceCounts.get(runnableName);
-
-    if (newCount == oldCount) {   // Nothing to do
-      return true;
+    final int newCount = Integer.parseInt(message.getCommand().getOptions().get("count"));
+    final int oldCount = instanceCounts.put(runnableName, newCount);
+    if (newCount != oldCount) {
+      LOG.info("Received change instances request for {}. From {} to {}.", runnableName, oldCount, newCount);
+      eventLog.publish(WeaveEvents.instancesChanged(runnableName, newCount));
     }
 
-    LOG.info("Received change instances request. From {} to {}.", oldCount, newCount);
-
-    instanceChangeExecutor.execute(new Runnable() {
+    reconcileInstances(runnableName).addListener(new Runnable() {
       @Override
       public void run() {
-        try {
-          // Wait until running container count is the same as old count
-          while (isRunning() && oldCount != runningContainers.count(runnableName)) {
-            runningContainers.waitForChange();
-          }
-          instanceCounts.put(runnableName, newCount);
+        LOG.info("Change instances completed for {}. From {} to {}.", runnableName, oldCount, newCount);
+        runningContainers.sendToRunnable(runnableName, message, completion);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return true;
+  }
 
-          try {
-            if (newCount < oldCount) {
-              // Shutdown some running containers
-              for (int i = 0; i < oldCount - newCount; i++) {
-                runningContainers.removeLast(runnableName);
-              }
-            } else {
-              WeaveSpecification.Order order = Iterables.find(weaveSpec.getOrders(),
-                                                              new Predicate<WeaveSpecification.Order>() {
-                @Override
-                public boolean apply(WeaveSpecification.Order input) {
-                  return (input.getNames().contains(runnableName));
-                }
-              });
-
-              RuntimeSpecification runtimeSpec = weaveSpec.getRunnables().get(runnableName);
-              Resource capability = createCapability(runtimeSpec.getResourceSpecification());
-              runnableContainerRequests.add(
-                new RunnableContainerRequest(order.getType(), ImmutableMultimap.of(capability, runtimeSpec)));
-            }
-          } finally {
-            LOG.info("Change instances completed. From {} to {}.", oldCount, newCount);
-            runningContainers.sendToRunnable(runnableName, message, completion);
-          }
-        } catch (InterruptedException e) {
-          // If the wait is being interrupted, discard the message.
-          completion.run();
+  /**
+   * Reconciles the running containers of the given runnable with its desired number of instances. Extra containers
+   * are stopped in the background. Missing containers are activated from the warm pool if available, otherwise they
+   * are requested for provisioning in the main loop.
+   * @return A {@link ListenableFuture} that completes when the extra containers are stopped.
+   */
+  private ListenableFuture<?> reconcileInstances(final String runnableName) {
+    int running = runningContainers.count(runnableName);
+    int desired = instanceCounts.get(runnableName);
+    // Instances waiting for restart are not counted as running, and those that are no longer needed are dropped.
+    runningContainers.trimRestarts(runnableName, Math.max(desired - running, 0));
+    if (running != desired) {
+      warmPool.touch(runnableName, System.currentTimeMillis());
+    }
+
+    if (running > desired) {
+      return runningContainers.scaleDown(runnableName, new Supplier<Integer>() {
+        @Override
+        public Integer get() {
+          return instanceCounts.get(runnableName);
         }
+      }, Constants.MAX_CONCURRENT_INSTANCE_STOPS);
+    }
+
+    if (running < desired) {
+      // Activates standby containers first, then requests for the rest.
+      int missing = desired - running;
+      RunId baseRunId = runningContainers.getBaseRunId(runnableName);
+      while (missing > 0 && activateStandby(runnableName, baseRunId)) {
+        missing--;
       }
-    });
-    return true;
+      if (missing > 0) {
+        // The number of containers to request is computed when the request is being provisioned.
+        pendingInstanceChanges.add(runnableName);
+      }
+      // Wakes up the main loop to provision containers and to replenish the warm pool.
+      allocateWakeup.release();
+    }
+    return Futures.immediateFuture(null);
   }
 
   private Runnable getMessageCompletion(final String messageId, final SettableFuture<String> future) {
@@ -641,6 +1041,21 @@ public final class ApplicationMasterService implements Service {
     serviceDelegate.addListener(listener, executor);
   }
 
+  /**
+   * An instance waiting for restart.
+   */
+  private static final class PendingRestart {
+    private final String runnableName;
+    private final int instanceId;
+    private final long restartTime;
+
+    PendingRestart(String runnableName, int instanceId, long restartTime) {
+      this.runnableName = runnableName;
+      this.instanceId = instanceId;
+      this.restartTime = restartTime;
+    }
+  }
+
   /**
    * A private class for service lifecycle. It's done this way so that we can have {@link ZKServiceDecorator} to
    * wrap around this to reflect status in ZK.
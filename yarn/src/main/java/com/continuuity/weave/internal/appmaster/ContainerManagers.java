@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.google.common.collect.Maps;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.yarn.api.ContainerManager;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.ipc.YarnRPC;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches {@link ContainerManager} proxies by node manager, so that launching and killing containers on the same
+ * node manager reuse the same proxy.
+ */
+final class ContainerManagers {
+
+  private final YarnRPC yarnRPC;
+  private final YarnConfiguration yarnConf;
+  private final ConcurrentMap<String, ContainerManager> proxies;
+
+  ContainerManagers(YarnRPC yarnRPC, YarnConfiguration yarnConf) {
+    this.yarnRPC = yarnRPC;
+    this.yarnConf = yarnConf;
+    this.proxies = Maps.newConcurrentMap();
+  }
+
+  /**
+   * Returns the {@link ContainerManager} of the given node manager.
+   */
+  ContainerManager get(NodeId nodeId) {
+    String cmIpPortStr = String.format("%s:%d", nodeId.getHost(), nodeId.getPort());
+    ContainerManager containerManager = proxies.get(cmIpPortStr);
+    if (containerManager != null) {
+      return containerManager;
+    }
+
+    InetSocketAddress cmAddress = NetUtils.createSocketAddr(cmIpPortStr);
+    containerManager = (ContainerManager) yarnRPC.getProxy(ContainerManager.class, cmAddress, yarnConf);
+    ContainerManager existing = proxies.putIfAbsent(cmIpPortStr, containerManager);
+    if (existing != null) {
+      yarnRPC.stopProxy(containerManager, yarnConf);
+      return existing;
+    }
+    return containerManager;
+  }
+
+  /**
+   * Stops all proxies created.
+   */
+  void close() {
+    Iterator<ContainerManager> iterator = proxies.values().iterator();
+    while (iterator.hasNext()) {
+      yarnRPC.stopProxy(iterator.next(), yarnConf);
+      iterator.remove();
+    }
+  }
+}
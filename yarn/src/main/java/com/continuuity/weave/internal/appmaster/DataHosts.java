@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.common.Threads;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Caches the hosts storing blocks of the data paths of each runnable. Lookups are done in the background, so that
+ * the caller never blocks on the file system, and are repeated once the refresh interval has passed.
+ */
+final class DataHosts {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DataHosts.class);
+
+  private final Configuration conf;
+  private final long refreshMillis;
+  private final ConcurrentMap<String, Entry> entries;
+  private final ExecutorService executor;
+
+  DataHosts(Configuration conf, long refreshMillis) {
+    this.conf = conf;
+    this.refreshMillis = refreshMillis;
+    this.entries = Maps.newConcurrentMap();
+    this.executor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("data-hosts"));
+  }
+
+  /**
+   * Returns the hosts storing blocks of the given data paths of a runnable, as of the last lookup. A lookup is
+   * started in the background if there is none yet or if the last one is older than the refresh interval.
+   * @return Set of hosts, which is empty until the first lookup completes.
+   */
+  Set<String> get(final String runnableName, final Set<String> dataPaths) {
+    if (dataPaths.isEmpty()) {
+      return ImmutableSet.of();
+    }
+    Entry entry = entries.get(runnableName);
+    if (entry == null) {
+      entries.putIfAbsent(runnableName, new Entry());
+      entry = entries.get(runnableName);
+    }
+    if (entry.startLookup(System.currentTimeMillis())) {
+      final Entry lookupEntry = entry;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          lookupEntry.completeLookup(lookup(runnableName, dataPaths), System.currentTimeMillis());
+        }
+      });
+    }
+    return entry.getHosts();
+  }
+
+  /**
+   * Stops background lookups.
+   */
+  void close() {
+    executor.shutdownNow();
+  }
+
+  private Set<String> lookup(String runnableName, Set<String> dataPaths) {
+    Set<String> hosts = Sets.newLinkedHashSet();
+    for (String dataPath : dataPaths) {
+      try {
+        Path path = new Path(dataPath);
+        FileSystem fs = path.getFileSystem(conf);
+        FileStatus status = fs.getFileStatus(path);
+        FileStatus[] files = status.isDirectory() ? fs.listStatus(path) : new FileStatus[] { status };
+        for (FileStatus file : files) {
+          if (file.isDirectory()) {
+            continue;
+          }
+          for (BlockLocation location : fs.getFileBlockLocations(file, 0, file.getLen())) {
+            hosts.addAll(Arrays.asList(location.getHosts()));
+          }
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to get block locations of {} for runnable {}", dataPath, runnableName, e);
+      }
+    }
+    return ImmutableSet.copyOf(hosts);
+  }
+
+  /**
+   * Hosts of a runnable, together with the state of the lookup.
+   */
+  private final class Entry {
+    private Set<String> hosts = ImmutableSet.of();
+    private long lookupTime = -1;
+    private boolean lookingUp;
+
+    synchronized Set<String> getHosts() {
+      return hosts;
+    }
+
+    /**
+     * @return {@code true} if a lookup should be started, in which case no other lookup is started until
+     *         this one completes.
+     */
+    synchronized boolean startLookup(long now) {
+      if (lookingUp || (lookupTime >= 0 && now - lookupTime < refreshMillis)) {
+        return false;
+      }
+      lookingUp = true;
+      return true;
+    }
+
+    synchronized void completeLookup(Set<String> hosts, long now) {
+      this.hosts = hosts;
+      this.lookupTime = now;
+      this.lookingUp = false;
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package com.continuuity.weave.internal.appmaster;
 
 import com.continuuity.weave.api.LocalFile;
+import com.continuuity.weave.internal.Constants;
 import com.continuuity.weave.internal.EnvKeys;
 import com.continuuity.weave.internal.ProcessLauncher;
 import com.continuuity.weave.yarn.utils.YarnUtils;
@@ -24,7 +25,6 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.yarn.api.ContainerManager;
 import org.apache.hadoop.yarn.api.protocolrecords.GetContainerStatusRequest;
 import org.apache.hadoop.yarn.api.protocolrecords.GetContainerStatusResponse;
@@ -34,16 +34,14 @@ import org.apache.hadoop.yarn.api.records.Container;
 import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.ContainerState;
 import org.apache.hadoop.yarn.api.records.LocalResource;
-import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.exceptions.YarnRemoteException;
-import org.apache.hadoop.yarn.ipc.YarnRPC;
 import org.apache.hadoop.yarn.util.Records;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -51,18 +49,17 @@ import java.util.Map;
 final class DefaultProcessLauncher implements ProcessLauncher {
 
   private static final Logger LOG = LoggerFactory.getLogger(DefaultProcessLauncher.class);
+  private static final long KILL_POLL_INTERVAL_MILLIS = 500;
 
   private final Container container;
-  private final YarnRPC yarnRPC;
-  private final YarnConfiguration yarnConf;
+  private final ContainerManagers containerManagers;
   private final List<LocalFile> defaultLocalFiles;
   private final Map<String, String> defaultEnv;
 
-  DefaultProcessLauncher(Container container, YarnRPC yarnRPC, YarnConfiguration yarnConf,
+  DefaultProcessLauncher(Container container, ContainerManagers containerManagers,
                          Iterable<LocalFile> defaultLocalFiles, Map<String, String> defaultEnv) {
     this.container = container;
-    this.yarnRPC = yarnRPC;
-    this.yarnConf = yarnConf;
+    this.containerManagers = containerManagers;
     this.defaultEnv = ImmutableMap.copyOf(defaultEnv);
     this.defaultLocalFiles = ImmutableList.copyOf(defaultLocalFiles);
   }
@@ -76,9 +73,7 @@ final class DefaultProcessLauncher implements ProcessLauncher {
    * Helper to connect to container manager (node manager).
    */
   private ContainerManager connectContainerManager() {
-    String cmIpPortStr = String.format("%s:%d", container.getNodeId().getHost(), container.getNodeId().getPort());
-    InetSocketAddress cmAddress = NetUtils.createSocketAddr(cmIpPortStr);
-    return ((ContainerManager) yarnRPC.getProxy(ContainerManager.class, cmAddress, yarnConf));
+    return containerManagers.get(container.getNodeId());
   }
 
 
@@ -248,15 +243,28 @@ final class DefaultProcessLauncher implements ProcessLauncher {
       stopRequest.setContainerId(container.getId());
       try {
         containerManager.stopContainer(stopRequest);
-        boolean completed = false;
-        while (!completed) {
+        // Waits for the container to complete, polling with a delay, but no longer than the stop timeout.
+        long deadline = System.currentTimeMillis()
+          + TimeUnit.SECONDS.toMillis(Constants.CONTAINER_STOP_TIMEOUT_SECONDS);
+        while (true) {
           GetContainerStatusRequest statusRequest = Records.newRecord(GetContainerStatusRequest.class);
           statusRequest.setContainerId(container.getId());
           GetContainerStatusResponse statusResponse = containerManager.getContainerStatus(statusRequest);
           LOG.info("Container status: {} {}", statusResponse.getStatus(), statusResponse.getStatus().getDiagnostics());
 
-          completed = (statusResponse.getStatus().getState() == ContainerState.COMPLETE);
+          if (statusResponse.getStatus().getState() == ContainerState.COMPLETE) {
+            return;
+          }
+          if (System.currentTimeMillis() >= deadline) {
+            LOG.warn("Container {} not completed in {} seconds after kill.",
+                     container.getId(), Constants.CONTAINER_STOP_TIMEOUT_SECONDS);
+            return;
+          }
+          TimeUnit.MILLISECONDS.sleep(KILL_POLL_INTERVAL_MILLIS);
         }
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while waiting for container {} to complete.", container.getId());
+        Thread.currentThread().interrupt();
       } catch (YarnRemoteException e) {
         LOG.error("Fail to kill container.", e);
         throw Throwables.propagate(e);
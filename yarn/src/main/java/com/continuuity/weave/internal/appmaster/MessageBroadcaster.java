@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.internal.Constants;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.MessageCodec;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.zookeeper.CreateMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends a message to all instances of a runnable through a single message node under the runnable namespace.
+ * Each instance acknowledges the message by creating a child node named by its run id, hence completion is
+ * tracked with one children watch per message instead of one deletion watch per instance.
+ */
+final class MessageBroadcaster {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageBroadcaster.class);
+
+  private final ZKClient zkClient;
+  private final RunId appRunId;
+  private final Set<Broadcast> broadcasts;
+
+  MessageBroadcaster(ZKClient zkClient, RunId appRunId) {
+    this.zkClient = zkClient;
+    this.appRunId = appRunId;
+    this.broadcasts = new CopyOnWriteArraySet<Broadcast>();
+  }
+
+  /**
+   * Broadcasts a message to instances of the given runnable.
+   *
+   * @param runnableName Name of the runnable.
+   * @param message The message to send.
+   * @param targets Run ids of the instances that the message is targeted to.
+   * @param completion Runnable to run once all targeted instances acknowledged the message or are gone.
+   */
+  void broadcast(final String runnableName, Message message, Set<String> targets, final Runnable completion) {
+    if (targets.isEmpty()) {
+      completion.run();
+      return;
+    }
+
+    final String broadcastPath = String.format("/%s/runnables/%s%s", appRunId.getId(),
+                                               runnableName, Constants.BROADCAST_PATH);
+    // Registers before the message node is created, so that instances gone in between are accounted for.
+    final Broadcast broadcast = new Broadcast(targets, completion);
+    broadcasts.add(broadcast);
+
+    final ListenableFuture<byte[]> data = ZKOperations.storeLargeData(zkClient,
+                                                                      broadcastPath + "-chunks/" + UUID.randomUUID(),
+                                                                      MessageCodec.encode(message));
+    Futures.addCallback(Futures.transform(data, new AsyncFunction<byte[], String>() {
+      @Override
+      public ListenableFuture<String> apply(byte[] input) throws Exception {
+        return zkClient.create(broadcastPath + "/msg", input, CreateMode.PERSISTENT_SEQUENTIAL);
+      }
+    }), new FutureCallback<String>() {
+      @Override
+      public void onSuccess(String path) {
+        broadcast.watch(path, Futures.getUnchecked(data));
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        LOG.error("Failed to broadcast message to runnable {}.", runnableName, t);
+        broadcasts.remove(broadcast);
+        completion.run();
+      }
+    });
+  }
+
+  /**
+   * Notifies that the instance with the given run id is gone, hence no acknowledgement is expected from it.
+   */
+  void containerRemoved(RunId runId) {
+    for (Broadcast broadcast : broadcasts) {
+      broadcast.acknowledged(ImmutableSet.of(runId.getId()));
+    }
+  }
+
+  /**
+   * Tracks acknowledgements of one broadcast message.
+   */
+  private final class Broadcast {
+    private final Set<String> pending;
+    private final Runnable completion;
+    private final AtomicBoolean completed;
+    private String path;
+    private byte[] data;
+    private Cancellable watch;
+
+    Broadcast(Set<String> targets, Runnable completion) {
+      this.pending = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+      this.pending.addAll(targets);
+      this.completion = completion;
+      this.completed = new AtomicBoolean();
+    }
+
+    void watch(String path, byte[] data) {
+      synchronized (this) {
+        this.path = path;
+        this.data = data;
+      }
+      Cancellable cancellable = ZKOperations.watchChildren(zkClient, path, new ZKOperations.ChildrenCallback() {
+        @Override
+        public void updated(NodeChildren nodeChildren) {
+          acknowledged(nodeChildren.getChildren());
+        }
+      });
+      synchronized (this) {
+        watch = cancellable;
+      }
+      // Instances could be gone before the message node is created.
+      acknowledged(ImmutableSet.<String>of());
+    }
+
+    void acknowledged(Iterable<String> runIds) {
+      for (String runId : runIds) {
+        pending.remove(runId);
+      }
+      synchronized (this) {
+        if (path == null || watch == null || !pending.isEmpty() || !completed.compareAndSet(false, true)) {
+          return;
+        }
+      }
+      broadcasts.remove(this);
+      watch.cancel();
+      ZKOperations.recursiveDelete(zkClient, path);
+      ZKOperations.deleteLargeData(zkClient, data);
+      completion.run();
+    }
+  }
+}
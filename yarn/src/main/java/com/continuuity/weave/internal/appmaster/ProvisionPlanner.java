@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.WeaveSpecification;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.yarn.api.records.Container;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the provisioning of containers for runnables. Runnables are started following the orders of the
+ * {@link WeaveSpecification}. Each runnable has its own YARN priority for container requests, so that allocated
+ * containers are matched back to the runnable by priority and capability. Requests for standby containers have
+ * priorities lower than requests for instances of all runnables.
+ * <p>
+ * Only {@link #launched(String)} is called from threads other than the main loop of the application master.
+ * </p>
+ */
+final class ProvisionPlanner {
+
+  private final List<WeaveSpecification.Order> orders;
+  private final Map<String, Integer> priorities;
+  private final Map<String, Integer> instanceCounts;
+  private final RunningContainers runningContainers;
+  // Container requests in progress, keyed by priority.
+  private final Map<Integer, ProvisionRequest> provisioning;
+  // Number of instances launched for each runnable. It is never decremented, so that runnables of which instances
+  // are short-lived are still considered started.
+  private final Multiset<String> launches;
+  private int nextOrder;
+
+  /**
+   * @param instanceCounts Desired number of instances of each runnable.
+   */
+  ProvisionPlanner(WeaveSpecification weaveSpec, Map<String, Integer> instanceCounts,
+                   RunningContainers runningContainers) {
+    this.orders = ImmutableList.copyOf(weaveSpec.getOrders());
+    this.priorities = initPriorities(weaveSpec);
+    this.instanceCounts = instanceCounts;
+    this.runningContainers = runningContainers;
+    this.provisioning = Maps.newHashMap();
+    this.launches = ConcurrentHashMultiset.create();
+  }
+
+  /**
+   * Returns the YARN priority of container requests for instances of the given runnable.
+   */
+  int getPriority(String runnableName) {
+    return priorities.get(runnableName);
+  }
+
+  /**
+   * Returns the YARN priority of standby container requests of the given runnable.
+   */
+  int getStandbyPriority(String runnableName) {
+    return priorities.size() + priorities.get(runnableName);
+  }
+
+  /**
+   * Returns names of runnables of the next order if it is ready to start, and marks the order as started.
+   * Requests for containers of the runnables returned should be added before calling this method again, as
+   * readiness of the order after depends on them.
+   * Orders without runnables are skipped.
+   * @return Names of runnables, or an empty list if the next order is not ready or there is no more order.
+   */
+  List<String> nextOrder() {
+    while (nextOrder < orders.size() && isOrderReady(nextOrder)) {
+      Set<String> runnableNames = orders.get(nextOrder++).getNames();
+      if (!runnableNames.isEmpty()) {
+        return ImmutableList.copyOf(Sets.newTreeSet(runnableNames));
+      }
+    }
+    return ImmutableList.of();
+  }
+
+  /**
+   * Returns {@code true} if there are orders not yet started.
+   */
+  boolean hasPendingOrders() {
+    return nextOrder < orders.size();
+  }
+
+  /**
+   * Returns names of runnables in the orders that are started.
+   */
+  List<String> getStartedRunnables() {
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (WeaveSpecification.Order order : orders.subList(0, nextOrder)) {
+      result.addAll(Sets.newTreeSet(order.getNames()));
+    }
+    return result.build();
+  }
+
+  /**
+   * Records that an instance of the given runnable is launched.
+   */
+  void launched(String runnableName) {
+    launches.add(runnableName);
+  }
+
+  /**
+   * Returns {@code true} if a container allocated for an instance of the given runnable should be launched,
+   * or {@code false} if the runnable already has the desired number of instances, which happens when the desired
+   * count is lowered while provisioning.
+   */
+  boolean isInstanceNeeded(String runnableName) {
+    return runningContainers.count(runnableName) < instanceCounts.get(runnableName);
+  }
+
+  /**
+   * Adds a container request in progress. There is at most one request in progress for each priority.
+   */
+  void add(ProvisionRequest request) {
+    provisioning.put(request.getPriority().getPriority(), request);
+  }
+
+  /**
+   * Returns the request in progress with the given priority, or {@code null} if there is none.
+   */
+  ProvisionRequest get(int priority) {
+    return provisioning.get(priority);
+  }
+
+  /**
+   * Removes the request in progress with the given priority.
+   * @return The request removed, or {@code null} if there is none.
+   */
+  ProvisionRequest remove(int priority) {
+    return provisioning.remove(priority);
+  }
+
+  /**
+   * Returns the request in progress that the given container is allocated for, or {@code null} if the container
+   * matches no request.
+   */
+  ProvisionRequest match(Container container) {
+    ProvisionRequest request = provisioning.get(container.getPriority().getPriority());
+    return request != null && request.matches(container) ? request : null;
+  }
+
+  /**
+   * Returns {@code true} if containers for instances of the given runnable are being provisioned.
+   */
+  boolean isProvisioning(String runnableName) {
+    return provisioning.containsKey(getPriority(runnableName));
+  }
+
+  /**
+   * Returns {@code true} if there are containers being provisioned for instances of runnables. Requests for
+   * standby containers are not counted.
+   */
+  boolean isProvisioning() {
+    for (ProvisionRequest request : provisioning.values()) {
+      if (!request.isStandby()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if runnables of the given order can be started, based on the order type and runnables of
+   * the previous order. An order of type {@link WeaveSpecification.Order.Type#STARTED} starts when all instances of
+   * the runnables of the previous order are launched, even if some of them have completed since then, while type
+   * {@link WeaveSpecification.Order.Type#COMPLETED} starts when all of them are completed.
+   */
+  private boolean isOrderReady(int orderIdx) {
+    if (orderIdx == 0) {
+      return true;
+    }
+    boolean whenCompleted = orders.get(orderIdx).getType() == WeaveSpecification.Order.Type.COMPLETED;
+    for (String runnableName : orders.get(orderIdx - 1).getNames()) {
+      if (isProvisioning(runnableName)) {
+        return false;
+      }
+      if (whenCompleted ? runningContainers.count(runnableName) > 0
+                        : launches.count(runnableName) < instanceCounts.get(runnableName)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Assigns distinct priorities to runnables, following the orders, so that runnables of earlier orders are
+   * provisioned first.
+   */
+  private Map<String, Integer> initPriorities(WeaveSpecification weaveSpec) {
+    Map<String, Integer> result = Maps.newHashMap();
+    int priority = 0;
+    for (WeaveSpecification.Order order : weaveSpec.getOrders()) {
+      for (String runnableName : Sets.newTreeSet(order.getNames())) {
+        result.put(runnableName, priority++);
+      }
+    }
+    for (String runnableName : Sets.newTreeSet(weaveSpec.getRunnables().keySet())) {
+      if (!result.containsKey(runnableName)) {
+        result.put(runnableName, priority++);
+      }
+    }
+    return ImmutableMap.copyOf(result);
+  }
+}
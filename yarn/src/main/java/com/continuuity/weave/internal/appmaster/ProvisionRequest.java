@@ -18,19 +18,45 @@ package com.continuuity.weave.internal.appmaster;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.RuntimeSpecification;
 import com.continuuity.weave.internal.yarn.ports.AMRMClient;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import java.util.Arrays;
 
 /**
- * Data structure to represent a container request in progress (provisioning).
+ * Data structure to represent a container request in progress (provisioning). Each runnable has its own
+ * priority, hence allocated containers are matched back to the request by priority and capability.
  */
 final class ProvisionRequest {
   private final AMRMClient.ContainerRequest request;
   private final RuntimeSpecification runtimeSpec;
   private final RunId baseRunId;
+  private final Resource capability;
+  private final Priority priority;
+  private final String[] hosts;
+  private final String[] racks;
+  private final boolean standby;
+  private int remaining;
+  private int rejections;
+  private boolean relaxed;
 
-  ProvisionRequest(AMRMClient.ContainerRequest request, RuntimeSpecification runtimeSpec, RunId baseRunId) {
-    this.request = request;
+  /**
+   * @param hosts Preferred hosts, or {@code null} for no preference.
+   * @param racks Preferred racks, or {@code null} for no preference.
+   * @param standby {@code true} if the containers are for standby containers of the warm pool.
+   */
+  ProvisionRequest(RuntimeSpecification runtimeSpec, RunId baseRunId, Resource capability, Priority priority,
+                   String[] hosts, String[] racks, boolean standby, int containerCount) {
+    this.request = new AMRMClient.ContainerRequest(capability, hosts, racks, priority, containerCount);
     this.runtimeSpec = runtimeSpec;
     this.baseRunId = baseRunId;
+    this.capability = capability;
+    this.priority = priority;
+    this.hosts = hosts;
+    this.racks = racks;
+    this.standby = standby;
+    this.remaining = containerCount;
   }
 
   AMRMClient.ContainerRequest getRequest() {
@@ -44,4 +70,87 @@ final class ProvisionRequest {
   RunId getBaseRunId() {
     return baseRunId;
   }
+
+  Priority getPriority() {
+    return priority;
+  }
+
+  boolean isStandby() {
+    return standby;
+  }
+
+  /**
+   * Returns {@code true} if this request has preferred hosts.
+   */
+  boolean hasHosts() {
+    return hosts != null;
+  }
+
+  /**
+   * Returns {@code true} if the given host is one of the preferred hosts.
+   */
+  boolean isPreferredHost(String host) {
+    return hosts != null && Arrays.asList(hosts).contains(host);
+  }
+
+  /**
+   * Marks that a container is rejected for not satisfying the placement preferences.
+   * @return Number of containers rejected for this request before this one.
+   */
+  int rejected() {
+    return rejections++;
+  }
+
+  /**
+   * Relaxes placement of this request, so that containers are accepted wherever they are allocated.
+   */
+  void relax() {
+    relaxed = true;
+  }
+
+  boolean isRelaxed() {
+    return relaxed;
+  }
+
+  /**
+   * Returns a request for one container, for asking for a replacement of a container that is rejected.
+   */
+  AMRMClient.ContainerRequest single() {
+    return new AMRMClient.ContainerRequest(capability, hosts, racks, priority, 1);
+  }
+
+  /**
+   * Returns {@code true} if the given container satisfies this request.
+   */
+  boolean matches(Container container) {
+    return container.getPriority().getPriority() == priority.getPriority()
+      && container.getResource().getMemory() >= capability.getMemory();
+  }
+
+  /**
+   * Marks that one container is received for this request.
+   * @return A request for one container, for removing the received container from the outstanding requests.
+   */
+  AMRMClient.ContainerRequest received() {
+    remaining--;
+    return single();
+  }
+
+  /**
+   * Cancels the rest of this request.
+   * @return A request for the containers not yet received, for removing them from the outstanding requests.
+   */
+  AMRMClient.ContainerRequest cancel() {
+    AMRMClient.ContainerRequest cancelled = new AMRMClient.ContainerRequest(capability, hosts, racks,
+                                                                            priority, remaining);
+    remaining = 0;
+    return cancelled;
+  }
+
+  /**
+   * Returns {@code true} if all containers requested are received or the request is cancelled.
+   */
+  boolean isCompleted() {
+    return remaining <= 0;
+  }
 }
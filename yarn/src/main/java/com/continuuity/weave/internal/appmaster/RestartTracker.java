@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.ResourceSpecification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether instances that completed without being stopped are restarted, based on the restart policy of
+ * their runnables and the number of restarts within the restart window, and computes the backoff before each
+ * restart. This class is not thread safe.
+ */
+final class RestartTracker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RestartTracker.class);
+
+  static final long MIN_BACKOFF_MILLIS = 1000;
+  static final long MAX_BACKOFF_MILLIS = 60000;
+
+  // Times of restarts of each runnable within the restart window.
+  private final Map<String, LinkedList<Long>> restartTimes;
+
+  RestartTracker() {
+    this.restartTimes = Maps.newHashMap();
+  }
+
+  /**
+   * Checks if an instance of the given runnable that completed with the given exit status should be restarted.
+   */
+  boolean isRestartAllowed(String runnableName, ResourceSpecification resourceSpec, int exitStatus, long now) {
+    ResourceSpecification.RestartPolicy policy = resourceSpec.getRestartPolicy();
+    if (policy == ResourceSpecification.RestartPolicy.NEVER
+      || (policy == ResourceSpecification.RestartPolicy.ON_FAILURE && exitStatus == 0)) {
+      return false;
+    }
+
+    LinkedList<Long> times = getRestartTimes(runnableName, resourceSpec, now);
+    if (resourceSpec.getMaxRestarts() > 0 && times.size() >= resourceSpec.getMaxRestarts()) {
+      LOG.warn("Runnable {} has been restarted {} times within the restart window. Instance is not restarted.",
+               runnableName, times.size());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records a restart of the given runnable. The backoff doubles with each restart within the restart window.
+   * @return The backoff in milliseconds before the restart.
+   */
+  long recordRestart(String runnableName, ResourceSpecification resourceSpec, long now) {
+    LinkedList<Long> times = getRestartTimes(runnableName, resourceSpec, now);
+    times.add(now);
+    return Math.min(MIN_BACKOFF_MILLIS << Math.min(times.size() - 1, 16), MAX_BACKOFF_MILLIS);
+  }
+
+  /**
+   * Returns times of restarts of the given runnable within its restart window.
+   */
+  private LinkedList<Long> getRestartTimes(String runnableName, ResourceSpecification resourceSpec, long now) {
+    LinkedList<Long> times = restartTimes.get(runnableName);
+    if (times == null) {
+      times = Lists.newLinkedList();
+      restartTimes.put(runnableName, times);
+    }
+    int window = resourceSpec.getRestartWindowSeconds();
+    long windowStart = now - TimeUnit.SECONDS.toMillis(window);
+    while (window > 0 && !times.isEmpty() && times.getFirst() < windowStart) {
+      times.removeFirst();
+    }
+    return times;
+  }
+}
@@ -15,273 +15,751 @@
  */
 package com.continuuity.weave.internal.appmaster;
 
+import com.continuuity.weave.api.LoadReport;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.ServiceController;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.RunIds;
 import com.continuuity.weave.internal.WeaveContainerController;
+import com.continuuity.weave.internal.control.ControlChannelClient;
+import com.continuuity.weave.internal.control.MessageNotDeliveredException;
+import com.continuuity.weave.internal.state.LoadReports;
 import com.continuuity.weave.internal.state.Message;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Table;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A helper class for ApplicationMasterService to keep track of running containers and to interact
- * with them.
+ * with them. Containers are indexed per runnable by instance id, so that bookkeeping does not contend
+ * across runnables and stays constant as the number of containers grows.
  */
 final class RunningContainers {
   private static final Logger LOG = LoggerFactory.getLogger(RunningContainers.class);
 
-  private final Table<String, ContainerId, WeaveContainerController> containers;
+  private final ConcurrentMap<String, RunnableContainers> runnables;
+  // Lookup of the runnable that a running container belongs to.
+  private final ConcurrentMap<ContainerId, RunnableContainers> containerIndex;
+  // Containers stopped through scaleDown, waiting for the completion status.
+  private final ConcurrentMap<ContainerId, WeaveContainerController> stoppedContainers;
+  // Guarded by itself.
   private final Deque<String> startSequence;
-  private final Lock containerLock;
-  private final Condition containerChange;
+  private final MessageBroadcaster broadcaster;
+  private final ControlChannelClient controlClient;
 
-  RunningContainers() {
-    containers = HashBasedTable.create();
+  RunningContainers(MessageBroadcaster broadcaster, ControlChannelClient controlClient) {
+    this.broadcaster = broadcaster;
+    this.controlClient = controlClient;
+    runnables = Maps.newConcurrentMap();
+    containerIndex = Maps.newConcurrentMap();
+    stoppedContainers = Maps.newConcurrentMap();
     startSequence = Lists.newLinkedList();
-    containerLock = new ReentrantLock();
-    containerChange = containerLock.newCondition();
   }
 
   /**
-   * Returns {@code true} if there is no live container.
+   * Returns {@code true} if there is no live container, nor container being launched.
    */
   boolean isEmpty() {
-    containerLock.lock();
-    try {
-      return containers.columnMap().isEmpty();
-    } finally {
-      containerLock.unlock();
+    for (RunnableContainers runnable : runnables.values()) {
+      if (runnable.count() > 0) {
+        return false;
+      }
     }
+    return true;
   }
 
-  void add(String runnableName, ContainerId container, WeaveContainerController controller) {
-    containerLock.lock();
-    try {
-      containers.put(runnableName, container, controller);
+  /**
+   * Adds a running container. If the instance id is already taken by another container, which should not happen,
+   * the other container is stopped, so that it is not left running without being tracked.
+   */
+  void add(String runnableName, int instanceId, ContainerId container, WeaveContainerController controller) {
+    Map.Entry<ContainerId, WeaveContainerController> displaced = getRunnable(runnableName).add(instanceId, container,
+                                                                                              controller);
+    synchronized (startSequence) {
       if (startSequence.isEmpty() || !runnableName.equals(startSequence.peekLast())) {
         startSequence.addLast(runnableName);
       }
-      containerChange.signalAll();
-    } finally {
-      containerLock.unlock();
+    }
+    if (displaced != null) {
+      // Tracked as stopped container, so that its completion is still handled.
+      stoppedContainers.put(displaced.getKey(), displaced.getValue());
+      containerRemoved(displaced.getValue());
+      LOG.warn("Stopping container {} of {} as instance {} is taken by container {}",
+               displaced.getKey(), runnableName, instanceId, container);
+      displaced.getValue().stop();
     }
   }
 
+  /**
+   * Returns the base run id for new instances of the given runnable. It stays the same for the lifetime of the
+   * application master.
+   */
   RunId getBaseRunId(String runnableName) {
-    containerLock.lock();
-    try {
-      Collection<WeaveContainerController> controllers = containers.row(runnableName).values();
-      if (controllers.isEmpty()) {
-        return RunIds.generate();
-      }
-      // A bit hacky, as it knows the naming convention of RunId as (base-[instanceId]).
-      String id = controllers.iterator().next().getRunId().getId();
-      return RunIds.fromString(id.substring(0, id.lastIndexOf('-')));
-    } finally {
-      containerLock.unlock();
-    }
+    return getRunnable(runnableName).getBaseRunId();
   }
 
   /**
-   * Stops and removes the last running container of the given runnable.
+   * Reserves the smallest instance id of the given runnable that is not used, for a container being launched
+   * on the given host. The reservation is counted as a running container until it is either added or released.
    */
-  void removeLast(String runnableName) {
-    containerLock.lock();
-    try {
-      ContainerId containerId = null;
-      WeaveContainerController lastController = null;
-      int maxId = -1;
-      for (Map.Entry<ContainerId, WeaveContainerController> entry : containers.row(runnableName).entrySet()) {
-        // A bit hacky, as it knows the naming convention of RunId as (base-[instanceId]).
-        // Could be more generic if using data structure other than a hashbased table.
-        String id = entry.getValue().getRunId().getId();
-        int instanceId = Integer.parseInt(id.substring(id.lastIndexOf('-') + 1));
-        if (instanceId > maxId) {
-          maxId = instanceId;
-          containerId = entry.getKey();
-          lastController = entry.getValue();
-        }
-      }
-      if (lastController == null) {
-        LOG.warn("No running container found for {}", runnableName);
-        return;
-      }
-      LOG.info("Stopping service: {} {}", runnableName, lastController.getRunId());
-      lastController.stopAndWait();
-      containers.remove(runnableName, containerId);
-      containerChange.signalAll();
-    } finally {
-      containerLock.unlock();
-    }
+  int reserveInstanceId(String runnableName, String host) {
+    return getRunnable(runnableName).reserveInstanceId(host);
   }
 
   /**
-   * Blocks until there are changes in running containers.
+   * Marks an instance id kept for restart by {@link #handleCompleted(ContainerId, int, boolean)} as waiting for
+   * a container. The instance id stays reserved, so that it is not taken by {@link #reserveInstanceId}, but it is
+   * no longer counted as a running container.
    */
-  void waitForChange() throws InterruptedException {
-    containerLock.lock();
-    try {
-      containerChange.await();
-    } finally {
-      containerLock.unlock();
-    }
+  void readyForRestart(String runnableName, int instanceId) {
+    getRunnable(runnableName).readyForRestart(instanceId);
   }
 
-  int count(String runnableName) {
-    containerLock.lock();
-    try {
-      return containers.row(runnableName).size();
-    } finally {
-      containerLock.unlock();
+  /**
+   * Takes the smallest instance id waiting for restart, for a container being launched on the given host.
+   * The instance id is counted again as a running container.
+   * @return The instance id, or {@code -1} if there is no instance waiting for restart.
+   */
+  int takeRestartInstanceId(String runnableName, String host) {
+    return getRunnable(runnableName).takeRestartInstanceId(host);
+  }
+
+  /**
+   * Gives up restarting instances of the given runnable beyond the given number, which happens when the desired
+   * number of instances is lowered. The largest instance ids waiting for restart are released first.
+   */
+  void trimRestarts(String runnableName, int maxRestarts) {
+    RunnableContainers runnable = runnables.get(runnableName);
+    if (runnable != null) {
+      runnable.trimRestarts(maxRestarts);
     }
   }
 
-  void sendToAll(Message message, Runnable completion) {
-    containerLock.lock();
-    try {
-      if (containers.isEmpty()) {
-        completion.run();
-      }
+  /**
+   * Returns the hosts that have containers of the given runnable running or being launched.
+   */
+  Set<String> getHosts(String runnableName) {
+    RunnableContainers runnable = runnables.get(runnableName);
+    return runnable == null ? ImmutableSet.<String>of() : runnable.getHosts();
+  }
+
+  /**
+   * Releases an instance id reserved for a container that failed to launch.
+   */
+  void releaseInstanceId(String runnableName, int instanceId) {
+    getRunnable(runnableName).releaseInstanceId(instanceId);
+  }
+
+  /**
+   * Stops the last running containers of the given runnable until there are no more than the desired number of them.
+   * Containers are removed immediately and stopped in the background, with at most {@code maxConcurrentStops}
+   * containers of the runnable being stopped at a time. The desired count is re-evaluated before each stop, hence
+   * a newer count supersedes the one that the scaling down was started with.
+   *
+   * @param runnableName Name of the runnable.
+   * @param desiredCount Supplies the current desired number of instances.
+   * @param maxConcurrentStops Maximum number of containers of the runnable being stopped at the same time.
+   * @return A {@link ListenableFuture} that completes when no more container needs to be stopped and all stops
+   *         issued are completed.
+   */
+  ListenableFuture<?> scaleDown(String runnableName, Supplier<Integer> desiredCount, int maxConcurrentStops) {
+    ScaleDown scaleDown = new ScaleDown(getRunnable(runnableName), desiredCount, maxConcurrentStops);
+    scaleDown.run();
+    return scaleDown.completion;
+  }
 
-      // Sends the command to all running containers
-      AtomicInteger count = new AtomicInteger(containers.size());
-      for (Map.Entry<String, Map<ContainerId, WeaveContainerController>> entry : containers.rowMap().entrySet()) {
-        for (WeaveContainerController controller : entry.getValue().values()) {
-          sendMessage(entry.getKey(), message, controller, count, completion);
+  /**
+   * Returns the number of running containers of the given runnable, including those being launched.
+   */
+  int count(String runnableName) {
+    RunnableContainers runnable = runnables.get(runnableName);
+    return runnable == null ? 0 : runnable.count();
+  }
+
+  /**
+   * Returns the load of each runnable aggregated from the latest heartbeats of its containers.
+   */
+  Map<String, LoadReport> getLoadReports() {
+    Map<String, LoadReport> result = Maps.newHashMap();
+    for (RunnableContainers runnable : runnables.values()) {
+      List<LoadReport> reports = Lists.newArrayList();
+      for (WeaveContainerController controller : runnable.getControllers()) {
+        LoadReport report = controller.getLoadReport();
+        if (report != null) {
+          reports.add(report);
         }
       }
-    } finally {
-      containerLock.unlock();
+      if (!reports.isEmpty()) {
+        result.put(runnable.runnableName, LoadReports.aggregate(reports));
+      }
     }
+    return result;
   }
 
-  void sendToRunnable(String runnableName, Message message, Runnable completion) {
-    containerLock.lock();
-    try {
-      Collection<WeaveContainerController> controllers = containers.row(runnableName).values();
-      if (controllers.isEmpty()) {
-        completion.run();
+  void sendToAll(Message message, Runnable completion) {
+    Map<String, List<WeaveContainerController>> targets = Maps.newHashMap();
+    for (RunnableContainers runnable : runnables.values()) {
+      List<WeaveContainerController> controllers = runnable.getControllers();
+      if (!controllers.isEmpty()) {
+        targets.put(runnable.runnableName, controllers);
       }
+    }
 
-      AtomicInteger count = new AtomicInteger(controllers.size());
-      for (WeaveContainerController controller : controllers) {
-        sendMessage(runnableName, message, controller, count, completion);
-      }
-    } finally {
-      containerLock.unlock();
+    if (targets.isEmpty()) {
+      completion.run();
+      return;
     }
+
+    // Sends the command to each runnable, triggers completion when all of them are completed.
+    Runnable runnableCompletion = createCountDownCompletion(targets.size(), completion);
+    for (Map.Entry<String, List<WeaveContainerController>> entry : targets.entrySet()) {
+      sendMessage(entry.getKey(), message, entry.getValue(), runnableCompletion);
+    }
+  }
+
+  void sendToRunnable(String runnableName, Message message, Runnable completion) {
+    RunnableContainers runnable = runnables.get(runnableName);
+    List<WeaveContainerController> targets = runnable == null
+                                               ? ImmutableList.<WeaveContainerController>of()
+                                               : runnable.getControllers();
+    sendMessage(runnableName, message, targets, completion);
   }
 
   /**
-   * Stops all running services. Only called when the AppMaster stops.
+   * Stops all running services in reverse order of start sequence. Containers of the same runnable are stopped in
+   * parallel, and those not stopped within the timeout are killed before moving on to the next runnable. Kills
+   * are issued in parallel as well, and are waited for no longer than the timeout. Failure to kill a container
+   * doesn't stop others from being killed.
+   * Only called when the AppMaster stops.
+   *
+   * @param timeout Maximum time to wait for containers of a runnable to stop, and then to be killed.
+   * @param unit Unit for the timeout.
+   * @return Run ids of the containers that were killed.
    */
-  void stopAll() {
-    containerLock.lock();
+  Set<RunId> stopAll(long timeout, TimeUnit unit) {
+    List<String> sequence;
+    synchronized (startSequence) {
+      sequence = ImmutableList.copyOf(startSequence);
+    }
+
+    Set<RunId> killed = Sets.newHashSet();
+    ExecutorService killExecutor = Executors.newCachedThreadPool(
+      Threads.createDaemonThreadFactory("container-killer-%d"));
     try {
-      // Stop it one by one in reverse order of start sequence
-      Iterator<String> itor = startSequence.descendingIterator();
-      List<ListenableFuture<ServiceController.State>> futures = Lists.newLinkedList();
-      while (itor.hasNext()) {
-        String runnableName = itor.next();
+      Map<WeaveContainerController, ListenableFuture<ServiceController.State>> futures = Maps.newHashMap();
+      for (String runnableName : Lists.reverse(sequence)) {
         LOG.info("Stopping all instances of " + runnableName);
 
         futures.clear();
         // Parallel stops all running containers of the current runnable.
-        for (WeaveContainerController controller : containers.row(runnableName).values()) {
-          futures.add(controller.stop());
+        for (WeaveContainerController controller : getRunnable(runnableName).getControllers()) {
+          futures.put(controller, controller.stop());
+        }
+        waitFor(Futures.successfulAsList(futures.values()), timeout, unit, "stop", runnableName);
+
+        // Escalates to kill for containers that are not yet stopped.
+        List<ListenableFuture<?>> kills = Lists.newArrayList();
+        for (WeaveContainerController controller : futures.keySet()) {
+          if (!futures.get(controller).isDone()) {
+            LOG.warn("Killing {} {} as it is not stopped.", runnableName, controller.getRunId());
+            kills.add(kill(killExecutor, runnableName, controller));
+            killed.add(controller.getRunId());
+          }
+        }
+        if (!kills.isEmpty()) {
+          waitFor(Futures.successfulAsList(kills), timeout, unit, "kill", runnableName);
         }
-        // Wait for containers to stop. Assumes the future returned by Futures.successfulAsList won't throw exception.
-        Futures.getUnchecked(Futures.successfulAsList(futures));
 
         LOG.info("Terminated all instances of " + runnableName);
       }
     } finally {
-      containerLock.unlock();
+      // Interrupts kills that are still waiting for containers to complete.
+      killExecutor.shutdownNow();
     }
+    return killed;
   }
 
-  Set<ContainerId> getContainerIds() {
-    containerLock.lock();
+  /**
+   * Kills a container in the given executor.
+   * @return A {@link ListenableFuture} that completes when the kill call returns. It never fails.
+   */
+  private ListenableFuture<?> kill(ExecutorService executor, final String runnableName,
+                                   final WeaveContainerController controller) {
+    final SettableFuture<Object> result = SettableFuture.create();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          controller.kill();
+        } catch (Throwable t) {
+          LOG.error("Failed to kill {} {}", runnableName, controller.getRunId(), t);
+        } finally {
+          result.set(null);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Waits for the given future, with failures logged.
+   */
+  private void waitFor(ListenableFuture<?> future, long timeout, TimeUnit unit, String action, String runnableName) {
     try {
-      return ImmutableSet.copyOf(containers.columnKeySet());
-    } finally {
-      containerLock.unlock();
+      // Assumes the future returned by Futures.successfulAsList won't throw ExecutionException.
+      future.get(timeout, unit);
+    } catch (TimeoutException e) {
+      LOG.warn("Not all instances of {} completed {} in {} {}.", runnableName, action, timeout, unit);
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted while waiting for {} of instances of {}.", action, runnableName);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.warn("Failed to {} instances of {}.", action, runnableName, e);
     }
   }
 
+  Set<ContainerId> getContainerIds() {
+    return ImmutableSet.copyOf(containerIndex.keySet());
+  }
+
+  /**
+   * Returns name of the runnable that the given container is running for, or {@code null} if the container is
+   * not running, which includes containers being stopped.
+   */
+  String getRunnableName(ContainerId containerId) {
+    RunnableContainers runnable = containerIndex.get(containerId);
+    return runnable == null ? null : runnable.runnableName;
+  }
+
   void handleCompleted(ContainerId containerId, int exitStatus) {
-    containerLock.lock();
-    try {
-      Map<String, WeaveContainerController> lookup = containers.column(containerId);
-      if (lookup.isEmpty()) {
-        // It's OK because if a container is stopped through the controller this would be empty.
-        return;
-      }
+    handleCompleted(containerId, exitStatus, false);
+  }
 
-      if (lookup.size() != 1) {
-        LOG.warn("More than one controller found for container {}", containerId);
+  /**
+   * Handles completion of a container.
+   * @param restart {@code true} to keep the instance id of the container reserved for restarting the instance,
+   *                if the container was not stopped through its controller.
+   * @return The instance id reserved for restart, or {@code -1} if there is none.
+   */
+  int handleCompleted(ContainerId containerId, int exitStatus, boolean restart) {
+    RunnableContainers runnable = containerIndex.get(containerId);
+    WeaveContainerController controller = null;
+    int instanceId = -1;
+    if (runnable != null) {
+      synchronized (runnable) {
+        Integer id = runnable.instanceIds.get(containerId);
+        controller = runnable.remove(containerId, restart);
+        if (controller != null && restart) {
+          instanceId = id;
+        }
       }
-
-      if (exitStatus != 0) {
-        LOG.warn("Container exited abnormally with exit code {}", exitStatus);
+    }
+    if (controller == null) {
+      // It's OK because if a container is stopped through the controller this would be empty.
+      WeaveContainerController stoppedController = stoppedContainers.remove(containerId);
+      if (stoppedController != null) {
+        stoppedController.completed(exitStatus);
       }
+      return -1;
+    }
+
+    if (exitStatus != 0) {
+      LOG.warn("Container exited abnormally with exit code {}", exitStatus);
+    }
+    controller.completed(exitStatus);
+    containerRemoved(controller);
+    return instanceId;
+  }
 
-      for (WeaveContainerController controller : lookup.values()) {
-        controller.completed(exitStatus);
+  /**
+   * Sends a message to the given containers of a runnable. Containers having a control channel are sent
+   * directly, with fallback to ZK if the message is known to be not delivered. Fallback is not done when the
+   * message could have been processed, to avoid processing it twice. The rest are sent through a single broadcast
+   * in ZK.
+   */
+  private void sendMessage(final String runnableName, final Message message,
+                           Collection<WeaveContainerController> controllers, Runnable completion) {
+    List<WeaveContainerController> direct = Lists.newArrayList();
+    Set<String> broadcastTargets = Sets.newHashSet();
+    for (WeaveContainerController controller : controllers) {
+      if (controller.getControlAddress() != null) {
+        direct.add(controller);
+      } else {
+        broadcastTargets.add(controller.getRunId().getId());
       }
+    }
 
-      lookup.clear();
-      containerChange.signalAll();
-    } finally {
-      containerLock.unlock();
+    if (direct.isEmpty()) {
+      broadcaster.broadcast(runnableName, message, broadcastTargets, completion);
+      return;
+    }
+
+    final Runnable countDown = createCountDownCompletion(direct.size() + (broadcastTargets.isEmpty() ? 0 : 1),
+                                                         completion);
+    if (!broadcastTargets.isEmpty()) {
+      broadcaster.broadcast(runnableName, message, broadcastTargets, countDown);
+    }
+    for (final WeaveContainerController controller : direct) {
+      Futures.addCallback(controlClient.send(controller.getControlAddress(), controller.getControlSecret(), message),
+                          new FutureCallback<Message>() {
+        @Override
+        public void onSuccess(Message result) {
+          countDown.run();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          if (!(t instanceof MessageNotDeliveredException)) {
+            // Completion is triggered regardless of the result, as failure is logged by the container.
+            try {
+              LOG.error("Failed to send message through control channel. Runnable: {}, RunId: {}, Message: {}.",
+                        runnableName, controller.getRunId(), message, t);
+            } finally {
+              countDown.run();
+            }
+            return;
+          }
+          LOG.debug("Message not delivered through control channel. Fallback to ZK. RunId: {}, Message: {}",
+                    controller.getRunId(), message, t);
+          Futures.addCallback(controller.sendMessage(message), new FutureCallback<Message>() {
+            @Override
+            public void onSuccess(Message result) {
+              countDown.run();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              try {
+                LOG.error("Failed to send message. Runnable: {}, RunId: {}, Message: {}.",
+                          runnableName, controller.getRunId(), message, t);
+              } finally {
+                countDown.run();
+              }
+            }
+          });
+        }
+      });
     }
   }
 
   /**
-   * Sends a command through the given {@link com.continuuity.weave.internal.WeaveContainerController} of a runnable. Decrements the count
-   * when the sending of command completed. Triggers completion when count reaches zero.
+   * Releases resources for sending messages to the given container.
    */
-  private void sendMessage(final String runnableName, final Message message,
-                           final WeaveContainerController controller, final AtomicInteger count,
-                           final Runnable completion) {
-    Futures.addCallback(controller.sendMessage(message), new FutureCallback<Message>() {
+  private void containerRemoved(WeaveContainerController controller) {
+    broadcaster.containerRemoved(controller.getRunId());
+    InetSocketAddress controlAddress = controller.getControlAddress();
+    if (controlAddress != null) {
+      controlClient.close(controlAddress);
+    }
+  }
+
+  private RunnableContainers getRunnable(String runnableName) {
+    RunnableContainers runnable = runnables.get(runnableName);
+    if (runnable != null) {
+      return runnable;
+    }
+    runnable = new RunnableContainers(runnableName);
+    RunnableContainers existing = runnables.putIfAbsent(runnableName, runnable);
+    return existing == null ? runnable : existing;
+  }
+
+  /**
+   * Creates a {@link Runnable} that triggers the given completion when it is being called the given number of times.
+   */
+  private Runnable createCountDownCompletion(int count, final Runnable completion) {
+    final AtomicInteger counter = new AtomicInteger(count);
+    return new Runnable() {
       @Override
-      public void onSuccess(Message result) {
-        if (count.decrementAndGet() == 0) {
+      public void run() {
+        if (counter.decrementAndGet() == 0) {
           completion.run();
         }
       }
+    };
+  }
 
-      @Override
-      public void onFailure(Throwable t) {
-        try {
-          LOG.error("Failed to send message. Runnable: {}, RunId: {}, Message: {}.",
-                    runnableName, controller.getRunId(), message, t);
-        } finally {
-          if (count.decrementAndGet() == 0) {
-            completion.run();
+  /**
+   * Running containers of one runnable, indexed by instance id. Mutations are guarded by the instance itself,
+   * while count and the snapshot of controllers can be read without locking.
+   */
+  private final class RunnableContainers {
+
+    private final String runnableName;
+    private final List<WeaveContainerController> instances;
+    private final List<ContainerId> containerIds;
+    private final List<String> hosts;
+    private final BitSet occupied;
+    // Instance ids reserved for containers being launched, or for instances waiting for restart.
+    private final BitSet reserved;
+    // Instance ids of instances waiting for a container to restart. They are reserved but not counted.
+    private final BitSet restarts;
+    private final Map<ContainerId, Integer> instanceIds;
+    private final AtomicInteger count;
+    private RunId baseRunId;
+    // Number of containers being stopped by scaleDown.
+    private int stopping;
+    // Copy-on-write snapshot of controllers for sending messages. It is rebuilt lazily after changes.
+    private volatile List<WeaveContainerController> snapshot;
+
+    RunnableContainers(String runnableName) {
+      this.runnableName = runnableName;
+      this.instances = Lists.newArrayList();
+      this.containerIds = Lists.newArrayList();
+      this.hosts = Lists.newArrayList();
+      this.occupied = new BitSet();
+      this.reserved = new BitSet();
+      this.restarts = new BitSet();
+      this.instanceIds = Maps.newHashMap();
+      this.count = new AtomicInteger();
+      this.snapshot = ImmutableList.of();
+    }
+
+    int count() {
+      return count.get();
+    }
+
+    List<WeaveContainerController> getControllers() {
+      List<WeaveContainerController> controllers = snapshot;
+      if (controllers != null) {
+        return controllers;
+      }
+      synchronized (this) {
+        if (snapshot == null) {
+          ImmutableList.Builder<WeaveContainerController> builder = ImmutableList.builder();
+          for (int i = occupied.nextSetBit(0); i >= 0; i = occupied.nextSetBit(i + 1)) {
+            builder.add(instances.get(i));
           }
+          snapshot = builder.build();
         }
+        return snapshot;
       }
-    });
+    }
+
+    synchronized RunId getBaseRunId() {
+      // The base run id is kept even when there is no container, so that instances restarted or added later
+      // still have run ids of the same base.
+      if (baseRunId == null) {
+        baseRunId = RunIds.generate();
+      }
+      return baseRunId;
+    }
+
+    synchronized int reserveInstanceId(String host) {
+      BitSet used = (BitSet) occupied.clone();
+      used.or(reserved);
+      int instanceId = used.nextClearBit(0);
+      ensureCapacity(instanceId);
+      hosts.set(instanceId, host);
+      reserved.set(instanceId);
+      count.incrementAndGet();
+      return instanceId;
+    }
+
+    synchronized void readyForRestart(int instanceId) {
+      if (reserved.get(instanceId) && !restarts.get(instanceId)) {
+        restarts.set(instanceId);
+        hosts.set(instanceId, null);
+        count.decrementAndGet();
+      }
+    }
+
+    synchronized int takeRestartInstanceId(String host) {
+      int instanceId = restarts.nextSetBit(0);
+      if (instanceId >= 0) {
+        restarts.clear(instanceId);
+        hosts.set(instanceId, host);
+        count.incrementAndGet();
+      }
+      return instanceId;
+    }
+
+    synchronized void trimRestarts(int maxRestarts) {
+      while (restarts.cardinality() > maxRestarts) {
+        int instanceId = restarts.length() - 1;
+        restarts.clear(instanceId);
+        reserved.clear(instanceId);
+      }
+    }
+
+    synchronized void releaseInstanceId(int instanceId) {
+      if (reserved.get(instanceId) && !restarts.get(instanceId)) {
+        reserved.clear(instanceId);
+        hosts.set(instanceId, null);
+        count.decrementAndGet();
+      }
+    }
+
+    synchronized Set<String> getHosts() {
+      Set<String> result = Sets.newHashSet();
+      for (String host : hosts) {
+        if (host != null) {
+          result.add(host);
+        }
+      }
+      return result;
+    }
+
+    private void ensureCapacity(int instanceId) {
+      while (instances.size() <= instanceId) {
+        instances.add(null);
+        containerIds.add(null);
+        hosts.add(null);
+      }
+    }
+
+    /**
+     * Adds a running container.
+     * @return The container that took the same instance id and is removed, or {@code null} if there is none.
+     */
+    synchronized Map.Entry<ContainerId, WeaveContainerController> add(int instanceId, ContainerId containerId,
+                                                                      WeaveContainerController controller) {
+      ensureCapacity(instanceId);
+      Map.Entry<ContainerId, WeaveContainerController> displaced = null;
+      if (occupied.get(instanceId)) {
+        ContainerId existing = containerIds.get(instanceId);
+        displaced = Maps.immutableEntry(existing, remove(existing));
+      }
+      if (baseRunId == null) {
+        // A bit hacky, as it knows the naming convention of RunId as (base-[instanceId]).
+        String id = controller.getRunId().getId();
+        baseRunId = RunIds.fromString(id.substring(0, id.lastIndexOf('-')));
+      }
+      instances.set(instanceId, controller);
+      containerIds.set(instanceId, containerId);
+      occupied.set(instanceId);
+      instanceIds.put(containerId, instanceId);
+      containerIndex.put(containerId, this);
+      // The reservation made for the launch turns into a running container.
+      if (!reserved.get(instanceId) || restarts.get(instanceId)) {
+        count.incrementAndGet();
+      }
+      reserved.clear(instanceId);
+      restarts.clear(instanceId);
+      snapshot = null;
+      return displaced;
+    }
+
+    synchronized WeaveContainerController remove(ContainerId containerId) {
+      return remove(containerId, false);
+    }
+
+    /**
+     * Removes the given container.
+     * @param keepReserved {@code true} to keep the instance id reserved, so that it is still counted.
+     * @return The controller of the container, or {@code null} if the container is not running.
+     */
+    synchronized WeaveContainerController remove(ContainerId containerId, boolean keepReserved) {
+      Integer instanceId = instanceIds.remove(containerId);
+      if (instanceId == null) {
+        return null;
+      }
+      WeaveContainerController controller = instances.set(instanceId, null);
+      containerIds.set(instanceId, null);
+      hosts.set(instanceId, null);
+      occupied.clear(instanceId);
+      containerIndex.remove(containerId, this);
+      if (keepReserved) {
+        reserved.set(instanceId);
+      } else {
+        count.decrementAndGet();
+      }
+      snapshot = null;
+      return controller;
+    }
+
+    /**
+     * Removes the container with the largest instance id.
+     * @return The container removed, or {@code null} if there is no running container.
+     */
+    synchronized Map.Entry<ContainerId, WeaveContainerController> removeLast() {
+      int instanceId = occupied.length() - 1;
+      if (instanceId < 0) {
+        return null;
+      }
+      ContainerId containerId = containerIds.get(instanceId);
+      return Maps.immutableEntry(containerId, remove(containerId));
+    }
+  }
+
+  /**
+   * Stops containers of a runnable in the background until the number of running containers reaches the
+   * desired count.
+   */
+  private final class ScaleDown implements Runnable {
+
+    private final RunnableContainers runnable;
+    private final Supplier<Integer> desiredCount;
+    private final int maxConcurrentStops;
+    private final SettableFuture<Object> completion;
+
+    ScaleDown(RunnableContainers runnable, Supplier<Integer> desiredCount, int maxConcurrentStops) {
+      this.runnable = runnable;
+      this.desiredCount = desiredCount;
+      this.maxConcurrentStops = maxConcurrentStops;
+      this.completion = SettableFuture.create();
+    }
+
+    @Override
+    public void run() {
+      List<WeaveContainerController> toStop = Lists.newArrayList();
+      boolean done;
+      synchronized (runnable) {
+        while (runnable.stopping < maxConcurrentStops && runnable.count() > desiredCount.get()) {
+          Map.Entry<ContainerId, WeaveContainerController> last = runnable.removeLast();
+          if (last == null) {
+            break;
+          }
+          stoppedContainers.put(last.getKey(), last.getValue());
+          toStop.add(last.getValue());
+          runnable.stopping++;
+        }
+        done = runnable.stopping == 0;
+      }
+
+      if (done) {
+        completion.set(null);
+        return;
+      }
+
+      for (WeaveContainerController controller : toStop) {
+        containerRemoved(controller);
+        LOG.info("Stopping service: {} {}", runnable.runnableName, controller.getRunId());
+        controller.stop().addListener(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (runnable) {
+              runnable.stopping--;
+            }
+            // Issues more stops if needed, or completes if nothing is in flight.
+            ScaleDown.this.run();
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }
   }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.internal.ProcessLauncher;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOperations;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Standby containers kept warm for runnables, which are activated for fast scale up of instances. A standby
+ * container is ready for activation once it has registered under {@code /<appRunId>/standby/<runnableName>}.
+ * A pool is active from the time it is touched until it is deactivated, and standby containers launched while the
+ * pool is inactive are not kept.
+ */
+final class WarmPool {
+
+  private final ZKClient zkClient;
+  private final RunId appRunId;
+  private final Map<String, LinkedList<Standby>> standbys;
+  private final Map<String, Set<String>> registered;
+  private final Multiset<String> launching;
+  private final Map<String, Long> lastActivity;
+  private final List<Cancellable> watches;
+
+  WarmPool(ZKClient zkClient, RunId appRunId) {
+    this.zkClient = zkClient;
+    this.appRunId = appRunId;
+    this.standbys = Maps.newHashMap();
+    this.registered = Maps.newHashMap();
+    this.launching = HashMultiset.create();
+    this.lastActivity = Maps.newHashMap();
+    this.watches = Lists.newArrayList();
+  }
+
+  /**
+   * Starts tracking registration of standby containers of the given runnable.
+   */
+  synchronized void watch(final String runnableName) {
+    String path = String.format("/%s/standby/%s", appRunId.getId(), runnableName);
+    watches.add(ZKOperations.watchChildren(zkClient, path, new ZKOperations.ChildrenCallback() {
+      @Override
+      public void updated(NodeChildren nodeChildren) {
+        synchronized (WarmPool.this) {
+          registered.put(runnableName, ImmutableSet.copyOf(nodeChildren.getChildren()));
+        }
+      }
+    }));
+  }
+
+  /**
+   * Marks the pool of the given runnable as active at the given time.
+   */
+  synchronized void touch(String runnableName, long now) {
+    lastActivity.put(runnableName, now);
+  }
+
+  /**
+   * Returns {@code true} if the pool of the given runnable is active and has been touched within the idle timeout.
+   * @param idleMillis Idle timeout in milliseconds, or {@code 0} for no timeout.
+   */
+  synchronized boolean isActive(String runnableName, long idleMillis, long now) {
+    Long last = lastActivity.get(runnableName);
+    return last != null && (idleMillis <= 0 || now - last <= idleMillis);
+  }
+
+  /**
+   * Returns the number of standby containers of the given runnable, including the ones being launched.
+   */
+  synchronized int size(String runnableName) {
+    LinkedList<Standby> pool = standbys.get(runnableName);
+    return launching.count(runnableName) + (pool == null ? 0 : pool.size());
+  }
+
+  /**
+   * Records that a standby container of the given runnable is being launched.
+   */
+  synchronized void launching(String runnableName) {
+    launching.add(runnableName);
+  }
+
+  /**
+   * Records that a standby container is launched.
+   * @return {@code true} if the standby container is kept, {@code false} if the pool has been deactivated.
+   */
+  synchronized boolean launched(String runnableName, Standby standby) {
+    launching.remove(runnableName);
+    if (!lastActivity.containsKey(runnableName)) {
+      return false;
+    }
+    LinkedList<Standby> pool = standbys.get(runnableName);
+    if (pool == null) {
+      pool = Lists.newLinkedList();
+      standbys.put(runnableName, pool);
+    }
+    pool.add(standby);
+    return true;
+  }
+
+  /**
+   * Records that launching a standby container of the given runnable failed.
+   */
+  synchronized void launchFailed(String runnableName) {
+    launching.remove(runnableName);
+  }
+
+  /**
+   * Takes a standby container of the given runnable that is ready for activation.
+   * @return The standby container, or {@code null} if there is none ready.
+   */
+  synchronized Standby take(String runnableName) {
+    LinkedList<Standby> pool = standbys.get(runnableName);
+    Set<String> ready = registered.get(runnableName);
+    if (pool == null || ready == null) {
+      return null;
+    }
+    Iterator<Standby> iterator = pool.iterator();
+    while (iterator.hasNext()) {
+      Standby standby = iterator.next();
+      if (ready.contains(standby.getContainerId().toString())) {
+        iterator.remove();
+        return standby;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes the standby container with the given id, as the container is completed.
+   * @return {@code true} if the container is a standby container.
+   */
+  synchronized boolean remove(ContainerId containerId) {
+    for (LinkedList<Standby> pool : standbys.values()) {
+      Iterator<Standby> iterator = pool.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().getContainerId().equals(containerId)) {
+          iterator.remove();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Deactivates the pool of the given runnable.
+   * @return Standby containers of the runnable, which should be stopped.
+   */
+  synchronized List<Standby> deactivate(String runnableName) {
+    lastActivity.remove(runnableName);
+    LinkedList<Standby> pool = standbys.remove(runnableName);
+    return pool == null ? ImmutableList.<Standby>of() : pool;
+  }
+
+  /**
+   * Deactivates all pools and stops tracking registrations.
+   * @return All standby containers, which should be stopped.
+   */
+  synchronized List<Standby> close() {
+    for (Cancellable watch : watches) {
+      watch.cancel();
+    }
+    watches.clear();
+    List<Standby> result = Lists.newArrayList();
+    for (String runnableName : ImmutableList.copyOf(standbys.keySet())) {
+      result.addAll(deactivate(runnableName));
+    }
+    lastActivity.clear();
+    return result;
+  }
+
+  /**
+   * A standby container.
+   */
+  static final class Standby {
+    private final ContainerId containerId;
+    private final String host;
+    private final ProcessLauncher.ProcessController processController;
+
+    Standby(ContainerId containerId, String host, ProcessLauncher.ProcessController processController) {
+      this.containerId = containerId;
+      this.host = host;
+      this.processController = processController;
+    }
+
+    ContainerId getContainerId() {
+      return containerId;
+    }
+
+    String getHost() {
+      return host;
+    }
+
+    ProcessLauncher.ProcessController getProcessController() {
+      return processController;
+    }
+  }
+}
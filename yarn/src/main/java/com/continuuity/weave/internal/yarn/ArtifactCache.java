@@ -0,0 +1,295 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.yarn;
+
+import com.continuuity.weave.filesystem.Location;
+import com.continuuity.weave.filesystem.LocationFactory;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A content addressed store of artifacts for launching applications, so that artifacts that are not changed
+ * since previous launches are reused instead of being copied again. Each artifact is stored as
+ * {@code /.artifacts/<sha1>/<name>} under the root of the {@link LocationFactory}. As a reused artifact keeps
+ * the same location and modification time, NodeManagers could reuse their localized copy as well.
+ * <p>
+ * Applications hold references to the artifacts they use. A reference is a file under {@code <sha1>/refs}
+ * containing the application directory and the application id. It becomes stale once the application directory
+ * is removed, which happens when the application completes, or once the application is no longer running, which
+ * covers applications killed before removing their directory. Artifacts without live references are removed by
+ * {@link #gc()} after the time to live.
+ * </p>
+ * <p>
+ * Collection renames an artifact to a tombstone before deleting it, and checks the references again after the
+ * rename. A launch adding its reference before the rename has the reference moved with the tombstone and the
+ * artifact is restored, while a launch adding its reference after the rename creates a new entry.
+ * </p>
+ */
+public final class ArtifactCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ArtifactCache.class);
+
+  private static final String CACHE_DIR = ".artifacts";
+  private static final String REFS_DIR = "refs";
+  private static final String TOMBSTONE_SUFFIX = ".deleted";
+  private static final String GC_MARKER = ".gc";
+
+  private final LocationFactory locationFactory;
+  private final Predicate<String> runningApplications;
+  private final Location cacheDir;
+  private final long ttlMillis;
+
+  /**
+   * Returns {@code true} if the given URI points to an artifact in an artifact cache.
+   */
+  public static boolean isCached(URI uri) {
+    String path = uri.getPath();
+    return path != null && path.contains("/" + CACHE_DIR + "/");
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param locationFactory Factory for locations, with the cache created under its root.
+   * @param runningApplications Predicate on application id, returns {@code false} if the application has
+   *                            completed. It should return {@code true} if it is unknown.
+   * @param ttl Time for an artifact to stay in the cache after it is no longer referenced.
+   * @param unit Unit of the ttl.
+   */
+  public ArtifactCache(LocationFactory locationFactory, Predicate<String> runningApplications,
+                       long ttl, TimeUnit unit) {
+    this.locationFactory = locationFactory;
+    this.runningApplications = runningApplications;
+    this.cacheDir = locationFactory.create("/" + CACHE_DIR);
+    this.ttlMillis = unit.toMillis(ttl);
+  }
+
+  /**
+   * Adds an artifact to the cache if it is not there, and references it from the given application.
+   *
+   * @param name File name of the artifact. It is preserved, as YARN expands archives based on the file name.
+   * @param file Local file with content of the artifact.
+   * @param appLocation Directory of the application that uses the artifact.
+   * @param applicationId Id of the application that uses the artifact.
+   * @return Location of the cached artifact.
+   * @throws IOException If failed to add the artifact.
+   */
+  public Location add(String name, File file, Location appLocation, String applicationId) throws IOException {
+    String hash = Files.hash(file, Hashing.sha1()).toString();
+    Location entryDir = cacheDir.append(hash);
+    Location artifact = entryDir.append(name);
+
+    // Reference is added before looking up the artifact, so that it won't be collected in between.
+    addReference(entryDir, appLocation, applicationId);
+    if (artifact.exists()) {
+      LOG.debug("Reuse cached artifact {}", artifact.toURI());
+      return artifact;
+    }
+
+    // Copies to a temp file first, so that a partially copied artifact is never visible.
+    Location tmpLocation = artifact.getTempFile(Location.TEMP_FILE_SUFFIX);
+    try {
+      OutputStream os = new BufferedOutputStream(tmpLocation.getOutputStream());
+      try {
+        Files.copy(file, os);
+      } finally {
+        os.close();
+      }
+      if (artifact.exists()) {
+        // Added by another launch concurrently.
+        return artifact;
+      }
+      Location result = tmpLocation.renameTo(artifact);
+      if (result == null && !artifact.exists()) {
+        throw new IOException("Failed to rename " + tmpLocation.toURI() + " to " + artifact.toURI());
+      }
+      LOG.debug("Artifact {} added to cache {}", name, artifact.toURI());
+      return artifact;
+    } finally {
+      if (tmpLocation.exists()) {
+        tmpLocation.delete();
+      }
+    }
+  }
+
+  /**
+   * Runs {@link #gc()} if no collection is done within the given interval, by this or any other instance
+   * sharing the same cache.
+   *
+   * @param interval Minimum time between collections.
+   * @param unit Unit of the interval.
+   * @return {@code true} if collection is done.
+   */
+  public boolean gc(long interval, TimeUnit unit) {
+    try {
+      Location marker = cacheDir.append(GC_MARKER);
+      if (marker.exists() && System.currentTimeMillis() - marker.lastModified() < unit.toMillis(interval)) {
+        return false;
+      }
+      // Marker is updated before collecting, so that concurrent launches won't collect as well.
+      marker.getOutputStream().close();
+    } catch (IOException e) {
+      LOG.warn("Failed to update collection time in {}", cacheDir.toURI(), e);
+      return false;
+    }
+    gc();
+    return true;
+  }
+
+  /**
+   * Removes artifacts that have no live reference for longer than the time to live. Failures are only logged,
+   * as artifacts not removed would be removed in later runs.
+   */
+  public void gc() {
+    long now = System.currentTimeMillis();
+    try {
+      for (Location location : cacheDir.list()) {
+        String name = location.getName();
+        if (GC_MARKER.equals(name)) {
+          continue;
+        }
+        try {
+          if (name.endsWith(TOMBSTONE_SUFFIX)) {
+            // Left by a collection that failed before completion.
+            Location entryDir = cacheDir.append(name.substring(0, name.length() - TOMBSTONE_SUFFIX.length()));
+            if (now - getLastUsed(location) > ttlMillis) {
+              remove(entryDir, location);
+            }
+            continue;
+          }
+          Location tombstone = cacheDir.append(name + TOMBSTONE_SUFFIX);
+          if (!tombstone.exists() && !hasLiveReference(location) && now - getLastUsed(location) > ttlMillis
+              && location.renameTo(tombstone) != null) {
+            remove(location, tombstone);
+          }
+        } catch (IOException e) {
+          LOG.warn("Failed to collect artifact {}", location.toURI(), e);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to collect artifacts in {}", cacheDir.toURI(), e);
+    }
+  }
+
+  /**
+   * Deletes the tombstone of an artifact, or restores the artifact if it is referenced during the collection.
+   */
+  private void remove(Location entryDir, Location tombstone) throws IOException {
+    if (hasLiveReference(tombstone)) {
+      LOG.debug("Artifact {} referenced during collection, restore it", entryDir.toURI());
+      restore(tombstone, entryDir);
+      return;
+    }
+    LOG.info("Remove unused artifact {}", entryDir.toURI());
+    tombstone.delete(true);
+  }
+
+  private void restore(Location tombstone, Location entryDir) throws IOException {
+    if (!entryDir.exists() && tombstone.renameTo(entryDir) != null) {
+      return;
+    }
+    // Entry is created again by a launch after the rename, moves the artifact and references into it.
+    for (Location location : tombstone.list()) {
+      if (REFS_DIR.equals(location.getName())) {
+        for (Location ref : location.list()) {
+          moveIfAbsent(ref, entryDir.append(REFS_DIR));
+        }
+      } else {
+        moveIfAbsent(location, entryDir);
+      }
+    }
+    tombstone.delete(true);
+  }
+
+  private void moveIfAbsent(Location location, Location targetDir) throws IOException {
+    Location target = targetDir.append(location.getName());
+    if (target.exists()) {
+      return;
+    }
+    targetDir.mkdirs();
+    if (location.renameTo(target) == null && !target.exists()) {
+      throw new IOException("Failed to rename " + location.toURI() + " to " + target.toURI());
+    }
+  }
+
+  private void addReference(Location entryDir, Location appLocation, String applicationId) throws IOException {
+    // Application directory must exist for the reference to be live.
+    appLocation.mkdirs();
+    Location refsDir = entryDir.append(REFS_DIR);
+    refsDir.mkdirs();
+
+    OutputStream os = refsDir.append(appLocation.getName()).getOutputStream();
+    try {
+      os.write((appLocation.toURI().toString() + "\n" + applicationId).getBytes(Charsets.UTF_8));
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Checks if any application still references the artifact. Stale references are removed.
+   */
+  private boolean hasLiveReference(Location entryDir) throws IOException {
+    boolean live = false;
+    for (Location ref : entryDir.append(REFS_DIR).list()) {
+      Reader reader = new InputStreamReader(ref.getInputStream(), Charsets.UTF_8);
+      List<String> lines;
+      try {
+        lines = CharStreams.readLines(reader);
+      } finally {
+        reader.close();
+      }
+      // Empty reference is being written by a launch.
+      if (lines.isEmpty() || isLive(lines.get(0), lines.size() > 1 ? lines.get(1) : null)) {
+        live = true;
+      } else {
+        ref.delete();
+      }
+    }
+    return live;
+  }
+
+  private boolean isLive(String appUri, String applicationId) throws IOException {
+    if (!locationFactory.create(URI.create(appUri)).exists()) {
+      return false;
+    }
+    // Application directory is not removed if the application is killed.
+    return applicationId == null || runningApplications.apply(applicationId);
+  }
+
+  /**
+   * Returns the last time that a reference is added or removed for the artifact.
+   */
+  private long getLastUsed(Location entryDir) throws IOException {
+    Location refsDir = entryDir.append(REFS_DIR);
+    return refsDir.exists() ? refsDir.lastModified() : entryDir.lastModified();
+  }
+}
@@ -21,7 +21,6 @@ import com.continuuity.weave.api.logging.LogHandler;
 import com.continuuity.weave.internal.AbstractWeaveController;
 import com.continuuity.weave.internal.Constants;
 import com.continuuity.weave.internal.state.StateNode;
-import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
@@ -148,11 +147,6 @@ final class YarnWeaveController extends AbstractWeaveController implements Weave
     }
   }
 
-  @Override
-  protected void instanceNodeUpdated(NodeData nodeData) {
-
-  }
-
   @Override
   protected void stateNodeUpdated(StateNode stateNode) {
 
@@ -22,6 +22,7 @@ import com.continuuity.weave.api.WeaveController;
 import com.continuuity.weave.api.WeavePreparer;
 import com.continuuity.weave.api.WeaveSpecification;
 import com.continuuity.weave.api.logging.LogHandler;
+import com.continuuity.weave.filesystem.LocalLocationFactory;
 import com.continuuity.weave.filesystem.Location;
 import com.continuuity.weave.filesystem.LocationFactory;
 import com.continuuity.weave.internal.ApplicationBundler;
@@ -37,6 +38,7 @@ import com.continuuity.weave.internal.json.ArgumentsCodec;
 import com.continuuity.weave.internal.json.LocalFileCodec;
 import com.continuuity.weave.internal.json.WeaveSpecificationAdapter;
 import com.continuuity.weave.internal.utils.Dependencies;
+import com.continuuity.weave.internal.yarn.ArtifactCache;
 import com.continuuity.weave.launcher.WeaveLauncher;
 import com.continuuity.weave.yarn.utils.YarnUtils;
 import com.continuuity.weave.zookeeper.ZKClient;
@@ -44,6 +46,7 @@ import com.continuuity.weave.zookeeper.ZKClients;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
@@ -68,6 +71,7 @@ import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.LocalResource;
 import org.apache.hadoop.yarn.api.records.LocalResourceType;
 import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.api.records.YarnApplicationState;
 import org.apache.hadoop.yarn.client.YarnClient;
 import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
@@ -75,6 +79,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -86,7 +92,7 @@ import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarOutputStream;
 
 /**
@@ -97,13 +103,17 @@ final class YarnWeavePreparer implements WeavePreparer {
   private static final Logger LOG = LoggerFactory.getLogger(YarnWeavePreparer.class);
   private static final String KAFKA_ARCHIVE = "kafka-0.7.2.tgz";
   private static final int APP_MASTER_MEMORY_MB = 1024;
+  private static final long ARTIFACT_CACHE_TTL_DAYS = 7;
+  private static final long ARTIFACT_CACHE_GC_INTERVAL_HOURS = 1;
 
   private final WeaveSpecification weaveSpec;
   private final YarnClient yarnClient;
   private final ZKClient zkClient;
   private final LocationFactory locationFactory;
   private final YarnWeaveControllerFactory controllerFactory;
+  private final ArtifactCache artifactCache;
   private final RunId runId;
+  private ApplicationId applicationId;
 
   private final List<LogHandler> logHandlers = Lists.newArrayList();
   private final List<String> arguments = Lists.newArrayList();
@@ -111,6 +121,9 @@ final class YarnWeavePreparer implements WeavePreparer {
   private final List<URI> resources = Lists.newArrayList();
   private final List<String> classPaths = Lists.newArrayList();
   private final ListMultimap<String, String> runnableArgs = ArrayListMultimap.create();
+  private boolean separateDependencyJars;
+  private boolean expandJars = true;
+  private String jarCacheDir;
 
   YarnWeavePreparer(WeaveSpecification weaveSpec, YarnClient yarnClient,
                     ZKClient zkClient, LocationFactory locationFactory,
@@ -119,6 +132,12 @@ final class YarnWeavePreparer implements WeavePreparer {
     this.yarnClient = yarnClient;
     this.zkClient = ZKClients.namespace(zkClient, "/" + weaveSpec.getName());
     this.locationFactory = locationFactory;
+    this.artifactCache = new ArtifactCache(locationFactory, new Predicate<String>() {
+      @Override
+      public boolean apply(String applicationId) {
+        return isApplicationRunning(applicationId);
+      }
+    }, ARTIFACT_CACHE_TTL_DAYS, TimeUnit.DAYS);
     this.runId = RunIds.generate();
     this.controllerFactory = controllerFactory;
   }
@@ -184,12 +203,30 @@ final class YarnWeavePreparer implements WeavePreparer {
     return this;
   }
 
+  @Override
+  public WeavePreparer withSeparateDependencyJars() {
+    separateDependencyJars = true;
+    return this;
+  }
+
+  @Override
+  public WeavePreparer withJarExpansion(boolean expandAll) {
+    expandJars = expandAll;
+    return this;
+  }
+
+  @Override
+  public WeavePreparer withJarCacheDir(String dir) {
+    jarCacheDir = dir;
+    return this;
+  }
+
   @Override
   public WeaveController start() {
     // TODO: Unify this with {@link ProcessLauncher}
     try {
       GetNewApplicationResponse response = yarnClient.getNewApplication();
-      final ApplicationId applicationId = response.getApplicationId();
+      applicationId = response.getApplicationId();
 
       Runnable submitTask  = new Runnable() {
         @Override
@@ -200,42 +237,46 @@ final class YarnWeavePreparer implements WeavePreparer {
             appSubmissionContext.setApplicationName(weaveSpec.getName());
 
             Map<String, LocalResource> localResources = Maps.newHashMap();
+            // Resources localized by runnable containers only, not by the application master.
+            Map<String, LocalResource> runnableResources = Maps.newHashMap();
 
             Multimap<String, LocalFile> transformedLocalFiles = HashMultimap.create();
 
-            createAppMasterJar(createBundler(), localResources);
-            createContainerJar(createBundler(), localResources);
+            ApplicationBundler bundler = createBundler();
+            createAppMasterJar(bundler, localResources);
+            createContainerJar(bundler, localResources, runnableResources);
             populateRunnableResources(weaveSpec, transformedLocalFiles);
             saveWeaveSpec(weaveSpec, transformedLocalFiles, localResources);
             saveLogback(localResources);
             saveLauncher(localResources);
             saveKafka(localResources);
             saveArguments(arguments, runnableArgs, localResources);
-            saveLocalFiles(localResources, ImmutableSet.of("weaveSpec.json",
-                                                           "logback-template.xml",
-                                                           "container.jar",
-                                                           "launcher.jar",
-                                                           "arguments.json"));
+            saveLocalFiles(localResources, runnableResources, ImmutableSet.of("weaveSpec.json",
+                                                                             "logback-template.xml",
+                                                                             "container.jar",
+                                                                             "launcher.jar",
+                                                                             "arguments.json"));
 
             ContainerLaunchContext containerLaunchContext = Records.newRecord(ContainerLaunchContext.class);
             containerLaunchContext.setLocalResources(localResources);
 
-            // java -cp launcher.jar:$HADOOP_CONF_DIR -XmxMemory
+            // java -cp launcher.jar:$HADOOP_CONF_DIR -XmxMemory [launcher options]
             //     com.continuuity.weave.internal.WeaveLauncher
             //     appMaster.jar
             //     com.continuuity.weave.internal.appmaster.ApplicationMasterMain
             //     false
-            containerLaunchContext.setCommands(ImmutableList.of(
-              "java",
-              "-cp", "launcher.jar:$HADOOP_CONF_DIR",
-              "-Xmx" + APP_MASTER_MEMORY_MB + "m",
-              WeaveLauncher.class.getName(),
-              "appMaster.jar",
-              ApplicationMasterMain.class.getName(),
-              Boolean.FALSE.toString(),
-              " 1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout",
-              " 2>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr"
-            ));
+            containerLaunchContext.setCommands(ImmutableList.<String>builder()
+              .add("java")
+              .add("-cp", "launcher.jar:$HADOOP_CONF_DIR")
+              .add("-Xmx" + APP_MASTER_MEMORY_MB + "m")
+              .addAll(getLauncherOptions())
+              .add(WeaveLauncher.class.getName())
+              .add("appMaster.jar")
+              .add(ApplicationMasterMain.class.getName())
+              .add(Boolean.FALSE.toString())
+              .add(" 1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout")
+              .add(" 2>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stderr")
+              .build());
 
             containerLaunchContext.setEnvironment(ImmutableMap.<String, String>builder()
                                                     .put(EnvKeys.WEAVE_APP_ID, Integer.toString(applicationId.getId()))
@@ -256,6 +297,8 @@ final class YarnWeavePreparer implements WeavePreparer {
             ApplicationId appId = yarnClient.submitApplication(appSubmissionContext);
             LOG.debug("AM container spec submitted: {}", appId);
 
+            artifactCache.gc(ARTIFACT_CACHE_GC_INTERVAL_HOURS, TimeUnit.HOURS);
+
           } catch (Exception e) {
             throw Throwables.propagate(e);
           }
@@ -271,22 +314,49 @@ final class YarnWeavePreparer implements WeavePreparer {
     }
   }
 
+  /**
+   * Returns the system properties for {@link WeaveLauncher} as java options. The application master passes them on
+   * to the containers it launches.
+   */
+  private List<String> getLauncherOptions() {
+    ImmutableList.Builder<String> options = ImmutableList.builder();
+    options.add("-D" + WeaveLauncher.EXPAND_PROPERTY + "=" + expandJars);
+    if (jarCacheDir != null) {
+      options.add("-D" + WeaveLauncher.CACHE_DIR_PROPERTY + "=" + jarCacheDir);
+    }
+    return options.build();
+  }
+
   private ApplicationBundler createBundler() {
-    return new ApplicationBundler(ImmutableList.<String>of());
+    // Class dependencies are cached locally across launches, as most classes don't change between them.
+    // The cache is private to the user, as classes it refers to are trusted when bundling.
+    String cachePath = System.getProperty(YarnWeaveRunnerService.DEPENDENCY_CACHE_PROPERTY);
+    File cacheFile = cachePath == null
+      ? new File(System.getProperty("user.home"), ".weave/dependency.cache")
+      : new File(cachePath);
+    return new ApplicationBundler(ImmutableList.<String>of(), cacheFile);
   }
 
   private void createAppMasterJar(ApplicationBundler bundler,
                                   Map<String, LocalResource> localResources) throws IOException {
     LOG.debug("Create and copy appMaster.jar");
-    Location location = createTempLocation("appMaster", ".jar");
-    bundler.createBundle(location, ApplicationMasterMain.class);
-    LOG.debug("Done appMaster.jar");
+    File tmpJar = File.createTempFile("appMaster", ".jar");
+    try {
+      bundler.createBundle(new LocalLocationFactory().create(tmpJar.toURI()), ApplicationMasterMain.class);
+      Location location = addArtifact("appMaster.jar", tmpJar);
+      LOG.debug("Done appMaster.jar");
 
-    localResources.put("appMaster.jar", YarnUtils.createLocalResource(location));
+      localResources.put("appMaster.jar", YarnUtils.createLocalResource(location));
+    } finally {
+      tmpJar.delete();
+    }
   }
 
-  private void createContainerJar(ApplicationBundler bundler,
-                                  Map<String, LocalResource> localResources) throws IOException {
+  /**
+   * Creates the container.jar. Dependency jars that are shipped separately are added to the runnable resources.
+   */
+  private void createContainerJar(ApplicationBundler bundler, Map<String, LocalResource> localResources,
+                                  Map<String, LocalResource> runnableResources) throws IOException {
     try {
       Set<Class<?>> classes = Sets.newIdentityHashSet();
       classes.add(WeaveContainerMain.class);
@@ -298,11 +368,25 @@ final class YarnWeavePreparer implements WeavePreparer {
       }
 
       LOG.debug("Create and copy container.jar");
-      Location location = createTempLocation("container", ".jar");
-      bundler.createBundle(location, classes, resources);
-      LOG.debug("Done container.jar");
+      File tmpJar = File.createTempFile("container", ".jar");
+      try {
+        Location tmpLocation = new LocalLocationFactory().create(tmpJar.toURI());
+        if (separateDependencyJars) {
+          Map<String, URL> jars = bundler.createBundleWithoutJars(tmpLocation, classes, resources);
+          for (Map.Entry<String, URL> jar : jars.entrySet()) {
+            String name = WeaveLauncher.DEPENDENCY_JAR_PREFIX + jar.getKey();
+            runnableResources.put(name, YarnUtils.createLocalResource(cacheArtifact(jar.getKey(), jar.getValue())));
+          }
+        } else {
+          bundler.createBundle(tmpLocation, classes, resources);
+        }
+        Location location = addArtifact("container.jar", tmpJar);
+        LOG.debug("Done container.jar");
 
-      localResources.put("container.jar", YarnUtils.createLocalResource(location));
+        localResources.put("container.jar", YarnUtils.createLocalResource(location));
+      } finally {
+        tmpJar.delete();
+      }
 
     } catch (ClassNotFoundException e) {
       throw Throwables.propagate(e);
@@ -331,10 +415,9 @@ final class YarnWeavePreparer implements WeavePreparer {
         } else {
           URL url = uri.toURL();
           LOG.debug("Create and copy {} : {}", name, url);
-          // Temp file suffix is repeated with the file name to preserve original suffix for expansion.
+          // Original file name is preserved for expansion.
           String path = url.getFile();
-          location = copyFromURL(url, createTempLocation(localFile.getName(),
-                                                         path.substring(path.lastIndexOf('/') + 1)));
+          location = cacheArtifact(path.substring(path.lastIndexOf('/') + 1), url);
           LOG.debug("Done {} : {}", name, url);
         }
 
@@ -373,8 +456,8 @@ final class YarnWeavePreparer implements WeavePreparer {
 
   private void saveLogback(Map<String, LocalResource> localResources) throws IOException {
     LOG.debug("Create and copy logback-template.xml");
-    Location location = copyFromURL(getClass().getClassLoader().getResource("logback-template.xml"),
-                                    createTempLocation("logback-template", ".xml"));
+    Location location = cacheArtifact("logback-template.xml",
+                                      getClass().getClassLoader().getResource("logback-template.xml"));
     LOG.debug("Done logback-template.xml");
     localResources.put("logback-template.xml", YarnUtils.createLocalResource(location));
   }
@@ -382,15 +465,25 @@ final class YarnWeavePreparer implements WeavePreparer {
   /**
    * Creates the launcher.jar.
    */
-  private void saveLauncher(Map<String, LocalResource> localResources) throws URISyntaxException, IOException {
+  private void saveLauncher(Map<String, LocalResource> localResources) throws IOException {
 
     LOG.debug("Create and copy launcher.jar");
-    Location location = createTempLocation("launcher", ".jar");
+    File tmpJar = File.createTempFile("launcher", ".jar");
+    try {
+      createLauncherJar(tmpJar);
+      Location location = addArtifact("launcher.jar", tmpJar);
+      LOG.debug("Done launcher.jar");
+      localResources.put("launcher.jar", YarnUtils.createLocalResource(location));
+    } finally {
+      tmpJar.delete();
+    }
+  }
 
+  private void createLauncherJar(File jarFile) throws IOException {
     final String launcherName = WeaveLauncher.class.getName();
 
     // Create a jar file with the WeaveLauncher optionally a json serialized classpath.json in it.
-    final JarOutputStream jarOut = new JarOutputStream(location.getOutputStream());
+    final JarOutputStream jarOut = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jarFile)));
     ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
     if (classLoader == null) {
       classLoader = getClass().getClassLoader();
@@ -401,7 +494,7 @@ final class YarnWeavePreparer implements WeavePreparer {
         Preconditions.checkArgument(className.startsWith(launcherName),
                                     "Launcher jar should not have dependencies: %s", className);
         try {
-          jarOut.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+          jarOut.putNextEntry(ApplicationBundler.createEntry(className.replace('.', '/') + ".class"));
           InputStream is = classUrl.openStream();
           try {
             ByteStreams.copy(is, jarOut);
@@ -417,20 +510,17 @@ final class YarnWeavePreparer implements WeavePreparer {
 
     try {
       if (!classPaths.isEmpty()) {
-        jarOut.putNextEntry(new JarEntry("classpath"));
+        jarOut.putNextEntry(ApplicationBundler.createEntry("classpath"));
         jarOut.write(Joiner.on(':').join(classPaths).getBytes(Charsets.UTF_8));
       }
     } finally {
       jarOut.close();
     }
-    LOG.debug("Done launcher.jar");
-    localResources.put("launcher.jar", YarnUtils.createLocalResource(location));
   }
 
   private void saveKafka(Map<String, LocalResource> localResources) throws IOException {
     LOG.debug("Copy kafka.tgz");
-    Location location = copyFromURL(getClass().getClassLoader().getResource(KAFKA_ARCHIVE),
-                                    createTempLocation("kafka", ".tgz"));
+    Location location = cacheArtifact(KAFKA_ARCHIVE, getClass().getClassLoader().getResource(KAFKA_ARCHIVE));
     LOG.debug("Done kafka.tgz");
     LocalResource localResource = YarnUtils.createLocalResource(location);
     localResource.setType(LocalResourceType.ARCHIVE);
@@ -453,9 +543,16 @@ final class YarnWeavePreparer implements WeavePreparer {
     localResources.put("arguments.json", YarnUtils.createLocalResource(location));
   }
 
-  private void saveLocalFiles(Map<String, LocalResource> localResources, Set<String> keys) throws IOException {
+  /**
+   * Saves the given keys of the local resources and all the runnable resources to localFiles.json, which
+   * lists the files to localize for runnable containers.
+   */
+  private void saveLocalFiles(Map<String, LocalResource> localResources, Map<String, LocalResource> runnableResources,
+                              Set<String> keys) throws IOException {
+    Map<String, LocalResource> resources = Maps.newHashMap(runnableResources);
+    resources.putAll(Maps.filterKeys(localResources, Predicates.in(keys)));
     Map<String, LocalFile> localFiles = Maps.transformEntries(
-      Maps.filterKeys(localResources, Predicates.in(keys)),
+      resources,
       new Maps.EntryTransformer<String, LocalResource, LocalFile>() {
       @Override
       public LocalFile transformEntry(String key, LocalResource value) {
@@ -483,19 +580,35 @@ final class YarnWeavePreparer implements WeavePreparer {
     localResources.put("localFiles.json", YarnUtils.createLocalResource(location));
   }
 
-  private Location copyFromURL(URL url, Location target) throws IOException {
-    InputStream is = url.openStream();
+  /**
+   * Adds the content of the given URL to the artifact cache, referenced by this application.
+   */
+  private Location cacheArtifact(String name, URL url) throws IOException {
+    if ("file".equals(url.getProtocol())) {
+      try {
+        return addArtifact(name, new File(url.toURI()));
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+
+    File tmpFile = File.createTempFile("artifact", name);
     try {
-      OutputStream os = new BufferedOutputStream(target.getOutputStream());
+      InputStream is = url.openStream();
       try {
-        ByteStreams.copy(is, os);
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile));
+        try {
+          ByteStreams.copy(is, os);
+        } finally {
+          os.close();
+        }
       } finally {
-        os.close();
+        is.close();
       }
+      return addArtifact(name, tmpFile);
     } finally {
-      is.close();
+      tmpFile.delete();
     }
-    return target;
   }
 
   private Location createTempLocation(String path, String suffix) {
@@ -506,6 +619,27 @@ final class YarnWeavePreparer implements WeavePreparer {
     }
   }
 
+  private Location addArtifact(String name, File file) throws IOException {
+    return artifactCache.add(name, file, getAppLocation(), applicationId.toString());
+  }
+
+  /**
+   * Returns {@code false} if the given application has completed. Applications not known, such as those not yet
+   * submitted, are treated as running, so that artifacts they use are kept.
+   */
+  private boolean isApplicationRunning(String applicationId) {
+    try {
+      YarnApplicationState state = yarnClient.getApplicationReport(ConverterUtils.toApplicationId(applicationId))
+                                             .getYarnApplicationState();
+      return state != YarnApplicationState.FINISHED
+        && state != YarnApplicationState.FAILED
+        && state != YarnApplicationState.KILLED;
+    } catch (Exception e) {
+      LOG.debug("Failed to get state of application {}", applicationId, e);
+      return true;
+    }
+  }
+
   private Location getAppLocation() {
     return locationFactory.create(String.format("/%s/%s", weaveSpec.getName(), runId.getId()));
   }
@@ -31,6 +31,7 @@ import com.continuuity.weave.filesystem.HDFSLocationFactory;
 import com.continuuity.weave.filesystem.LocationFactory;
 import com.continuuity.weave.internal.RunIds;
 import com.continuuity.weave.internal.SingleRunnableApplication;
+import com.continuuity.weave.internal.state.LiveNodeCodec;
 import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.RetryStrategies;
@@ -39,7 +40,6 @@ import com.continuuity.weave.zookeeper.ZKClientService;
 import com.continuuity.weave.zookeeper.ZKClientServices;
 import com.continuuity.weave.zookeeper.ZKClients;
 import com.continuuity.weave.zookeeper.ZKOperations;
-import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -56,7 +56,6 @@ import com.google.common.collect.Table;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
-import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.hadoop.fs.FileSystem;
@@ -82,6 +81,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public final class YarnWeaveRunnerService extends AbstractIdleService implements WeaveRunnerService {
 
+  /**
+   * System property for the local file that caches class dependencies of applications across launches.
+   * Default is {@code .weave/dependency.cache} in the home directory of the user.
+   */
+  public static final String DEPENDENCY_CACHE_PROPERTY = "weave.dependency.cache";
+
   private static final Logger LOG = LoggerFactory.getLogger(YarnWeaveRunnerService.class);
 
   private static final int ZK_TIMEOUT = 10000;
@@ -279,10 +284,11 @@ public final class YarnWeaveRunnerService extends AbstractIdleService implements
 
   private ZKClientService getZKClientService(String zkConnect) {
     return ZKClientServices.delegate(
-      ZKClients.reWatchOnExpire(
-        ZKClients.retryOnFailure(ZKClientService.Builder.of(zkConnect)
-                                   .setSessionTimeout(ZK_TIMEOUT)
-                                   .build(), RetryStrategies.exponentialDelay(100, 2000, TimeUnit.MILLISECONDS))));
+      ZKClients.coalesceReads(
+        ZKClients.reWatchOnExpire(
+          ZKClients.retryOnFailure(ZKClientService.Builder.of(zkConnect)
+                                     .setSessionTimeout(ZK_TIMEOUT)
+                                     .build(), RetryStrategies.exponentialDelay(100, 2000, TimeUnit.MILLISECONDS)))));
   }
 
   private YarnClient getYarnClient(YarnConfiguration config) {
@@ -362,15 +368,15 @@ public final class YarnWeaveRunnerService extends AbstractIdleService implements
       return null;
     }
 
-    JsonElement json = new Gson().fromJson(new String(data, Charsets.UTF_8), JsonElement.class);
-    if (!json.isJsonObject()) {
+    JsonElement json = LiveNodeCodec.decode(data);
+    if (json == null || !json.isJsonObject()) {
       LOG.warn("Unable to decode live data node.");
       return null;
     }
 
     JsonObject jsonObj = json.getAsJsonObject();
     json = jsonObj.get("data");
-    if (!json.isJsonObject()) {
+    if (json == null || !json.isJsonObject()) {
       LOG.warn("Property data not found in live data node.");
       return null;
     }
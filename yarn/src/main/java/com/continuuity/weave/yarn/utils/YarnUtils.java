@@ -17,6 +17,7 @@ package com.continuuity.weave.yarn.utils;
 
 import com.continuuity.weave.api.LocalFile;
 import com.continuuity.weave.filesystem.Location;
+import com.continuuity.weave.internal.yarn.ArtifactCache;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import org.apache.hadoop.yarn.api.records.LocalResource;
@@ -26,6 +27,7 @@ import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 
 import java.io.IOException;
+import java.net.URI;
 
 /**
  * Collection of helper methods to simplify YARN calls.
@@ -35,7 +37,7 @@ public class YarnUtils {
   public static LocalResource createLocalResource(Location location) {
     try {
       LocalResource resource = Records.newRecord(LocalResource.class);
-      resource.setVisibility(LocalResourceVisibility.APPLICATION);
+      resource.setVisibility(getVisibility(location.toURI()));
       resource.setType(LocalResourceType.FILE);
       resource.setResource(ConverterUtils.getYarnUrlFromURI(location.toURI()));
       resource.setTimestamp(location.lastModified());
@@ -51,13 +53,20 @@ public class YarnUtils {
     Preconditions.checkArgument(localFile.getSize() >= 0, "File size should be >= 0.");
 
     LocalResource resource = Records.newRecord(LocalResource.class);
-    resource.setVisibility(LocalResourceVisibility.APPLICATION);
+    resource.setVisibility(getVisibility(localFile.getURI()));
     resource.setResource(ConverterUtils.getYarnUrlFromURI(localFile.getURI()));
     resource.setTimestamp(localFile.getLastModified());
     resource.setSize(localFile.getSize());
     return setLocalResourceType(resource, localFile);
   }
 
+  /**
+   * Artifacts in the artifact cache are shared across applications, hence are localized per user by NodeManager.
+   */
+  private static LocalResourceVisibility getVisibility(URI uri) {
+    return ArtifactCache.isCached(uri) ? LocalResourceVisibility.PRIVATE : LocalResourceVisibility.APPLICATION;
+  }
+
   private static LocalResource setLocalResourceType(LocalResource localResource, LocalFile localFile) {
     if (localFile.isArchive()) {
       if (localFile.getPattern() == null) {
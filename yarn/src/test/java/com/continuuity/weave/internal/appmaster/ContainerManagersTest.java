@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.Server;
+import org.apache.hadoop.security.token.SecretManager;
+import org.apache.hadoop.security.token.TokenIdentifier;
+import org.apache.hadoop.yarn.api.ContainerManager;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.ipc.YarnRPC;
+import org.apache.hadoop.yarn.util.BuilderUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ContainerManagersTest {
+
+  @Test
+  public void testReuse() {
+    TestYarnRPC yarnRPC = new TestYarnRPC();
+    ContainerManagers containerManagers = new ContainerManagers(yarnRPC, new YarnConfiguration());
+
+    // Launches and kills on the same node manager share the same proxy.
+    ContainerManager manager1 = containerManagers.get(BuilderUtils.newNodeId("host1", 1234));
+    Assert.assertSame(manager1, containerManagers.get(BuilderUtils.newNodeId("host1", 1234)));
+    ContainerManager manager2 = containerManagers.get(BuilderUtils.newNodeId("host1", 1235));
+    Assert.assertNotSame(manager1, manager2);
+    Assert.assertEquals(2, yarnRPC.created.size());
+
+    // All proxies are stopped on close, and new ones are created afterwards.
+    containerManagers.close();
+    Assert.assertEquals(Sets.newHashSet(yarnRPC.created), yarnRPC.stopped);
+    Assert.assertNotSame(manager1, containerManagers.get(BuilderUtils.newNodeId("host1", 1234)));
+  }
+
+  @Test
+  public void testConcurrentLaunches() throws Exception {
+    final TestYarnRPC yarnRPC = new TestYarnRPC();
+    final ContainerManagers containerManagers = new ContainerManagers(yarnRPC, new YarnConfiguration());
+    final NodeId nodeId = BuilderUtils.newNodeId("host", 1234);
+    final int threads = 10;
+
+    // Launch threads of the same node manager racing for the proxy.
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    final CountDownLatch completion = new CountDownLatch(threads);
+    final List<ContainerManager> results = Collections.synchronizedList(Lists.<ContainerManager>newArrayList());
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            barrier.await();
+            results.add(containerManagers.get(nodeId));
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          } finally {
+            completion.countDown();
+          }
+        }
+      }.start();
+    }
+    Assert.assertTrue(completion.await(10, TimeUnit.SECONDS));
+
+    // All of them get the same proxy, and the extra ones created are stopped.
+    Assert.assertEquals(threads, results.size());
+    Assert.assertEquals(1, Sets.newHashSet(results).size());
+    Set<Object> retained = Sets.newHashSet(yarnRPC.created);
+    retained.removeAll(yarnRPC.stopped);
+    Assert.assertEquals(Collections.<Object>singleton(results.get(0)), retained);
+  }
+
+  /**
+   * A {@link YarnRPC} that creates no-op proxies and records the proxies created and stopped.
+   */
+  private static final class TestYarnRPC extends YarnRPC {
+
+    private static final InvocationHandler NO_OP_HANDLER = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // Identity based equals and hashCode, so that proxies can be kept in sets.
+        if (method.getName().equals("equals")) {
+          return proxy == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+          return System.identityHashCode(proxy);
+        }
+        return null;
+      }
+    };
+
+    private final List<Object> created = Collections.synchronizedList(Lists.newArrayList());
+    private final Set<Object> stopped = Collections.synchronizedSet(Sets.newHashSet());
+
+    @Override
+    public Object getProxy(Class protocol, InetSocketAddress addr, Configuration conf) {
+      // Widens the race between concurrent callers.
+      Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+      Object proxy = Proxy.newProxyInstance(protocol.getClassLoader(), new Class[] { protocol }, NO_OP_HANDLER);
+      created.add(proxy);
+      return proxy;
+    }
+
+    @Override
+    public void stopProxy(Object proxy, Configuration conf) {
+      stopped.add(proxy);
+    }
+
+    @Override
+    public Server getServer(Class protocol, Object instance, InetSocketAddress addr, Configuration conf,
+                            SecretManager<? extends TokenIdentifier> secretManager, int numHandlers,
+                            String portRangeConfig) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
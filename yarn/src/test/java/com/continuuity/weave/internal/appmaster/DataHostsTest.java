@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class DataHostsTest {
+
+  @Test
+  public void testLookup() throws Exception {
+    File dataDir = Files.createTempDir();
+    Files.write("data", new File(dataDir, "part-0"), Charsets.UTF_8);
+    Set<String> dataPaths = ImmutableSet.of(dataDir.toURI().toString());
+
+    DataHosts dataHosts = new DataHosts(new Configuration(), TimeUnit.HOURS.toMillis(1));
+    try {
+      // No data paths needs no lookup.
+      Assert.assertTrue(dataHosts.get("empty", ImmutableSet.<String>of()).isEmpty());
+
+      // The first call doesn't wait for the lookup.
+      Assert.assertTrue(dataHosts.get("runnable", dataPaths).isEmpty());
+      Set<String> hosts = waitForHosts(dataHosts, "runnable", dataPaths);
+      Assert.assertEquals(ImmutableSet.of("localhost"), hosts);
+    } finally {
+      dataHosts.close();
+    }
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    File dataDir = Files.createTempDir();
+    Set<String> dataPaths = ImmutableSet.of(dataDir.toURI().toString());
+
+    DataHosts dataHosts = new DataHosts(new Configuration(), 0L);
+    try {
+      // Directory without files has no hosts.
+      dataHosts.get("runnable", dataPaths);
+      TimeUnit.MILLISECONDS.sleep(500);
+      Assert.assertTrue(dataHosts.get("runnable", dataPaths).isEmpty());
+
+      // Hosts are looked up again, hence files added later are seen.
+      Files.write("data", new File(dataDir, "part-0"), Charsets.UTF_8);
+      Assert.assertEquals(ImmutableSet.of("localhost"), waitForHosts(dataHosts, "runnable", dataPaths));
+    } finally {
+      dataHosts.close();
+    }
+  }
+
+  private Set<String> waitForHosts(DataHosts dataHosts, String runnableName, Set<String> dataPaths)
+    throws InterruptedException {
+    Set<String> hosts = dataHosts.get(runnableName, dataPaths);
+    int count = 0;
+    while (hosts.isEmpty() && count++ < 100) {
+      TimeUnit.MILLISECONDS.sleep(100);
+      hosts = dataHosts.get(runnableName, dataPaths);
+    }
+    return hosts;
+  }
+}
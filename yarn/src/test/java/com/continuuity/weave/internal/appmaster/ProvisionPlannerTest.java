@@ -0,0 +1,255 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.AbstractWeaveRunnable;
+import com.continuuity.weave.api.ResourceSpecification;
+import com.continuuity.weave.api.RuntimeSpecification;
+import com.continuuity.weave.api.WeaveSpecification;
+import com.continuuity.weave.internal.RunIds;
+import com.continuuity.weave.internal.control.ControlChannelClient;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ */
+public class ProvisionPlannerTest {
+
+  /**
+   * Dummy for test.
+   */
+  public static final class DummyRunnable extends AbstractWeaveRunnable {
+
+    @Override
+    public void stop() {
+      // no-op
+    }
+
+    @Override
+    public void run() {
+      // no-op
+    }
+  }
+
+  @Test
+  public void testPriorities() {
+    WeaveSpecification spec = WeaveSpecification.Builder.with()
+      .setName("test")
+      .withRunnable()
+      .add("r1", new DummyRunnable()).noLocalFiles()
+      .add("r2", new DummyRunnable()).noLocalFiles()
+      .add("r3", new DummyRunnable()).noLocalFiles()
+      .add("r4", new DummyRunnable()).noLocalFiles()
+      .withOrder().begin("r2", "r1").nextWhenStarted("r3")
+      .build();
+    ProvisionPlanner planner = createPlanner(spec, createRunningContainers());
+
+    // Runnables of earlier orders have higher priorities, which are smaller values in YARN.
+    Assert.assertEquals(0, planner.getPriority("r1"));
+    Assert.assertEquals(1, planner.getPriority("r2"));
+    Assert.assertEquals(2, planner.getPriority("r3"));
+    Assert.assertEquals(3, planner.getPriority("r4"));
+
+    // Standby requests have lower priorities than all instance requests, and all priorities are distinct.
+    Set<Integer> priorities = Sets.newHashSet();
+    for (String runnableName : spec.getRunnables().keySet()) {
+      Assert.assertTrue(priorities.add(planner.getPriority(runnableName)));
+      Assert.assertTrue(priorities.add(planner.getStandbyPriority(runnableName)));
+      Assert.assertTrue(planner.getStandbyPriority(runnableName) >= spec.getRunnables().size());
+    }
+  }
+
+  @Test
+  public void testStartedOrder() {
+    WeaveSpecification spec = WeaveSpecification.Builder.with()
+      .setName("test")
+      .withRunnable()
+      .add("r1", new DummyRunnable(), createResourceSpec(2)).noLocalFiles()
+      .add("r2", new DummyRunnable()).noLocalFiles()
+      .withOrder().begin("r1").nextWhenStarted("r2")
+      .build();
+    RunningContainers runningContainers = createRunningContainers();
+    ProvisionPlanner planner = createPlanner(spec, runningContainers);
+
+    Assert.assertEquals(ImmutableList.of("r1"), planner.nextOrder());
+    Assert.assertTrue(planner.hasPendingOrders());
+    Assert.assertEquals(ImmutableList.of("r1"), planner.getStartedRunnables());
+
+    // Next order is not started while provisioning.
+    ProvisionRequest request = createRequest(spec, "r1", planner.getPriority("r1"), false, 512);
+    planner.add(request);
+    Assert.assertTrue(planner.isProvisioning("r1"));
+    Assert.assertTrue(planner.isProvisioning());
+    Assert.assertTrue(planner.nextOrder().isEmpty());
+    Assert.assertSame(request, planner.remove(planner.getPriority("r1")));
+    Assert.assertFalse(planner.isProvisioning());
+
+    // Nor before all instances are launched.
+    planner.launched("r1");
+    Assert.assertTrue(planner.nextOrder().isEmpty());
+
+    // Instances that completed right after launch still count as started.
+    planner.launched("r1");
+    Assert.assertEquals(0, runningContainers.count("r1"));
+    Assert.assertEquals(ImmutableList.of("r2"), planner.nextOrder());
+    Assert.assertEquals(ImmutableList.of("r1", "r2"), planner.getStartedRunnables());
+
+    // The order of unordered runnables is empty, and it is skipped once r2 is started.
+    Assert.assertTrue(planner.nextOrder().isEmpty());
+    Assert.assertTrue(planner.hasPendingOrders());
+    planner.launched("r2");
+    Assert.assertTrue(planner.nextOrder().isEmpty());
+    Assert.assertFalse(planner.hasPendingOrders());
+  }
+
+  @Test
+  public void testCompletedOrder() {
+    WeaveSpecification spec = WeaveSpecification.Builder.with()
+      .setName("test")
+      .withRunnable()
+      .add("r1", new DummyRunnable()).noLocalFiles()
+      .add("r2", new DummyRunnable()).noLocalFiles()
+      .withOrder().begin("r1").nextWhenCompleted("r2")
+      .build();
+    RunningContainers runningContainers = createRunningContainers();
+    ProvisionPlanner planner = createPlanner(spec, runningContainers);
+
+    Assert.assertEquals(ImmutableList.of("r1"), planner.nextOrder());
+    ProvisionRequest request = createRequest(spec, "r1", planner.getPriority("r1"), false, 512);
+    planner.add(request);
+    Assert.assertTrue(planner.nextOrder().isEmpty());
+
+    // Launched instance is still running.
+    int instanceId = runningContainers.reserveInstanceId("r1", "host");
+    planner.remove(planner.getPriority("r1"));
+    planner.launched("r1");
+    Assert.assertTrue(planner.nextOrder().isEmpty());
+
+    runningContainers.releaseInstanceId("r1", instanceId);
+    Assert.assertEquals(ImmutableList.of("r2"), planner.nextOrder());
+  }
+
+  @Test
+  public void testMatch() {
+    WeaveSpecification spec = WeaveSpecification.Builder.with()
+      .setName("test")
+      .withRunnable()
+      .add("r1", new DummyRunnable()).noLocalFiles()
+      .add("r2", new DummyRunnable()).noLocalFiles()
+      .anyOrder()
+      .build();
+    ProvisionPlanner planner = createPlanner(spec, createRunningContainers());
+
+    ProvisionRequest request1 = createRequest(spec, "r1", planner.getPriority("r1"), false, 1024);
+    ProvisionRequest request2 = createRequest(spec, "r2", planner.getPriority("r2"), false, 512);
+    ProvisionRequest standby1 = createRequest(spec, "r1", planner.getStandbyPriority("r1"), true, 1024);
+    planner.add(request1);
+    planner.add(request2);
+    planner.add(standby1);
+
+    // Containers are matched by priority, having at least the memory requested.
+    Assert.assertSame(request1, planner.match(createContainer(planner.getPriority("r1"), 1024)));
+    Assert.assertSame(request1, planner.match(createContainer(planner.getPriority("r1"), 2048)));
+    Assert.assertNull(planner.match(createContainer(planner.getPriority("r1"), 512)));
+    Assert.assertSame(request2, planner.match(createContainer(planner.getPriority("r2"), 1024)));
+    Assert.assertSame(standby1, planner.match(createContainer(planner.getStandbyPriority("r1"), 1024)));
+    Assert.assertNull(planner.match(createContainer(planner.getStandbyPriority("r2"), 1024)));
+
+    // Standby requests are not counted as provisioning.
+    planner.remove(planner.getPriority("r1"));
+    planner.remove(planner.getPriority("r2"));
+    Assert.assertFalse(planner.isProvisioning());
+    Assert.assertFalse(planner.isProvisioning("r1"));
+    Assert.assertNull(planner.match(createContainer(planner.getPriority("r1"), 1024)));
+  }
+
+  @Test
+  public void testLoweredInstanceCount() {
+    WeaveSpecification spec = WeaveSpecification.Builder.with()
+      .setName("test")
+      .withRunnable()
+      .add("r1", new DummyRunnable(), createResourceSpec(2)).noLocalFiles()
+      .anyOrder()
+      .build();
+    Map<String, Integer> instanceCounts = Maps.newHashMap();
+    instanceCounts.put("r1", 2);
+    RunningContainers runningContainers = createRunningContainers();
+    ProvisionPlanner planner = new ProvisionPlanner(spec, instanceCounts, runningContainers);
+
+    runningContainers.reserveInstanceId("r1", "host0");
+    Assert.assertTrue(planner.isInstanceNeeded("r1"));
+
+    // Container allocated after the desired count is lowered is not needed.
+    instanceCounts.put("r1", 1);
+    Assert.assertFalse(planner.isInstanceNeeded("r1"));
+
+    // Needed again if an instance completes.
+    runningContainers.releaseInstanceId("r1", 0);
+    Assert.assertTrue(planner.isInstanceNeeded("r1"));
+  }
+
+  private ProvisionPlanner createPlanner(WeaveSpecification spec, RunningContainers runningContainers) {
+    Map<String, Integer> instanceCounts = Maps.newHashMap();
+    for (RuntimeSpecification runtimeSpec : spec.getRunnables().values()) {
+      instanceCounts.put(runtimeSpec.getName(), runtimeSpec.getResourceSpecification().getInstances());
+    }
+    return new ProvisionPlanner(spec, instanceCounts, runningContainers);
+  }
+
+  private RunningContainers createRunningContainers() {
+    return new RunningContainers(new MessageBroadcaster(null, RunIds.generate()), new ControlChannelClient());
+  }
+
+  private ResourceSpecification createResourceSpec(int instances) {
+    return ResourceSpecification.Builder.with()
+      .setCores(1)
+      .setMemory(512, ResourceSpecification.SizeUnit.MEGA)
+      .setInstances(instances)
+      .build();
+  }
+
+  private ProvisionRequest createRequest(WeaveSpecification spec, String runnableName,
+                                         int priorityValue, boolean standby, int memory) {
+    Resource capability = Records.newRecord(Resource.class);
+    capability.setMemory(memory);
+    Priority priority = Records.newRecord(Priority.class);
+    priority.setPriority(priorityValue);
+    return new ProvisionRequest(spec.getRunnables().get(runnableName), RunIds.generate(), capability, priority,
+                                null, null, standby, 1);
+  }
+
+  private Container createContainer(int priorityValue, int memory) {
+    Resource resource = Records.newRecord(Resource.class);
+    resource.setMemory(memory);
+    Priority priority = Records.newRecord(Priority.class);
+    priority.setPriority(priorityValue);
+    Container container = Records.newRecord(Container.class);
+    container.setResource(resource);
+    container.setPriority(priority);
+    return container;
+  }
+}
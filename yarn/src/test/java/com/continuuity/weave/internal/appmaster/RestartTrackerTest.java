@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.ResourceSpecification;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class RestartTrackerTest {
+
+  private static final String RUNNABLE = "runnable";
+
+  @Test
+  public void testPolicy() {
+    RestartTracker tracker = new RestartTracker();
+
+    ResourceSpecification never = createSpec(ResourceSpecification.RestartPolicy.NEVER, 0, 0);
+    Assert.assertFalse(tracker.isRestartAllowed(RUNNABLE, never, 1, 0));
+    Assert.assertFalse(tracker.isRestartAllowed(RUNNABLE, ResourceSpecification.BASIC, 1, 0));
+
+    ResourceSpecification onFailure = createSpec(ResourceSpecification.RestartPolicy.ON_FAILURE, 0, 0);
+    Assert.assertFalse(tracker.isRestartAllowed(RUNNABLE, onFailure, 0, 0));
+    Assert.assertTrue(tracker.isRestartAllowed(RUNNABLE, onFailure, 1, 0));
+
+    ResourceSpecification always = createSpec(ResourceSpecification.RestartPolicy.ALWAYS, 0, 0);
+    Assert.assertTrue(tracker.isRestartAllowed(RUNNABLE, always, 0, 0));
+    Assert.assertTrue(tracker.isRestartAllowed(RUNNABLE, always, 1, 0));
+  }
+
+  @Test
+  public void testMaxRestarts() {
+    RestartTracker tracker = new RestartTracker();
+    ResourceSpecification spec = createSpec(ResourceSpecification.RestartPolicy.ALWAYS, 2, 0);
+
+    // Without a window, all restarts since the start are counted.
+    long now = 0;
+    for (int i = 0; i < 2; i++) {
+      Assert.assertTrue(tracker.isRestartAllowed(RUNNABLE, spec, 1, now));
+      tracker.recordRestart(RUNNABLE, spec, now);
+      now += TimeUnit.DAYS.toMillis(1);
+    }
+    Assert.assertFalse(tracker.isRestartAllowed(RUNNABLE, spec, 1, now));
+
+    // Restarts are counted per runnable.
+    Assert.assertTrue(tracker.isRestartAllowed("other", spec, 1, now));
+  }
+
+  @Test
+  public void testWindow() {
+    RestartTracker tracker = new RestartTracker();
+    ResourceSpecification spec = createSpec(ResourceSpecification.RestartPolicy.ON_FAILURE, 2, 60);
+
+    tracker.recordRestart(RUNNABLE, spec, 0);
+    tracker.recordRestart(RUNNABLE, spec, 30000);
+    Assert.assertFalse(tracker.isRestartAllowed(RUNNABLE, spec, 1, 59000));
+
+    // Restarts older than the window are no longer counted.
+    Assert.assertTrue(tracker.isRestartAllowed(RUNNABLE, spec, 1, 61000));
+    tracker.recordRestart(RUNNABLE, spec, 61000);
+    Assert.assertFalse(tracker.isRestartAllowed(RUNNABLE, spec, 1, 62000));
+    Assert.assertTrue(tracker.isRestartAllowed(RUNNABLE, spec, 1, 200000));
+  }
+
+  @Test
+  public void testBackoff() {
+    RestartTracker tracker = new RestartTracker();
+    ResourceSpecification spec = createSpec(ResourceSpecification.RestartPolicy.ALWAYS, 0, 60);
+
+    // Backoff doubles with each restart within the window, up to the maximum.
+    long now = 0;
+    long expected = RestartTracker.MIN_BACKOFF_MILLIS;
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(Math.min(expected, RestartTracker.MAX_BACKOFF_MILLIS),
+                          tracker.recordRestart(RUNNABLE, spec, now));
+      expected *= 2;
+      now += 1000;
+    }
+
+    // Backoff is reset when earlier restarts are out of the window.
+    Assert.assertEquals(RestartTracker.MIN_BACKOFF_MILLIS,
+                        tracker.recordRestart(RUNNABLE, spec, now + TimeUnit.HOURS.toMillis(1)));
+  }
+
+  private ResourceSpecification createSpec(ResourceSpecification.RestartPolicy policy,
+                                           int maxRestarts, int windowSeconds) {
+    return ResourceSpecification.Builder.with()
+      .setCores(1)
+      .setMemory(512, ResourceSpecification.SizeUnit.MEGA)
+      .restart(policy, maxRestarts, windowSeconds, TimeUnit.SECONDS)
+      .build();
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.Command;
+import com.continuuity.weave.api.LoadReport;
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.internal.AbstractExecutionServiceController;
+import com.continuuity.weave.internal.RunIds;
+import com.continuuity.weave.internal.WeaveContainerController;
+import com.continuuity.weave.internal.control.ControlChannelClient;
+import com.continuuity.weave.internal.state.Message;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class RunningContainersTest {
+
+  private static final String RUNNABLE = "runnable";
+
+  @Test
+  public void testInstanceIds() {
+    RunningContainers containers = createRunningContainers();
+
+    // Reservations take the smallest unused instance ids and are counted.
+    Assert.assertEquals(0, containers.reserveInstanceId(RUNNABLE, "host0"));
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host1"));
+    Assert.assertEquals(2, containers.reserveInstanceId(RUNNABLE, "host2"));
+    Assert.assertEquals(3, containers.count(RUNNABLE));
+
+    // Released instance id is reused.
+    containers.releaseInstanceId(RUNNABLE, 1);
+    Assert.assertEquals(2, containers.count(RUNNABLE));
+    Assert.assertFalse(containers.getHosts(RUNNABLE).contains("host1"));
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host1"));
+
+    // Adding a container turns the reservation into a running container, without changing the count.
+    RunId baseRunId = RunIds.generate();
+    ContainerId container0 = createContainerId(0);
+    containers.add(RUNNABLE, 0, container0, new TestController(baseRunId, 0));
+    containers.add(RUNNABLE, 1, createContainerId(1), new TestController(baseRunId, 1));
+    containers.add(RUNNABLE, 2, createContainerId(2), new TestController(baseRunId, 2));
+    Assert.assertEquals(3, containers.count(RUNNABLE));
+    Assert.assertEquals(RUNNABLE, containers.getRunnableName(container0));
+
+    // Completed container frees its instance id.
+    containers.handleCompleted(container0, 0);
+    Assert.assertEquals(2, containers.count(RUNNABLE));
+    Assert.assertNull(containers.getRunnableName(container0));
+    Assert.assertEquals(0, containers.reserveInstanceId(RUNNABLE, "host0"));
+    Assert.assertEquals(3, containers.reserveInstanceId(RUNNABLE, "host3"));
+    Assert.assertEquals(4, containers.count(RUNNABLE));
+
+    // Releasing an instance id that is running is a no-op.
+    containers.releaseInstanceId(RUNNABLE, 1);
+    Assert.assertEquals(4, containers.count(RUNNABLE));
+  }
+
+  @Test
+  public void testLaunchReservations() {
+    RunningContainers containers = createRunningContainers();
+
+    // Containers being launched share the same base run id, even before any of them is running.
+    RunId baseRunId = containers.getBaseRunId(RUNNABLE);
+    Assert.assertEquals(0, containers.reserveInstanceId(RUNNABLE, "host0"));
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host1"));
+    Assert.assertEquals(baseRunId, containers.getBaseRunId(RUNNABLE));
+
+    // A launched container takes its reservation, while a failed launch gives it up.
+    containers.add(RUNNABLE, 0, createContainerId(0), new TestController(baseRunId, 0));
+    containers.releaseInstanceId(RUNNABLE, 1);
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+    Assert.assertEquals(ImmutableSet.of("host0"), containers.getHosts(RUNNABLE));
+    Assert.assertEquals(baseRunId, containers.getBaseRunId(RUNNABLE));
+
+    // The replacement takes the instance id of the failed launch.
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host2"));
+    Assert.assertEquals(2, containers.count(RUNNABLE));
+  }
+
+  @Test
+  public void testRestart() {
+    RunningContainers containers = createRunningContainers();
+    RunId baseRunId = containers.getBaseRunId(RUNNABLE);
+    Assert.assertEquals(0, containers.reserveInstanceId(RUNNABLE, "host0"));
+    ContainerId container0 = createContainerId(0);
+    TestController controller0 = new TestController(baseRunId, 0);
+    containers.add(RUNNABLE, 0, container0, controller0);
+
+    // The only instance crashed. Its instance id stays reserved and counted while waiting for restart.
+    Assert.assertEquals(0, containers.handleCompleted(container0, 1, true));
+    Assert.assertEquals(1, controller0.getExitStatus());
+    Assert.assertNull(containers.getRunnableName(container0));
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host1"));
+    containers.releaseInstanceId(RUNNABLE, 1);
+
+    // Once ready for restart, the instance id is no longer counted, but it is kept for the restart.
+    containers.readyForRestart(RUNNABLE, 0);
+    Assert.assertEquals(0, containers.count(RUNNABLE));
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host1"));
+    containers.releaseInstanceId(RUNNABLE, 1);
+    containers.releaseInstanceId(RUNNABLE, 0);
+
+    // The restart takes the instance id with the same base run id.
+    Assert.assertEquals(baseRunId, containers.getBaseRunId(RUNNABLE));
+    Assert.assertEquals(0, containers.takeRestartInstanceId(RUNNABLE, "host2"));
+    Assert.assertEquals(-1, containers.takeRestartInstanceId(RUNNABLE, "host2"));
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+    containers.add(RUNNABLE, 0, createContainerId(1), new TestController(baseRunId, 0));
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+
+    // Container that is not running has nothing to restart.
+    Assert.assertEquals(-1, containers.handleCompleted(createContainerId(2), 1, true));
+  }
+
+  @Test
+  public void testRestartWithLowerFreeId() {
+    RunningContainers containers = createRunningContainers();
+    RunId baseRunId = containers.getBaseRunId(RUNNABLE);
+    ContainerId[] containerIds = new ContainerId[3];
+    for (int i = 0; i < containerIds.length; i++) {
+      Assert.assertEquals(i, containers.reserveInstanceId(RUNNABLE, "host" + i));
+      containerIds[i] = createContainerId(i);
+      containers.add(RUNNABLE, i, containerIds[i], new TestController(baseRunId, i));
+    }
+
+    // Instance 0 completes beyond the restart budget, while instance 2 crashes and is restarted.
+    containers.handleCompleted(containerIds[0], 1);
+    Assert.assertEquals(2, containers.handleCompleted(containerIds[2], 1, true));
+    containers.readyForRestart(RUNNABLE, 2);
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+
+    // The restart goes to instance 2, while new instances take the lower free id.
+    Assert.assertEquals(2, containers.takeRestartInstanceId(RUNNABLE, "host3"));
+    Assert.assertEquals(0, containers.reserveInstanceId(RUNNABLE, "host4"));
+    Assert.assertEquals(3, containers.count(RUNNABLE));
+
+    // A failed launch of the restart keeps the instance id for the replacement.
+    containers.readyForRestart(RUNNABLE, 2);
+    Assert.assertEquals(2, containers.count(RUNNABLE));
+    Assert.assertEquals(3, containers.reserveInstanceId(RUNNABLE, "host5"));
+    Assert.assertEquals(2, containers.takeRestartInstanceId(RUNNABLE, "host6"));
+    containers.add(RUNNABLE, 2, createContainerId(3), new TestController(baseRunId, 2));
+    Assert.assertEquals(4, containers.count(RUNNABLE));
+    Assert.assertEquals(ImmutableSet.of("host1", "host4", "host5", "host6"), containers.getHosts(RUNNABLE));
+
+    // Restarts no longer needed after lowering the desired count are dropped.
+    Assert.assertEquals(1, containers.handleCompleted(createContainerId(1), 1, true));
+    containers.readyForRestart(RUNNABLE, 1);
+    containers.trimRestarts(RUNNABLE, 0);
+    Assert.assertEquals(-1, containers.takeRestartInstanceId(RUNNABLE, "host1"));
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host1"));
+  }
+
+  @Test
+  public void testAddTakenInstance() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    RunId baseRunId = RunIds.generate();
+
+    ContainerId container1 = createContainerId(1);
+    TestController controller1 = new TestController(baseRunId, 0);
+    containers.add(RUNNABLE, 0, container1, controller1);
+
+    // The container that took the instance id before is stopped, instead of being left untracked.
+    ContainerId container2 = createContainerId(2);
+    TestController controller2 = new TestController(baseRunId, 0);
+    containers.add(RUNNABLE, 0, container2, controller2);
+
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+    Assert.assertEquals(Service.State.TERMINATED, controller1.stop().get(5, TimeUnit.SECONDS));
+    Assert.assertEquals(Service.State.RUNNING, controller2.state());
+    Assert.assertNull(containers.getRunnableName(container1));
+    Assert.assertEquals(RUNNABLE, containers.getRunnableName(container2));
+
+    // Completion of the stopped container is still delivered to its controller.
+    containers.handleCompleted(container1, 0);
+    Assert.assertEquals(0, controller1.getExitStatus());
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+  }
+
+  @Test
+  public void testScaleDown() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    RunId baseRunId = RunIds.generate();
+    TestController[] controllers = new TestController[3];
+    for (int i = 0; i < controllers.length; i++) {
+      controllers[i] = new TestController(baseRunId, i);
+      containers.add(RUNNABLE, i, createContainerId(i), controllers[i]);
+    }
+    Assert.assertEquals(baseRunId, containers.getBaseRunId(RUNNABLE));
+
+    // Containers with the largest instance ids are stopped.
+    containers.scaleDown(RUNNABLE, Suppliers.ofInstance(1), 1).get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(1, containers.count(RUNNABLE));
+    Assert.assertEquals(Service.State.RUNNING, controllers[0].state());
+    Assert.assertEquals(Service.State.TERMINATED, controllers[1].state());
+    Assert.assertEquals(Service.State.TERMINATED, controllers[2].state());
+
+    // Stopped instance ids are reused.
+    Assert.assertEquals(1, containers.reserveInstanceId(RUNNABLE, "host"));
+  }
+
+  @Test
+  public void testStopAllHanging() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    RunId baseRunId = RunIds.generate();
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // One controller that never stops and fails to kill, another one that never stops and blocks on kill.
+      TestController failKill = new HangingController(baseRunId, 0, release, true);
+      TestController blockKill = new HangingController(baseRunId, 1, release, false);
+      TestController stoppable = new TestController(baseRunId, 2);
+      containers.add(RUNNABLE, 0, createContainerId(0), failKill);
+      containers.add(RUNNABLE, 1, createContainerId(1), blockKill);
+      containers.add(RUNNABLE, 2, createContainerId(2), stoppable);
+
+      // Waits no longer than the timeout for the stops, and then for the kills.
+      Stopwatch stopwatch = new Stopwatch().start();
+      Set<RunId> killed = containers.stopAll(1, TimeUnit.SECONDS);
+      Assert.assertTrue(stopwatch.elapsedTime(TimeUnit.SECONDS) < 5);
+
+      Assert.assertEquals(ImmutableSet.of(failKill.getRunId(), blockKill.getRunId()), killed);
+      Assert.assertEquals(Service.State.TERMINATED, stoppable.state());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private RunningContainers createRunningContainers() {
+    return new RunningContainers(new MessageBroadcaster(null, RunIds.generate()), new ControlChannelClient());
+  }
+
+  private ContainerId createContainerId(int id) {
+    return ConverterUtils.toContainerId(String.format("container_1_0001_01_%06d", id));
+  }
+
+  /**
+   * A {@link WeaveContainerController} that runs locally.
+   */
+  static class TestController extends AbstractExecutionServiceController implements WeaveContainerController {
+
+    private volatile int exitStatus = -1;
+
+    TestController(RunId baseRunId, int instanceId) {
+      super(RunIds.fromString(baseRunId.getId() + "-" + instanceId));
+      startAndWait();
+    }
+
+    int getExitStatus() {
+      return exitStatus;
+    }
+
+    @Override
+    protected void startUp() {
+      // No-op
+    }
+
+    @Override
+    protected void shutDown() {
+      // No-op
+    }
+
+    @Override
+    public ListenableFuture<Message> sendMessage(Message message) {
+      return Futures.immediateFuture(message);
+    }
+
+    @Override
+    public InetSocketAddress getControlAddress() {
+      return null;
+    }
+
+    @Override
+    public String getControlSecret() {
+      return null;
+    }
+
+    @Override
+    public LoadReport getLoadReport() {
+      return null;
+    }
+
+    @Override
+    public void completed(int exitStatus) {
+      this.exitStatus = exitStatus;
+    }
+
+    @Override
+    public ListenableFuture<Command> sendCommand(Command command) {
+      return Futures.immediateFuture(command);
+    }
+
+    @Override
+    public ListenableFuture<Command> sendCommand(String runnableName, Command command) {
+      return Futures.immediateFuture(command);
+    }
+
+    @Override
+    public void kill() {
+      stopAndWait();
+    }
+  }
+
+  /**
+   * A {@link TestController} that doesn't stop until released, and which kill either fails or blocks.
+   */
+  private static final class HangingController extends TestController {
+
+    private final CountDownLatch release;
+    private final boolean failKill;
+
+    HangingController(RunId baseRunId, int instanceId, CountDownLatch release, boolean failKill) {
+      super(baseRunId, instanceId);
+      this.release = release;
+      this.failKill = failKill;
+    }
+
+    @Override
+    protected void shutDown() {
+      Uninterruptibles.awaitUninterruptibly(release);
+    }
+
+    @Override
+    public void kill() {
+      if (failKill) {
+        throw new IllegalStateException("Kill failed");
+      }
+      Uninterruptibles.awaitUninterruptibly(release);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.internal.RunIds;
+import com.continuuity.weave.internal.StandbyActivation;
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.google.common.collect.ImmutableList;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+import org.apache.zookeeper.CreateMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class WarmPoolTest {
+
+  private static final String RUNNABLE = "runnable";
+
+  @Test
+  public void testActivity() {
+    WarmPool warmPool = new WarmPool(null, RunIds.generate());
+
+    // Pool is inactive until touched, and becomes idle after the timeout.
+    Assert.assertFalse(warmPool.isActive(RUNNABLE, 1000, 0));
+    warmPool.touch(RUNNABLE, 1000);
+    Assert.assertTrue(warmPool.isActive(RUNNABLE, 1000, 2000));
+    Assert.assertFalse(warmPool.isActive(RUNNABLE, 1000, 2001));
+    Assert.assertTrue(warmPool.isActive(RUNNABLE, 0, Long.MAX_VALUE));
+
+    // Deactivated pool is inactive.
+    warmPool.deactivate(RUNNABLE);
+    Assert.assertFalse(warmPool.isActive(RUNNABLE, 0, 2000));
+  }
+
+  @Test
+  public void testLaunches() {
+    WarmPool warmPool = new WarmPool(null, RunIds.generate());
+    warmPool.touch(RUNNABLE, 0);
+
+    // Standby containers being launched are counted.
+    warmPool.launching(RUNNABLE);
+    warmPool.launching(RUNNABLE);
+    warmPool.launching(RUNNABLE);
+    Assert.assertEquals(3, warmPool.size(RUNNABLE));
+
+    WarmPool.Standby standby1 = createStandby(1);
+    Assert.assertTrue(warmPool.launched(RUNNABLE, standby1));
+    warmPool.launchFailed(RUNNABLE);
+    Assert.assertEquals(2, warmPool.size(RUNNABLE));
+
+    // Completed standby container is removed.
+    Assert.assertTrue(warmPool.remove(standby1.getContainerId()));
+    Assert.assertFalse(warmPool.remove(standby1.getContainerId()));
+    Assert.assertEquals(1, warmPool.size(RUNNABLE));
+
+    // Standby containers launched after the pool is deactivated are not kept.
+    WarmPool.Standby standby2 = createStandby(2);
+    Assert.assertTrue(warmPool.deactivate(RUNNABLE).isEmpty());
+    Assert.assertFalse(warmPool.launched(RUNNABLE, standby2));
+    Assert.assertEquals(0, warmPool.size(RUNNABLE));
+
+    // Deactivation and close return the standby containers to stop.
+    warmPool.touch(RUNNABLE, 0);
+    WarmPool.Standby standby3 = createStandby(3);
+    WarmPool.Standby standby4 = createStandby(4);
+    warmPool.launching(RUNNABLE);
+    warmPool.launching(RUNNABLE);
+    warmPool.launched(RUNNABLE, standby3);
+    warmPool.launched(RUNNABLE, standby4);
+    Assert.assertEquals(ImmutableList.of(standby3, standby4), warmPool.close());
+    Assert.assertEquals(0, warmPool.size(RUNNABLE));
+  }
+
+  @Test
+  public void testTake() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+    try {
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+      try {
+        RunId appRunId = RunIds.generate();
+        WarmPool warmPool = new WarmPool(zkClient, appRunId);
+        warmPool.watch(RUNNABLE);
+        warmPool.touch(RUNNABLE, 0);
+
+        WarmPool.Standby standby1 = createStandby(1);
+        WarmPool.Standby standby2 = createStandby(2);
+        warmPool.launching(RUNNABLE);
+        warmPool.launching(RUNNABLE);
+        warmPool.launched(RUNNABLE, standby1);
+        warmPool.launched(RUNNABLE, standby2);
+
+        // None is ready before registration.
+        Assert.assertNull(warmPool.take(RUNNABLE));
+
+        // Only the registered standby container is taken, even though it is launched later.
+        zkClient.create(StandbyActivation.getPath(appRunId, RUNNABLE, standby2.getContainerId().toString()),
+                        null, CreateMode.EPHEMERAL, true).get(10, TimeUnit.SECONDS);
+        WarmPool.Standby taken = warmPool.take(RUNNABLE);
+        int count = 0;
+        while (taken == null && count++ < 100) {
+          TimeUnit.MILLISECONDS.sleep(100);
+          taken = warmPool.take(RUNNABLE);
+        }
+        Assert.assertSame(standby2, taken);
+        Assert.assertNull(warmPool.take(RUNNABLE));
+        Assert.assertEquals(1, warmPool.size(RUNNABLE));
+
+        warmPool.close();
+      } finally {
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  private WarmPool.Standby createStandby(int id) {
+    ContainerId containerId = ConverterUtils.toContainerId(String.format("container_1_0001_01_%06d", id));
+    return new WarmPool.Standby(containerId, "host" + id, null);
+  }
+}
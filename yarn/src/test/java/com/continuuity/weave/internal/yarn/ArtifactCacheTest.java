@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.yarn;
+
+import com.continuuity.weave.filesystem.LocalLocationFactory;
+import com.continuuity.weave.filesystem.Location;
+import com.continuuity.weave.filesystem.LocationFactory;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ArtifactCacheTest {
+
+  private static final long TTL_HOURS = 1;
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private LocationFactory locationFactory;
+  private Set<String> completedApplications;
+  private ArtifactCache cache;
+
+  @Before
+  public void init() throws IOException {
+    locationFactory = new LocalLocationFactory(tmpDir.newFolder());
+    completedApplications = Sets.newHashSet();
+    cache = new ArtifactCache(locationFactory, new Predicate<String>() {
+      @Override
+      public boolean apply(String applicationId) {
+        return !completedApplications.contains(applicationId);
+      }
+    }, TTL_HOURS, TimeUnit.HOURS);
+  }
+
+  @Test
+  public void testAdd() throws IOException {
+    Location app1 = locationFactory.create("/app/1");
+    Location app2 = locationFactory.create("/app/2");
+
+    Location artifact = cache.add("test.jar", createFile("content"), app1, "application_1_0001");
+    Assert.assertEquals("test.jar", artifact.getName());
+    Assert.assertEquals("content", Files.toString(toFile(artifact), Charsets.UTF_8));
+    Assert.assertTrue(ArtifactCache.isCached(artifact.toURI()));
+    Assert.assertTrue(app1.exists());
+
+    // Same content is reused, with modification time unchanged.
+    long lastModified = artifact.lastModified();
+    Location reused = cache.add("test.jar", createFile("content"), app2, "application_1_0002");
+    Assert.assertEquals(artifact.toURI(), reused.toURI());
+    Assert.assertEquals(lastModified, reused.lastModified());
+    Assert.assertEquals(2, getRefs(artifact).length);
+
+    // Different content is stored separately.
+    Location other = cache.add("test.jar", createFile("other"), app1, "application_1_0001");
+    Assert.assertFalse(artifact.toURI().equals(other.toURI()));
+    Assert.assertEquals("other", Files.toString(toFile(other), Charsets.UTF_8));
+    Assert.assertFalse(ArtifactCache.isCached(app1.toURI()));
+  }
+
+  @Test
+  public void testStaleReference() throws IOException {
+    Location app1 = locationFactory.create("/app/1");
+    Location app2 = locationFactory.create("/app/2");
+    Location artifact = cache.add("test.jar", createFile("content"), app1, "application_1_0001");
+    cache.add("test.jar", createFile("content"), app2, "application_1_0002");
+
+    // Reference of a completed application that removed its directory.
+    Assert.assertTrue(app1.delete(true));
+    expire(artifact);
+    cache.gc();
+    Assert.assertTrue(artifact.exists());
+    Assert.assertEquals(1, getRefs(artifact).length);
+
+    // Reference of a killed application that left its directory.
+    completedApplications.add("application_1_0002");
+    expire(artifact);
+    cache.gc();
+    Assert.assertTrue(artifact.exists());
+    Assert.assertEquals(0, getRefs(artifact).length);
+  }
+
+  @Test
+  public void testTTL() throws IOException {
+    Location app = locationFactory.create("/app/1");
+    Location artifact = cache.add("test.jar", createFile("content"), app, "application_1_0001");
+
+    // Artifact is kept while referenced.
+    expire(artifact);
+    cache.gc();
+    Assert.assertTrue(artifact.exists());
+
+    // Artifact is kept within the ttl after the reference is removed.
+    Assert.assertTrue(app.delete(true));
+    cache.gc();
+    Assert.assertTrue(artifact.exists());
+
+    expire(artifact);
+    cache.gc();
+    Assert.assertFalse(artifact.exists());
+    Assert.assertEquals(0, toFile(artifact).getParentFile().getParentFile().list().length);
+
+    // Removed artifact is added again.
+    artifact = cache.add("test.jar", createFile("content"), app, "application_1_0001");
+    Assert.assertEquals("content", Files.toString(toFile(artifact), Charsets.UTF_8));
+  }
+
+  @Test
+  public void testRestore() throws IOException {
+    Location app1 = locationFactory.create("/app/1");
+    Location app2 = locationFactory.create("/app/2");
+    Location artifact = cache.add("test.jar", createFile("content"), app1, "application_1_0001");
+    long lastModified = artifact.lastModified();
+
+    // Simulates a collection interrupted after renaming an artifact that is referenced.
+    File entryDir = toFile(artifact).getParentFile();
+    File tombstone = new File(entryDir.getPath() + ".deleted");
+    Assert.assertTrue(entryDir.renameTo(tombstone));
+    expire(new File(tombstone, "refs"));
+
+    cache.gc();
+    Assert.assertFalse(tombstone.exists());
+    Assert.assertTrue(artifact.exists());
+    Assert.assertEquals(lastModified, artifact.lastModified());
+
+    // Simulates a launch creating the entry again after the rename.
+    Assert.assertTrue(entryDir.renameTo(tombstone));
+    cache.add("test.jar", createFile("content"), app2, "application_1_0002");
+    expire(new File(tombstone, "refs"));
+
+    cache.gc();
+    Assert.assertFalse(tombstone.exists());
+    Assert.assertTrue(artifact.exists());
+    Assert.assertEquals(2, getRefs(artifact).length);
+  }
+
+  @Test
+  public void testGCInterval() throws IOException {
+    Location app = locationFactory.create("/app/1");
+    Location artifact = cache.add("test.jar", createFile("content"), app, "application_1_0001");
+    Assert.assertTrue(app.delete(true));
+
+    Assert.assertTrue(cache.gc(1, TimeUnit.HOURS));
+    expire(artifact);
+    Assert.assertFalse(cache.gc(1, TimeUnit.HOURS));
+    Assert.assertTrue(artifact.exists());
+
+    Assert.assertTrue(cache.gc(0, TimeUnit.HOURS));
+    Assert.assertFalse(artifact.exists());
+  }
+
+  private File createFile(String content) throws IOException {
+    File file = tmpDir.newFile();
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private File toFile(Location location) {
+    return new File(location.toURI());
+  }
+
+  private String[] getRefs(Location artifact) {
+    return new File(toFile(artifact).getParentFile(), "refs").list();
+  }
+
+  /**
+   * Sets the last used time of an artifact to beyond the ttl.
+   */
+  private void expire(Location artifact) {
+    expire(new File(toFile(artifact).getParentFile(), "refs"));
+  }
+
+  private void expire(File refsDir) {
+    long time = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(TTL_HOURS * 2);
+    Assert.assertTrue(refsDir.setLastModified(time));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+/**
+ * A circuit breaker driven by the ZooKeeper session state. The circuit is open while the session is disconnected,
+ * during which requests are rejected without being sent to ZooKeeper. It is closed again when the session is
+ * connected, as the connection itself proves that ZooKeeper is reachable.
+ */
+final class CircuitBreaker {
+
+  /**
+   * States of the circuit.
+   */
+  enum State {
+    CLOSED,
+    OPEN
+  }
+
+  private volatile State state;
+
+  CircuitBreaker() {
+    this.state = State.CLOSED;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  /**
+   * Opens the circuit as the session is disconnected.
+   */
+  void disconnected() {
+    state = State.OPEN;
+  }
+
+  /**
+   * Closes the circuit as the session is connected.
+   */
+  void connected() {
+    state = State.CLOSED;
+  }
+
+  /**
+   * Returns {@code true} if a request can be sent, {@code false} if it should be rejected.
+   */
+  boolean allowRequest() {
+    return state == State.CLOSED;
+  }
+}
@@ -24,14 +24,17 @@ import com.continuuity.weave.zookeeper.RetryStrategy;
 import com.continuuity.weave.zookeeper.RetryStrategy.OperationType;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,16 +44,63 @@ import java.util.concurrent.atomic.AtomicInteger;
  * and listen for the result. If the result is a failure, and is
  * {@link RetryUtils#canRetry(org.apache.zookeeper.KeeperException.Code) retryable}, the given {@link RetryStrategy}
  * will be called to determine the next retry time, or give up, depending on the value returned by the strategy.
+ *
+ * <p>
+ * Retries are scheduled on a shared {@link HashedWheelTimer}, which is cheap even with large number of pending
+ * retries. The number of operations waiting for retry can be bounded per {@link OperationType}; when the budget
+ * is exhausted, operations fail immediately instead of piling up. Requests are guarded by a {@link CircuitBreaker}.
+ * While the session is disconnected, operations and due retries are not sent to ZooKeeper, but fail immediately
+ * with connection loss, which is then handled by the {@link RetryStrategy} and the retry budget as usual.
+ * </p>
  */
 public final class FailureRetryZKClient extends ForwardingZKClient {
 
-  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
-                                                                Threads.createDaemonThreadFactory("retry-zkclient"));
+  private static final HashedWheelTimer TIMER = new HashedWheelTimer("retry-zkclient", 10,
+                                                                     TimeUnit.MILLISECONDS, 512);
   private final RetryStrategy retryStrategy;
+  private final Map<OperationType, Integer> retryBudgets;
+  private final Map<OperationType, AtomicInteger> pendingRetries;
+  private final CircuitBreaker circuitBreaker;
 
   public FailureRetryZKClient(ZKClient delegate, RetryStrategy retryStrategy) {
+    this(delegate, retryStrategy, ImmutableMap.<OperationType, Integer>of());
+  }
+
+  /**
+   * Creates a {@link FailureRetryZKClient} with retry budgets.
+   *
+   * @param delegate The {@link ZKClient} for operations delegation.
+   * @param retryStrategy The {@link RetryStrategy} to be invoke when there is operation failure.
+   * @param retryBudgets Maximum number of operations of each type that can wait for retry at the same time.
+   *                     Types absent from the map are unbounded.
+   */
+  public FailureRetryZKClient(ZKClient delegate, RetryStrategy retryStrategy,
+                              Map<OperationType, Integer> retryBudgets) {
     super(delegate);
     this.retryStrategy = retryStrategy;
+    this.retryBudgets = ImmutableMap.copyOf(retryBudgets);
+    this.pendingRetries = Maps.newEnumMap(OperationType.class);
+    for (OperationType type : OperationType.values()) {
+      pendingRetries.put(type, new AtomicInteger(0));
+    }
+    this.circuitBreaker = new CircuitBreaker();
+    delegate.addConnectionWatcher(new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        switch (event.getState()) {
+          case SyncConnected:
+          case ConnectedReadOnly:
+            circuitBreaker.connected();
+            break;
+          case Disconnected:
+          case Expired:
+            circuitBreaker.disconnected();
+            break;
+          default:
+            // No-op for other states.
+        }
+      }
+    });
   }
 
   @Override
@@ -61,16 +111,12 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
   @Override
   public OperationFuture<String> create(final String path, final byte[] data,
                                         final CreateMode createMode, final boolean createParent) {
-    final SettableOperationFuture<String> result = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
-    Futures.addCallback(super.create(path, data, createMode, createParent),
-                        new OperationFutureCallback<String>(OperationType.CREATE, System.currentTimeMillis(),
-                                                            path, result, new Supplier<OperationFuture<String>>() {
-                          @Override
-                          public OperationFuture<String> get() {
-                            return FailureRetryZKClient.super.create(path, data, createMode, createParent);
-                          }
-                        }));
-    return result;
+    return execute(OperationType.CREATE, path, new Supplier<OperationFuture<String>>() {
+      @Override
+      public OperationFuture<String> get() {
+        return FailureRetryZKClient.super.create(path, data, createMode, createParent);
+      }
+    });
   }
 
   @Override
@@ -80,16 +126,12 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<Stat> exists(final String path, final Watcher watcher) {
-    final SettableOperationFuture<Stat> result = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
-    Futures.addCallback(super.exists(path, watcher),
-                        new OperationFutureCallback<Stat>(OperationType.EXISTS, System.currentTimeMillis(),
-                                                          path, result, new Supplier<OperationFuture<Stat>>() {
-                          @Override
-                          public OperationFuture<Stat> get() {
-                            return FailureRetryZKClient.super.exists(path, watcher);
-                          }
-                        }));
-    return result;
+    return execute(OperationType.EXISTS, path, new Supplier<OperationFuture<Stat>>() {
+      @Override
+      public OperationFuture<Stat> get() {
+        return FailureRetryZKClient.super.exists(path, watcher);
+      }
+    });
   }
 
   @Override
@@ -99,18 +141,12 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<NodeChildren> getChildren(final String path, final Watcher watcher) {
-    final SettableOperationFuture<NodeChildren> result = SettableOperationFuture.create(path,
-                                                                                        Threads.SAME_THREAD_EXECUTOR);
-    Futures.addCallback(super.getChildren(path, watcher),
-                        new OperationFutureCallback<NodeChildren>(OperationType.GET_CHILDREN,
-                                                                  System.currentTimeMillis(), path, result,
-                                                                  new Supplier<OperationFuture<NodeChildren>>() {
-                          @Override
-                          public OperationFuture<NodeChildren> get() {
-                            return FailureRetryZKClient.super.getChildren(path, watcher);
-                          }
-                        }));
-    return result;
+    return execute(OperationType.GET_CHILDREN, path, new Supplier<OperationFuture<NodeChildren>>() {
+      @Override
+      public OperationFuture<NodeChildren> get() {
+        return FailureRetryZKClient.super.getChildren(path, watcher);
+      }
+    });
   }
 
   @Override
@@ -120,16 +156,12 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<NodeData> getData(final String path, final Watcher watcher) {
-    final SettableOperationFuture<NodeData> result = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
-    Futures.addCallback(super.getData(path, watcher),
-                        new OperationFutureCallback<NodeData>(OperationType.GET_DATA, System.currentTimeMillis(),
-                                                              path, result, new Supplier<OperationFuture<NodeData>>() {
-                          @Override
-                          public OperationFuture<NodeData> get() {
-                            return FailureRetryZKClient.super.getData(path, watcher);
-                          }
-                        }));
-    return result;
+    return execute(OperationType.GET_DATA, path, new Supplier<OperationFuture<NodeData>>() {
+      @Override
+      public OperationFuture<NodeData> get() {
+        return FailureRetryZKClient.super.getData(path, watcher);
+      }
+    });
   }
 
   @Override
@@ -139,16 +171,12 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<Stat> setData(final String dataPath, final byte[] data, final int version) {
-    final SettableOperationFuture<Stat> result = SettableOperationFuture.create(dataPath, Threads.SAME_THREAD_EXECUTOR);
-    Futures.addCallback(super.setData(dataPath, data, version),
-                        new OperationFutureCallback<Stat>(OperationType.SET_DATA, System.currentTimeMillis(),
-                                                          dataPath, result, new Supplier<OperationFuture<Stat>>() {
-                          @Override
-                          public OperationFuture<Stat> get() {
-                            return FailureRetryZKClient.super.setData(dataPath, data, version);
-                          }
-                        }));
-    return result;
+    return execute(OperationType.SET_DATA, dataPath, new Supplier<OperationFuture<Stat>>() {
+      @Override
+      public OperationFuture<Stat> get() {
+        return FailureRetryZKClient.super.setData(dataPath, data, version);
+      }
+    });
   }
 
   @Override
@@ -158,17 +186,24 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<String> delete(final String deletePath, final int version) {
-    final SettableOperationFuture<String> result = SettableOperationFuture.create(deletePath,
-                                                                                  Threads.SAME_THREAD_EXECUTOR);
-    Futures.addCallback(super.delete(deletePath, version),
-                        new OperationFutureCallback<String>(OperationType.DELETE, System.currentTimeMillis(),
-                                                            deletePath, result, new Supplier<OperationFuture<String>>
-                          () {
-                          @Override
-                          public OperationFuture<String> get() {
-                            return FailureRetryZKClient.super.delete(deletePath, version);
-                          }
-                        }));
+    return execute(OperationType.DELETE, deletePath, new Supplier<OperationFuture<String>>() {
+      @Override
+      public OperationFuture<String> get() {
+        return FailureRetryZKClient.super.delete(deletePath, version);
+      }
+    });
+  }
+
+  /**
+   * Returns the state of the circuit breaker.
+   */
+  CircuitBreaker.State getCircuitState() {
+    return circuitBreaker.getState();
+  }
+
+  private <V> OperationFuture<V> execute(OperationType type, String path, Supplier<OperationFuture<V>> action) {
+    SettableOperationFuture<V> result = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
+    new OperationFutureCallback<V>(type, System.currentTimeMillis(), path, result, action).attempt();
     return result;
   }
 
@@ -195,6 +230,17 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
       this.failureCount = new AtomicInteger(0);
     }
 
+    /**
+     * Sends the request to ZooKeeper, unless the circuit is open, which the request fails immediately.
+     */
+    void attempt() {
+      if (!circuitBreaker.allowRequest()) {
+        onFailure(KeeperException.create(KeeperException.Code.CONNECTIONLOSS, path));
+        return;
+      }
+      Futures.addCallback(retryAction.get(), this);
+    }
+
     @Override
     public void onSuccess(V result) {
       this.result.set(result);
@@ -218,11 +264,20 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
         return false;
       }
 
+      // Check the retry budget of the operation type.
+      final AtomicInteger pending = pendingRetries.get(type);
+      Integer budget = retryBudgets.get(type);
+      if (pending.incrementAndGet() > (budget == null ? Integer.MAX_VALUE : budget)) {
+        pending.decrementAndGet();
+        return false;
+      }
+
       // Schedule the retry.
-      SCHEDULER.schedule(new Runnable() {
+      TIMER.schedule(new Runnable() {
         @Override
         public void run() {
-          Futures.addCallback(retryAction.get(), OperationFutureCallback.this);
+          pending.decrementAndGet();
+          attempt();
         }
       }, nextRetry, TimeUnit.MILLISECONDS);
 
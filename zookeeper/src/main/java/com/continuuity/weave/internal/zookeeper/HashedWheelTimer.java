@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.continuuity.weave.common.Threads;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A timer optimized for scheduling large number of short lived tasks that don't need precise timing, such as
+ * operation retries. Scheduling is O(1) and lock free, as tasks are put in a concurrent queue and only get moved
+ * into the wheel buckets by the worker thread on each tick. Tasks are executed by the worker thread, hence they
+ * should be non-blocking.
+ */
+final class HashedWheelTimer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+  private final ThreadFactory threadFactory;
+  private final long tickNanos;
+  private final int mask;
+  private final List<List<Timeout>> wheel;
+  private final Queue<Timeout> pendingTimeouts;
+  private final AtomicBoolean started;
+
+  /**
+   * Creates a new timer.
+   *
+   * @param name Name of the worker thread.
+   * @param tickDuration Duration between ticks.
+   * @param unit Unit of the tick duration.
+   * @param ticksPerWheel Number of buckets in the wheel. It will be rounded up to the next power of two.
+   */
+  HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    Preconditions.checkArgument(tickDuration > 0, "Tick duration must be > 0.");
+    Preconditions.checkArgument(ticksPerWheel > 0 && ticksPerWheel <= (1 << 30),
+                                "Ticks per wheel must be in range (0, 2^30].");
+    int wheelSize = Integer.highestOneBit(ticksPerWheel);
+    wheelSize = (wheelSize == ticksPerWheel) ? wheelSize : wheelSize << 1;
+
+    this.threadFactory = Threads.createDaemonThreadFactory(name);
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.mask = wheelSize - 1;
+    this.wheel = Lists.newArrayListWithCapacity(wheelSize);
+    for (int i = 0; i < wheelSize; i++) {
+      wheel.add(Lists.<Timeout>newLinkedList());
+    }
+    this.pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    this.started = new AtomicBoolean(false);
+  }
+
+  /**
+   * Schedules the given task to be executed after the given delay. The task would be executed no earlier
+   * than the delay and within one tick after.
+   */
+  void schedule(Runnable task, long delay, TimeUnit unit) {
+    if (started.compareAndSet(false, true)) {
+      threadFactory.newThread(new Worker()).start();
+    }
+    pendingTimeouts.add(new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(delay, 0L))));
+  }
+
+  /**
+   * A scheduled task.
+   */
+  private static final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private long remainingRounds;
+
+    Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+  }
+
+  /**
+   * Worker that advances the wheel and executes expired tasks.
+   */
+  private final class Worker implements Runnable {
+
+    private final long startTime = System.nanoTime();
+    private long tick;
+
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        long deadline = waitForNextTick();
+        if (deadline < 0) {
+          break;
+        }
+        transferPending();
+        expire(wheel.get((int) (tick & mask)), deadline);
+        tick++;
+      }
+    }
+
+    private long waitForNextTick() {
+      long deadline = startTime + tickNanos * (tick + 1);
+      long sleepNanos = deadline - System.nanoTime();
+      while (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return -1L;
+        }
+        sleepNanos = deadline - System.nanoTime();
+      }
+      return deadline;
+    }
+
+    private void transferPending() {
+      Timeout timeout = pendingTimeouts.poll();
+      while (timeout != null) {
+        long calculated = (timeout.deadline - startTime) / tickNanos;
+        timeout.remainingRounds = (calculated - tick) / wheel.size();
+        // Tasks that are already late would be put in the current bucket.
+        long ticks = Math.max(calculated, tick);
+        wheel.get((int) (ticks & mask)).add(timeout);
+        timeout = pendingTimeouts.poll();
+      }
+    }
+
+    private void expire(List<Timeout> bucket, long deadline) {
+      Iterator<Timeout> iterator = bucket.iterator();
+      while (iterator.hasNext()) {
+        Timeout timeout = iterator.next();
+        if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+          iterator.remove();
+          try {
+            timeout.task.run();
+          } catch (Throwable t) {
+            LOG.warn("Exception raised by timer task {}", timeout.task, t);
+          }
+        } else {
+          timeout.remainingRounds--;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.zookeeper.ForwardingZKClient;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ZKClient} that coalesces identical concurrent reads. When a {@code getData} or {@code getChildren}
+ * call is made while the same read on the same path is still in flight, no new request is sent to ZooKeeper.
+ * Instead, the caller gets the result of the in-flight request.
+ *
+ * <p>
+ * Watched and unwatched reads are coalesced separately. For watched reads, a single watch is set in ZooKeeper
+ * and the event is dispatched to every {@link Watcher} that joined the read, which gives each watcher the same
+ * guarantee as if the read was made individually, as the watch is set by the read which the result is returned.
+ * </p>
+ *
+ * <p>
+ * Reads issued after a write made through this client never join a read that was sent before the write, hence
+ * callers always see their own writes. A write to a path stops data reads on the path and children reads on
+ * all its ancestors from being joined.
+ * </p>
+ */
+public final class ReadCoalescingZKClient extends ForwardingZKClient {
+
+  private final ConcurrentMap<String, InFlightRead<NodeData>> dataReads;
+  private final ConcurrentMap<String, InFlightRead<NodeChildren>> childrenReads;
+
+  public ReadCoalescingZKClient(ZKClient delegate) {
+    super(delegate);
+    this.dataReads = Maps.newConcurrentMap();
+    this.childrenReads = Maps.newConcurrentMap();
+  }
+
+  @Override
+  public OperationFuture<NodeData> getData(final String path, @Nullable Watcher watcher) {
+    return read(dataReads, path, watcher, new ReadAction<NodeData>() {
+      @Override
+      public OperationFuture<NodeData> read(Watcher readWatcher) {
+        return ReadCoalescingZKClient.super.getData(path, readWatcher);
+      }
+    });
+  }
+
+  @Override
+  public OperationFuture<NodeChildren> getChildren(final String path, @Nullable Watcher watcher) {
+    return read(childrenReads, path, watcher, new ReadAction<NodeChildren>() {
+      @Override
+      public OperationFuture<NodeChildren> read(Watcher readWatcher) {
+        return ReadCoalescingZKClient.super.getChildren(path, readWatcher);
+      }
+    });
+  }
+
+  @Override
+  public OperationFuture<String> create(String path, @Nullable byte[] data, CreateMode createMode,
+                                        boolean createParent) {
+    invalidate(path, true);
+    return super.create(path, data, createMode, createParent);
+  }
+
+  @Override
+  public OperationFuture<Stat> setData(String dataPath, byte[] data, int version) {
+    invalidate(dataPath, false);
+    return super.setData(dataPath, data, version);
+  }
+
+  @Override
+  public OperationFuture<String> delete(String deletePath, int version) {
+    invalidate(deletePath, true);
+    return super.delete(deletePath, version);
+  }
+
+  /**
+   * Detaches in-flight reads affected by a write to the given path, so that later reads are sent after the write.
+   * Callers that already joined the detached reads still get their results.
+   *
+   * @param path Path being written.
+   * @param childrenChanged {@code true} if the write may change the children of the ancestors of the path.
+   */
+  private void invalidate(String path, boolean childrenChanged) {
+    dataReads.remove("u:" + path);
+    dataReads.remove("w:" + path);
+    if (!childrenChanged) {
+      return;
+    }
+    String parent = path;
+    int idx = parent.lastIndexOf('/');
+    while (idx >= 0) {
+      parent = idx == 0 ? "/" : parent.substring(0, idx);
+      childrenReads.remove("u:" + parent);
+      childrenReads.remove("w:" + parent);
+      idx = idx == 0 ? -1 : parent.lastIndexOf('/');
+    }
+  }
+
+  private <V> OperationFuture<V> read(final ConcurrentMap<String, InFlightRead<V>> reads, String path,
+                                      @Nullable Watcher watcher, ReadAction<V> action) {
+    final String key = (watcher == null ? "u:" : "w:") + path;
+    while (true) {
+      InFlightRead<V> inFlight = reads.get(key);
+      if (inFlight == null) {
+        final InFlightRead<V> newRead = new InFlightRead<V>(path, watcher != null);
+        newRead.join(watcher);
+        inFlight = reads.putIfAbsent(key, newRead);
+        if (inFlight == null) {
+          // This caller owns the read. Send the request to ZooKeeper.
+          Futures.addCallback(action.read(newRead.getWatcher()), new FutureCallback<V>() {
+            @Override
+            public void onSuccess(V result) {
+              newRead.close();
+              reads.remove(key, newRead);
+              newRead.result.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              newRead.close();
+              reads.remove(key, newRead);
+              newRead.result.setException(t);
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+          return relay(newRead.result, path);
+        }
+      }
+      if (inFlight.join(watcher)) {
+        return relay(inFlight.result, path);
+      }
+      // The in-flight read just completed, remove it to make room for a new one.
+      reads.remove(key, inFlight);
+    }
+  }
+
+  /**
+   * Gives each caller its own future, so that cancelling one won't affect others sharing the same read.
+   */
+  private <V> OperationFuture<V> relay(OperationFuture<V> from, String path) {
+    final SettableOperationFuture<V> to = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
+    Futures.addCallback(from, new FutureCallback<V>() {
+      @Override
+      public void onSuccess(V result) {
+        to.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        to.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return to;
+  }
+
+  /**
+   * Performs the actual read.
+   */
+  private interface ReadAction<V> {
+    OperationFuture<V> read(Watcher readWatcher);
+  }
+
+  /**
+   * Represents a read that is in flight, together with the watchers of all callers that joined the read.
+   */
+  private static final class InFlightRead<V> implements Watcher {
+
+    private final SettableOperationFuture<V> result;
+    private final boolean watched;
+    private final List<Watcher> watchers;
+    private boolean closed;
+
+    InFlightRead(String path, boolean watched) {
+      this.result = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
+      this.watched = watched;
+      this.watchers = Lists.newArrayList();
+    }
+
+    Watcher getWatcher() {
+      return watched ? this : null;
+    }
+
+    /**
+     * Joins this read.
+     * @return {@code true} if joined, {@code false} if the read has been completed.
+     */
+    synchronized boolean join(@Nullable Watcher watcher) {
+      if (closed) {
+        return false;
+      }
+      if (watcher != null) {
+        watchers.add(watcher);
+      }
+      return true;
+    }
+
+    synchronized void close() {
+      closed = true;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+      List<Watcher> toNotify;
+      synchronized (this) {
+        toNotify = Lists.newArrayList(watchers);
+      }
+      for (Watcher watcher : toNotify) {
+        watcher.process(event);
+      }
+    }
+  }
+}
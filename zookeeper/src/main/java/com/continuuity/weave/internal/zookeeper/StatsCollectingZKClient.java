@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.zookeeper.ForwardingZKClient;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.RetryStrategy.OperationType;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKStatsCollector;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ZKClient} that records latency, in-flight count, failures and watches of every operation into a
+ * {@link ZKStatsCollector}. Statistics of an operation are recorded before the returned future completes.
+ */
+public final class StatsCollectingZKClient extends ForwardingZKClient {
+
+  private final ZKStatsCollector collector;
+
+  public StatsCollectingZKClient(ZKClient delegate, final ZKStatsCollector collector) {
+    super(delegate);
+    this.collector = collector;
+    delegate.addConnectionWatcher(new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+          collector.connectionEvent(event.getState());
+        }
+      }
+    });
+  }
+
+  @Override
+  public OperationFuture<String> create(String path, @Nullable byte[] data,
+                                        CreateMode createMode, boolean createParent) {
+    long startTime = collector.operationStarted(OperationType.CREATE);
+    return record(super.create(path, data, createMode, createParent), OperationType.CREATE, startTime);
+  }
+
+  @Override
+  public OperationFuture<Stat> exists(String path, @Nullable Watcher watcher) {
+    long startTime = collector.operationStarted(OperationType.EXISTS);
+    return record(super.exists(path, wrapWatcher(watcher)), OperationType.EXISTS, startTime);
+  }
+
+  @Override
+  public OperationFuture<NodeChildren> getChildren(String path, @Nullable Watcher watcher) {
+    long startTime = collector.operationStarted(OperationType.GET_CHILDREN);
+    return record(super.getChildren(path, wrapWatcher(watcher)), OperationType.GET_CHILDREN, startTime);
+  }
+
+  @Override
+  public OperationFuture<NodeData> getData(String path, @Nullable Watcher watcher) {
+    long startTime = collector.operationStarted(OperationType.GET_DATA);
+    return record(super.getData(path, wrapWatcher(watcher)), OperationType.GET_DATA, startTime);
+  }
+
+  @Override
+  public OperationFuture<Stat> setData(String dataPath, byte[] data, int version) {
+    long startTime = collector.operationStarted(OperationType.SET_DATA);
+    return record(super.setData(dataPath, data, version), OperationType.SET_DATA, startTime);
+  }
+
+  @Override
+  public OperationFuture<String> delete(String deletePath, int version) {
+    long startTime = collector.operationStarted(OperationType.DELETE);
+    return record(super.delete(deletePath, version), OperationType.DELETE, startTime);
+  }
+
+  private <V> OperationFuture<V> record(OperationFuture<V> future, final OperationType type, final long startTime) {
+    final SettableOperationFuture<V> result = SettableOperationFuture.create(future.getRequestPath(),
+                                                                             Threads.SAME_THREAD_EXECUTOR);
+    Futures.addCallback(future, new FutureCallback<V>() {
+      @Override
+      public void onSuccess(V value) {
+        collector.operationCompleted(type, startTime, true);
+        result.set(value);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        collector.operationCompleted(type, startTime, false);
+        result.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return result;
+  }
+
+  private Watcher wrapWatcher(@Nullable final Watcher watcher) {
+    if (watcher == null) {
+      return null;
+    }
+    collector.watchSet();
+    return new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        if (event.getType() != Event.EventType.None) {
+          collector.watchTriggered();
+        }
+        watcher.process(event);
+      }
+    };
+  }
+}
@@ -17,6 +17,7 @@ package com.continuuity.weave.zookeeper;
 
 import com.google.common.base.Preconditions;
 
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -90,6 +91,38 @@ public final class RetryStrategies {
     };
   }
 
+  /**
+   * Creates a {@link RetryStrategy} that randomizes delays between each retries, so that operations failed
+   * at the same time won't retry in lockstep. The delay of the n-th retry is picked uniformly from
+   * {@code [baseDelay, baseDelay * 3^n]}, capped by the max delay, which approximates decorrelated jitter
+   * without keeping per operation state.
+   * @param baseDelay minimum delay.
+   * @param maxDelay cap of the delay.
+   * @param delayUnit {@link TimeUnit} for the delays.
+   * @return A {@link RetryStrategy}.
+   */
+  public static RetryStrategy decorrelatedJitter(long baseDelay, long maxDelay, TimeUnit delayUnit) {
+    Preconditions.checkArgument(baseDelay >= 0, "base delay must be >= 0");
+    Preconditions.checkArgument(maxDelay >= baseDelay, "max delay must be >= base delay");
+    final long baseMs = TimeUnit.MILLISECONDS.convert(baseDelay, delayUnit);
+    final long maxMs = TimeUnit.MILLISECONDS.convert(maxDelay, delayUnit);
+    final Random random = new Random();
+    return new RetryStrategy() {
+      @Override
+      public long nextRetry(int failureCount, long startTime, OperationType type, String path) {
+        long upper = Math.max(baseMs, 1L);
+        for (int i = 0; i < failureCount && upper < maxMs; i++) {
+          upper *= 3;
+        }
+        upper = Math.min(upper, maxMs);
+        if (upper <= baseMs) {
+          return baseMs;
+        }
+        return baseMs + (long) (random.nextDouble() * (upper - baseMs + 1));
+      }
+    };
+  }
+
   /**
    * Creates a {@link RetryStrategy} that will retry until maximum amount of time has been passed since the request,
    * with the actual delay behavior delegated to another {@link RetryStrategy}.
@@ -17,7 +17,11 @@ package com.continuuity.weave.zookeeper;
 
 import com.continuuity.weave.internal.zookeeper.FailureRetryZKClient;
 import com.continuuity.weave.internal.zookeeper.NamespaceZKClient;
+import com.continuuity.weave.internal.zookeeper.ReadCoalescingZKClient;
 import com.continuuity.weave.internal.zookeeper.RewatchOnExpireZKClient;
+import com.continuuity.weave.internal.zookeeper.StatsCollectingZKClient;
+
+import java.util.Map;
 
 /**
  *
@@ -49,11 +53,53 @@ public final class ZKClients {
     return new FailureRetryZKClient(client, retryStrategy);
   }
 
+  /**
+   * Creates a {@link ZKClient} that will retry interim failure (e.g. connection loss, session expiration)
+   * based on the given {@link RetryStrategy}, with limited number of operations waiting for retry at the same time.
+   * Operations that fail when the budget of its type is exhausted will not be retried.
+   *
+   * @param client The {@link ZKClient} for operations delegation.
+   * @param retryStrategy The {@link RetryStrategy} to be invoke when there is operation failure.
+   * @param retryBudgets Maximum number of pending retries for each operation type.
+   *                     Operation types absent from the map are unbounded.
+   * @return A {@link ZKClient}.
+   */
+  public static ZKClient retryOnFailure(ZKClient client, RetryStrategy retryStrategy,
+                                        Map<RetryStrategy.OperationType, Integer> retryBudgets) {
+    return new FailureRetryZKClient(client, retryStrategy, retryBudgets);
+  }
+
 
   public static ZKClient namespace(ZKClient zkClient, String namespace) {
     return new NamespaceZKClient(zkClient, namespace);
   }
 
+  /**
+   * Creates a {@link ZKClient} that coalesces identical concurrent {@code getData} and {@code getChildren} calls
+   * into a single ZooKeeper request. Watchers given to coalesced calls are all notified by the single watch set.
+   * Reads made after a write through the returned client always observe that write.
+   *
+   * @param client The {@link ZKClient} for operations delegation.
+   * @return A {@link ZKClient}.
+   */
+  public static ZKClient coalesceReads(ZKClient client) {
+    return new ReadCoalescingZKClient(client);
+  }
+
+  /**
+   * Creates a {@link ZKClient} that records statistics of all operations into the given {@link ZKStatsCollector}.
+   * To have retries counted as well, wraps the returned client with
+   * {@link #retryOnFailure(ZKClient, RetryStrategy)} using the strategy from
+   * {@link ZKStatsCollector#recordRetries(RetryStrategy)}.
+   *
+   * @param client The {@link ZKClient} for operations delegation.
+   * @param collector The {@link ZKStatsCollector} for recording statistics.
+   * @return A {@link ZKClient}.
+   */
+  public static ZKClient collectStats(ZKClient client, ZKStatsCollector collector) {
+    return new StatsCollectingZKClient(client, collector);
+  }
+
   private ZKClients() {
   }
 }
@@ -18,11 +18,15 @@ package com.continuuity.weave.zookeeper;
 import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.zookeeper.SettableOperationFuture;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -30,9 +34,21 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
 
 /**
  * Collection of helper methods for common operations that usually needed when interacting with ZooKeeper.
@@ -41,6 +57,20 @@ public final class ZKOperations {
 
   private static final Logger LOG = LoggerFactory.getLogger(ZKOperations.class);
 
+  /**
+   * Default maximum size of data to store in a single node, which is well below the default ZooKeeper
+   * {@code jute.maxbuffer} of 1MB.
+   */
+  public static final int DEFAULT_MAX_NODE_SIZE = 256 * 1024;
+
+  // Header of large data manifest. Data that starts with the magic byte is always stored with a manifest,
+  // hence a stored payload is never mistaken for a manifest.
+  private static final byte MANIFEST_MAGIC = (byte) 0xCF;
+  private static final byte MANIFEST_VERSION = 1;
+  private static final byte MANIFEST_INLINE = 1;
+  private static final byte MANIFEST_CHUNKS = 2;
+  private static final byte MANIFEST_RAW = 3;
+
   /**
    * Represents a ZK operation updates callback.
    * @param <T> Type of updated data.
@@ -278,6 +308,196 @@ public final class ZKOperations {
     return resultFuture;
   }
 
+  /**
+   * Same as calling {@link #storeLargeData(ZKClient, String, byte[], int)
+   * storeLargeData(zkClient, chunkPath, data, DEFAULT_MAX_NODE_SIZE)}.
+   */
+  public static ListenableFuture<byte[]> storeLargeData(ZKClient zkClient, String chunkPath, byte[] data) {
+    return storeLargeData(zkClient, chunkPath, data, DEFAULT_MAX_NODE_SIZE);
+  }
+
+  /**
+   * Prepares data that could be too large to be stored in a single node. The resulting bytes of the returned
+   * future is what should be written to the target node:
+   * <ul>
+   *   <li>If the data size is no larger than {@code maxNodeSize}, it is the data itself, or the data prefixed
+   *       with a manifest header if the data starts with the manifest marker.</li>
+   *   <li>Otherwise, the data is compressed. If it fits in {@code maxNodeSize}, it is the compressed data.</li>
+   *   <li>Otherwise, the compressed data is split into chunks stored as children of {@code chunkPath},
+   *       and the result is a manifest pointing to the chunks.</li>
+   * </ul>
+   * As chunks are written before the manifest is returned, writing the manifest to the target node
+   * atomically publishes the whole data. Use {@link #loadLargeData(ZKClient, byte[])} to read it back
+   * and {@link #deleteLargeData(ZKClient, byte[])} to remove the chunks when no longer needed.
+   *
+   * @param zkClient The {@link ZKClient} for creating chunk nodes.
+   * @param chunkPath Path of a non-existing node to hold the chunks.
+   * @param data The data to store.
+   * @param maxNodeSize Maximum number of bytes to store in one node.
+   * @return A {@link ListenableFuture} that will be completed with the bytes to be written to the target node.
+   */
+  public static ListenableFuture<byte[]> storeLargeData(ZKClient zkClient, String chunkPath, byte[] data,
+                                                        int maxNodeSize) {
+    Preconditions.checkArgument(maxNodeSize > 0, "Max node size must be > 0.");
+    if (data == null || (data.length <= maxNodeSize && (data.length == 0 || data[0] != MANIFEST_MAGIC))) {
+      return Futures.immediateFuture(data);
+    }
+
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4);
+      DataOutputStream manifest = new DataOutputStream(bos);
+      manifest.writeByte(MANIFEST_MAGIC);
+      manifest.writeByte(MANIFEST_VERSION);
+
+      if (data.length + 3 <= maxNodeSize) {
+        // Small data that starts with the marker byte, store as is after the manifest header.
+        manifest.writeByte(MANIFEST_RAW);
+        manifest.write(data);
+        return Futures.immediateFuture(bos.toByteArray());
+      }
+
+      manifest.writeByte(MANIFEST_INLINE);
+      manifest.writeInt(data.length);
+      int headerSize = bos.size();
+      OutputStream os = new DeflaterOutputStream(bos, new Deflater(Deflater.BEST_SPEED));
+      os.write(data);
+      os.close();
+
+      byte[] compressed = bos.toByteArray();
+      if (compressed.length <= maxNodeSize) {
+        return Futures.immediateFuture(compressed);
+      }
+
+      // Reset the stream for writing the manifest.
+      bos.reset();
+      manifest = new DataOutputStream(bos);
+      manifest.writeByte(MANIFEST_MAGIC);
+      manifest.writeByte(MANIFEST_VERSION);
+
+      // Create all chunks in parallel and complete with the manifest once they are all created.
+      List<OperationFuture<String>> chunkFutures = Lists.newArrayList();
+      int chunks = 0;
+      for (int offset = headerSize; offset < compressed.length; offset += maxNodeSize) {
+        byte[] chunk = Arrays.copyOfRange(compressed, offset, Math.min(offset + maxNodeSize, compressed.length));
+        chunkFutures.add(zkClient.create(chunkPath + "/" + chunks++, chunk, CreateMode.PERSISTENT));
+      }
+      manifest.writeByte(MANIFEST_CHUNKS);
+      manifest.writeInt(data.length);
+      manifest.writeInt(chunks);
+      manifest.writeUTF(chunkPath);
+      final byte[] manifestBytes = bos.toByteArray();
+
+      return Futures.transform(Futures.allAsList(chunkFutures), new Function<List<String>, byte[]>() {
+        @Override
+        public byte[] apply(List<String> input) {
+          return manifestBytes;
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * Loads the data stored by {@link #storeLargeData(ZKClient, String, byte[], int)}. Chunks are
+   * fetched in parallel. Data that was not stored as large data is returned as is.
+   *
+   * @param zkClient The {@link ZKClient} for fetching chunk nodes.
+   * @param data Data read from the target node.
+   * @return A {@link ListenableFuture} that will be completed with the original data.
+   */
+  public static ListenableFuture<byte[]> loadLargeData(ZKClient zkClient, @Nullable byte[] data) {
+    if (!isLargeDataManifest(data)) {
+      return Futures.immediateFuture(data);
+    }
+    try {
+      if (data[2] == MANIFEST_RAW) {
+        return Futures.immediateFuture(Arrays.copyOfRange(data, 3, data.length));
+      }
+      DataInputStream manifest = new DataInputStream(new ByteArrayInputStream(data, 3, data.length - 3));
+      final int length = manifest.readInt();
+      switch (data[2]) {
+        case MANIFEST_INLINE:
+          return Futures.immediateFuture(inflate(manifest, length));
+        case MANIFEST_CHUNKS: {
+          int chunks = manifest.readInt();
+          String chunkPath = manifest.readUTF();
+          List<OperationFuture<NodeData>> chunkFutures = Lists.newArrayListWithCapacity(chunks);
+          for (int i = 0; i < chunks; i++) {
+            chunkFutures.add(zkClient.getData(chunkPath + "/" + i));
+          }
+          return Futures.transform(Futures.allAsList(chunkFutures), new Function<List<NodeData>, byte[]>() {
+            @Override
+            public byte[] apply(List<NodeData> input) {
+              ByteArrayOutputStream bos = new ByteArrayOutputStream();
+              for (NodeData nodeData : input) {
+                bos.write(nodeData.getData(), 0, nodeData.getData().length);
+              }
+              try {
+                return inflate(new ByteArrayInputStream(bos.toByteArray()), length);
+              } catch (IOException e) {
+                throw new IllegalStateException("Failed to decompress chunked data.", e);
+              }
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+        }
+        default:
+          throw new IOException("Unsupported large data manifest type " + data[2]);
+      }
+    } catch (Exception e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * Returns the path of the node holding the chunks of data stored by
+   * {@link #storeLargeData(ZKClient, String, byte[], int)}.
+   *
+   * @param data Data read from the target node.
+   * @return The chunks node path, or {@code null} if the data is not stored in chunks.
+   */
+  @Nullable
+  public static String getLargeDataChunkPath(@Nullable byte[] data) {
+    if (!isLargeDataManifest(data) || data[2] != MANIFEST_CHUNKS) {
+      return null;
+    }
+    try {
+      DataInputStream manifest = new DataInputStream(new ByteArrayInputStream(data, 3, data.length - 3));
+      manifest.readInt();
+      manifest.readInt();
+      return manifest.readUTF();
+    } catch (IOException e) {
+      LOG.warn("Failed to decode large data manifest.", e);
+      return null;
+    }
+  }
+
+  /**
+   * Deletes the chunks, if any, of data stored by {@link #storeLargeData(ZKClient, String, byte[], int)}.
+   *
+   * @param zkClient The {@link ZKClient} for deleting chunk nodes.
+   * @param data Data read from the target node.
+   * @return A {@link ListenableFuture} that will be completed when the deletion is done, with the path of the
+   *         chunks node, or {@code null} if there is no chunk to delete.
+   */
+  public static ListenableFuture<String> deleteLargeData(ZKClient zkClient, @Nullable byte[] data) {
+    String chunkPath = getLargeDataChunkPath(data);
+    if (chunkPath == null) {
+      return Futures.immediateFuture(null);
+    }
+    return ignoreError(recursiveDelete(zkClient, chunkPath), KeeperException.NoNodeException.class, chunkPath);
+  }
+
+  private static boolean isLargeDataManifest(@Nullable byte[] data) {
+    return data != null && data.length >= 3 && data[0] == MANIFEST_MAGIC && data[1] == MANIFEST_VERSION;
+  }
+
+  private static byte[] inflate(InputStream is, int length) throws IOException {
+    byte[] result = new byte[length];
+    ByteStreams.readFully(new InflaterInputStream(is), result);
+    return result;
+  }
+
   /**
    * Watch for the given path until it exists.
    * @param zkClient The {@link ZKClient} to use.
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.zookeeper;
+
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
+import com.google.common.collect.Maps;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects statistics of ZooKeeper operations performed through a {@link ZKClient} created by
+ * {@link ZKClients#collectStats(ZKClient, ZKStatsCollector)}. Statistics are kept in lock free counters and
+ * no extra ZooKeeper watch or request is made for collecting them.
+ */
+public final class ZKStatsCollector {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ZKStatsCollector.class);
+
+  /**
+   * Upper bounds in milliseconds of the latency histogram buckets.
+   */
+  public static final long[] LATENCY_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+  private static final ScheduledExecutorService REPORTER = Executors.newSingleThreadScheduledExecutor(
+                                                            Threads.createDaemonThreadFactory("zk-stats-reporter"));
+
+  private final Map<RetryStrategy.OperationType, OperationCounter> counters;
+  private final AtomicLong connectedCount = new AtomicLong();
+  private final AtomicLong disconnectedCount = new AtomicLong();
+  private final AtomicLong expiredCount = new AtomicLong();
+  private final AtomicLong watchesSet = new AtomicLong();
+  private final AtomicLong watchesTriggered = new AtomicLong();
+
+  public ZKStatsCollector() {
+    counters = Maps.newEnumMap(RetryStrategy.OperationType.class);
+    for (RetryStrategy.OperationType type : RetryStrategy.OperationType.values()) {
+      counters.put(type, new OperationCounter());
+    }
+  }
+
+  /**
+   * Records the start of an operation.
+   *
+   * @param type Type of the operation.
+   * @return The start time in nano seconds to be passed to {@link #operationCompleted}.
+   */
+  public long operationStarted(RetryStrategy.OperationType type) {
+    counters.get(type).inFlight.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Records the completion of an operation.
+   *
+   * @param type Type of the operation.
+   * @param startNano Value returned by {@link #operationStarted(RetryStrategy.OperationType)}.
+   * @param success {@code true} if the operation completed successfully.
+   */
+  public void operationCompleted(RetryStrategy.OperationType type, long startNano, boolean success) {
+    counters.get(type).completed(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNano), success);
+  }
+
+  public void watchSet() {
+    watchesSet.incrementAndGet();
+  }
+
+  public void watchTriggered() {
+    watchesTriggered.incrementAndGet();
+  }
+
+  /**
+   * Records a connection state change event.
+   */
+  public void connectionEvent(Watcher.Event.KeeperState state) {
+    switch (state) {
+      case SyncConnected:
+      case ConnectedReadOnly:
+        connectedCount.incrementAndGet();
+        break;
+      case Disconnected:
+        disconnectedCount.incrementAndGet();
+        break;
+      case Expired:
+        expiredCount.incrementAndGet();
+        break;
+      default:
+        // No-op for other states.
+    }
+  }
+
+  /**
+   * Returns a {@link RetryStrategy} that delegates to the given one while counting the retries it scheduled.
+   *
+   * @param strategy The {@link RetryStrategy} to delegate to.
+   * @return A {@link RetryStrategy} to be used with {@link ZKClients#retryOnFailure(ZKClient, RetryStrategy)}.
+   */
+  public RetryStrategy recordRetries(final RetryStrategy strategy) {
+    return new RetryStrategy() {
+      @Override
+      public long nextRetry(int failureCount, long startTime, OperationType type, String path) {
+        long nextRetry = strategy.nextRetry(failureCount, startTime, type, path);
+        if (nextRetry >= 0) {
+          counters.get(type).retries.incrementAndGet();
+        }
+        return nextRetry;
+      }
+    };
+  }
+
+  /**
+   * @return A snapshot of the statistics collected so far.
+   */
+  public ZKStatsSnapshot getSnapshot() {
+    Map<RetryStrategy.OperationType, ZKStatsSnapshot.OperationStats> stats =
+      Maps.newEnumMap(RetryStrategy.OperationType.class);
+    for (Map.Entry<RetryStrategy.OperationType, OperationCounter> entry : counters.entrySet()) {
+      stats.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return new ZKStatsSnapshot(System.currentTimeMillis(), stats, connectedCount.get(), disconnectedCount.get(),
+                               expiredCount.get(), watchesSet.get(), watchesTriggered.get());
+  }
+
+  /**
+   * Starts reporting snapshots to the given {@link ZKStatsReporter} periodically.
+   *
+   * @param reporter The reporter to report to.
+   * @param interval Time between two reports.
+   * @param unit Unit of the interval.
+   * @return A {@link Cancellable} to stop the reporting.
+   */
+  public Cancellable startReporting(final ZKStatsReporter reporter, long interval, TimeUnit unit) {
+    final ScheduledFuture<?> future = REPORTER.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reporter.report(getSnapshot());
+        } catch (Throwable t) {
+          LOG.warn("Exception when reporting ZK stats to {}", reporter, t);
+        }
+      }
+    }, interval, interval, unit);
+
+    return new Cancellable() {
+      @Override
+      public void cancel() {
+        future.cancel(false);
+      }
+    };
+  }
+
+  /**
+   * Counters for one type of operation.
+   */
+  private static final class OperationCounter {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final AtomicLongArray latencyCounts = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+    void completed(long latency, boolean success) {
+      inFlight.decrementAndGet();
+      count.incrementAndGet();
+      if (!success) {
+        failures.incrementAndGet();
+      }
+      totalLatency.addAndGet(latency);
+
+      long max = maxLatency.get();
+      while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+        max = maxLatency.get();
+      }
+
+      int bucket = 0;
+      while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+        bucket++;
+      }
+      latencyCounts.incrementAndGet(bucket);
+    }
+
+    ZKStatsSnapshot.OperationStats snapshot() {
+      long[] counts = new long[latencyCounts.length()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = latencyCounts.get(i);
+      }
+      return new ZKStatsSnapshot.OperationStats(count.get(), failures.get(), retries.get(), inFlight.get(),
+                                                totalLatency.get(), maxLatency.get(), counts);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.zookeeper;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An immutable point in time snapshot of the statistics collected by {@link ZKStatsCollector}.
+ */
+public final class ZKStatsSnapshot {
+
+  private final long timestamp;
+  private final Map<RetryStrategy.OperationType, OperationStats> operationStats;
+  private final long connectedCount;
+  private final long disconnectedCount;
+  private final long expiredCount;
+  private final long watchesSet;
+  private final long watchesTriggered;
+
+  ZKStatsSnapshot(long timestamp, Map<RetryStrategy.OperationType, OperationStats> operationStats,
+                  long connectedCount, long disconnectedCount, long expiredCount,
+                  long watchesSet, long watchesTriggered) {
+    this.timestamp = timestamp;
+    this.operationStats = ImmutableMap.copyOf(operationStats);
+    this.connectedCount = connectedCount;
+    this.disconnectedCount = disconnectedCount;
+    this.expiredCount = expiredCount;
+    this.watchesSet = watchesSet;
+    this.watchesTriggered = watchesTriggered;
+  }
+
+  /**
+   * @return Timestamp in milliseconds when this snapshot was taken.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return Statistics of the given operation type.
+   */
+  public OperationStats getOperationStats(RetryStrategy.OperationType type) {
+    return operationStats.get(type);
+  }
+
+  /**
+   * @return Number of times the session get connected, including reconnects.
+   */
+  public long getConnectedCount() {
+    return connectedCount;
+  }
+
+  public long getDisconnectedCount() {
+    return disconnectedCount;
+  }
+
+  public long getExpiredCount() {
+    return expiredCount;
+  }
+
+  /**
+   * @return Number of watches set through operations.
+   */
+  public long getWatchesSet() {
+    return watchesSet;
+  }
+
+  /**
+   * @return Number of node watches that has been triggered.
+   */
+  public long getWatchesTriggered() {
+    return watchesTriggered;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(ZKStatsSnapshot.class)
+      .add("timestamp", timestamp)
+      .add("connected", connectedCount)
+      .add("disconnected", disconnectedCount)
+      .add("expired", expiredCount)
+      .add("watchesSet", watchesSet)
+      .add("watchesTriggered", watchesTriggered)
+      .add("operations", operationStats)
+      .toString();
+  }
+
+  /**
+   * Statistics of one type of operation.
+   */
+  public static final class OperationStats {
+
+    private final long count;
+    private final long failures;
+    private final long retries;
+    private final int inFlight;
+    private final long totalLatency;
+    private final long maxLatency;
+    private final long[] latencyCounts;
+
+    OperationStats(long count, long failures, long retries, int inFlight,
+                   long totalLatency, long maxLatency, long[] latencyCounts) {
+      this.count = count;
+      this.failures = failures;
+      this.retries = retries;
+      this.inFlight = inFlight;
+      this.totalLatency = totalLatency;
+      this.maxLatency = maxLatency;
+      this.latencyCounts = latencyCounts;
+    }
+
+    /**
+     * @return Number of completed operations, including failed one.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    public long getFailures() {
+      return failures;
+    }
+
+    /**
+     * @return Number of retries scheduled. Only available when the {@link RetryStrategy} is created through
+     *         {@link ZKStatsCollector#recordRetries(RetryStrategy)}.
+     */
+    public long getRetries() {
+      return retries;
+    }
+
+    /**
+     * @return Number of operations that are submitted but not yet completed.
+     */
+    public int getInFlight() {
+      return inFlight;
+    }
+
+    /**
+     * @return Average latency in milliseconds of completed operations.
+     */
+    public double getMeanLatency() {
+      return count == 0 ? 0d : (double) totalLatency / count;
+    }
+
+    public long getMaxLatency() {
+      return maxLatency;
+    }
+
+    /**
+     * Returns the latency histogram. Entry {@code i} is the number of operations with latency no greater
+     * than {@link ZKStatsCollector#LATENCY_BUCKETS LATENCY_BUCKETS[i]} milliseconds and greater than the previous
+     * bucket. The last entry counts operations slower than the largest bucket.
+     */
+    public long[] getLatencyCounts() {
+      return Arrays.copyOf(latencyCounts, latencyCounts.length);
+    }
+
+    /**
+     * Returns an estimate of the given latency percentile, based on the histogram buckets.
+     *
+     * @param percentile Percentile between 0 and 100.
+     * @return Upper bound in milliseconds of the bucket that contains the given percentile.
+     */
+    public long getLatencyPercentile(double percentile) {
+      long total = 0;
+      for (long c : latencyCounts) {
+        total += c;
+      }
+      if (total == 0) {
+        return 0L;
+      }
+      long target = (long) Math.ceil(total * percentile / 100d);
+      long seen = 0;
+      for (int i = 0; i < ZKStatsCollector.LATENCY_BUCKETS.length; i++) {
+        seen += latencyCounts[i];
+        if (seen >= target) {
+          return ZKStatsCollector.LATENCY_BUCKETS[i];
+        }
+      }
+      return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(OperationStats.class)
+        .add("count", count)
+        .add("failures", failures)
+        .add("retries", retries)
+        .add("inFlight", inFlight)
+        .add("meanLatency", getMeanLatency())
+        .add("p99Latency", getLatencyPercentile(99))
+        .add("maxLatency", maxLatency)
+        .toString();
+    }
+  }
+}
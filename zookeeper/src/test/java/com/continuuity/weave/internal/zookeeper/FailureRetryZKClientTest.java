@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.zookeeper.ForwardingZKClient;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.RetryStrategies;
+import com.continuuity.weave.zookeeper.RetryStrategy;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ */
+public class FailureRetryZKClientTest {
+
+  @Test
+  public void testRetryBudget() throws Exception {
+    StubZKClient stub = new StubZKClient();
+    ZKClient client = new FailureRetryZKClient(stub, RetryStrategies.fixDelay(1, TimeUnit.HOURS),
+                                               ImmutableMap.of(RetryStrategy.OperationType.GET_DATA, 1));
+
+    // First failure takes the only budget and waits for retry.
+    OperationFuture<NodeData> first = client.getData("/first");
+    stub.requests.get(0).setException(KeeperException.create(KeeperException.Code.CONNECTIONLOSS, "/first"));
+    Assert.assertFalse(first.isDone());
+
+    // Second failure is not retried as the budget is exhausted.
+    OperationFuture<NodeData> second = client.getData("/second");
+    stub.requests.get(1).setException(KeeperException.create(KeeperException.Code.CONNECTIONLOSS, "/second"));
+    assertConnectionLoss(second);
+    Assert.assertFalse(first.isDone());
+
+    // Budget of other operation type is not affected.
+    client.exists("/exists");
+    Assert.assertEquals(3, stub.requests.size());
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    StubZKClient stub = new StubZKClient();
+    FailureRetryZKClient client = new FailureRetryZKClient(stub, RetryStrategies.noRetry());
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState());
+
+    // Open circuit fails operations without sending them.
+    stub.fireEvent(Watcher.Event.KeeperState.Disconnected);
+    Assert.assertEquals(CircuitBreaker.State.OPEN, client.getCircuitState());
+    assertConnectionLoss(client.getData("/open"));
+    Assert.assertTrue(stub.requests.isEmpty());
+
+    // Reconnection closes the circuit.
+    stub.fireEvent(Watcher.Event.KeeperState.SyncConnected);
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState());
+    client.getData("/closed");
+    client.getData("/closed");
+    Assert.assertEquals(2, stub.requests.size());
+
+    // Expired session opens the circuit as well.
+    stub.fireEvent(Watcher.Event.KeeperState.Expired);
+    assertConnectionLoss(client.getData("/expired"));
+    Assert.assertEquals(2, stub.requests.size());
+  }
+
+  private void assertConnectionLoss(OperationFuture<?> future) throws InterruptedException, TimeoutException {
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      Assert.fail("Expected failure.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof KeeperException.ConnectionLossException);
+    }
+  }
+
+  /**
+   * A {@link ZKClient} that records getData and exists requests, which are completed by the test.
+   */
+  private static final class StubZKClient extends ForwardingZKClient {
+
+    private final List<Watcher> watchers = Lists.newCopyOnWriteArrayList();
+    private final List<SettableOperationFuture<?>> requests = Lists.newCopyOnWriteArrayList();
+
+    StubZKClient() {
+      super(null);
+    }
+
+    void fireEvent(Watcher.Event.KeeperState state) {
+      for (Watcher watcher : watchers) {
+        watcher.process(new WatchedEvent(Watcher.Event.EventType.None, state, null));
+      }
+    }
+
+    @Override
+    public void addConnectionWatcher(Watcher watcher) {
+      watchers.add(watcher);
+    }
+
+    @Override
+    public OperationFuture<NodeData> getData(String path, Watcher watcher) {
+      SettableOperationFuture<NodeData> future = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
+      requests.add(future);
+      return future;
+    }
+
+    @Override
+    public OperationFuture<Stat> exists(String path, Watcher watcher) {
+      SettableOperationFuture<Stat> future = SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
+      requests.add(future);
+      return future;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class HashedWheelTimerTest {
+
+  @Test
+  public void testSchedule() throws InterruptedException {
+    // Small wheel, so that delays span multiple rounds.
+    HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 4);
+
+    long[] delays = {200, 0, 120, 50, 75};
+    final CountDownLatch latch = new CountDownLatch(delays.length);
+    final List<Long> executed = Lists.newCopyOnWriteArrayList();
+    final List<Long> early = Lists.newCopyOnWriteArrayList();
+    final long startTime = System.nanoTime();
+    for (final long delay : delays) {
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+          if (elapsed < delay) {
+            early.add(delay);
+          }
+          executed.add(delay);
+          latch.countDown();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue("Executed early: " + early, early.isEmpty());
+    Assert.assertEquals(Lists.newArrayList(0L, 50L, 75L, 120L, 200L), executed);
+  }
+
+  @Test
+  public void testTaskFailure() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 8);
+    final CountDownLatch latch = new CountDownLatch(1);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("Expected");
+      }
+    }, 10, TimeUnit.MILLISECONDS);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    }, 20, TimeUnit.MILLISECONDS);
+
+    // Worker keeps running after a task failure.
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+}
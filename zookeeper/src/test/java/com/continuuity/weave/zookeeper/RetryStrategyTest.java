@@ -89,4 +89,18 @@ public class RetryStrategyTest {
     TimeUnit.MILLISECONDS.sleep(1100);
     Assert.assertEquals(-1L, strategy.nextRetry(2, startTime, RetryStrategy.OperationType.CREATE, "/"));
   }
+
+  @Test
+  public void testDecorrelatedJitter() {
+    RetryStrategy strategy = RetryStrategies.decorrelatedJitter(10, 1000, TimeUnit.MILLISECONDS);
+    long startTime = System.currentTimeMillis();
+    for (int i = 1; i <= 10; i++) {
+      long delay = strategy.nextRetry(i, startTime, RetryStrategy.OperationType.CREATE, "/");
+      Assert.assertTrue(delay >= 10 && delay <= Math.min(1000, 10 * (long) Math.pow(3, i)));
+    }
+    for (int i = 100; i <= 110; i++) {
+      long delay = strategy.nextRetry(i, startTime, RetryStrategy.OperationType.CREATE, "/");
+      Assert.assertTrue(delay >= 10 && delay <= 1000);
+    }
+  }
 }
@@ -15,14 +15,18 @@
  */
 package com.continuuity.weave.zookeeper;
 
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
 import com.continuuity.weave.internal.zookeeper.KillZKSession;
+import com.continuuity.weave.internal.zookeeper.SettableOperationFuture;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -36,10 +40,15 @@ import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 /**
  *
@@ -249,4 +258,161 @@ public class ZKClientTest {
       zkServer.stopAndWait();
     }
   }
+
+  @Test
+  public void testStats() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    try {
+      ZKClientService zkClientService = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClientService.startAndWait();
+
+      try {
+        ZKStatsCollector collector = new ZKStatsCollector();
+        ZKClient client = ZKClients.collectStats(zkClientService, collector);
+
+        client.create("/stats", null, CreateMode.PERSISTENT).get();
+        final CountDownLatch watchLatch = new CountDownLatch(1);
+        client.getData("/stats", new Watcher() {
+          @Override
+          public void process(WatchedEvent event) {
+            watchLatch.countDown();
+          }
+        }).get();
+        client.setData("/stats", "data".getBytes()).get();
+        Assert.assertTrue(watchLatch.await(5, TimeUnit.SECONDS));
+
+        try {
+          client.delete("/nonexist").get();
+          Assert.fail("Expected failure on deleting non-existing node.");
+        } catch (ExecutionException e) {
+          // Expected
+        }
+
+        ZKStatsSnapshot snapshot = collector.getSnapshot();
+        Assert.assertEquals(1, snapshot.getOperationStats(RetryStrategy.OperationType.CREATE).getCount());
+        Assert.assertEquals(1, snapshot.getOperationStats(RetryStrategy.OperationType.GET_DATA).getCount());
+        Assert.assertEquals(1, snapshot.getOperationStats(RetryStrategy.OperationType.SET_DATA).getCount());
+        Assert.assertEquals(1, snapshot.getOperationStats(RetryStrategy.OperationType.DELETE).getFailures());
+        Assert.assertEquals(0, snapshot.getOperationStats(RetryStrategy.OperationType.CREATE).getInFlight());
+        Assert.assertEquals(1, snapshot.getWatchesSet());
+        Assert.assertEquals(1, snapshot.getWatchesTriggered());
+
+        // Verify reporting
+        final BlockingQueue<ZKStatsSnapshot> reports = new LinkedBlockingQueue<ZKStatsSnapshot>();
+        Cancellable cancellable = collector.startReporting(new ZKStatsReporter() {
+          @Override
+          public void report(ZKStatsSnapshot snapshot) {
+            reports.add(snapshot);
+          }
+        }, 100, TimeUnit.MILLISECONDS);
+        try {
+          ZKStatsSnapshot report = reports.poll(5, TimeUnit.SECONDS);
+          Assert.assertNotNull(report);
+          Assert.assertEquals(1, report.getOperationStats(RetryStrategy.OperationType.CREATE).getCount());
+        } finally {
+          cancellable.cancel();
+        }
+      } finally {
+        zkClientService.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testCoalesceReads() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ZKClientService zkClientService = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClientService.startAndWait();
+
+      try {
+        // Holds back results of getData until released, so that reads are guaranteed to be in flight.
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger dataRequests = new AtomicInteger();
+        ZKClient client = ZKClients.coalesceReads(new GatedReadZKClient(zkClientService, executor,
+                                                                          release, dataRequests));
+        client.create("/coalesce", "data".getBytes(), CreateMode.PERSISTENT).get();
+
+        // Concurrent identical reads, with watchers.
+        int reads = 10;
+        final CountDownLatch watchLatch = new CountDownLatch(reads);
+        List<OperationFuture<NodeData>> futures = Lists.newArrayList();
+        for (int i = 0; i < reads; i++) {
+          futures.add(client.getData("/coalesce", new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+              if (event.getType() == Event.EventType.NodeDataChanged) {
+                watchLatch.countDown();
+              }
+            }
+          }));
+        }
+        Assert.assertEquals(1, dataRequests.get());
+
+        // A read after a write shouldn't join the read sent before the write.
+        client.setData("/coalesce", "data2".getBytes()).get();
+        OperationFuture<NodeData> readAfterWrite = client.getData("/coalesce");
+        Assert.assertEquals(2, dataRequests.get());
+
+        release.countDown();
+        for (NodeData nodeData : Futures.allAsList(futures).get(5, TimeUnit.SECONDS)) {
+          Assert.assertArrayEquals("data".getBytes(), nodeData.getData());
+        }
+        Assert.assertArrayEquals("data2".getBytes(), readAfterWrite.get(5, TimeUnit.SECONDS).getData());
+
+        // All watchers should get notified by the single watch.
+        Assert.assertTrue(watchLatch.await(5, TimeUnit.SECONDS));
+      } finally {
+        zkClientService.stopAndWait();
+      }
+    } finally {
+      executor.shutdownNow();
+      zkServer.stopAndWait();
+    }
+  }
+
+  /**
+   * A {@link ZKClient} that counts getData requests and only delivers their results after a latch is released.
+   */
+  private static final class GatedReadZKClient extends ForwardingZKClient {
+
+    private final Executor executor;
+    private final CountDownLatch release;
+    private final AtomicInteger dataRequests;
+
+    GatedReadZKClient(ZKClient delegate, Executor executor, CountDownLatch release, AtomicInteger dataRequests) {
+      super(delegate);
+      this.executor = executor;
+      this.release = release;
+      this.dataRequests = dataRequests;
+    }
+
+    @Override
+    public OperationFuture<NodeData> getData(String path, @Nullable Watcher watcher) {
+      dataRequests.incrementAndGet();
+      final SettableOperationFuture<NodeData> result = SettableOperationFuture.create(path,
+                                                                                      Threads.SAME_THREAD_EXECUTOR);
+      Futures.addCallback(super.getData(path, watcher), new FutureCallback<NodeData>() {
+        @Override
+        public void onSuccess(NodeData nodeData) {
+          Uninterruptibles.awaitUninterruptibly(release);
+          result.set(nodeData);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          Uninterruptibles.awaitUninterruptibly(release);
+          result.setException(t);
+        }
+      }, executor);
+      return result;
+    }
+  }
 }
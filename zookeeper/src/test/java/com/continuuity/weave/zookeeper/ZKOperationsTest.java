@@ -16,10 +16,13 @@
 package com.continuuity.weave.zookeeper;
 
 import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import org.apache.zookeeper.CreateMode;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -58,4 +61,53 @@ public class ZKOperationsTest {
       zkServer.stopAndWait();
     }
   }
+
+  @Test
+  public void testLargeData() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    try {
+      ZKClientService client = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      client.startAndWait();
+
+      try {
+        // Small data is stored as is.
+        byte[] small = "small".getBytes(Charsets.UTF_8);
+        Assert.assertArrayEquals(small, ZKOperations.storeLargeData(client, "/chunks/small", small).get());
+
+        // Data that starts with the manifest marker is never taken as a manifest.
+        byte[] marked = new byte[] { (byte) 0xCF, 1, 2, 0, 0, 0, 1 };
+        byte[] stored = ZKOperations.storeLargeData(client, "/chunks/marked", marked).get();
+        Assert.assertArrayEquals(marked, ZKOperations.loadLargeData(client, stored).get());
+        Assert.assertNull(ZKOperations.getLargeDataChunkPath(stored));
+
+        // Compressible data is stored inline.
+        byte[] compressible = Strings.repeat("compressible", 1000).getBytes(Charsets.UTF_8);
+        stored = ZKOperations.storeLargeData(client, "/chunks/inline", compressible, 1024).get();
+        Assert.assertTrue(stored.length <= 1024);
+        Assert.assertNull(client.exists("/chunks/inline").get());
+        Assert.assertArrayEquals(compressible, ZKOperations.loadLargeData(client, stored).get());
+
+        // Random data is stored in chunks.
+        byte[] random = new byte[10000];
+        new Random().nextBytes(random);
+        stored = ZKOperations.storeLargeData(client, "/chunks/random", random, 1024).get();
+        Assert.assertTrue(stored.length <= 1024);
+        Assert.assertTrue(client.getChildren("/chunks/random").get().getChildren().size() > 1);
+
+        client.create("/data", stored, CreateMode.PERSISTENT).get();
+        byte[] nodeData = client.getData("/data").get().getData();
+        Assert.assertArrayEquals(random, ZKOperations.loadLargeData(client, nodeData).get());
+
+        Assert.assertEquals("/chunks/random", ZKOperations.getLargeDataChunkPath(nodeData));
+        ZKOperations.deleteLargeData(client, nodeData).get();
+        Assert.assertNull(client.exists("/chunks/random").get());
+      } finally {
+        client.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
 }